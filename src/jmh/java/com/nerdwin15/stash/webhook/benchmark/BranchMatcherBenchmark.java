@@ -0,0 +1,92 @@
+package com.nerdwin15.stash.webhook.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nerdwin15.stash.webhook.service.BranchMatcher;
+
+/**
+ * Compares the compiled {@link BranchMatcher} with the string matching the
+ * branch filter used before, on a push whose branches match none of the
+ * patterns (the worst case for both).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BranchMatcherBenchmark {
+
+  @Param({"10", "100", "500"})
+  private int patternCount;
+
+  @Param({"10", "100", "500"})
+  private int branchCount;
+
+  private String patternString;
+  private BranchMatcher matcher;
+  private List<String> branches;
+
+  /**
+   * Build the patterns and the pushed branches
+   */
+  @Setup
+  public void setUp() {
+    StringBuilder patterns = new StringBuilder();
+    List<String> compiled = new ArrayList<String>();
+    for (int i = 0; i < patternCount; i++) {
+      String pattern = i % 2 == 0 ? "Release/" + i + "/*" : "Feature/JIRA-" + i;
+      patterns.append(pattern).append(' ');
+      compiled.add(pattern);
+    }
+    patternString = patterns.toString();
+    matcher = BranchMatcher.compile(compiled);
+
+    branches = new ArrayList<String>();
+    for (int i = 0; i < branchCount; i++)
+      branches.add("bugfix/JIRA-" + i);
+  }
+
+  /**
+   * The previous implementation: split and lowercase on every event
+   * @return The match result
+   */
+  @Benchmark
+  public boolean splitAndCompare() {
+    String[] settings = patternString.split(" ");
+    for (String branch : branches) {
+      branch = branch.toLowerCase();
+      for (String s : settings) {
+        s = s.toLowerCase();
+        if (s.endsWith("*") && branch.startsWith(s.substring(0, s.length() - 1)))
+          return true;
+        if (s.equals(branch))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The compiled matcher, as cached with the settings
+   * @return The match result
+   */
+  @Benchmark
+  public boolean compiledMatcher() {
+    return matcher.matchesAny(branches);
+  }
+}
@@ -0,0 +1,225 @@
+package com.nerdwin15.stash.webhook.benchmark;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.atlassian.bitbucket.hook.repository.RepositoryHook;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.SimpleMinimalRef;
+import com.atlassian.bitbucket.repository.SimpleRefChange;
+import com.atlassian.bitbucket.repository.StandardRefType;
+import com.atlassian.bitbucket.setting.Settings;
+import com.nerdwin15.stash.webhook.Notifier;
+import com.nerdwin15.stash.webhook.service.BranchEvaluator;
+import com.nerdwin15.stash.webhook.service.ConcreteBranchEvaluator;
+import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
+import com.nerdwin15.stash.webhook.service.eligibility.BranchEligibilityFilter;
+import com.nerdwin15.stash.webhook.service.eligibility.ConcreteEligibilityFilterChain;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilter;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
+import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
+import com.nerdwin15.stash.webhook.service.eligibility.IgnoreCommittersEligibilityFilter;
+
+/**
+ * Measures the eligibility checks run for every ref of a push, the way the
+ * repository change listener runs them.
+ *
+ * The pushed branches match none of the whitelisted patterns and the pusher
+ * is none of the ignored committers, so every pattern and committer is
+ * compared (the worst case).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EligibilityBenchmark {
+
+  private static final String USER = "developer";
+
+  @Param({"1", "100", "10000"})
+  private int refCount;
+
+  @Param({"1", "10", "100"})
+  private int whitelistSize;
+
+  @Param({"0", "10", "100"})
+  private int ignoredCommitterCount;
+
+  private List<RefChange> refChanges;
+  private Repository repository;
+  private String whitelist;
+  private WebhookSettings settings;
+  private BranchEvaluator branchEvaluator;
+  private BranchEligibilityFilter branchFilter;
+  private EligibilityFilterChain filterChain;
+
+  /**
+   * Build the pushed refs and the hook settings
+   */
+  @Setup
+  public void setUp() {
+    refChanges = new ArrayList<RefChange>();
+    for (int i = 0; i < refCount; i++) {
+      String branch = "bugfix/JIRA-" + i;
+      refChanges.add(new SimpleRefChange.Builder()
+          .ref(new SimpleMinimalRef.Builder()
+              .id("refs/heads/" + branch)
+              .displayId(branch)
+              .type(StandardRefType.BRANCH)
+              .build())
+          .fromHash("0000000000000000000000000000000000000000")
+          .toHash(String.format("%040x", i))
+          .type(RefChangeType.UPDATE)
+          .build());
+    }
+    repository = mock(Repository.class);
+
+    List<String> patterns = new ArrayList<String>();
+    for (int i = 0; i < whitelistSize; i++)
+      patterns.add(i % 2 == 0 ? "release/" + i + "/*" : "feature/JIRA-" + i);
+    whitelist = String.join(" ", patterns);
+    StringBuilder ignored = new StringBuilder();
+    for (int i = 0; i < ignoredCommitterCount; i++)
+      ignored.append("build-user-").append(i).append(' ');
+
+    Settings hookSettings = mock(Settings.class);
+    when(hookSettings.getString(Notifier.BRANCH_OPTIONS))
+        .thenReturn("whitelist");
+    when(hookSettings.getString(Notifier.BRANCH_OPTIONS_BRANCHES))
+        .thenReturn(whitelist);
+    when(hookSettings.getString(Notifier.IGNORE_COMMITTERS))
+        .thenReturn(ignored.toString());
+    settings = new WebhookSettings(true, hookSettings);
+    SettingsService settingsService = new FixedSettingsService(settings);
+
+    branchEvaluator = new ConcreteBranchEvaluator();
+    branchFilter = new BranchEligibilityFilter(settingsService,
+        branchEvaluator);
+    filterChain = new ConcreteEligibilityFilterChain(
+        Arrays.<EligibilityFilter>asList(
+            new IgnoreCommittersEligibilityFilter(settingsService),
+            branchFilter));
+  }
+
+  /**
+   * Extracting the branch names of a push
+   * @param blackhole Consumes the branch names
+   */
+  @Benchmark
+  public void getBranches(Blackhole blackhole) {
+    for (String branch : branchEvaluator.getBranches(refChanges))
+      blackhole.consume(branch);
+  }
+
+  /**
+   * Matching all branches of a push against the patterns the way the branch
+   * filter did before they were compiled: split and lowercased every time
+   * @return The match result
+   */
+  @Benchmark
+  public boolean splitAndCompare() {
+    String[] patterns = whitelist.split(" ");
+    for (String branch : branchEvaluator.getBranches(refChanges)) {
+      branch = branch.toLowerCase();
+      for (String s : patterns) {
+        s = s.toLowerCase();
+        if (s.endsWith("*") && branch.startsWith(s.substring(0, s.length() - 1)))
+          return true;
+        if (s.equals(branch))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Matching all branches of a push against the patterns with the matcher
+   * compiled once with the settings, as the branch filter does
+   * @return The match result
+   */
+  @Benchmark
+  public boolean precompiledMatcher() {
+    return settings.getBranchMatcher().matchesAny(
+        branchEvaluator.getBranches(refChanges));
+  }
+
+  /**
+   * The branch filter alone, once per ref
+   * @return The number of eligible refs
+   */
+  @Benchmark
+  public int branchFilter() {
+    int eligible = 0;
+    for (RefChange refChange : refChanges) {
+      if (branchFilter.shouldDeliverNotification(
+          new EventContext(repository, USER, refChange)))
+        eligible++;
+    }
+    return eligible;
+  }
+
+  /**
+   * The whole filter chain, once per ref
+   * @return The number of eligible refs
+   */
+  @Benchmark
+  public int filterChain() {
+    int eligible = 0;
+    for (RefChange refChange : refChanges) {
+      if (filterChain.shouldDeliverNotification(
+          new EventContext(repository, USER, refChange)))
+        eligible++;
+    }
+    return eligible;
+  }
+
+  /**
+   * Hands out the same settings for every repository, like a warm settings
+   * cache, without the cost of a mock on the measured path
+   */
+  private static final class FixedSettingsService implements SettingsService {
+    private final WebhookSettings settings;
+
+    FixedSettingsService(WebhookSettings settings) {
+      this.settings = settings;
+    }
+
+    @Override
+    public RepositoryHook getRepositoryHook(Repository repository) {
+      return null;
+    }
+
+    @Override
+    public Settings getSettings(Repository repository) {
+      return null;
+    }
+
+    @Override
+    public WebhookSettings getWebhookSettings(Repository repository) {
+      return settings;
+    }
+  }
+}
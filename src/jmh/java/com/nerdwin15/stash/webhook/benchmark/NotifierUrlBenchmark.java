@@ -0,0 +1,127 @@
+package com.nerdwin15.stash.webhook.benchmark;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Proxy;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.nerdwin15.stash.webhook.Notifier;
+import com.nerdwin15.stash.webhook.service.ConcreteNotificationUrlBuilder;
+
+/**
+ * Measures building the notification URL sent to Jenkins, for clone URLs and
+ * branch names of growing length. The custom clone type is used, so no clone
+ * URL lookup is measured.
+ *
+ * {@link #formatUrl()} builds the same URL the way it was built before the
+ * {@link ConcreteNotificationUrlBuilder}, with {@link String#format} and
+ * {@link URLEncoder}, as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotifierUrlBenchmark {
+
+  private static final String JENKINS_BASE = "https://jenkins.example.com";
+
+  @Param({"16", "128", "1024"})
+  private int urlLength;
+
+  private UrlNotifier notifier;
+  private Repository repository;
+  private String cloneUrl;
+  private String ref;
+  private String sha1;
+
+  /**
+   * Build the clone URL and branch name
+   */
+  @Setup
+  public void setUp() {
+    notifier = new UrlNotifier(mock(ApplicationPropertiesService.class));
+    repository = repository(1);
+    cloneUrl = "https://bitbucket.example.com/scm/" + filler(urlLength)
+        + ".git";
+    ref = "feature/" + filler(urlLength);
+    sha1 = "4c1e2d8f0a6b7c9d3e5f1a2b4c6d8e0f1a3b5c7d";
+  }
+
+  /**
+   * Building a URL with the branch, commit hash and target branch
+   * @return The URL
+   */
+  @Benchmark
+  public String getUrl() {
+    return notifier.url(repository, cloneUrl, ref, sha1, "master");
+  }
+
+  /**
+   * Building the same URL with {@link String#format} and {@link URLEncoder}
+   * @return The URL
+   * @throws UnsupportedEncodingException never
+   */
+  @Benchmark
+  public String formatUrl() throws UnsupportedEncodingException {
+    StringBuilder url = new StringBuilder();
+    url.append(String.format("%s/git/notifyCommit?url=%s", JENKINS_BASE,
+        URLEncoder.encode(cloneUrl, "UTF-8")));
+    url.append(String.format("&branches=%s", URLEncoder.encode(ref, "UTF-8")));
+    url.append(String.format("&sha1=%s", sha1));
+    url.append(String.format("&TARGET_BRANCH=%s", "master"));
+    return url.toString();
+  }
+
+  /**
+   * A repository with just an id. Mockito's bookkeeping would dominate the
+   * measurement.
+   */
+  private static Repository repository(int id) {
+    return (Repository) Proxy.newProxyInstance(
+        Repository.class.getClassLoader(), new Class<?>[] {Repository.class},
+        (proxy, method, args) -> "getId".equals(method.getName()) ? id : null);
+  }
+
+  private static String filler(int length) {
+    StringBuilder filler = new StringBuilder(length);
+    for (int i = 0; i < length; i++)
+      filler.append(i % 10 == 9 ? '/' : (char) ('a' + i % 26));
+    return filler.toString();
+  }
+
+  /**
+   * Opens up {@link Notifier#getUrl} to the benchmark
+   */
+  private static final class UrlNotifier extends Notifier {
+
+    UrlNotifier(ApplicationPropertiesService propertiesService) {
+      super(null, null, null, null, null, null, null, null, null, null, null,
+          new ConcreteNotificationUrlBuilder(100), null, null,
+          propertiesService);
+    }
+
+    String url(Repository repository, String cloneUrl, String ref,
+        String sha1, String targetBranch) {
+      return getUrl(repository, JENKINS_BASE, "custom", cloneUrl, ref, sha1,
+          targetBranch, false, false, false);
+    }
+  }
+}
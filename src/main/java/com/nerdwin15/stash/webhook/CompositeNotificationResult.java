@@ -0,0 +1,88 @@
+package com.nerdwin15.stash.webhook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a notification sent to several Jenkins instances at once,
+ * made of the result of each instance.
+ *
+ * It is successful if every instance scheduled the polling. Otherwise it
+ * takes the status of the first instance that didn't, preferring the ones
+ * whose failure may go away, so the notification is retried as long as one
+ * of the instances may still take it.
+ */
+public class CompositeNotificationResult extends NotificationResult {
+
+  private final Map<String, NotificationResult> results;
+
+  /**
+   * Create a new result
+   * @param results The result of each Jenkins instance, by base URL, in the
+   * order the instances are configured
+   */
+  public CompositeNotificationResult(Map<String, NotificationResult> results) {
+    super(statusOf(results.values()), urlOf(results.values()),
+        messageOf(results));
+    this.results = Collections.unmodifiableMap(
+        new LinkedHashMap<String, NotificationResult>(results));
+  }
+
+  /**
+   * Gets the result of each Jenkins instance.
+   * @return The results by base URL of the Jenkins instance
+   */
+  public Map<String, NotificationResult> getResults() {
+    return results;
+  }
+
+  /**
+   * Gets the Jenkins instances worth notifying again.
+   * @return The base URLs of the instances whose failure may go away
+   */
+  public List<String> getRetryableTargets() {
+    List<String> targets = new ArrayList<String>();
+    for (Map.Entry<String, NotificationResult> result : results.entrySet()) {
+      if (result.getValue().isRetryable())
+        targets.add(result.getKey());
+    }
+    return targets;
+  }
+
+  private static Status statusOf(Iterable<NotificationResult> results) {
+    Status status = Status.SUCCESS;
+    for (NotificationResult result : results) {
+      if (result.isRetryable())
+        return result.getStatus();
+      if (status == Status.SUCCESS)
+        status = result.getStatus();
+    }
+    return status;
+  }
+
+  private static String urlOf(Iterable<NotificationResult> results) {
+    StringBuilder url = new StringBuilder();
+    for (NotificationResult result : results) {
+      if (result.getUrl() == null)
+        continue;
+      if (url.length() > 0)
+        url.append(' ');
+      url.append(result.getUrl());
+    }
+    return url.length() == 0 ? null : url.toString();
+  }
+
+  private static String messageOf(Map<String, NotificationResult> results) {
+    StringBuilder message = new StringBuilder();
+    for (Map.Entry<String, NotificationResult> result : results.entrySet()) {
+      if (message.length() > 0)
+        message.append('\n');
+      message.append(result.getKey()).append(": ")
+          .append(result.getValue().getMessage());
+    }
+    return message.toString();
+  }
+}
@@ -0,0 +1,145 @@
+package com.nerdwin15.stash.webhook;
+
+import java.util.Objects;
+
+import com.atlassian.bitbucket.repository.Repository;
+
+/**
+ * A model object that holds a single notification waiting to be sent.
+ *
+ * A request may carry the id of the journal entry recording it, which is
+ * bookkeeping only: two requests for the same notification are equal
+ * whether or not they were journaled.
+ */
+public class NotificationRequest {
+
+  private final Repository repository;
+  private final String ref;
+  private final String sha1;
+  private final String targetBranch;
+  private final long entryId;
+
+  /**
+   * Create a new request
+   * @param repository The repository to base the notification on
+   * @param ref The branch ref related to the commit
+   * @param sha1 The commit's SHA1 hash code
+   * @param targetBranch Target branch can be used in merge
+   */
+  public NotificationRequest(Repository repository, String ref, String sha1,
+      String targetBranch) {
+    this(repository, ref, sha1, targetBranch, -1);
+  }
+
+  /**
+   * Create a new request already recorded in the journal
+   * @param repository The repository to base the notification on
+   * @param ref The branch ref related to the commit
+   * @param sha1 The commit's SHA1 hash code
+   * @param targetBranch Target branch can be used in merge
+   * @param entryId The id of the journal entry recording the request, or -1
+   * if it isn't journaled
+   */
+  public NotificationRequest(Repository repository, String ref, String sha1,
+      String targetBranch, long entryId) {
+    this.repository = repository;
+    this.ref = ref;
+    this.sha1 = sha1;
+    this.targetBranch = targetBranch;
+    this.entryId = entryId;
+  }
+
+  /**
+   * Gets a copy of this request recorded in the journal
+   * @param entryId The id of the journal entry recording the request
+   * @return The journaled request
+   */
+  public NotificationRequest withEntryId(long entryId) {
+    return new NotificationRequest(repository, ref, sha1, targetBranch,
+        entryId);
+  }
+
+  /**
+   * Gets the {@code repository} property.
+   * @return The repository to base the notification on
+   */
+  public Repository getRepository() {
+    return repository;
+  }
+
+  /**
+   * Gets the {@code ref} property.
+   * @return The branch ref related to the commit
+   */
+  public String getRef() {
+    return ref;
+  }
+
+  /**
+   * Gets the {@code sha1} property.
+   * @return The commit's SHA1 hash code
+   */
+  public String getSha1() {
+    return sha1;
+  }
+
+  /**
+   * Gets the {@code targetBranch} property.
+   * @return The target branch
+   */
+  public String getTargetBranch() {
+    return targetBranch;
+  }
+
+  /**
+   * Gets the {@code entryId} property.
+   * @return The id of the journal entry recording the request, or -1 if it
+   * isn't journaled
+   */
+  public long getEntryId() {
+    return entryId;
+  }
+
+  /**
+   * Checks if the request is recorded in the journal
+   * @return True if the request has a journal entry
+   */
+  public boolean isJournaled() {
+    return entryId >= 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof NotificationRequest))
+      return false;
+    NotificationRequest other = (NotificationRequest) o;
+    return Objects.equals(repository, other.repository)
+        && Objects.equals(ref, other.ref)
+        && Objects.equals(sha1, other.sha1)
+        && Objects.equals(targetBranch, other.targetBranch);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int hashCode() {
+    return Objects.hash(repository, ref, sha1, targetBranch);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String toString() {
+    return "Request: repository: "
+        + (repository == null ? null : repository.getId()) + "; ref: " + ref
+        + "; sha1: " + sha1 + "; targetBranch: " + targetBranch;
+  }
+
+}
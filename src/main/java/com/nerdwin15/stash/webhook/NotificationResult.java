@@ -8,7 +8,23 @@ package com.nerdwin15.stash.webhook;
  */
 public class NotificationResult {
 
-  private final boolean successful;
+  /**
+   * The outcome of a notification attempt
+   */
+  public enum Status {
+    /** Jenkins scheduled the polling */
+    SUCCESS,
+    /** Jenkins answered, but didn't schedule the polling */
+    FAILURE,
+    /** Jenkins couldn't be reached or answered with a server error */
+    ERROR,
+    /** Jenkins didn't connect or respond in time */
+    TIMEOUT,
+    /** Not sent, as the circuit of the Jenkins instance is open */
+    CIRCUIT_OPEN
+  }
+
+  private final Status status;
   private final String url;
   private final String message;
   
@@ -20,7 +36,18 @@ public class NotificationResult {
    * Jenkins
    */
   public NotificationResult(boolean successful, String url, String message) {
-    this.successful = successful;
+    this(successful ? Status.SUCCESS : Status.FAILURE, url, message);
+  }
+
+  /**
+   * Create a new result
+   * @param status The outcome of the notification
+   * @param url The URL that was used for notification
+   * @param message Either an error message or the body of the response from
+   * Jenkins
+   */
+  public NotificationResult(Status status, String url, String message) {
+    this.status = status;
     this.url = url;
     this.message = message;
   }
@@ -30,7 +57,34 @@ public class NotificationResult {
    * @return Was the notification successful?
    */
   public boolean isSuccessful() {
-    return successful;
+    return status == Status.SUCCESS;
+  }
+
+  /**
+   * Gets the {@code status} property.
+   * @return The outcome of the notification
+   */
+  public Status getStatus() {
+    return status;
+  }
+
+  /**
+   * Checks if the notification failed for a reason that may go away, so
+   * sending it again later may succeed
+   * @return True if Jenkins couldn't be reached, timed out, failed with a
+   * server error or had its circuit open
+   */
+  public boolean isRetryable() {
+    return status == Status.ERROR || status == Status.TIMEOUT
+        || status == Status.CIRCUIT_OPEN;
+  }
+
+  /**
+   * Checks if the notification timed out
+   * @return True if Jenkins didn't connect or respond in time
+   */
+  public boolean isTimedOut() {
+    return status == Status.TIMEOUT;
   }
   
   /**
@@ -54,7 +108,7 @@ public class NotificationResult {
    */
   @Override
   public String toString() {
-    return "Result: successful? " + successful + "; url: " + url 
+    return "Result: status: " + status + "; url: " + url 
         + "; message: " + message;
   }
   
@@ -1,34 +1,53 @@
 package com.nerdwin15.stash.webhook;
 
-import com.atlassian.bitbucket.hook.repository.RepositoryHook;
-import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
-import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
-import com.atlassian.bitbucket.setting.Settings;
-import com.atlassian.bitbucket.user.SecurityService;
-import com.atlassian.util.concurrent.ThreadFactories;
-import com.google.common.base.Charsets;
-import com.google.common.io.CharStreams;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.nerdwin15.stash.webhook.service.AsyncHttpClientFactory;
+import com.nerdwin15.stash.webhook.service.CloneUrlService;
+import com.nerdwin15.stash.webhook.service.DefaultBranchService;
 import com.nerdwin15.stash.webhook.service.HttpClientFactory;
+import com.nerdwin15.stash.webhook.service.HttpTimeouts;
+import com.nerdwin15.stash.webhook.service.NotificationUrlBuilder;
+import com.nerdwin15.stash.webhook.service.PrefixResponseConsumer;
+import com.nerdwin15.stash.webhook.service.ResponsePrefix;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreaker;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreakerRegistry;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationExecutor;
+import com.nerdwin15.stash.webhook.service.dispatch.RetryScheduler;
+import com.nerdwin15.stash.webhook.service.dispatch.ScatterGather;
+import com.nerdwin15.stash.webhook.service.history.DeliveryHistory;
+import com.nerdwin15.stash.webhook.service.metrics.NotificationMetrics;
+import com.nerdwin15.stash.webhook.service.outbox.NotificationOutbox;
+import com.nerdwin15.stash.webhook.service.ratelimit.RateLimiter;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Service object that does the actual notification.
@@ -49,6 +68,12 @@ public class Notifier implements DisposableBean {
    */
   public static final String JENKINS_BASE = "jenkinsBase";
 
+  /**
+   * Field name for the additional Jenkins base URLs property
+   */
+  public static final String ADDITIONAL_JENKINS_BASES =
+      "additionalJenkinsBases";
+
   /**
    * Field name for the Repo clone type property
    */
@@ -79,6 +104,26 @@ public class Notifier implements DisposableBean {
    */
   public static final String OMIT_TARGET_BRANCH = "omitTargetBranch";
 
+  /**
+   * Field name for the batch branches property
+   */
+  public static final String BATCH_BRANCHES = "batchBranches";
+
+  /**
+   * Field name for the connect timeout property
+   */
+  public static final String CONNECT_TIMEOUT = "connectTimeout";
+
+  /**
+   * Field name for the socket timeout property
+   */
+  public static final String SOCKET_TIMEOUT = "socketTimeout";
+
+  /**
+   * Field name for the pool timeout property
+   */
+  public static final String POOL_TIMEOUT = "poolTimeout";
+
   /**
    * Field name for the ignore committers property
    */
@@ -94,45 +139,124 @@ public class Notifier implements DisposableBean {
    */
   public static final String BRANCH_OPTIONS_BRANCHES = "branchOptionsBranches";
 
+  /**
+   * Property that switches background notifications to the non-blocking
+   * HTTP engine
+   */
+  public static final String ASYNC_PROPERTY = "plugin.webhook.jenkins.http.async";
+
+  /**
+   * Property holding the maximum number of background notifications in
+   * flight on the non-blocking HTTP engine
+   */
+  public static final String ASYNC_IN_FLIGHT_PROPERTY =
+      "plugin.webhook.jenkins.http.async.inflight";
+
+  static final int DEFAULT_ASYNC_IN_FLIGHT = 100;
+
   private static final Logger LOGGER = 
       LoggerFactory.getLogger(Notifier.class);
-  private static final String BASE_URL = "%s/git/notifyCommit?url=%s";
-  private static final String HASH_URL_PARAMETER = "&sha1=%s";
-  private static final String BRANCH_URL_PARAMETER = "&branches=%s";
-  private static final String TARGET_BRANCH_PARAMETER = "&TARGET_BRANCH=%s";
+  private static final int ENCODED_COMMA_LENGTH = 3;
+
+  /**
+   * Longest URL-encoded branch list sent in a single batched notification.
+   * Leaves room for the Jenkins and clone URLs while keeping the request
+   * below the 2000 characters that proxies and servlet containers accept.
+   */
+  static final int MAX_BATCH_BRANCHES_LENGTH = 1500;
 
   private final HttpClientFactory httpClientFactory;
+  private final AsyncHttpClientFactory asyncHttpClientFactory;
   private final SettingsService settingsService;
-  private final ExecutorService executorService;
-  private final SecurityService securityService;
-  private final SshScmProtocol scmProtocol;
-  private final HttpScmProtocol httpScmProtocol;
+  private final NotificationExecutor executor;
+  private final ScatterGather scatterGather;
+  private final DefaultBranchService defaultBranches;
+  private final CloneUrlService cloneUrls;
+  private final CircuitBreakerRegistry breakers;
+  private final RateLimiter limiter;
+  private final RetryScheduler retries;
+  private final NotificationOutbox outbox;
+  private final NotificationUrlBuilder urlBuilder;
+  private final NotificationMetrics metrics;
+  private final DeliveryHistory history;
+  private final boolean async;
+  private final Semaphore asyncInFlight;
+  private final HttpTimeouts defaultTimeouts;
 
   /**
    * Create a new instance
    * @param settingsService Service used to get webhook settings
    * @param httpClientFactory Factory to generate HttpClients
-   * @param securityService securityService
-   * @param sshScmProtocol generates ssh clone URLs
-   * @param httpScmProtocol generates http clone URLs
+   * @param asyncHttpClientFactory Factory to generate HttpAsyncClients
+   * @param cloneUrls Resolves the default clone URLs
+   * @param executor Bounded executor used for background notifications
+   * @param scatterGather Gathers the results of notifications sent to
+   * several Jenkins instances at once
+   * @param defaultBranches Tells which notifications are for a default
+   * branch, and jump the background queue
+   * @param breakers The circuit breakers of the Jenkins instances
+   * @param limiter Limits the rate of background notifications per Jenkins
+   * instance and repository
+   * @param retries Schedules further attempts of failed notifications
+   * @param outbox Journal keeping background notifications across restarts
+   * @param urlBuilder Builds the notification URLs
+   * @param metrics Counts and times the notifications per Jenkins host
+   * @param history Keeps the recent background notifications per repository
+   * @param propertiesService Service used to read the HTTP engine selection
+   * and the global timeouts
    */
   public Notifier(SettingsService settingsService,
                   HttpClientFactory httpClientFactory,
-                  SecurityService securityService,
-                  SshScmProtocol sshScmProtocol,
-                  HttpScmProtocol httpScmProtocol) {
+                  AsyncHttpClientFactory asyncHttpClientFactory,
+                  CloneUrlService cloneUrls,
+                  NotificationExecutor executor,
+                  ScatterGather scatterGather,
+                  DefaultBranchService defaultBranches,
+                  CircuitBreakerRegistry breakers,
+                  RateLimiter limiter,
+                  RetryScheduler retries,
+                  NotificationOutbox outbox,
+                  NotificationUrlBuilder urlBuilder,
+                  NotificationMetrics metrics,
+                  DeliveryHistory history,
+                  ApplicationPropertiesService propertiesService) {
     
     this.httpClientFactory = httpClientFactory;
+    this.asyncHttpClientFactory = asyncHttpClientFactory;
+    this.async = propertiesService.getPluginProperty(ASYNC_PROPERTY, false);
+    this.asyncInFlight = new Semaphore(Math.max(1,
+        propertiesService.getPluginProperty(ASYNC_IN_FLIGHT_PROPERTY,
+            DEFAULT_ASYNC_IN_FLIGHT)), true);
+    this.defaultTimeouts = HttpTimeouts.fromProperties(propertiesService);
     this.settingsService = settingsService;
-    this.executorService = Executors.newCachedThreadPool(ThreadFactories.namedThreadFactory("JenkinsWebhook", ThreadFactories.Type.DAEMON));
-    this.securityService = securityService;
-    this.scmProtocol = sshScmProtocol;
-    this.httpScmProtocol = httpScmProtocol;
+    this.executor = executor;
+    this.scatterGather = scatterGather;
+    this.defaultBranches = defaultBranches;
+    this.cloneUrls = cloneUrls;
+    this.breakers = breakers;
+    this.limiter = limiter;
+    this.retries = retries;
+    this.outbox = outbox;
+    this.urlBuilder = urlBuilder;
+    this.metrics = metrics;
+    this.history = history;
   }
 
   /**
    * Send notification to Jenkins for the provided repository on a background thread.
    * This is better when running as a background task, to release the calling thread.
+   * If {@value #ASYNC_PROPERTY} is set, the notification still waits its
+   * turn for a background thread, but is sent through the non-blocking HTTP
+   * engine instead of occupying the thread until Jenkins answers.
+   * Background notifications are sent fairly between repositories, with
+   * pushes to the default branch first, and within the rate limits of the
+   * Jenkins instance and repository.
+   * Notifications that fail for a reason that may go away are retried later,
+   * unless a newer notification for the same branch supersedes them. If the
+   * repository notifies several Jenkins instances, only the instances that
+   * failed are notified again.
+   * The notification is journaled until Jenkins answered or it is given up,
+   * so it is sent again if Bitbucket restarts in between.
    * @param repo The repository to base the notification on.
    * @param strRef The branch ref related to the commit
    * @param strSha1 The commit's SHA1 hash code.
@@ -142,16 +266,340 @@ public class Notifier implements DisposableBean {
   @Nonnull
   public Future<NotificationResult> notifyBackground(@Nonnull final Repository repo, //CHECKSTYLE:annot
       final String strRef, final String strSha1, final String targetBranch) {
-    return executorService.submit(new Callable<NotificationResult>() {
+    return notifyBackground(repo, new NotificationRequest(repo, strRef,
+        strSha1, targetBranch));
+  }
+
+  /**
+   * Send a background notification, journaling it unless it already is
+   */
+  private Future<NotificationResult> notifyBackground(Repository repo,
+      NotificationRequest request) {
+    String key = repo.getId() + ":" + request.getRef();
+    long entry = request.isJournaled() ? request.getEntryId()
+        : outbox.append(request);
+    return deliver(key, retries.begin(key), entry, 1, null, repo,
+        request.getRef(), request.getSha1(), request.getTargetBranch());
+  }
+
+  /**
+   * Send notifications to Jenkins for several branches of the provided
+   * repository on background threads. If the repository has batching
+   * turned on, the plain branch pushes are combined into as few requests as
+   * the URL length allows. Batched requests carry neither the commit hashes
+   * nor the target branch, so Jenkins polls the listed branches for changes.
+   * Pull request notifications need both, so they are always sent on their
+   * own, and so are batches replayed from the journal.
+   * Requests already journaled keep their entry. The entries of batched
+   * requests are acknowledged once their batch is journaled.
+   * @param repo The repository to base the notifications on.
+   * @param requests The notifications to send
+   * @return Futures of the text results from Jenkins, one per request sent
+   */
+  @Nonnull
+  public List<Future<NotificationResult>> notifyBackground(@Nonnull final Repository repo, //CHECKSTYLE:annot
+      List<NotificationRequest> requests) {
+    List<Future<NotificationResult>> futures =
+        new ArrayList<Future<NotificationResult>>();
+    WebhookSettings settings = requests.size() > 1
+        ? settingsService.getWebhookSettings(repo) : null;
+    boolean batching = settings != null && settings.isBatchBranches();
+    List<NotificationRequest> batched = new ArrayList<NotificationRequest>();
+    for (NotificationRequest request : requests) {
+      if (batching && isBatchable(request)) {
+        batched.add(request);
+        continue;
+      }
+      futures.add(notifyBackground(repo, request));
+    }
+
+    for (String branches : joinBranches(batched))
+      futures.add(notifyBackground(repo, branches, null, null));
+    for (NotificationRequest request : batched) {
+      if (request.isJournaled())
+        outbox.acknowledge(request.getEntryId());
+    }
+    return futures;
+  }
+
+  /**
+   * Pull request notifications use a {@code pr/<id>/from} ref with the
+   * destination as target branch, which a batch would lose. A pushed branch
+   * whose name starts with {@code pr/} is its own target branch. A ref
+   * listing several branches is a batch replayed from the journal, sent as
+   * it is so its entry is the one acknowledged.
+   */
+  private static boolean isBatchable(NotificationRequest request) {
+    String ref = request.getRef();
+    return ref != null && ref.indexOf(',') < 0
+        && (!ref.startsWith("pr/") || ref.equals(request.getTargetBranch()));
+  }
+
+  /**
+   * Send an attempt of a background notification once the rate limits of
+   * its Jenkins instances and repository allow. An attempt replaced by a
+   * newer one while it waits is acknowledged without being sent.
+   * @param targets The Jenkins instances to notify, or null for all the
+   * configured ones
+   */
+  private Future<NotificationResult> deliver(final String key,
+      final Object token, final long entry, final int attempt,
+      final List<String> targets, final Repository repo, final String strRef,
+      final String strSha1, final String targetBranch) {
+    WebhookSettings settings = settingsService.getWebhookSettings(repo);
+    List<String> jenkinsBases = targets != null ? targets : settings == null
+        ? Collections.<String>emptyList() : settings.getJenkinsBases();
+    return limiter.submit(jenkinsBases, repo.getId(), key, () -> dispatch(key,
+        token, entry, attempt, targets, repo, strRef, strSha1, targetBranch),
+        () -> outbox.acknowledge(entry));
+  }
+
+  /**
+   * Send an attempt of a background notification and record it in the
+   * history. If it fails for a reason that may go away, another attempt is
+   * scheduled. Otherwise its journal entry is acknowledged.
+   */
+  private Future<NotificationResult> dispatch(final String key,
+      final Object token, final long entry, final int attempt,
+      final List<String> targets, final Repository repo, final String strRef,
+      final String strSha1, final String targetBranch) {
+    if (async) {
+      return dispatchAsync(key, token, entry, attempt, targets, repo, strRef,
+          strSha1, targetBranch);
+    }
+
+    return executor.submit(String.valueOf(repo.getId()),
+        priorityOf(repo, strRef), key, new Callable<NotificationResult>() {
       @Override
       public NotificationResult call() throws Exception {
-        return Notifier.this.notify(repo, strRef, strSha1, targetBranch);
+        long start = System.nanoTime();
+        NotificationResult result = Notifier.this.notify(repo, targets,
+            strRef, strSha1, targetBranch);
+        retryIfNeeded(key, token, entry, attempt, targets, start, result,
+            repo, strRef, strSha1, targetBranch);
+        return result;
       }
+    }, () -> {
+      // Dropped from a full queue or replaced by a newer notification
+      retries.complete(key, token);
+      outbox.acknowledge(entry);
     });
   }
 
   /**
-   * Send notification to Jenkins for the provided repository.
+   * Queue an attempt on the executor like a blocking one, so it keeps its
+   * turn between repositories and its priority, but only hold the worker
+   * until the non-blocking request is sent. At most
+   * {@value #ASYNC_IN_FLIGHT_PROPERTY} requests are in flight; a worker
+   * waits for one of them to be answered before sending another.
+   */
+  private Future<NotificationResult> dispatchAsync(final String key,
+      final Object token, final long entry, final int attempt,
+      final List<String> targets, final Repository repo, final String strRef,
+      final String strSha1, final String targetBranch) {
+    final CompletableFuture<NotificationResult> future =
+        new CompletableFuture<NotificationResult>();
+    executor.submit(String.valueOf(repo.getId()), priorityOf(repo, strRef),
+        key, () -> {
+          try {
+            asyncInFlight.acquire();
+          } catch (InterruptedException e) {
+            // Shutting down, left in the journal
+            future.cancel(false);
+            throw e;
+          }
+          final long start = System.nanoTime();
+          CompletableFuture<NotificationResult> call;
+          try {
+            call = notifyAsync(repo, targets, strRef, strSha1, targetBranch);
+          } catch (RuntimeException e) {
+            asyncInFlight.release();
+            throw e;
+          }
+          call.whenComplete((result, e) -> {
+            asyncInFlight.release();
+            retryIfNeeded(key, token, entry, attempt, targets, start, result,
+                repo, strRef, strSha1, targetBranch);
+            if (e != null)
+              future.completeExceptionally(e);
+            else
+              future.complete(result);
+          });
+          return null;
+        }, () -> {
+          // Dropped from a full queue or replaced by a newer notification
+          retries.complete(key, token);
+          outbox.acknowledge(entry);
+          future.cancel(false);
+        });
+    return future;
+  }
+
+  /**
+   * Notifications of the default branch, alone or in a batch, jump the
+   * queue. Manual triggers don't queue at all.
+   */
+  private NotificationExecutor.Priority priorityOf(Repository repo,
+      String strRef) {
+    if (strRef != null) {
+      for (String ref : strRef.split(",")) {
+        if (defaultBranches.isDefaultBranch(repo, ref))
+          return NotificationExecutor.Priority.HIGH;
+      }
+    }
+    return NotificationExecutor.Priority.NORMAL;
+  }
+
+  /**
+   * Retry a failed attempt. Of several Jenkins instances, only those that
+   * may take it later are notified again.
+   */
+  private void retryIfNeeded(final String key, final Object token,
+      final long entry, final int attempt, List<String> targets, long start,
+      NotificationResult result, final Repository repo, final String strRef,
+      final String strSha1, final String targetBranch) {
+    if (result != null) {
+      history.record(repo, strRef, strSha1, attempt,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), result);
+    }
+    if (result == null || !result.isRetryable()) {
+      retries.complete(key, token);
+      outbox.acknowledge(entry);
+      return;
+    }
+    final List<String> retryTargets =
+        result instanceof CompositeNotificationResult
+            ? ((CompositeNotificationResult) result).getRetryableTargets()
+            : targets;
+    if (!retries.schedule(key, token, attempt, () -> deliver(key, token,
+        entry, attempt + 1, retryTargets, repo, strRef, strSha1,
+        targetBranch)))
+      outbox.acknowledge(entry);
+  }
+
+  /**
+   * Send notification to Jenkins for the provided repository without
+   * blocking the calling thread on the HTTP round-trip. If the repository
+   * notifies several Jenkins instances, they are all notified at once and
+   * the future completes with a {@link CompositeNotificationResult} once
+   * each answered or timed out.
+   * @param repo The repository to base the notification on.
+   * @param strRef The branch ref related to the commit
+   * @param strSha1 The commit's SHA1 hash code.
+   * @param targetBranch Target branch can be used in merge
+   * @return A future of the text result from Jenkins. Completes with null if
+   * the hook isn't configured or enabled.
+   */
+  @Nonnull
+  public CompletableFuture<NotificationResult> notifyAsync(@Nonnull Repository repo, //CHECKSTYLE:annot
+      String strRef, String strSha1, String targetBranch) {
+    return notifyAsync(repo, null, strRef, strSha1, targetBranch);
+  }
+
+  private CompletableFuture<NotificationResult> notifyAsync(Repository repo,
+      List<String> targets, String strRef, String strSha1,
+      String targetBranch) {
+    final WebhookSettings settings = settingsService.getWebhookSettings(repo);
+    if (settings == null || !settings.isEnabled()) {
+      LOGGER.debug("Hook not configured correctly or not enabled, returning.");
+      return CompletableFuture.completedFuture(null);
+    }
+
+    List<String> jenkinsBases =
+        targets != null ? targets : settings.getJenkinsBases();
+    if (jenkinsBases.size() <= 1) {
+      return notifyAsync(repo, settings, jenkinsBases.isEmpty()
+          ? settings.getJenkinsBase() : jenkinsBases.get(0), strRef, strSha1,
+          targetBranch);
+    }
+    Map<String, CompletableFuture<NotificationResult>> calls =
+        new LinkedHashMap<String, CompletableFuture<NotificationResult>>();
+    for (String jenkinsBase : jenkinsBases) {
+      calls.put(jenkinsBase, notifyAsync(repo, settings, jenkinsBase, strRef,
+          strSha1, targetBranch));
+    }
+    return scatterGather.gather(calls);
+  }
+
+  /**
+   * Send notification to a single Jenkins instance through the
+   * non-blocking HTTP engine. Cancelling the future aborts the request.
+   */
+  private CompletableFuture<NotificationResult> notifyAsync(Repository repo,
+      WebhookSettings settings, String jenkinsBase, String strRef,
+      String strSha1, String targetBranch) {
+    final String url;
+    String base = maybeReplaceSlash(jenkinsBase);
+    try {
+      url = getUrl(repo, base, settings.getCloneType(),
+          settings.getCloneUrl(), strRef, strSha1, targetBranch,
+          settings.isOmitHashCode(), settings.isOmitBranchName(),
+          settings.isOmitTargetBranch());
+    } catch (Exception e) {
+      LOGGER.error("Error getting Jenkins URL", e);
+      return CompletableFuture.completedFuture(
+          new NotificationResult(false, null, e.getMessage()));
+    }
+
+    final CircuitBreaker breaker = breakers.forJenkins(base);
+    if (breaker != null && !breaker.tryAcquire())
+      return CompletableFuture.completedFuture(circuitOpen(url, base));
+
+    final long start = System.nanoTime();
+    final CompletableFuture<NotificationResult> future =
+        new CompletableFuture<NotificationResult>();
+    try {
+      HttpAsyncClient client = asyncHttpClientFactory.getHttpAsyncClient(base,
+          settings.isIgnoreCerts());
+      HttpGet request = new HttpGet(url);
+      request.setConfig(requestConfig(settings.getTimeouts()));
+      final Future<HttpResponse> call = client.execute(
+          HttpAsyncMethods.create(request),
+          new PrefixResponseConsumer(), new FutureCallback<HttpResponse>() {
+        @Override
+        public void completed(HttpResponse response) {
+          try {
+            LOGGER.debug("Successfully triggered jenkins with url '{}': ", url);
+            NotificationResult result = readResult(url, response,
+                ResponsePrefix.read(response.getEntity()));
+            record(breaker, base, start, isServerError(response),
+                outcomeOf(result, response));
+            future.complete(result);
+          } catch (Exception e) {
+            failed(e);
+          }
+        }
+
+        @Override
+        public void failed(Exception e) {
+          future.complete(recordFailure(breaker, base, start, url, e));
+        }
+
+        @Override
+        public void cancelled() {
+          record(breaker, base, start, true, NotificationMetrics.Outcome.ERROR);
+          future.complete(new NotificationResult(false, url,
+              "Notification cancelled"));
+        }
+      });
+      if (call != null) {
+        future.whenComplete((result, e) -> {
+          if (future.isCancelled())
+            call.cancel(true);
+        });
+      }
+    } catch (Exception e) {
+      future.complete(recordFailure(breaker, base, start, url, e));
+    }
+    return future;
+  }
+
+  /**
+   * Send notification to Jenkins for the provided repository. If the
+   * repository notifies several Jenkins instances, they are all notified at
+   * once through the non-blocking HTTP engine, and the result is a
+   * {@link CompositeNotificationResult} available once each answered or
+   * timed out.
    * @param repo The repository to base the notification on.
    * @param strRef The branch ref related to the commit
    * @param strSha1 The commit's SHA1 hash code.
@@ -160,21 +608,33 @@ public class Notifier implements DisposableBean {
    */
   public @Nullable NotificationResult notify(@Nonnull Repository repo, //CHECKSTYLE:annot
       String strRef, String strSha1, String targetBranch) {
-    final RepositoryHook hook = settingsService.getRepositoryHook(repo);
-    final Settings settings = settingsService.getSettings(repo);
-    if (hook == null || !hook.isEnabled() || settings == null) {
+    return notify(repo, null, strRef, strSha1, targetBranch);
+  }
+
+  private NotificationResult notify(Repository repo, List<String> targets,
+      String strRef, String strSha1, String targetBranch) {
+    final WebhookSettings settings = settingsService.getWebhookSettings(repo);
+    if (settings == null || !settings.isEnabled()) {
       LOGGER.debug("Hook not configured correctly or not enabled, returning.");
       return null;
     }
 
-    return notify(repo, settings.getString(JENKINS_BASE), 
-        settings.getBoolean(IGNORE_CERTS, false),
-        settings.getString(CLONE_TYPE),
-        settings.getString(CLONE_URL),
+    List<String> jenkinsBases =
+        targets != null ? targets : settings.getJenkinsBases();
+    if (jenkinsBases.size() > 1) {
+      return notifyAsync(repo, jenkinsBases, strRef, strSha1, targetBranch)
+          .join();
+    }
+    return notify(repo, jenkinsBases.isEmpty() ? settings.getJenkinsBase()
+        : jenkinsBases.get(0),
+        settings.isIgnoreCerts(),
+        settings.getCloneType(),
+        settings.getCloneUrl(),
         strRef, strSha1, targetBranch,
-        settings.getBoolean(OMIT_HASH_CODE, false),
-        settings.getBoolean(OMIT_BRANCH_NAME, false),
-        settings.getBoolean(OMIT_TARGET_BRANCH, false));
+        settings.isOmitHashCode(),
+        settings.isOmitBranchName(),
+        settings.isOmitTargetBranch(),
+        settings.getTimeouts());
   }
 
   /**
@@ -197,12 +657,41 @@ public class Notifier implements DisposableBean {
       String jenkinsBase, boolean ignoreCerts, String cloneType, String cloneUrl,
       String strRef, String strSha1, String targetBranch, boolean omitHashCode, 
       boolean omitBranchName, boolean omitTargetBranch) {
+    return notify(repo, jenkinsBase, ignoreCerts, cloneType, cloneUrl, strRef,
+        strSha1, targetBranch, omitHashCode, omitBranchName, omitTargetBranch,
+        HttpTimeouts.INHERIT);
+  }
+
+  /**
+   * Send notification to Jenkins using the provided settings
+   * @param repo The repository to base the notification on.
+   * @param jenkinsBase Base URL for Jenkins instance
+   * @param ignoreCerts True if all certs should be allowed
+   * @param cloneType The repository type
+   * @param cloneUrl The repository url
+   * @param strRef The branch ref related to the commit
+   * @param strSha1 The commit's SHA1 hash code.
+   * @param targetBranch Target branch can be used in merge
+   * @param omitHashCode Defines whether the commit's SHA1 hash code is omitted
+   *        in notification to Jenkins.
+   * @param omitBranchName Defines whether the commit's branch name is omitted
+   * @param omitTargetBranch Omit the target branch
+   * @param timeouts The timeouts to apply. Unset ones use the global timeouts
+   * @return The notification result.
+   */
+  public @Nullable NotificationResult notify(@Nonnull Repository repo, //CHECKSTYLE:annot
+      String jenkinsBase, boolean ignoreCerts, String cloneType, String cloneUrl,
+      String strRef, String strSha1, String targetBranch, boolean omitHashCode,
+      boolean omitBranchName, boolean omitTargetBranch, HttpTimeouts timeouts) {
     
-    HttpClient client = null;
+    HttpGet request = null;
+    HttpResponse response = null;
+    boolean consumed = false;
     String url;
+    String base = maybeReplaceSlash(jenkinsBase);
 
     try {
-        url = getUrl(repo, maybeReplaceSlash(jenkinsBase),
+        url = getUrl(repo, base,
             cloneType, cloneUrl, strRef, strSha1, targetBranch, omitHashCode, omitBranchName, 
             omitTargetBranch);
     } catch (Exception e) {
@@ -210,34 +699,125 @@ public class Notifier implements DisposableBean {
         return new NotificationResult(false, null, e.getMessage());
     }
 
+    CircuitBreaker breaker = breakers.forJenkins(base);
+    if (breaker != null && !breaker.tryAcquire())
+      return circuitOpen(url, base);
+
+    long start = System.nanoTime();
     try {
-      client = httpClientFactory.getHttpClient(url.startsWith("https"), 
-          ignoreCerts);
+      HttpClient client = httpClientFactory.getHttpClient(base, ignoreCerts);
 
-      HttpResponse response = client.execute(new HttpGet(url));
+      request = new HttpGet(url);
+      request.setConfig(requestConfig(timeouts));
+      response = client.execute(request);
       LOGGER.debug("Successfully triggered jenkins with url '{}': ", url);
-      InputStream content = response.getEntity().getContent();
-      String responseBody =  CharStreams.toString(
-          new InputStreamReader(content, Charsets.UTF_8));
-      boolean successful = responseBody.startsWith("Scheduled");
-      
-      NotificationResult result = new NotificationResult(successful, url, 
-              "Jenkins response: " + responseBody);
+      ResponsePrefix body = ResponsePrefix.read(response.getEntity());
+      consumed = body.isConsumed();
+      NotificationResult result = readResult(url, response, body);
+      record(breaker, base, start, isServerError(response),
+          outcomeOf(result, response));
       return result;
     } catch (Exception e) {
-      LOGGER.error("Error triggering jenkins with url '" + url + "'", e);
-      return new NotificationResult(false, url, e.getMessage());
+      return recordFailure(breaker, base, start, url, e);
     } finally {
-      if (client != null) {
-        client.getConnectionManager().shutdown();
-        LOGGER.debug("Successfully shutdown connection");
+      if (response != null && consumed) {
+        // Release the connection back to the pool
+        EntityUtils.consumeQuietly(response.getEntity());
+      } else if (response != null) {
+        // Closing would read the rest of the body, drop the connection instead
+        request.abort();
       }
     }
   }
 
   @Override
   public void destroy() {
-    executorService.shutdownNow();
+    httpClientFactory.shutdown();
+    asyncHttpClientFactory.shutdown();
+  }
+
+  private NotificationResult circuitOpen(String url, String base) {
+    metrics.record(base, NotificationMetrics.Outcome.REJECTED, -1);
+    LOGGER.debug("Circuit for jenkins at '{}' is open, skipping url '{}'",
+        base, url);
+    return new NotificationResult(NotificationResult.Status.CIRCUIT_OPEN, url,
+        "Jenkins at " + base + " is failing, notification skipped");
+  }
+
+  private NotificationResult recordFailure(CircuitBreaker breaker,
+      String base, long start, String url, Exception e) {
+    NotificationResult result = failure(url, e);
+    record(breaker, base, start, true, outcomeOf(result, null));
+    return result;
+  }
+
+  private void record(CircuitBreaker breaker, String base, long start,
+      boolean failed, NotificationMetrics.Outcome outcome) {
+    long duration = System.nanoTime() - start;
+    metrics.record(base, outcome, duration);
+    if (breaker == null)
+      return;
+    if (failed)
+      breaker.onFailure(duration);
+    else
+      breaker.onSuccess(duration);
+  }
+
+  private static NotificationMetrics.Outcome outcomeOf(
+      NotificationResult result, HttpResponse response) {
+    boolean httpError = response != null && response.getStatusLine() != null
+        && response.getStatusLine().getStatusCode() >= 400;
+    switch (result.getStatus()) {
+      case SUCCESS:
+        return NotificationMetrics.Outcome.SCHEDULED;
+      case TIMEOUT:
+        return NotificationMetrics.Outcome.TIMEOUT;
+      case CIRCUIT_OPEN:
+        return NotificationMetrics.Outcome.REJECTED;
+      case FAILURE:
+        return httpError ? NotificationMetrics.Outcome.HTTP_ERROR
+            : NotificationMetrics.Outcome.NO_JOB;
+      default:
+        return httpError ? NotificationMetrics.Outcome.HTTP_ERROR
+            : NotificationMetrics.Outcome.ERROR;
+    }
+  }
+
+  private static boolean isServerError(HttpResponse response) {
+    return response.getStatusLine() != null
+        && response.getStatusLine().getStatusCode() >= 500;
+  }
+
+  private static NotificationResult failure(String url, Exception e) {
+    if (isTimeout(e)) {
+      LOGGER.warn("Timed out triggering jenkins with url '{}': {}", url,
+          e.getMessage());
+      return new NotificationResult(NotificationResult.Status.TIMEOUT, url,
+          "Timed out: " + e.getMessage());
+    }
+    LOGGER.error("Error triggering jenkins with url '" + url + "'", e);
+    return new NotificationResult(NotificationResult.Status.ERROR, url,
+        e.getMessage());
+  }
+
+  private static boolean isTimeout(Exception e) {
+    // ConnectionPoolTimeoutException is a ConnectTimeoutException
+    return e instanceof ConnectTimeoutException
+        || e instanceof SocketTimeoutException
+        || e instanceof TimeoutException;
+  }
+
+  private static NotificationResult readResult(String url,
+      HttpResponse response, ResponsePrefix body) {
+    NotificationResult.Status status;
+    if (body.getText().startsWith("Scheduled"))
+      status = NotificationResult.Status.SUCCESS;
+    else if (isServerError(response))
+      status = NotificationResult.Status.ERROR;
+    else
+      status = NotificationResult.Status.FAILURE;
+
+    return new NotificationResult(status, url, "Jenkins response: " + body);
   }
 
   /**
@@ -262,36 +842,64 @@ public class Notifier implements DisposableBean {
     // Older installs won't have a cloneType value - treat as custom
     if (cloneType != null && !cloneType.equals("custom")) {
         if (cloneType.equals("http")) {
-            cloneUrl = httpScmProtocol.getCloneUrl(repository, null);
+            cloneUrl = cloneUrls.getHttpCloneUrl(repository);
         } else if (cloneType.equals("ssh")) {
-            // The user just pushed to the repo, so must have had access
-            cloneUrl = securityService.withPermission(Permission.REPO_READ, "Retrieving SSH clone url")
-                    .call(() -> scmProtocol.getCloneUrl(repository, null));
+            cloneUrl = cloneUrls.getSshCloneUrl(repository);
         } else {
             LOGGER.error("Unknown cloneType: {}", cloneType);
             throw new RuntimeException("Unknown cloneType: " + cloneType);
         }
     }
 
-    StringBuilder url = new StringBuilder();
-    url.append(String.format(BASE_URL, jenkinsBase, urlEncode(cloneUrl)));
-
-    if(strRef != null && !omitBranchName)
-      url.append(String.format(BRANCH_URL_PARAMETER, urlEncode(strRef)));
-    if(strSha1 != null && !omitHashCode)
-      url.append(String.format(HASH_URL_PARAMETER, strSha1));
-    if(targetBranch != null && !omitTargetBranch)
-        url.append(String.format(TARGET_BRANCH_PARAMETER, targetBranch));
-    
-    return url.toString();
+    return urlBuilder.getUrl(repository, jenkinsBase, cloneUrl, strRef,
+        strSha1, targetBranch, omitHashCode, omitBranchName, omitTargetBranch);
   }
 
-  private static String urlEncode(String string) {
-    try {
-      return URLEncoder.encode(string, "UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e);
+  /**
+   * Join the branches of the provided requests into comma-separated lists,
+   * each short enough to fit into a single notification URL. Protected for
+   * testing purposes
+   * @param requests The requests to join
+   * @return The comma-separated branch lists
+   */
+  protected List<String> joinBranches(List<NotificationRequest> requests) {
+    List<String> batches = new ArrayList<String>();
+    StringBuilder batch = new StringBuilder();
+    int encodedLength = 0;
+    for (NotificationRequest request : requests) {
+      String ref = request.getRef();
+      if (ref == null)
+        continue;
+
+      int refLength = urlBuilder.getEncodedLength(ref);
+      if (batch.length() > 0 && encodedLength + ENCODED_COMMA_LENGTH
+          + refLength > MAX_BATCH_BRANCHES_LENGTH) {
+        batches.add(batch.toString());
+        batch.setLength(0);
+        encodedLength = 0;
+      }
+      if (batch.length() > 0) {
+        batch.append(',');
+        encodedLength += ENCODED_COMMA_LENGTH;
+      }
+      batch.append(ref);
+      encodedLength += refLength;
     }
+    if (batch.length() > 0)
+      batches.add(batch.toString());
+    return batches;
+  }
+
+  /**
+   * Build the configuration of a request, the clients being shared between
+   * repositories with different timeouts
+   * @param timeouts The timeouts of the repository
+   * @return The request configuration, unset timeouts taken from the global
+   * ones
+   */
+  private RequestConfig requestConfig(HttpTimeouts timeouts) {
+    return (timeouts == null ? defaultTimeouts
+        : timeouts.orElse(defaultTimeouts)).toRequestConfig();
   }
 
   private String maybeReplaceSlash(String string) {
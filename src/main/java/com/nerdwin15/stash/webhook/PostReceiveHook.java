@@ -1,5 +1,7 @@
 package com.nerdwin15.stash.webhook;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Collection;
 
 import javax.annotation.Nonnull;
@@ -11,6 +13,7 @@ import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.RepositorySettingsValidator;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 
 /**
@@ -18,6 +21,9 @@ import com.google.common.base.Strings;
  */
 public class PostReceiveHook implements AsyncPostReceiveRepositoryHook, 
     RepositorySettingsValidator {
+
+  private static final Splitter SPACES =
+      Splitter.on(' ').trimResults().omitEmptyStrings();
   
   @Override
   public void postReceive(@Nonnull RepositoryHookContext ctx, 
@@ -37,6 +43,18 @@ public class PostReceiveHook implements AsyncPostReceiveRepositoryHook,
           "The url for your Jenkins instance is required.");
     }
 
+    final String additionalUrls =
+        settings.getString(Notifier.ADDITIONAL_JENKINS_BASES);
+    if (!Strings.isNullOrEmpty(additionalUrls)) {
+      for (String additionalUrl : SPACES.split(additionalUrls)) {
+        if (!isHttpUrl(additionalUrl)) {
+          errors.addFieldError(Notifier.ADDITIONAL_JENKINS_BASES,
+              "'" + additionalUrl + "' is not an http or https url");
+          break;
+        }
+      }
+    }
+
     final String cloneType = settings.getString(Notifier.CLONE_TYPE);
     if (Strings.isNullOrEmpty(cloneType)) {
         errors.addFieldError(Notifier.CLONE_TYPE,
@@ -62,5 +80,35 @@ public class PostReceiveHook implements AsyncPostReceiveRepositoryHook,
             "No branches were specified to " + branchSelection);
       }
     }
+
+    validateTimeout(settings, errors, Notifier.CONNECT_TIMEOUT);
+    validateTimeout(settings, errors, Notifier.SOCKET_TIMEOUT);
+    validateTimeout(settings, errors, Notifier.POOL_TIMEOUT);
+  }
+
+  private boolean isHttpUrl(String url) {
+    try {
+      URI uri = new URI(url);
+      return ("http".equalsIgnoreCase(uri.getScheme())
+          || "https".equalsIgnoreCase(uri.getScheme()))
+          && !Strings.isNullOrEmpty(uri.getHost());
+    } catch (URISyntaxException e) {
+      return false;
+    }
+  }
+
+  private void validateTimeout(Settings settings,
+      SettingsValidationErrors errors, String field) {
+    final String timeout = settings.getString(field);
+    if (Strings.isNullOrEmpty(timeout))
+      return;
+    try {
+      if (Integer.parseInt(timeout.trim()) > 0)
+        return;
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    errors.addFieldError(field,
+        "The timeout must be a positive number of milliseconds");
   }
 }
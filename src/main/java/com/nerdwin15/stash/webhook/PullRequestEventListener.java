@@ -4,12 +4,20 @@ import com.atlassian.event.api.EventListener;
 import com.atlassian.bitbucket.event.pull.PullRequestEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestOpenedEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestReopenedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
+import com.atlassian.bitbucket.repository.Repository;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.dispatch.EligibilityStage;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationCoalescer;
 import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
 import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 
 /**
  * Event listener that listens to PullRequestRescopedEvent events.
+ *
+ * The listener only copies the ids, branch and commits of the pull request
+ * of an event. Whether to notify Jenkins is decided by the
+ * {@link EligibilityStage} workers.
  * 
  * @author Michael Irwin (mikesir87)
  * @author Melvyn de Kort (lordmatanza)
@@ -17,20 +25,24 @@ import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 public class PullRequestEventListener {
   
   private final EligibilityFilterChain filterChain;
-  private final Notifier notifier;
+  private final NotificationCoalescer coalescer;
   private final SettingsService settingsService;
+  private final EligibilityStage stage;
 
   /**
    * Construct a new instance.
    * @param filterChain The filter chain to test for eligibility
-   * @param notifier The notifier service
+   * @param coalescer Coalesces and sends the notifications
    * @param settingsService Service to be used to get the Settings
+   * @param stage Runs the eligibility checks off the event thread
    */
   public PullRequestEventListener(EligibilityFilterChain filterChain,
-      Notifier notifier, SettingsService settingsService) {
+      NotificationCoalescer coalescer, SettingsService settingsService,
+      EligibilityStage stage) {
     this.filterChain = filterChain;
-    this.notifier = notifier;
+    this.coalescer = coalescer;
     this.settingsService = settingsService;
+    this.stage = stage;
   }
   
   /**
@@ -57,21 +69,33 @@ public class PullRequestEventListener {
    * @param event The event to be handled
    */
   protected void handleEvent(PullRequestEvent event) {
-    if (settingsService.getSettings(event.getPullRequest().getToRef()
-        .getRepository()) == null) {
-      return;
-    }
-
+    Repository repository = event.getPullRequest().getToRef().getRepository();
     String strRef  = "pr/" + Long.toString(event.getPullRequest().getId()) + "/from";
     String strSha1 = event.getPullRequest().getFromRef().getLatestCommit();
     String targetBranch = event.getPullRequest().getToRef().getDisplayId();
+    String previousFromHash = event instanceof PullRequestRescopedEvent
+        ? ((PullRequestRescopedEvent) event).getPreviousFromHash() : null;
+
+    // Copied here, as the event may not be used once the listener returned
+    EventContext context = new EventContext(repository,
+        event.getUser().getName(), event.getPullRequest(), previousFromHash);
+    NotificationRequest request = new NotificationRequest(repository, strRef,
+        strSha1, targetBranch);
+    stage.submit(repository, () -> evaluate(context, request));
+  }
 
-    EventContext context = new EventContext(event,
-        event.getPullRequest().getToRef().getRepository(),
-        event.getUser().getName());
+  /**
+   * Decides whether Jenkins is notified about a pull request
+   * @param context The captured event
+   * @param request The notification to send if eligible
+   */
+  private void evaluate(EventContext context, NotificationRequest request) {
+    if (settingsService.getWebhookSettings(context.getRepository()) == null) {
+      return;
+    }
 
     if (filterChain.shouldDeliverNotification(context))
-      notifier.notifyBackground(context.getRepository(), strRef, strSha1, targetBranch);
+      coalescer.submit(request);
   }
   
 }
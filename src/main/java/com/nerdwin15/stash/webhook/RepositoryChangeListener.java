@@ -1,11 +1,17 @@
 package com.nerdwin15.stash.webhook;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.atlassian.bitbucket.event.pull.PullRequestMergedEvent;
 import com.atlassian.bitbucket.event.repository.RepositoryPushEvent;
 import com.atlassian.event.api.EventListener;
 import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
 import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.dispatch.EligibilityStage;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationCoalescer;
 import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
 import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 
@@ -15,26 +21,34 @@ import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
  * Since it hears {@link RepositoryRefsChangedEvent} implementations, it is 
  * notified upon {@link RepositoryPushEvent} and {@link PullRequestMergedEvent}
  * events.
+ *
+ * The listener only copies the repository, user and ref changes of an
+ * event. Whether to notify Jenkins is decided by the {@link EligibilityStage}
+ * workers.
  * 
  * @author Michael Irwin (mikesir87)
  */
 public class RepositoryChangeListener {
 
   private final EligibilityFilterChain filterChain;
-  private final Notifier notifier;
+  private final NotificationCoalescer coalescer;
   private final SettingsService settingsService;
+  private final EligibilityStage stage;
 
   /**
    * Construct a new instance.
    * @param filterChain The filter chain to test for eligibility
-   * @param notifier The notifier service
+   * @param coalescer Coalesces and sends the notifications
    * @param settingsService Service to be used to get the Settings
+   * @param stage Runs the eligibility checks off the event thread
    */
   public RepositoryChangeListener(EligibilityFilterChain filterChain,
-      Notifier notifier, SettingsService settingsService) {
+      NotificationCoalescer coalescer, SettingsService settingsService,
+      EligibilityStage stage) {
     this.filterChain = filterChain;
-    this.notifier = notifier;
+    this.coalescer = coalescer;
     this.settingsService = settingsService;
+    this.stage = stage;
   }
 
   /**
@@ -43,25 +57,44 @@ public class RepositoryChangeListener {
    */
   @EventListener
   public void onRefsChangedEvent(RepositoryRefsChangedEvent event) {
-    if (settingsService.getSettings(event.getRepository()) == null) {
+    Repository repository = event.getRepository();
+    String user = (event.getUser() != null) ? event.getUser().getName() : null;
+    // Copied here, as the event may not be used once the listener returned
+    final List<EventContext> contexts = new ArrayList<EventContext>();
+    for (RefChange refCh : event.getRefChanges())
+      contexts.add(new EventContext(repository, user, refCh));
+    stage.submit(repository, () -> evaluate(repository, contexts));
+  }
+
+  /**
+   * Decides which refs of an event Jenkins is notified about
+   * @param repository The repository of the event
+   * @param contexts The captured changes, one per ref
+   */
+  private void evaluate(Repository repository, List<EventContext> contexts) {
+    if (settingsService.getWebhookSettings(repository) == null) {
       return;
     }
 
-    for (RefChange refCh : event.getRefChanges()) {
+    List<NotificationRequest> requests = new ArrayList<NotificationRequest>();
+    for (EventContext context : contexts) {
+      if (!filterChain.shouldDeliverNotification(context))
+        continue;
+
       // Get branch name from ref 'refs/heads/master'
       // NOTE - this method gets called for tag changes too
       // In that case, the 'branch' passed to Jenkins will
       // be "refs/tags/TAGNAME"
       // Leaving this as-is in case someone relies on that...
+      RefChange refCh = context.getRefChange();
       String strRef = refCh.getRef().getId().replaceFirst("refs/heads/", "");
       String strSha1 = refCh.getToHash();
       String targetBranch = refCh.getRef().getDisplayId();
-
-      String user = (event.getUser() != null) ? event.getUser().getName() : null;
-      EventContext context = new EventContext(event, event.getRepository(), user);
-
-      if (filterChain.shouldDeliverNotification(context))
-        notifier.notifyBackground(context.getRepository(), strRef, strSha1, targetBranch);
+      requests.add(new NotificationRequest(context.getRepository(), strRef,
+          strSha1, targetBranch));
     }
+
+    if (!requests.isEmpty())
+      coalescer.submitAll(requests);
   }
 }
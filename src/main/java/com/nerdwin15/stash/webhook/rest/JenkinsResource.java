@@ -9,13 +9,20 @@ import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.rest.RestResource;
 import com.atlassian.bitbucket.rest.util.ResourcePatterns;
 import com.atlassian.bitbucket.rest.util.RestUtils;
-import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
-import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
 import com.atlassian.bitbucket.ssh.SshConfiguration;
 import com.atlassian.bitbucket.ssh.SshConfigurationService;
 import com.atlassian.plugins.rest.common.security.AnonymousAllowed;
 import com.nerdwin15.stash.webhook.NotificationResult;
 import com.nerdwin15.stash.webhook.Notifier;
+import com.nerdwin15.stash.webhook.service.CloneUrlService;
+import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreaker;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreakerRegistry;
+import com.nerdwin15.stash.webhook.service.history.DeliveryHistory;
+import com.nerdwin15.stash.webhook.service.history.DeliveryRecord;
+import com.nerdwin15.stash.webhook.service.ratelimit.RateLimiter;
+import com.nerdwin15.stash.webhook.service.ratelimit.TokenBucket;
 import com.sun.jersey.spi.resource.Singleton;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,7 +32,9 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -43,13 +52,17 @@ public class JenkinsResource extends RestResource {
 
   private static final Logger log = //CHECKSTYLE:doesntMatter
       LoggerFactory.getLogger(JenkinsResource.class);
+  private static final int MAX_HISTORY_LIMIT = 100;
 
   private final Notifier notifier;
   private final PermissionValidationService permissionService;
   private final SshConfigurationService sshConfigurationService;
-  private final SshScmProtocol sshScmProtocol;
-  private final HttpScmProtocol httpScmProtocol;
+  private final CloneUrlService cloneUrls;
   private final RefService refService;
+  private final SettingsService settingsService;
+  private final CircuitBreakerRegistry breakers;
+  private final RateLimiter limiter;
+  private final DeliveryHistory history;
 
   /**
    * Creates Rest resource for testing the Jenkins configuration
@@ -57,24 +70,33 @@ public class JenkinsResource extends RestResource {
    * @param permissionValidationService A permission validation service
    * @param i18nService i18n Service
    * @param sshConfigurationService Service to check whether SSH is enabled
-   * @param sshScmProtocol Resolver for generating default SSH clone url
-   * @param httpScmProtocol Resolver for generating default http clone url
+   * @param cloneUrls Resolver for the default SSH and http clone urls
    * @param refService Service to get default Branch
+   * @param settingsService Service used to get webhook settings
+   * @param breakers The circuit breakers of the Jenkins instances
+   * @param limiter The rate limits of the Jenkins instances and repositories
+   * @param history The recent notifications per repository
    */
   public JenkinsResource(Notifier notifier,
                          PermissionValidationService permissionValidationService,
                          I18nService i18nService,
                          SshConfigurationService sshConfigurationService,
-                         SshScmProtocol sshScmProtocol,
-                         HttpScmProtocol httpScmProtocol,
-                         RefService refService) {
+                         CloneUrlService cloneUrls,
+                         RefService refService,
+                         SettingsService settingsService,
+                         CircuitBreakerRegistry breakers,
+                         RateLimiter limiter,
+                         DeliveryHistory history) {
     super(i18nService);
     this.notifier = notifier;
     this.permissionService = permissionValidationService;
     this.sshConfigurationService = sshConfigurationService;
-    this.sshScmProtocol = sshScmProtocol;
-    this.httpScmProtocol = httpScmProtocol;
+    this.cloneUrls = cloneUrls;
     this.refService = refService;
+    this.settingsService = settingsService;
+    this.breakers = breakers;
+    this.limiter = limiter;
+    this.history = history;
   }
 
   /**
@@ -123,6 +145,7 @@ public class JenkinsResource extends RestResource {
     // Shouldn't have to do this but the result isn't being marshalled correctly
     Map<String, Object> map = new HashMap<String, Object>();
     map.put("successful", result.isSuccessful());
+    map.put("status", result.getStatus());
     map.put("url", result.getUrl());
     map.put("message", result.getMessage());
     return map;
@@ -151,6 +174,122 @@ public class JenkinsResource extends RestResource {
     }
   }
 
+  /**
+   * Get the state of the circuit breakers of the Jenkins instances the
+   * repository notifies.
+   * @param repository The repository to get the circuits for
+   * @return The state of the circuit of each instance, under
+   * {@code instances}. CLOSED if no call was made yet.
+   */
+  @GET
+  @Path(value = "circuit")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> circuit(@Context Repository repository) {
+    permissionService.validateForRepository(repository, Permission.REPO_ADMIN);
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    WebhookSettings settings = settingsService.getWebhookSettings(repository);
+    if (settings == null || settings.getJenkinsBases().isEmpty()) {
+      map.put("message", "Settings must be configured");
+      return map;
+    }
+
+    List<Map<String, Object>> instances = new ArrayList<Map<String, Object>>();
+    for (String jenkinsBase : settings.getJenkinsBases())
+      instances.add(circuit(jenkinsBase));
+    map.put("instances", instances);
+    return map;
+  }
+
+  /**
+   * Get the state of the rate limits of the repository and of the Jenkins
+   * instances it notifies.
+   * @param repository The repository to get the rate limits for
+   * @return The state of the rate limits, with one entry per Jenkins
+   * instance under {@code hosts}. Buckets not used recently are reported
+   * full.
+   */
+  @GET
+  @Path(value = "ratelimit")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> rateLimit(@Context Repository repository) {
+    permissionService.validateForRepository(repository, Permission.REPO_ADMIN);
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("enabled", limiter.getConfig().isEnabled());
+    map.put("throttled", limiter.getThrottledCount());
+    map.put("coalesced", limiter.getCoalescedCount());
+    map.put("repository", bucket(limiter.findRepository(repository.getId()),
+        limiter.getConfig().getRepositoryRatePerMinute(),
+        limiter.getConfig().getRepositoryBurst(),
+        limiter.getParkedForRepository(repository.getId())));
+
+    List<Map<String, Object>> hosts = new ArrayList<Map<String, Object>>();
+    WebhookSettings settings = settingsService.getWebhookSettings(repository);
+    if (settings != null) {
+      for (String jenkinsBase : settings.getJenkinsBases()) {
+        Map<String, Object> host = bucket(limiter.findHost(jenkinsBase),
+            limiter.getConfig().getHostRatePerMinute(),
+            limiter.getConfig().getHostBurst(),
+            limiter.getParkedForHost(jenkinsBase));
+        host.put("jenkinsBase", jenkinsBase);
+        hosts.add(host);
+      }
+    }
+    map.put("hosts", hosts);
+    return map;
+  }
+
+  /**
+   * Get the recent background notifications of the repository, newest first.
+   * Only available to repository admins, as the messages hold Jenkins
+   * output and hosts.
+   * @param repository The repository to get the notifications of
+   * @param start The number of notifications to skip
+   * @param limit The maximum number of notifications to return
+   * @return A page of notifications
+   */
+  @GET
+  @Path(value = "history")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> history(@Context Repository repository,
+      @QueryParam("start") @DefaultValue("0") int start,
+      @QueryParam("limit") @DefaultValue("25") int limit) {
+    permissionService.validateForRepository(repository, Permission.REPO_ADMIN);
+
+    int pageStart = Math.max(0, start);
+    int pageLimit = Math.max(1, Math.min(limit, MAX_HISTORY_LIMIT));
+    // Ask for one more to know whether there is a next page
+    List<DeliveryRecord> records =
+        history.getRecords(repository, pageStart, pageLimit + 1);
+    boolean lastPage = records.size() <= pageLimit;
+    if (!lastPage)
+      records = records.subList(0, pageLimit);
+
+    List<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+    for (DeliveryRecord record : records) {
+      Map<String, Object> value = new HashMap<String, Object>();
+      value.put("timestamp", record.getTimestamp());
+      value.put("ref", record.getRef());
+      value.put("sha1", record.getSha1());
+      value.put("attempt", record.getAttempt());
+      value.put("latencyMillis", record.getLatencyMillis());
+      value.put("status", record.getResult().getStatus());
+      value.put("message", record.getResult().getMessage());
+      values.add(value);
+    }
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("values", values);
+    map.put("size", values.size());
+    map.put("start", pageStart);
+    map.put("limit", pageLimit);
+    map.put("isLastPage", lastPage);
+    if (!lastPage)
+      map.put("nextPageStart", pageStart + values.size());
+    return map;
+  }
+
   /**
    * Get the default clone urls for a repository.
    * @param repository The repository to get clone urls for
@@ -162,12 +301,40 @@ public class JenkinsResource extends RestResource {
     Map<String, String> data = new HashMap<String, String>();
     SshConfiguration sshConfiguration = sshConfigurationService.getConfiguration();
     if (sshConfiguration.isEnabled()) {
-        data.put("ssh", sshScmProtocol.getCloneUrl(repository, null));
+        data.put("ssh", cloneUrls.getSshCloneUrl(repository));
     } else {
         data.put("ssh", "");
     }
-    data.put("http", httpScmProtocol.getCloneUrl(repository, null));
+    data.put("http", cloneUrls.getHttpCloneUrl(repository));
     return Response.ok(data).build();
   }
 
+  private Map<String, Object> circuit(String jenkinsBase) {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("jenkinsBase", jenkinsBase);
+    CircuitBreaker breaker = breakers.find(jenkinsBase);
+    if (breaker == null) {
+      map.put("state", CircuitBreaker.State.CLOSED);
+      map.put("bufferedCalls", 0);
+      return map;
+    }
+    map.put("state", breaker.getState());
+    map.put("failureRate", breaker.getFailureRate());
+    map.put("slowCallRate", breaker.getSlowCallRate());
+    map.put("bufferedCalls", breaker.getBufferedCalls());
+    map.put("remainingOpenMillis", breaker.getRemainingOpenMillis());
+    return map;
+  }
+
+  private static Map<String, Object> bucket(TokenBucket bucket,
+      int ratePerMinute, int burst, int parked) {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("limited", ratePerMinute > 0);
+    map.put("ratePerMinute", ratePerMinute);
+    map.put("burst", burst);
+    map.put("availableTokens",
+        bucket == null ? burst : bucket.getAvailableTokens());
+    map.put("parked", parked);
+    return map;
+  }
 }
@@ -0,0 +1,29 @@
+package com.nerdwin15.stash.webhook.service;
+
+import org.apache.http.nio.client.HttpAsyncClient;
+
+/**
+ * Defines a generator that will create a non-blocking HttpAsyncClient used
+ * to communicate with the Jenkins instance.
+ */
+public interface AsyncHttpClientFactory {
+
+  /**
+   * Get a started HttpAsyncClient to communicate with Jenkins. Clients are
+   * long-lived and shared between notifications, so callers must not close
+   * them. The global timeouts apply to requests that don't set their own
+   * configuration.
+   * @param jenkinsBase The base URL of the Jenkins instance.
+   * @param trustAllCerts True if all certs should be trusted.
+   * @return An HttpAsyncClient configured to communicate with Jenkins.
+   * @throws Exception Any exception, but shouldn't happen.
+   */
+  HttpAsyncClient getHttpAsyncClient(String jenkinsBase, boolean trustAllCerts)
+      throws Exception;
+
+  /**
+   * Close all clients handed out by this factory, stopping their I/O
+   * threads.
+   */
+  void shutdown();
+}
@@ -0,0 +1,132 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.util.Arrays;
+
+/**
+ * Matches branch names against the whitelist/blacklist patterns of the hook
+ * settings.
+ *
+ * A pattern is either an exact branch name or a prefix followed by a single
+ * trailing {@code *}. Matching is case-insensitive. The patterns are compiled
+ * once into a trie whose children are kept in sorted arrays, so a lookup walks
+ * the branch name once without allocating, however many patterns there are.
+ *
+ * Instances are immutable once compiled and safe to share between threads.
+ */
+public final class BranchMatcher {
+
+  private static final String WILDCARD = "*";
+
+  private final Node root;
+  private final boolean empty;
+
+  private BranchMatcher(Node root, boolean empty) {
+    this.root = root;
+    this.empty = empty;
+  }
+
+  /**
+   * Compile the provided patterns
+   * @param patterns Branch names, or prefixes followed by {@code *}
+   * @return The compiled matcher
+   */
+  public static BranchMatcher compile(Iterable<String> patterns) {
+    Node root = new Node();
+    boolean empty = true;
+    for (String pattern : patterns) {
+      if (pattern == null || pattern.isEmpty())
+        continue;
+
+      boolean prefix = pattern.endsWith(WILDCARD);
+      int length = prefix ? pattern.length() - 1 : pattern.length();
+      Node node = root;
+      for (int i = 0; i < length; i++)
+        node = node.getOrAdd(Character.toLowerCase(pattern.charAt(i)));
+      if (prefix)
+        node.prefix = true;
+      else
+        node.exact = true;
+      empty = false;
+    }
+    return new BranchMatcher(root, empty);
+  }
+
+  /**
+   * Checks if no patterns were compiled
+   * @return True if the matcher matches nothing
+   */
+  public boolean isEmpty() {
+    return empty;
+  }
+
+  /**
+   * Checks a single branch against the patterns
+   * @param branch The branch name, without refs/heads/
+   * @return True if the branch matches at least one pattern
+   */
+  public boolean matches(String branch) {
+    Node node = root;
+    for (int i = 0, length = branch.length(); i < length; i++) {
+      if (node.prefix)
+        return true;
+      node = node.child(Character.toLowerCase(branch.charAt(i)));
+      if (node == null)
+        return false;
+    }
+    return node.prefix || node.exact;
+  }
+
+  /**
+   * Checks a number of branches against the patterns
+   * @param branches The branch names, without refs/heads/
+   * @return True if at least one branch matches at least one pattern
+   */
+  public boolean matchesAny(Iterable<String> branches) {
+    if (empty)
+      return false;
+    for (String branch : branches) {
+      if (matches(branch))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * A trie node. Children are kept sorted by character for binary search.
+   */
+  private static final class Node {
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private char[] keys = NO_KEYS;
+    private Node[] children = NO_CHILDREN;
+    private boolean exact;
+    private boolean prefix;
+
+    Node child(char c) {
+      int index = Arrays.binarySearch(keys, c);
+      return index < 0 ? null : children[index];
+    }
+
+    Node getOrAdd(char c) {
+      int index = Arrays.binarySearch(keys, c);
+      if (index >= 0)
+        return children[index];
+
+      int insert = -index - 1;
+      char[] newKeys = new char[keys.length + 1];
+      Node[] newChildren = new Node[children.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, insert);
+      System.arraycopy(children, 0, newChildren, 0, insert);
+      System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+      System.arraycopy(children, insert, newChildren, insert + 1,
+          children.length - insert);
+      Node node = new Node();
+      newKeys[insert] = c;
+      newChildren[insert] = node;
+      keys = newKeys;
+      children = newChildren;
+      return node;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package com.nerdwin15.stash.webhook.service;
+
+import com.atlassian.bitbucket.repository.Repository;
+
+/**
+ * Resolves the default clone URLs of repositories.
+ */
+public interface CloneUrlService {
+
+  /**
+   * Get the http clone URL of the provided repository.
+   * @param repository The repository
+   * @return The http clone URL
+   */
+  String getHttpCloneUrl(Repository repository);
+
+  /**
+   * Get the SSH clone URL of the provided repository. The URL is resolved
+   * with the permission to read the repository, whoever the current user is.
+   * @param repository The repository
+   * @return The SSH clone URL
+   */
+  String getSshCloneUrl(Repository repository);
+}
@@ -0,0 +1,208 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.util.concurrent.ThreadFactories;
+
+/**
+ * An implementation of the {@link AsyncHttpClientFactory} that returns a
+ * pooled, non-blocking HttpAsyncClient that is either not configured at all
+ * (default trusts) or configured to accept all certificates.
+ *
+ * A single client serves every Jenkins instance, plus a second one for the
+ * instances whose certificates are all trusted, as that needs its own SSL
+ * strategy. Each client serves all of its in-flight notifications from a
+ * small, fixed number of I/O threads, read from
+ * {@value #IO_THREADS_PROPERTY} (default {@value #DEFAULT_IO_THREADS}), and
+ * pools connections per route. The global timeouts apply unless a request
+ * sets its own configuration.
+ */
+public class ConcreteAsyncHttpClientFactory implements AsyncHttpClientFactory {
+
+  /**
+   * Property holding the number of I/O threads of each client
+   */
+  public static final String IO_THREADS_PROPERTY =
+      "plugin.webhook.jenkins.http.async.threads";
+
+  static final int DEFAULT_IO_THREADS = 2;
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConcreteAsyncHttpClientFactory.class);
+
+  private static final int MAX_CONNECTIONS_TOTAL = 100;
+  private static final int MAX_CONNECTIONS_PER_ROUTE = 50;
+
+  private final int ioThreads;
+  private final HttpTimeouts defaultTimeouts;
+  private final ConcurrentMap<Boolean, CloseableHttpAsyncClient> clients =
+      new ConcurrentHashMap<Boolean, CloseableHttpAsyncClient>();
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the I/O thread count and
+   * the global timeouts
+   */
+  public ConcreteAsyncHttpClientFactory(
+      ApplicationPropertiesService propertiesService) {
+    this(propertiesService.getPluginProperty(IO_THREADS_PROPERTY,
+        DEFAULT_IO_THREADS), HttpTimeouts.fromProperties(propertiesService));
+  }
+
+  /**
+   * Create a new instance with an explicit I/O thread count and global
+   * timeouts
+   * @param ioThreads The number of I/O threads of each client
+   * @param defaultTimeouts The timeouts used unless a request overrides them
+   */
+  public ConcreteAsyncHttpClientFactory(int ioThreads,
+      HttpTimeouts defaultTimeouts) {
+    this.ioThreads = Math.max(1, ioThreads);
+    this.defaultTimeouts = defaultTimeouts.orElse(HttpTimeouts.DEFAULTS);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public HttpAsyncClient getHttpAsyncClient(String jenkinsBase,
+      boolean trustAllCerts) throws Exception {
+    boolean usingSsl = jenkinsBase != null && jenkinsBase.startsWith("https");
+    Boolean key = usingSsl && trustAllCerts;
+
+    CloseableHttpAsyncClient client = clients.get(key);
+    if (client != null)
+      return client;
+
+    client = createHttpAsyncClient(key, defaultTimeouts);
+    client.start();
+    CloseableHttpAsyncClient existing = clients.putIfAbsent(key, client);
+    if (existing != null) {
+      closeQuietly(client);
+      return existing;
+    }
+    return client;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void shutdown() {
+    for (Boolean key : clients.keySet()) {
+      CloseableHttpAsyncClient client = clients.remove(key);
+      if (client != null)
+        closeQuietly(client);
+    }
+  }
+
+  /**
+   * Create a new pooled HttpAsyncClient. The client is started by the
+   * caller before it is handed out.
+   * @param useConfigured True if the client should be configured to accept any
+   * certificate.
+   * @param timeouts The timeouts applied to requests that set none
+   * @return The requested HttpAsyncClient
+   * @throws Exception
+   */
+  protected CloseableHttpAsyncClient createHttpAsyncClient(
+      boolean useConfigured, HttpTimeouts timeouts) throws Exception {
+    Registry<SchemeIOSessionStrategy> registry = useConfigured
+        ? createRegistry(createContext()) : createDefaultRegistry();
+
+    DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(
+        IOReactorConfig.custom()
+            .setIoThreadCount(ioThreads)
+            .setSoKeepAlive(true)
+            .setConnectTimeout(timeouts.getConnectTimeout())
+            .setSoTimeout(timeouts.getSocketTimeout())
+            .build(),
+        ThreadFactories.namedThreadFactory("JenkinsWebhookIO",
+            ThreadFactories.Type.DAEMON));
+    PoolingNHttpClientConnectionManager ccm =
+        new PoolingNHttpClientConnectionManager(ioReactor, registry);
+    ccm.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+    ccm.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+
+    return HttpAsyncClientBuilder.create()
+        .setConnectionManager(ccm)
+        .setDefaultRequestConfig(timeouts.toRequestConfig())
+        .setKeepAliveStrategy(ConcreteHttpClientFactory.keepAliveStrategy())
+        .useSystemProperties()
+        .build();
+  }
+
+  /**
+   * Creates an SSL context
+   * @return The SSL context
+   * @throws NoSuchAlgorithmException
+   * @throws KeyManagementException
+   */
+  protected SSLContext createContext() throws NoSuchAlgorithmException,
+      KeyManagementException {
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(
+        null,
+        new TrustManager[] { new UnsafeX509TrustManager() },
+        new SecureRandom());
+    return sslContext;
+  }
+
+  /**
+   * Creates the session strategy registry accepting all certificates
+   * @param sslContext The SSL Context the registry should use.
+   * @return The session strategy registry
+   */
+  protected Registry<SchemeIOSessionStrategy> createRegistry(
+      SSLContext sslContext) {
+    return RegistryBuilder.<SchemeIOSessionStrategy>create()
+      .register("https", new SSLIOSessionStrategy(sslContext,
+          NoopHostnameVerifier.INSTANCE))
+      .register("http", NoopIOSessionStrategy.INSTANCE)
+      .build();
+  }
+
+  /**
+   * Creates the registry used when certificates are validated as usual,
+   * honouring the standard javax.net.ssl system properties.
+   * @return The default session strategy registry
+   */
+  private Registry<SchemeIOSessionStrategy> createDefaultRegistry() {
+    return RegistryBuilder.<SchemeIOSessionStrategy>create()
+      .register("https", SSLIOSessionStrategy.getSystemDefaultStrategy())
+      .register("http", NoopIOSessionStrategy.INSTANCE)
+      .build();
+  }
+
+  private static void closeQuietly(CloseableHttpAsyncClient client) {
+    try {
+      client.close();
+    } catch (IOException e) {
+      LOGGER.warn("Error closing Jenkins http client", e);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.util.function.Supplier;
+
+import com.atlassian.bitbucket.event.project.ProjectModifiedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryModifiedEvent;
+import com.atlassian.bitbucket.event.server.ApplicationConfigurationChangedEvent;
+import com.atlassian.bitbucket.event.ssh.SshConfigurationChangedEvent;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
+import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheFactory;
+import com.atlassian.event.api.EventListener;
+
+/**
+ * Default implementation of the {@link CloneUrlService} interface.
+ *
+ * Clone URLs are cached per repository, within the same limits as the
+ * webhook settings ({@value ConcreteSettingsService#CACHE_SIZE_PROPERTY} and
+ * {@value ConcreteSettingsService#CACHE_TTL_PROPERTY}). A repository's URLs
+ * are dropped when it is renamed, moved or deleted. All URLs are dropped when
+ * a project is modified, and when the SSH or application configuration, which
+ * holds the base URL, changes. Like the settings, the URLs are kept in
+ * caches replicated by invalidation, so a change seen by one node of a
+ * cluster drops the URLs on all of them.
+ */
+public class ConcreteCloneUrlService implements CloneUrlService {
+
+  static final String HTTP_CACHE_NAME =
+      ConcreteCloneUrlService.class.getName() + ".http";
+  static final String SSH_CACHE_NAME =
+      ConcreteCloneUrlService.class.getName() + ".ssh";
+
+  private final SecurityService securityService;
+  private final SshScmProtocol sshScmProtocol;
+  private final HttpScmProtocol httpScmProtocol;
+  private final Cache<Integer, String> httpUrls;
+  private final Cache<Integer, String> sshUrls;
+
+  /**
+   * Create a new instance
+   * @param securityService Service used to read SSH clone URLs
+   * @param sshScmProtocol generates ssh clone URLs
+   * @param httpScmProtocol generates http clone URLs
+   * @param cacheFactory Factory of the cluster-invalidated caches
+   * @param propertiesService Service used to read the cache configuration
+   */
+  public ConcreteCloneUrlService(SecurityService securityService,
+      SshScmProtocol sshScmProtocol, HttpScmProtocol httpScmProtocol,
+      CacheFactory cacheFactory,
+      ApplicationPropertiesService propertiesService) {
+    this(securityService, sshScmProtocol, httpScmProtocol, cacheFactory,
+        propertiesService.getPluginProperty(
+            ConcreteSettingsService.CACHE_SIZE_PROPERTY,
+            ConcreteSettingsService.DEFAULT_CACHE_SIZE),
+        propertiesService.getPluginProperty(
+            ConcreteSettingsService.CACHE_TTL_PROPERTY,
+            ConcreteSettingsService.DEFAULT_CACHE_TTL_SECONDS));
+  }
+
+  /**
+   * Create a new instance with explicit cache limits
+   * @param securityService Service used to read SSH clone URLs
+   * @param sshScmProtocol generates ssh clone URLs
+   * @param httpScmProtocol generates http clone URLs
+   * @param cacheFactory Factory of the cluster-invalidated caches
+   * @param cacheSize The maximum number of repositories whose URLs are cached
+   * @param cacheTtlSeconds The time in seconds a URL is cached
+   */
+  public ConcreteCloneUrlService(SecurityService securityService,
+      SshScmProtocol sshScmProtocol, HttpScmProtocol httpScmProtocol,
+      CacheFactory cacheFactory, long cacheSize, long cacheTtlSeconds) {
+    this.securityService = securityService;
+    this.sshScmProtocol = sshScmProtocol;
+    this.httpScmProtocol = httpScmProtocol;
+    this.httpUrls = cacheFactory.getCache(HTTP_CACHE_NAME, null,
+        ConcreteSettingsService.invalidatedAcrossCluster(cacheSize,
+            cacheTtlSeconds));
+    this.sshUrls = cacheFactory.getCache(SSH_CACHE_NAME, null,
+        ConcreteSettingsService.invalidatedAcrossCluster(cacheSize,
+            cacheTtlSeconds));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getHttpCloneUrl(final Repository repository) {
+    return get(httpUrls, repository,
+        () -> httpScmProtocol.getCloneUrl(repository, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getSshCloneUrl(final Repository repository) {
+    return get(sshUrls, repository, () -> securityService
+        .withPermission(Permission.REPO_READ, "Retrieving SSH clone url")
+        .call(() -> sshScmProtocol.getCloneUrl(repository, null)));
+  }
+
+  /**
+   * Drops the URLs of a repository that was renamed or moved
+   * @param event The repository modified event
+   */
+  @EventListener
+  public void onRepositoryModified(RepositoryModifiedEvent event) {
+    invalidate(event.getOldValue());
+    invalidate(event.getNewValue());
+  }
+
+  /**
+   * Drops the URLs of a deleted repository
+   * @param event The repository deleted event
+   */
+  @EventListener
+  public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+    invalidate(event.getRepository());
+  }
+
+  /**
+   * Drops all URLs when a project, whose key is part of them, is modified
+   * @param event The project modified event
+   */
+  @EventListener
+  public void onProjectModified(ProjectModifiedEvent event) {
+    invalidateAll();
+  }
+
+  /**
+   * Drops all URLs when the SSH configuration changes
+   * @param event The SSH configuration changed event
+   */
+  @EventListener
+  public void onSshConfigurationChanged(SshConfigurationChangedEvent event) {
+    invalidateAll();
+  }
+
+  /**
+   * Drops all URLs when the application configuration, such as the base
+   * URL, changes
+   * @param event The application configuration changed event
+   */
+  @EventListener
+  public void onApplicationConfigurationChanged(
+      ApplicationConfigurationChangedEvent<?> event) {
+    invalidateAll();
+  }
+
+  private static String get(Cache<Integer, String> cache,
+      Repository repository, Supplier<String> resolver) {
+    String url = cache.get(repository.getId());
+    if (url == null) {
+      url = resolver.get();
+      if (url != null)
+        cache.put(repository.getId(), url);
+    }
+    return url;
+  }
+
+  private void invalidate(Repository repository) {
+    if (repository == null)
+      return;
+    httpUrls.remove(repository.getId());
+    sshUrls.remove(repository.getId());
+  }
+
+  private void invalidateAll() {
+    httpUrls.removeAll();
+    sshUrls.removeAll();
+  }
+}
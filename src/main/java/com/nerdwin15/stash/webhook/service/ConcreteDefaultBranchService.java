@@ -0,0 +1,133 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryModifiedEvent;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Branch;
+import com.atlassian.bitbucket.repository.RefService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.event.api.EventListener;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Default implementation of the {@link DefaultBranchService} interface.
+ *
+ * Looking up the default branch asks the SCM, so default branches are
+ * cached per repository, within the same limits as the webhook settings
+ * ({@value ConcreteSettingsService#CACHE_SIZE_PROPERTY} and
+ * {@value ConcreteSettingsService#CACHE_TTL_PROPERTY}). A repository's
+ * default branch is dropped when it is modified or deleted.
+ */
+public class ConcreteDefaultBranchService implements DefaultBranchService {
+
+  private static final String HEADS = "refs/heads/";
+  /** Cached for repositories without a default branch */
+  private static final String NONE = "";
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConcreteDefaultBranchService.class);
+
+  private final RefService refService;
+  private final SecurityService securityService;
+  private final Cache<Integer, String> defaultBranches;
+
+  /**
+   * Create a new instance
+   * @param refService Service used to look up default branches
+   * @param securityService Service used to look up default branches without
+   * a user
+   * @param propertiesService Service used to read the cache configuration
+   */
+  public ConcreteDefaultBranchService(RefService refService,
+      SecurityService securityService,
+      ApplicationPropertiesService propertiesService) {
+    this(refService, securityService,
+        propertiesService.getPluginProperty(
+            ConcreteSettingsService.CACHE_SIZE_PROPERTY,
+            ConcreteSettingsService.DEFAULT_CACHE_SIZE),
+        propertiesService.getPluginProperty(
+            ConcreteSettingsService.CACHE_TTL_PROPERTY,
+            ConcreteSettingsService.DEFAULT_CACHE_TTL_SECONDS));
+  }
+
+  /**
+   * Create a new instance with explicit cache limits
+   * @param refService Service used to look up default branches
+   * @param securityService Service used to look up default branches without
+   * a user
+   * @param cacheSize The maximum number of repositories cached
+   * @param cacheTtlSeconds The time in seconds a default branch is cached
+   */
+  public ConcreteDefaultBranchService(RefService refService,
+      SecurityService securityService, long cacheSize, long cacheTtlSeconds) {
+    this.refService = refService;
+    this.securityService = securityService;
+    this.defaultBranches = CacheBuilder.newBuilder()
+        .maximumSize(Math.max(0, cacheSize))
+        .expireAfterWrite(Math.max(0, cacheTtlSeconds), TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isDefaultBranch(final Repository repository, String ref) {
+    if (ref == null)
+      return false;
+    String defaultBranch;
+    try {
+      defaultBranch = defaultBranches.get(repository.getId(),
+          () -> lookUp(repository));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      LOGGER.debug("Unable to look up the default branch of {}",
+          repository.getId(), e.getCause());
+      return false;
+    }
+    if (defaultBranch.equals(NONE))
+      return false;
+    return ref.equals(defaultBranch)
+        || defaultBranch.equals(HEADS + ref);
+  }
+
+  /**
+   * Drops the default branch of a modified repository
+   * @param event The repository modified event
+   */
+  @EventListener
+  public void onRepositoryModified(RepositoryModifiedEvent event) {
+    invalidate(event.getOldValue());
+    invalidate(event.getNewValue());
+  }
+
+  /**
+   * Drops the default branch of a deleted repository
+   * @param event The repository deleted event
+   */
+  @EventListener
+  public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+    invalidate(event.getRepository());
+  }
+
+  private String lookUp(final Repository repository) {
+    Branch branch = securityService
+        .withPermission(Permission.REPO_READ, "Retrieving default branch")
+        .call(() -> refService.getDefaultBranch(repository));
+    return branch == null ? NONE : branch.getId();
+  }
+
+  private void invalidate(Repository repository) {
+    if (repository != null)
+      defaultBranches.invalidate(repository.getId());
+  }
+}
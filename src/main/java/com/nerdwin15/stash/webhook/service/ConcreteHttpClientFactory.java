@@ -1,8 +1,13 @@
 package com.nerdwin15.stash.webhook.service;
 
+import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -10,58 +15,143 @@ import javax.net.ssl.TrustManager;
 import org.apache.http.client.HttpClient;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 
 /**
- * An implementation of the {@link HttpClientFactory} that returns a
- * DefaultHttpClient that is either not configured at all (non-ssl and default
- * trusts) or configured to accept all certificates.  If told to accept all
+ * An implementation of the {@link HttpClientFactory} that returns a pooled
+ * HttpClient that is either not configured at all (default trusts) or
+ * configured to accept all certificates.  If told to accept all
  * certificates, an unsafe X509 trust manager is used.
  *
- * If setup of the "trust-all" HttpClient fails, a non-configured HttpClient
- * is returned.
+ * One client is kept per Jenkins base URL and certificate mode, so
+ * consecutive notifications to the same Jenkins instance reuse kept-alive
+ * connections instead of paying for a new TCP and TLS handshake each time.
+ *
+ * Every client applies connect, socket and pool timeouts, so a hung Jenkins
+ * instance can't hold a notification thread forever. The global timeouts are
+ * read from the properties described by {@link HttpTimeouts}. Repositories
+ * that override them share the same client, with the overrides set on each
+ * request, so they don't add pools or eviction threads.
  *
  * @author Michael Irwin (mikesir87)
  *
  */
 public class ConcreteHttpClientFactory implements HttpClientFactory {
 
-  private static final Integer HTTP_PORT = 80;
-  private static final Integer HTTPS_PORT = 443;
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConcreteHttpClientFactory.class);
+
+  private static final int MAX_CONNECTIONS_TOTAL = 20;
+  private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
+  private static final long KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final long IDLE_EVICTION_SECONDS = 30;
+  private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+  private final HttpTimeouts defaultTimeouts;
+  private final ConcurrentMap<ClientKey, CloseableHttpClient> clients =
+      new ConcurrentHashMap<ClientKey, CloseableHttpClient>();
+
+  /**
+   * Create a new instance using the built-in timeouts
+   */
+  public ConcreteHttpClientFactory() {
+    this(HttpTimeouts.DEFAULTS);
+  }
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the global timeouts
+   */
+  public ConcreteHttpClientFactory(
+      ApplicationPropertiesService propertiesService) {
+    this(HttpTimeouts.fromProperties(propertiesService));
+  }
+
+  /**
+   * Create a new instance with explicit global timeouts
+   * @param defaultTimeouts The timeouts used unless a request overrides them
+   */
+  public ConcreteHttpClientFactory(HttpTimeouts defaultTimeouts) {
+    this.defaultTimeouts = defaultTimeouts.orElse(HttpTimeouts.DEFAULTS);
+  }
 
   /**
    * {@inheritDoc}
    */
   @Override
-  public HttpClient getHttpClient(Boolean usingSsl, Boolean trustAllCerts)
+  public HttpClient getHttpClient(String jenkinsBase, Boolean trustAllCerts)
       throws Exception {
-    return createHttpClient(usingSsl && trustAllCerts);
+    boolean usingSsl = jenkinsBase != null && jenkinsBase.startsWith("https");
+    ClientKey key = new ClientKey(jenkinsBase, usingSsl && trustAllCerts);
+
+    CloseableHttpClient client = clients.get(key);
+    if (client != null)
+      return client;
+
+    client = createHttpClient(key.trustAllCerts, defaultTimeouts);
+    CloseableHttpClient existing = clients.putIfAbsent(key, client);
+    if (existing != null) {
+      closeQuietly(client);
+      return existing;
+    }
+    return client;
   }
 
   /**
-   * Create a new HttpClient.
+   * {@inheritDoc}
+   */
+  @Override
+  public void shutdown() {
+    for (ClientKey key : clients.keySet()) {
+      CloseableHttpClient client = clients.remove(key);
+      if (client != null)
+        closeQuietly(client);
+    }
+  }
+
+  /**
+   * Create a new pooled HttpClient.
    * @param useConfigured True if the client should be configured to accept any
    * certificate.
+   * @param timeouts The timeouts applied to requests that set none
    * @return The requested HttpClient
    * @throws Exception
    */
-  protected HttpClient createHttpClient(boolean useConfigured) throws Exception {
+  protected CloseableHttpClient createHttpClient(boolean useConfigured,
+      HttpTimeouts timeouts) throws Exception {
     HttpClientBuilder builder = HttpClientBuilder.create();
+    Registry<ConnectionSocketFactory> registry;
     if (useConfigured) {
       SSLContext sslContext = createContext();
-
-      HttpClientConnectionManager ccm = new BasicHttpClientConnectionManager(createRegistry(sslContext));
-      builder.setConnectionManager(ccm);
-
+      registry = createRegistry(sslContext);
       builder.setSSLContext(sslContext);
+    } else {
+      registry = createDefaultRegistry();
     }
 
+    PoolingHttpClientConnectionManager ccm =
+        new PoolingHttpClientConnectionManager(registry);
+    ccm.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+    ccm.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+    ccm.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+    builder.setConnectionManager(ccm);
+    builder.setDefaultRequestConfig(timeouts.toRequestConfig());
+    builder.setKeepAliveStrategy(keepAliveStrategy());
+    builder.evictExpiredConnections();
+    builder.evictIdleConnections(IDLE_EVICTION_SECONDS, TimeUnit.SECONDS);
     builder.useSystemProperties();
 
     return builder.build();
@@ -99,4 +189,67 @@ public class ConcreteHttpClientFactory implements HttpClientFactory {
       .build();
   }
 
+  /**
+   * Creates the registry used when certificates are validated as usual. The
+   * SSL socket factory honours the standard javax.net.ssl system properties.
+   * @return The default SchemeRegistry
+   */
+  private Registry<ConnectionSocketFactory> createDefaultRegistry() {
+    return RegistryBuilder.<ConnectionSocketFactory>create()
+      .register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+      .register("http", PlainConnectionSocketFactory.getSocketFactory())
+      .build();
+  }
+
+  /**
+   * Keep connections alive for as long as Jenkins allows, but never longer
+   * than {@link #KEEP_ALIVE_MILLIS}, since most Jenkins instances don't send
+   * a Keep-Alive header at all.
+   */
+  static ConnectionKeepAliveStrategy keepAliveStrategy() {
+    return (response, context) -> {
+      long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+          .getKeepAliveDuration(response, context);
+      return duration > 0 ? Math.min(duration, KEEP_ALIVE_MILLIS)
+          : KEEP_ALIVE_MILLIS;
+    };
+  }
+
+  private static void closeQuietly(CloseableHttpClient client) {
+    try {
+      client.close();
+    } catch (IOException e) {
+      LOGGER.warn("Error closing Jenkins http client", e);
+    }
+  }
+
+  /**
+   * Identifies a pooled client by Jenkins base URL and certificate mode.
+   */
+  private static final class ClientKey {
+    private final String jenkinsBase;
+    private final boolean trustAllCerts;
+
+    ClientKey(String jenkinsBase, boolean trustAllCerts) {
+      this.jenkinsBase = jenkinsBase;
+      this.trustAllCerts = trustAllCerts;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof ClientKey))
+        return false;
+      ClientKey other = (ClientKey) o;
+      return trustAllCerts == other.trustAllCerts
+          && Objects.equals(jenkinsBase, other.jenkinsBase);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(jenkinsBase, trustAllCerts);
+    }
+  }
+
 }
@@ -0,0 +1,147 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Default implementation of the {@link MergeabilityService} interface.
+ *
+ * Whether a merge conflicts only depends on the commits merged, so the
+ * outcome of a merge check is cached by repository, pull request and the
+ * latest commit on both sides. Reopening, rescoping back and forth or
+ * triggering a build again on the same commits reuses the outcome, and
+ * concurrent checks of the same commits wait for a single merge check.
+ *
+ * At most {@value #CACHE_SIZE_PROPERTY} outcomes (default
+ * {@value #DEFAULT_CACHE_SIZE}) are kept, the least recently used evicted
+ * first, each for at most {@value #CACHE_TTL_PROPERTY} seconds (default
+ * {@value #DEFAULT_CACHE_TTL_SECONDS}).
+ */
+public class ConcreteMergeabilityService implements MergeabilityService {
+
+  /**
+   * Property holding the maximum number of merge check outcomes cached
+   */
+  public static final String CACHE_SIZE_PROPERTY =
+      "plugin.webhook.jenkins.merge.cache.size";
+
+  /**
+   * Property holding the time in seconds a merge check outcome is cached
+   */
+  public static final String CACHE_TTL_PROPERTY =
+      "plugin.webhook.jenkins.merge.cache.ttl";
+
+  static final long DEFAULT_CACHE_SIZE = 1000;
+  static final long DEFAULT_CACHE_TTL_SECONDS = 600;
+
+  private final PullRequestService pullRequestService;
+  private final Cache<Key, Boolean> outcomes;
+
+  /**
+   * Create a new instance
+   * @param pullRequestService Service used to run merge checks
+   * @param propertiesService Service used to read the cache configuration
+   */
+  public ConcreteMergeabilityService(PullRequestService pullRequestService,
+      ApplicationPropertiesService propertiesService) {
+    this(pullRequestService,
+        propertiesService.getPluginProperty(CACHE_SIZE_PROPERTY,
+            DEFAULT_CACHE_SIZE),
+        propertiesService.getPluginProperty(CACHE_TTL_PROPERTY,
+            DEFAULT_CACHE_TTL_SECONDS),
+        Ticker.systemTicker());
+  }
+
+  /**
+   * Create a new instance with explicit cache limits
+   * @param pullRequestService Service used to run merge checks
+   * @param cacheSize The maximum number of outcomes cached
+   * @param cacheTtlSeconds The time in seconds an outcome is cached
+   * @param ticker The time source of the cache
+   */
+  public ConcreteMergeabilityService(PullRequestService pullRequestService,
+      long cacheSize, long cacheTtlSeconds, Ticker ticker) {
+    this.pullRequestService = pullRequestService;
+    this.outcomes = CacheBuilder.newBuilder()
+        .maximumSize(Math.max(0, cacheSize))
+        .expireAfterWrite(Math.max(0, cacheTtlSeconds), TimeUnit.SECONDS)
+        .ticker(ticker)
+        .build();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isConflicted(final int repositoryId,
+      final long pullRequestId, String fromHash, String toHash) {
+    if (fromHash == null || toHash == null)
+      return check(repositoryId, pullRequestId);
+
+    try {
+      return outcomes.get(
+          new Key(repositoryId, pullRequestId, fromHash, toHash),
+          () -> check(repositoryId, pullRequestId));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Gets the number of outcomes currently cached
+   * @return The number of outcomes
+   */
+  long getCachedCount() {
+    outcomes.cleanUp();
+    return outcomes.size();
+  }
+
+  private boolean check(int repositoryId, long pullRequestId) {
+    return pullRequestService.canMerge(repositoryId, pullRequestId)
+        .isConflicted();
+  }
+
+  /**
+   * The commits a merge check was run for
+   */
+  private static final class Key {
+    private final int repositoryId;
+    private final long pullRequestId;
+    private final String fromHash;
+    private final String toHash;
+
+    Key(int repositoryId, long pullRequestId, String fromHash,
+        String toHash) {
+      this.repositoryId = repositoryId;
+      this.pullRequestId = pullRequestId;
+      this.fromHash = fromHash;
+      this.toHash = toHash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key))
+        return false;
+      Key key = (Key) other;
+      return repositoryId == key.repositoryId
+          && pullRequestId == key.pullRequestId
+          && fromHash.equals(key.fromHash) && toHash.equals(key.toHash);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = 31 * repositoryId + Long.hashCode(pullRequestId);
+      hash = 31 * hash + fromHash.hashCode();
+      return 31 * hash + toHash.hashCode();
+    }
+  }
+}
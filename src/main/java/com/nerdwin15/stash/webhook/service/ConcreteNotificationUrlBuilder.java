@@ -0,0 +1,217 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Default implementation of the {@link NotificationUrlBuilder} interface.
+ *
+ * The {@code <jenkinsBase>/git/notifyCommit?url=<encoded clone url>} prefix
+ * of each repository and Jenkins instance is cached, and reused for as long
+ * as the clone URL it was built from stays the same. The cache holds as many
+ * prefixes as the settings cache holds repositories ({@value
+ * ConcreteSettingsService#CACHE_SIZE_PROPERTY}).
+ *
+ * Branch names are encoded straight into a buffer reused by each thread, with
+ * the same result as {@link java.net.URLEncoder} with UTF-8, so a URL costs
+ * little more than the resulting string.
+ */
+public class ConcreteNotificationUrlBuilder implements NotificationUrlBuilder {
+
+  private static final String NOTIFY_COMMIT = "/git/notifyCommit?url=";
+  private static final String BRANCH_URL_PARAMETER = "&branches=";
+  private static final String HASH_URL_PARAMETER = "&sha1=";
+  private static final String TARGET_BRANCH_PARAMETER = "&TARGET_BRANCH=";
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+  private static final int MAX_RETAINED_BUFFER = 8192;
+  private static final boolean[] UNRESERVED = new boolean[128];
+
+  static {
+    for (char c = 'a'; c <= 'z'; c++)
+      UNRESERVED[c] = true;
+    for (char c = 'A'; c <= 'Z'; c++)
+      UNRESERVED[c] = true;
+    for (char c = '0'; c <= '9'; c++)
+      UNRESERVED[c] = true;
+    UNRESERVED['-'] = true;
+    UNRESERVED['_'] = true;
+    UNRESERVED['.'] = true;
+    UNRESERVED['*'] = true;
+  }
+
+  private final Cache<PrefixKey, Prefix> prefixes;
+  private final ThreadLocal<StringBuilder> buffers =
+      ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the cache size
+   */
+  public ConcreteNotificationUrlBuilder(
+      ApplicationPropertiesService propertiesService) {
+    this(propertiesService.getPluginProperty(
+        ConcreteSettingsService.CACHE_SIZE_PROPERTY,
+        ConcreteSettingsService.DEFAULT_CACHE_SIZE));
+  }
+
+  /**
+   * Create a new instance with an explicit cache size
+   * @param cacheSize The maximum number of repository and Jenkins instance
+   * prefixes cached
+   */
+  public ConcreteNotificationUrlBuilder(long cacheSize) {
+    this.prefixes = CacheBuilder.newBuilder()
+        .maximumSize(Math.max(0, cacheSize))
+        .build();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getUrl(Repository repository, String jenkinsBase,
+      String cloneUrl, String strRef, String strSha1, String targetBranch,
+      boolean omitHashCode, boolean omitBranchName, boolean omitTargetBranch) {
+    StringBuilder url = buffers.get();
+    url.setLength(0);
+    url.append(getPrefix(repository, jenkinsBase, cloneUrl));
+
+    if (strRef != null && !omitBranchName)
+      encode(url.append(BRANCH_URL_PARAMETER), strRef);
+    if (strSha1 != null && !omitHashCode)
+      url.append(HASH_URL_PARAMETER).append(strSha1);
+    if (targetBranch != null && !omitTargetBranch)
+      url.append(TARGET_BRANCH_PARAMETER).append(targetBranch);
+
+    String result = url.toString();
+    if (url.capacity() > MAX_RETAINED_BUFFER)
+      buffers.remove();
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getEncodedLength(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 128)
+        length += UNRESERVED[c] || c == ' ' ? 1 : 3;
+      else
+        // The non-ASCII run is encoded as a whole, like URLEncoder does
+        return length + encode(new StringBuilder(), value.substring(i))
+            .length();
+    }
+    return length;
+  }
+
+  /**
+   * Gets the encoded {@code notifyCommit} URL up to the clone URL.
+   * Package-private for testing purposes
+   */
+  String getPrefix(Repository repository, String jenkinsBase,
+      String cloneUrl) {
+    PrefixKey key = repository == null ? null
+        : new PrefixKey(repository.getId(), jenkinsBase);
+    Prefix cached = key == null ? null : prefixes.getIfPresent(key);
+    if (cached != null && cached.matches(cloneUrl))
+      return cached.value;
+
+    StringBuilder prefix = new StringBuilder();
+    prefix.append(jenkinsBase).append(NOTIFY_COMMIT);
+    encode(prefix, cloneUrl);
+    Prefix built = new Prefix(cloneUrl, prefix.toString());
+    if (key != null)
+      prefixes.put(key, built);
+    return built.value;
+  }
+
+  /**
+   * Appends a value in {@code application/x-www-form-urlencoded} format, as
+   * {@link java.net.URLEncoder#encode(String, String)} with UTF-8 would.
+   */
+  private static StringBuilder encode(StringBuilder out, String value) {
+    int length = value.length();
+    int i = 0;
+    while (i < length) {
+      char c = value.charAt(i);
+      if (c < 128) {
+        if (UNRESERVED[c])
+          out.append(c);
+        else if (c == ' ')
+          out.append('+');
+        else
+          appendEscaped(out, c);
+        i++;
+        continue;
+      }
+
+      // Encode the whole run of non-ASCII characters at once, so surrogate
+      // pairs stay together and unpaired ones become '?' as in URLEncoder
+      int end = i + 1;
+      while (end < length && value.charAt(end) >= 128)
+        end++;
+      for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8))
+        appendEscaped(out, b & 0xFF);
+      i = end;
+    }
+    return out;
+  }
+
+  private static void appendEscaped(StringBuilder out, int b) {
+    out.append('%').append(HEX[b >> 4]).append(HEX[b & 0xF]);
+  }
+
+  /**
+   * Identifies the prefix of a repository for one Jenkins instance, so the
+   * instances of a repository don't evict each other's prefix
+   */
+  private static final class PrefixKey {
+    private final int repositoryId;
+    private final String jenkinsBase;
+
+    PrefixKey(int repositoryId, String jenkinsBase) {
+      this.repositoryId = repositoryId;
+      this.jenkinsBase = jenkinsBase;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PrefixKey))
+        return false;
+      PrefixKey other = (PrefixKey) o;
+      return repositoryId == other.repositoryId
+          && Objects.equals(jenkinsBase, other.jenkinsBase);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * repositoryId + Objects.hashCode(jenkinsBase);
+    }
+  }
+
+  /**
+   * The encoded URL prefix of a repository, with the clone URL it was built
+   * from
+   */
+  private static final class Prefix {
+    private final String cloneUrl;
+    private final String value;
+
+    Prefix(String cloneUrl, String value) {
+      this.cloneUrl = cloneUrl;
+      this.value = value;
+    }
+
+    boolean matches(String cloneUrl) {
+      return Objects.equals(this.cloneUrl, cloneUrl);
+    }
+  }
+}
@@ -1,67 +1,222 @@
 package com.nerdwin15.stash.webhook.service;
 
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.atlassian.bitbucket.event.hook.RepositoryHookDisabledEvent;
+import com.atlassian.bitbucket.event.hook.RepositoryHookEnabledEvent;
+import com.atlassian.bitbucket.event.hook.RepositoryHookEvent;
+import com.atlassian.bitbucket.event.hook.RepositoryHookSettingsChangedEvent;
 import com.atlassian.bitbucket.hook.repository.RepositoryHook;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheFactory;
+import com.atlassian.cache.CacheSettings;
+import com.atlassian.cache.CacheSettingsBuilder;
+import com.atlassian.event.api.EventListener;
 import com.nerdwin15.stash.webhook.Notifier;
 
 /**
  * Default implementation of the {@link SettingsService} interface that uses
  * a SecurityService to ensure that the current user has the ability to retrieve
  * the webhook settings.
- * 
+ *
+ * Settings snapshots are cached per repository, up to
+ * {@value #CACHE_SIZE_PROPERTY} repositories (default
+ * {@value #DEFAULT_CACHE_SIZE}) with the least recently used evicted first.
+ * Entries are dropped when the hook is enabled, disabled or reconfigured, and
+ * after {@value #CACHE_TTL_PROPERTY} seconds (default
+ * {@value #DEFAULT_CACHE_TTL_SECONDS}) in case an event was missed.
+ *
+ * Hook events are only raised on the node the hook was changed on, so the
+ * snapshots live in an Atlassian cache replicated by invalidation: each node
+ * keeps its own snapshots, and dropping one drops it on every node of a
+ * Data Center cluster.
+ *
  * @author Michael Irwin (mikesir87)
  */
 public class ConcreteSettingsService implements SettingsService {
 
-  private static final Logger LOGGER = 
+  /**
+   * Property holding the maximum number of cached repository settings
+   */
+  public static final String CACHE_SIZE_PROPERTY =
+      "plugin.webhook.jenkins.settings.cache.size";
+
+  /**
+   * Property holding the time in seconds a settings snapshot is cached
+   */
+  public static final String CACHE_TTL_PROPERTY =
+      "plugin.webhook.jenkins.settings.cache.ttl";
+
+  /**
+   * Name of the cache holding the settings snapshots
+   */
+  static final String CACHE_NAME =
+      ConcreteSettingsService.class.getName() + ".settings";
+
+  static final long DEFAULT_CACHE_SIZE = 1000;
+  static final long DEFAULT_CACHE_TTL_SECONDS = 300;
+
+  private static final Logger LOGGER =
       LoggerFactory.getLogger(Notifier.class);
 
   private RepositoryHookService hookService;
   private SecurityService securityService;
-  
+  private final Cache<Integer, Optional<WebhookSettings>> cache;
+
   /**
    * Create a new instance.
    * @param hookService The repository hook service
    * @param securityService The security service
+   * @param cacheFactory Factory of the cluster-invalidated cache
+   * @param propertiesService Service used to read the cache configuration
    */
   public ConcreteSettingsService(RepositoryHookService hookService,
-      SecurityService securityService) {
+      SecurityService securityService, CacheFactory cacheFactory,
+      ApplicationPropertiesService propertiesService) {
+    this(hookService, securityService, cacheFactory,
+        propertiesService.getPluginProperty(CACHE_SIZE_PROPERTY,
+            DEFAULT_CACHE_SIZE),
+        propertiesService.getPluginProperty(CACHE_TTL_PROPERTY,
+            DEFAULT_CACHE_TTL_SECONDS));
+  }
+
+  /**
+   * Create a new instance with explicit cache limits.
+   * @param hookService The repository hook service
+   * @param securityService The security service
+   * @param cacheFactory Factory of the cluster-invalidated cache
+   * @param cacheSize The maximum number of cached repository settings
+   * @param cacheTtlSeconds The time in seconds a snapshot is cached
+   */
+  public ConcreteSettingsService(RepositoryHookService hookService,
+      SecurityService securityService, CacheFactory cacheFactory,
+      long cacheSize, long cacheTtlSeconds) {
     this.hookService = hookService;
     this.securityService = securityService;
+    this.cache = cacheFactory.getCache(CACHE_NAME, null,
+        invalidatedAcrossCluster(cacheSize, cacheTtlSeconds));
   }
-  
+
+  /**
+   * Settings of a cache whose values stay on the node that loaded them, and
+   * whose removals are replicated to the other nodes of the cluster. Shared
+   * with the clone URL cache.
+   * @param size The maximum number of entries
+   * @param ttlSeconds The time in seconds an entry is kept
+   * @return The cache settings
+   */
+  static CacheSettings invalidatedAcrossCluster(long size,
+      long ttlSeconds) {
+    return new CacheSettingsBuilder()
+        .remote()
+        .replicateViaInvalidation()
+        .maxEntries((int) Math.min(Integer.MAX_VALUE, Math.max(1, size)))
+        .expireAfterWrite(Math.max(1, ttlSeconds), TimeUnit.SECONDS)
+        .build();
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public RepositoryHook getRepositoryHook(final Repository repository) {
     try {
-      return securityService.withPermission(Permission.REPO_ADMIN, "Retrieving repository hook")
-              .call(() -> hookService.getByKey(repository, Notifier.KEY));
+      return fetchRepositoryHook(repository);
     } catch (Exception e) {
       LOGGER.error("Unexpected exception trying to get repository hook", e);
       return null;
     }
   }
-  
+
   /**
    * {@inheritDoc}
    */
   @Override
   public Settings getSettings(final Repository repository) {
     try {
-      return securityService.withPermission(Permission.REPO_ADMIN, "Retrieving settings")
-              .call(() -> hookService.getSettings(repository, Notifier.KEY));
+      return fetchSettings(repository);
     } catch (Exception e) {
       LOGGER.error("Unexpected exception trying to get webhook settings", e);
       return null;
     }
   }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public WebhookSettings getWebhookSettings(final Repository repository) {
+    try {
+      return cache.get(repository.getId(), () -> {
+        Settings settings = fetchSettings(repository);
+        if (settings == null)
+          return Optional.empty();
+        RepositoryHook hook = fetchRepositoryHook(repository);
+        return Optional.of(new WebhookSettings(
+            hook != null && hook.isEnabled(), settings));
+      }).orElse(null);
+    } catch (RuntimeException e) {
+      LOGGER.error("Unexpected exception trying to get webhook settings", e);
+      return null;
+    }
+  }
+
+  /**
+   * Drops the cached settings when the hook is reconfigured
+   * @param event The settings changed event
+   */
+  @EventListener
+  public void onHookSettingsChanged(RepositoryHookSettingsChangedEvent event) {
+    invalidate(event);
+  }
+
+  /**
+   * Drops the cached settings when the hook is enabled
+   * @param event The hook enabled event
+   */
+  @EventListener
+  public void onHookEnabled(RepositoryHookEnabledEvent event) {
+    invalidate(event);
+  }
+
+  /**
+   * Drops the cached settings when the hook is disabled
+   * @param event The hook disabled event
+   */
+  @EventListener
+  public void onHookDisabled(RepositoryHookDisabledEvent event) {
+    invalidate(event);
+  }
+
+  private void invalidate(RepositoryHookEvent event) {
+    if (!Notifier.KEY.equals(event.getRepositoryHookKey()))
+      return;
+
+    // Hooks configured for a whole project have no single repository
+    Repository repository = event.getRepository();
+    if (repository == null)
+      cache.removeAll();
+    else
+      cache.remove(repository.getId());
+  }
+
+  private RepositoryHook fetchRepositoryHook(final Repository repository) {
+    return securityService.withPermission(Permission.REPO_ADMIN, "Retrieving repository hook")
+            .call(() -> hookService.getByKey(repository, Notifier.KEY));
+  }
+
+  private Settings fetchSettings(final Repository repository) {
+    return securityService.withPermission(Permission.REPO_ADMIN, "Retrieving settings")
+            .call(() -> hookService.getSettings(repository, Notifier.KEY));
+  }
 }
@@ -0,0 +1,18 @@
+package com.nerdwin15.stash.webhook.service;
+
+import com.atlassian.bitbucket.repository.Repository;
+
+/**
+ * Tells which branch of a repository is its default branch.
+ */
+public interface DefaultBranchService {
+
+  /**
+   * Determine whether a branch is the default branch of its repository.
+   * @param repository The repository of the branch
+   * @param ref The branch, either its full ref or its display name
+   * @return True if the branch is the default branch. False if it isn't, or
+   * if the repository has no default branch yet.
+   */
+  boolean isDefaultBranch(Repository repository, String ref);
+}
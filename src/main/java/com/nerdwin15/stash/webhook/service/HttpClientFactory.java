@@ -5,18 +5,27 @@ import org.apache.http.client.HttpClient;
 /**
  * Defines a generator that will create a HttpClient used to communicate with
  * the Jenkins instance.
- * 
+ *
  * @author Michael Irwin (mikesir87)
  */
 public interface HttpClientFactory {
 
   /**
-   * Generate a HttpClient to communicate with Jenkins.
-   * @param usingSsl True if using ssl.
+   * Get a HttpClient to communicate with Jenkins. Clients are long-lived and
+   * shared between notifications to the same Jenkins instance, so callers
+   * must not shut them down. The global timeouts apply to requests that don't
+   * set their own configuration.
+   * @param jenkinsBase The base URL of the Jenkins instance.
    * @param trustAllCerts True if all certs should be trusted.
    * @return An HttpClient configured to communicate with Jenkins.
    * @throws Exception Any exception, but shouldn't happen.
    */
-  HttpClient getHttpClient(Boolean usingSsl, Boolean trustAllCerts)
+  HttpClient getHttpClient(String jenkinsBase, Boolean trustAllCerts)
       throws Exception;
-}
\ No newline at end of file
+
+  /**
+   * Close all clients handed out by this factory, releasing their pooled
+   * connections.
+   */
+  void shutdown();
+}
@@ -0,0 +1,177 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.util.Objects;
+
+import org.apache.http.client.config.RequestConfig;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+
+/**
+ * The timeouts, in milliseconds, used when calling Jenkins.
+ *
+ * Any of the timeouts may be left unset, in which case the value is taken
+ * from another instance by {@link #orElse(HttpTimeouts)}. Repository settings
+ * only override the timeouts they set, and fall back to the global
+ * {@value #CONNECT_TIMEOUT_PROPERTY}, {@value #SOCKET_TIMEOUT_PROPERTY} and
+ * {@value #POOL_TIMEOUT_PROPERTY} properties for the rest.
+ *
+ * Instances are immutable and can be used as map keys.
+ */
+public final class HttpTimeouts {
+
+  /**
+   * Property holding the time to wait for a connection to Jenkins
+   */
+  public static final String CONNECT_TIMEOUT_PROPERTY =
+      "plugin.webhook.jenkins.http.connect.timeout";
+
+  /**
+   * Property holding the time to wait for data from Jenkins
+   */
+  public static final String SOCKET_TIMEOUT_PROPERTY =
+      "plugin.webhook.jenkins.http.socket.timeout";
+
+  /**
+   * Property holding the time to wait for a pooled connection
+   */
+  public static final String POOL_TIMEOUT_PROPERTY =
+      "plugin.webhook.jenkins.http.pool.timeout";
+
+  static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+  static final int DEFAULT_SOCKET_TIMEOUT = 10000;
+  static final int DEFAULT_POOL_TIMEOUT = 5000;
+
+  /**
+   * Timeouts that set nothing, so every value is inherited
+   */
+  public static final HttpTimeouts INHERIT = new HttpTimeouts(null, null, null);
+
+  /**
+   * The built-in global timeouts
+   */
+  public static final HttpTimeouts DEFAULTS = new HttpTimeouts(
+      DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_POOL_TIMEOUT);
+
+  private final Integer connectTimeout;
+  private final Integer socketTimeout;
+  private final Integer poolTimeout;
+
+  /**
+   * Create a new instance. Null or non-positive values are left unset.
+   * @param connectTimeout The time to wait for a connection to Jenkins
+   * @param socketTimeout The time to wait for data from Jenkins
+   * @param poolTimeout The time to wait for a pooled connection
+   */
+  public HttpTimeouts(Integer connectTimeout, Integer socketTimeout,
+      Integer poolTimeout) {
+    this.connectTimeout = positiveOrNull(connectTimeout);
+    this.socketTimeout = positiveOrNull(socketTimeout);
+    this.poolTimeout = positiveOrNull(poolTimeout);
+  }
+
+  /**
+   * Read the global timeouts from the application properties
+   * @param propertiesService Service used to read the properties
+   * @return The global timeouts
+   */
+  public static HttpTimeouts fromProperties(
+      ApplicationPropertiesService propertiesService) {
+    return new HttpTimeouts(
+        propertiesService.getPluginProperty(CONNECT_TIMEOUT_PROPERTY,
+            DEFAULT_CONNECT_TIMEOUT),
+        propertiesService.getPluginProperty(SOCKET_TIMEOUT_PROPERTY,
+            DEFAULT_SOCKET_TIMEOUT),
+        propertiesService.getPluginProperty(POOL_TIMEOUT_PROPERTY,
+            DEFAULT_POOL_TIMEOUT)).orElse(DEFAULTS);
+  }
+
+  /**
+   * Fill in the unset timeouts from another instance
+   * @param defaults The timeouts to inherit from
+   * @return The merged timeouts
+   */
+  public HttpTimeouts orElse(HttpTimeouts defaults) {
+    if (defaults == null)
+      return this;
+    return new HttpTimeouts(
+        connectTimeout != null ? connectTimeout : defaults.connectTimeout,
+        socketTimeout != null ? socketTimeout : defaults.socketTimeout,
+        poolTimeout != null ? poolTimeout : defaults.poolTimeout);
+  }
+
+  /**
+   * Gets the {@code connectTimeout} property.
+   * @return The time to wait for a connection to Jenkins, or null if unset
+   */
+  public Integer getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Gets the {@code socketTimeout} property.
+   * @return The time to wait for data from Jenkins, or null if unset
+   */
+  public Integer getSocketTimeout() {
+    return socketTimeout;
+  }
+
+  /**
+   * Gets the {@code poolTimeout} property.
+   * @return The time to wait for a pooled connection, or null if unset
+   */
+  public Integer getPoolTimeout() {
+    return poolTimeout;
+  }
+
+  /**
+   * Build the request configuration applying these timeouts. Unset timeouts
+   * keep the HttpClient default.
+   * @return The request configuration
+   */
+  public RequestConfig toRequestConfig() {
+    RequestConfig.Builder builder = RequestConfig.custom();
+    if (connectTimeout != null)
+      builder.setConnectTimeout(connectTimeout);
+    if (socketTimeout != null)
+      builder.setSocketTimeout(socketTimeout);
+    if (poolTimeout != null)
+      builder.setConnectionRequestTimeout(poolTimeout);
+    return builder.build();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof HttpTimeouts))
+      return false;
+    HttpTimeouts other = (HttpTimeouts) o;
+    return Objects.equals(connectTimeout, other.connectTimeout)
+        && Objects.equals(socketTimeout, other.socketTimeout)
+        && Objects.equals(poolTimeout, other.poolTimeout);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int hashCode() {
+    return Objects.hash(connectTimeout, socketTimeout, poolTimeout);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String toString() {
+    return "connect: " + connectTimeout + "; socket: " + socketTimeout
+        + "; pool: " + poolTimeout;
+  }
+
+  private static Integer positiveOrNull(Integer value) {
+    return value != null && value > 0 ? value : null;
+  }
+}
@@ -0,0 +1,19 @@
+package com.nerdwin15.stash.webhook.service;
+
+/**
+ * Tells whether pull requests can be merged without conflicts.
+ */
+public interface MergeabilityService {
+
+  /**
+   * Determine whether merging a pull request would conflict. The outcome is
+   * reused for as long as neither side of the pull request moves.
+   * @param repositoryId The id of the target repository of the pull request
+   * @param pullRequestId The id of the pull request
+   * @param fromHash The latest commit of the from side, if known
+   * @param toHash The latest commit of the to side, if known
+   * @return True if merging the pull request would conflict
+   */
+  boolean isConflicted(int repositoryId, long pullRequestId, String fromHash,
+      String toHash);
+}
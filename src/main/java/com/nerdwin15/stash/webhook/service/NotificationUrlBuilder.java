@@ -0,0 +1,34 @@
+package com.nerdwin15.stash.webhook.service;
+
+import com.atlassian.bitbucket.repository.Repository;
+
+/**
+ * Builds the {@code notifyCommit} URLs sent to Jenkins.
+ */
+public interface NotificationUrlBuilder {
+
+  /**
+   * Build the URL notifying Jenkins of a commit
+   * @param repository The repository the notification is for
+   * @param jenkinsBase The base URL of the Jenkins instance, without a
+   * trailing slash
+   * @param cloneUrl The URL Jenkins clones the repository from
+   * @param strRef The branch ref related to the commit
+   * @param strSha1 The commit's SHA1 hash code.
+   * @param targetBranch Target branch can be used in merge
+   * @param omitHashCode Defines whether the commit's SHA1 hash code is omitted
+   * @param omitBranchName Defines whether the commit's branch name is omitted
+   * @param omitTargetBranch Omit the target branch
+   * @return The url to use for notifying Jenkins
+   */
+  String getUrl(Repository repository, String jenkinsBase, String cloneUrl,
+      String strRef, String strSha1, String targetBranch, boolean omitHashCode,
+      boolean omitBranchName, boolean omitTargetBranch);
+
+  /**
+   * Gets the length a value has once URL-encoded, without encoding it
+   * @param value The value
+   * @return The length of the encoded value
+   */
+  int getEncodedLength(String value);
+}
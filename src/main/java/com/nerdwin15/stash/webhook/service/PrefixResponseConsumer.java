@@ -0,0 +1,61 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Consumes a response of the non-blocking HTTP client keeping only the
+ * start of its body, instead of buffering all of it as the default consumer
+ * does. The rest is discarded as it arrives, so the connection is still
+ * read to the end and reused.
+ *
+ * The response is completed with a body of at most
+ * {@value ResponsePrefix#MAX_BYTES} bytes, plus one byte if more followed so
+ * {@link ResponsePrefix} can tell the body was cut.
+ */
+public class PrefixResponseConsumer extends AsyncByteConsumer<HttpResponse> {
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private final byte[] prefix = new byte[ResponsePrefix.MAX_BYTES + 1];
+  private int kept;
+  private HttpResponse response;
+
+  /**
+   * Create a new instance, for a single response
+   */
+  public PrefixResponseConsumer() {
+    super(BUFFER_SIZE);
+  }
+
+  @Override
+  protected void onResponseReceived(HttpResponse response) {
+    this.response = response;
+  }
+
+  @Override
+  protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) {
+    int keep = Math.min(buf.remaining(), prefix.length - kept);
+    buf.get(prefix, kept, keep);
+    kept += keep;
+    buf.position(buf.limit());
+  }
+
+  @Override
+  protected HttpResponse buildResult(HttpContext context) {
+    HttpEntity entity = response.getEntity();
+    if (entity != null) {
+      ByteArrayEntity start = new ByteArrayEntity(prefix, 0, kept);
+      start.setContentType(entity.getContentType());
+      start.setContentEncoding(entity.getContentEncoding());
+      response.setEntity(start);
+    }
+    return response;
+  }
+}
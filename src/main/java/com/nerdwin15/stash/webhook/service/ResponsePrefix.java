@@ -0,0 +1,130 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * The start of a Jenkins response body.
+ *
+ * Jenkins answers a notification with a line per polled job, and reverse
+ * proxies may answer with whole HTML pages, but only the first few words
+ * tell whether polling was scheduled. At most {@value #MAX_BYTES} bytes are
+ * kept, decoded as UTF-8. The rest is read and thrown away through the same
+ * buffer, so the pooled connection can be reused, unless more than
+ * {@value #MAX_DRAIN_BYTES} bytes follow. The connection of such a response
+ * is better aborted than read to the end, which is why reading doesn't
+ * close the body: closing a body reads it to the end first.
+ */
+public final class ResponsePrefix {
+
+  /**
+   * The number of bytes kept from the start of a body
+   */
+  public static final int MAX_BYTES = 2048;
+
+  /**
+   * The number of bytes read past the kept ones before giving up on reusing
+   * the connection
+   */
+  public static final long MAX_DRAIN_BYTES = 1024 * 1024;
+
+  private static final ResponsePrefix EMPTY = new ResponsePrefix("", false,
+      true);
+
+  private final String text;
+  private final boolean truncated;
+  private final boolean consumed;
+
+  private ResponsePrefix(String text, boolean truncated, boolean consumed) {
+    this.text = text;
+    this.truncated = truncated;
+    this.consumed = consumed;
+  }
+
+  /**
+   * Read the start of a body and discard the rest. The body is left open:
+   * release its connection once done, or abort the request if the body
+   * wasn't {@link #isConsumed() consumed}.
+   * @param entity The body, may be null
+   * @return The start of the body
+   * @throws IOException If the body couldn't be read
+   */
+  public static ResponsePrefix read(HttpEntity entity) throws IOException {
+    InputStream content = entity == null ? null : entity.getContent();
+    if (content == null)
+      return EMPTY;
+    byte[] buffer = new byte[MAX_BYTES];
+    int kept = fill(content, buffer);
+    String text = decode(buffer, kept);
+    if (kept < MAX_BYTES)
+      return new ResponsePrefix(text, false, true);
+
+    long drained = 0;
+    int read;
+    while (drained <= MAX_DRAIN_BYTES
+        && (read = content.read(buffer)) != -1) {
+      drained += read;
+    }
+    return new ResponsePrefix(text, drained > 0, drained <= MAX_DRAIN_BYTES);
+  }
+
+  /**
+   * Gets the start of the body
+   * @return At most {@value #MAX_BYTES} bytes of the body as text
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Tells whether the body was longer than the text kept
+   * @return True if the body was cut
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * Tells whether the whole body was read, so its connection can be reused
+   * @return True if the body was read to the end
+   */
+  public boolean isConsumed() {
+    return consumed;
+  }
+
+  @Override
+  public String toString() {
+    return truncated ? text + "..." : text;
+  }
+
+  private static int fill(InputStream content, byte[] buffer)
+      throws IOException {
+    int filled = 0;
+    int read;
+    while (filled < buffer.length && (read = content.read(buffer, filled,
+        buffer.length - filled)) != -1) {
+      filled += read;
+    }
+    return filled;
+  }
+
+  /**
+   * Decodes the bytes, leaving out a character cut in half at the end
+   */
+  private static String decode(byte[] bytes, int length) {
+    CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    CharBuffer chars = CharBuffer.allocate(length);
+    decoder.decode(ByteBuffer.wrap(bytes, 0, length), chars, false);
+    chars.flip();
+    return chars.toString();
+  }
+}
@@ -24,4 +24,13 @@ public interface SettingsService {
    * @return The webhook settings for the repository. Null if no settings set.
    */
   Settings getSettings(Repository repository);
+
+  /**
+   * Get a snapshot of the webhook settings for the provided repository.
+   * Snapshots are cached until the hook settings change, so this is the
+   * method to use while handling events.
+   * @param repository The Repository
+   * @return The webhook settings for the repository. Null if no settings set.
+   */
+  WebhookSettings getWebhookSettings(Repository repository);
 }
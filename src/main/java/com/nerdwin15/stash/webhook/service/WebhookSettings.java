@@ -0,0 +1,238 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.atlassian.bitbucket.setting.Settings;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.nerdwin15.stash.webhook.Notifier;
+
+/**
+ * An immutable, typed snapshot of the webhook settings of a repository.
+ *
+ * Snapshots are built once per repository and cached by the
+ * {@link SettingsService}, so the event pipeline can read the settings as
+ * often as it likes without going back to the hook service.
+ */
+public final class WebhookSettings {
+
+  private static final Splitter SPACES =
+      Splitter.on(' ').trimResults().omitEmptyStrings();
+
+  private final boolean enabled;
+  private final String jenkinsBase;
+  private final List<String> jenkinsBases;
+  private final String cloneType;
+  private final String cloneUrl;
+  private final boolean ignoreCerts;
+  private final boolean omitHashCode;
+  private final boolean omitBranchName;
+  private final boolean omitTargetBranch;
+  private final boolean batchBranches;
+  private final List<String> ignoreCommitters;
+  private final String branchOptions;
+  private final List<String> branchOptionsBranches;
+  private final BranchMatcher branchMatcher;
+  private final HttpTimeouts timeouts;
+
+  /**
+   * Create a snapshot of the provided settings
+   * @param enabled Is the hook enabled for the repository?
+   * @param settings The settings of the hook
+   */
+  public WebhookSettings(boolean enabled, Settings settings) {
+    this.enabled = enabled;
+    this.jenkinsBase = settings.getString(Notifier.JENKINS_BASE);
+    this.jenkinsBases = targets(jenkinsBase,
+        split(settings.getString(Notifier.ADDITIONAL_JENKINS_BASES)));
+    this.cloneType = settings.getString(Notifier.CLONE_TYPE);
+    this.cloneUrl = settings.getString(Notifier.CLONE_URL);
+    this.ignoreCerts = settings.getBoolean(Notifier.IGNORE_CERTS, false);
+    this.omitHashCode = settings.getBoolean(Notifier.OMIT_HASH_CODE, false);
+    this.omitBranchName = settings.getBoolean(Notifier.OMIT_BRANCH_NAME, false);
+    this.omitTargetBranch =
+        settings.getBoolean(Notifier.OMIT_TARGET_BRANCH, false);
+    this.batchBranches = settings.getBoolean(Notifier.BATCH_BRANCHES, false);
+    this.ignoreCommitters =
+        split(settings.getString(Notifier.IGNORE_COMMITTERS));
+    this.branchOptions = settings.getString(Notifier.BRANCH_OPTIONS);
+    this.branchOptionsBranches =
+        split(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES));
+    this.branchMatcher = BranchMatcher.compile(branchOptionsBranches);
+    this.timeouts = new HttpTimeouts(
+        parseInt(settings.getString(Notifier.CONNECT_TIMEOUT)),
+        parseInt(settings.getString(Notifier.SOCKET_TIMEOUT)),
+        parseInt(settings.getString(Notifier.POOL_TIMEOUT)));
+  }
+
+  /**
+   * Gets the {@code enabled} property.
+   * @return Is the hook enabled for the repository?
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Gets the {@code jenkinsBase} property.
+   * @return The base URL of the Jenkins instance
+   */
+  public String getJenkinsBase() {
+    return jenkinsBase;
+  }
+
+  /**
+   * Gets the base URLs of every Jenkins instance to notify: the
+   * {@code jenkinsBase} property followed by the
+   * {@code additionalJenkinsBases} property, without trailing slashes or
+   * duplicates.
+   * @return The base URLs of the Jenkins instances
+   */
+  public List<String> getJenkinsBases() {
+    return jenkinsBases;
+  }
+
+  /**
+   * Gets the {@code cloneType} property.
+   * @return The type used to clone the repository. Null on older installs.
+   */
+  public String getCloneType() {
+    return cloneType;
+  }
+
+  /**
+   * Gets the {@code cloneUrl} property.
+   * @return The custom URL used for cloning the repository
+   */
+  public String getCloneUrl() {
+    return cloneUrl;
+  }
+
+  /**
+   * Gets the custom clone URL, or the clone type if a built-in clone URL is
+   * used. Identifies the Jenkins jobs a notification is meant for.
+   * @return The clone URL or type
+   */
+  public String getCloneTarget() {
+    return cloneType == null || cloneType.equals("custom")
+        ? cloneUrl : cloneType;
+  }
+
+  /**
+   * Gets the {@code ignoreCerts} property.
+   * @return True if all certs should be allowed
+   */
+  public boolean isIgnoreCerts() {
+    return ignoreCerts;
+  }
+
+  /**
+   * Gets the {@code omitHashCode} property.
+   * @return True if the commit's SHA1 hash code is omitted
+   */
+  public boolean isOmitHashCode() {
+    return omitHashCode;
+  }
+
+  /**
+   * Gets the {@code omitBranchName} property.
+   * @return True if the commit's branch name is omitted
+   */
+  public boolean isOmitBranchName() {
+    return omitBranchName;
+  }
+
+  /**
+   * Gets the {@code omitTargetBranch} property.
+   * @return True if the target branch is omitted
+   */
+  public boolean isOmitTargetBranch() {
+    return omitTargetBranch;
+  }
+
+  /**
+   * Gets the {@code batchBranches} property.
+   * @return True if the branches of a push are sent in a single request
+   */
+  public boolean isBatchBranches() {
+    return batchBranches;
+  }
+
+  /**
+   * Gets the {@code ignoreCommitters} property.
+   * @return The usernames whose pushes don't trigger a notification
+   */
+  public List<String> getIgnoreCommitters() {
+    return ignoreCommitters;
+  }
+
+  /**
+   * Gets the {@code branchOptions} property.
+   * @return Either "whitelist", "blacklist" or null
+   */
+  public String getBranchOptions() {
+    return branchOptions;
+  }
+
+  /**
+   * Gets the {@code branchOptionsBranches} property.
+   * @return The branches the branch options apply to
+   */
+  public List<String> getBranchOptionsBranches() {
+    return branchOptionsBranches;
+  }
+
+  /**
+   * Gets the branch options branches compiled for matching.
+   * @return The matcher for the branch options branches
+   */
+  public BranchMatcher getBranchMatcher() {
+    return branchMatcher;
+  }
+
+  /**
+   * Gets the timeouts set for the repository.
+   * @return The timeouts. Unset timeouts fall back to the global ones.
+   */
+  public HttpTimeouts getTimeouts() {
+    return timeouts;
+  }
+
+  private static List<String> split(String value) {
+    if (value == null)
+      return Collections.emptyList();
+    return ImmutableList.copyOf(SPACES.split(value));
+  }
+
+  /**
+   * A trailing slash is dropped before de-duplicating, as the notifier drops
+   * it anyway, so http://ci/ and http://ci are notified once
+   */
+  private static List<String> targets(String jenkinsBase,
+      List<String> additional) {
+    Set<String> targets = new LinkedHashSet<String>();
+    if (!Strings.isNullOrEmpty(jenkinsBase))
+      targets.add(stripSlash(jenkinsBase));
+    for (String target : additional)
+      targets.add(stripSlash(target));
+    return ImmutableList.copyOf(targets);
+  }
+
+  private static String stripSlash(String url) {
+    return url.replaceFirst("/$", "");
+  }
+
+  private static Integer parseInt(String value) {
+    if (value == null)
+      return null;
+    try {
+      return Integer.valueOf(value.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
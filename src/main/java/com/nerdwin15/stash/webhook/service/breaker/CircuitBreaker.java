@@ -0,0 +1,230 @@
+package com.nerdwin15.stash.webhook.service.breaker;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+
+/**
+ * A circuit breaker guarding the calls to a single Jenkins instance.
+ *
+ * While {@link State#CLOSED} every call is let through and its outcome is
+ * kept in a fixed-size window. Once the failure or slow-call rate of the
+ * window crosses the configured threshold the circuit becomes
+ * {@link State#OPEN} and calls are refused straight away. After the open
+ * duration a limited number of probes are let through
+ * ({@link State#HALF_OPEN}): the circuit closes again once they all succeed,
+ * and opens again on the first failing or slow probe.
+ *
+ * Callers that were let through by {@link #tryAcquire()} must report the
+ * outcome with {@link #onSuccess(long)} or {@link #onFailure(long)}.
+ *
+ * The breaker is guarded by its own monitor. Calls to the same Jenkins
+ * instance are few enough that this is never contended for long.
+ */
+public class CircuitBreaker {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(CircuitBreaker.class);
+
+  /**
+   * The state of a circuit
+   */
+  public enum State {
+    /** Calls are let through */
+    CLOSED,
+    /** Calls are refused */
+    OPEN,
+    /** A limited number of probes are let through */
+    HALF_OPEN
+  }
+
+  private final String name;
+  private final CircuitBreakerConfig config;
+  private final Ticker ticker;
+
+  private final boolean[] failed;
+  private final boolean[] slow;
+  private int next;
+  private int calls;
+  private int failedCalls;
+  private int slowCalls;
+
+  private State state = State.CLOSED;
+  private long openedAt;
+  private int probesLeft;
+  private int probesSucceeded;
+
+  /**
+   * Create a new, closed circuit
+   * @param name The name used in log messages, usually the Jenkins base URL
+   * @param config The thresholds of the circuit
+   * @param ticker The time source
+   */
+  public CircuitBreaker(String name, CircuitBreakerConfig config,
+      Ticker ticker) {
+    this.name = name;
+    this.config = config;
+    this.ticker = ticker;
+    this.failed = new boolean[config.getWindowSize()];
+    this.slow = new boolean[config.getWindowSize()];
+  }
+
+  /**
+   * Ask to make a call
+   * @return True if the call may go ahead. Its outcome must then be
+   * reported.
+   */
+  public synchronized boolean tryAcquire() {
+    if (state == State.OPEN) {
+      if (ticker.read() - openedAt < config.getOpenDurationNanos())
+        return false;
+      transition(State.HALF_OPEN);
+    }
+    if (state == State.HALF_OPEN) {
+      if (probesLeft == 0)
+        return false;
+      probesLeft--;
+    }
+    return true;
+  }
+
+  /**
+   * Report a call that reached Jenkins
+   * @param durationNanos How long the call took
+   */
+  public void onSuccess(long durationNanos) {
+    record(false, durationNanos);
+  }
+
+  /**
+   * Report a call that couldn't reach Jenkins or that Jenkins failed
+   * @param durationNanos How long the call took
+   */
+  public void onFailure(long durationNanos) {
+    record(true, durationNanos);
+  }
+
+  /**
+   * Gets the current state. An open circuit whose open duration has passed
+   * is reported as half-open, as the next call will probe.
+   * @return The state of the circuit
+   */
+  public synchronized State getState() {
+    if (state == State.OPEN
+        && ticker.read() - openedAt >= config.getOpenDurationNanos())
+      return State.HALF_OPEN;
+    return state;
+  }
+
+  /**
+   * Gets the failure rate of the calls in the window
+   * @return The percentage of failed calls, or -1 if there are too few calls
+   * to tell
+   */
+  public synchronized float getFailureRate() {
+    return calls < config.getMinimumCalls() ? -1 : 100f * failedCalls / calls;
+  }
+
+  /**
+   * Gets the slow call rate of the calls in the window
+   * @return The percentage of slow calls, or -1 if there are too few calls
+   * to tell
+   */
+  public synchronized float getSlowCallRate() {
+    return calls < config.getMinimumCalls() ? -1 : 100f * slowCalls / calls;
+  }
+
+  /**
+   * Gets the number of calls in the window
+   * @return The number of recorded calls
+   */
+  public synchronized int getBufferedCalls() {
+    return calls;
+  }
+
+  /**
+   * Gets the time until an open circuit starts probing
+   * @return The remaining milliseconds, or 0 if the circuit isn't open
+   */
+  public synchronized long getRemainingOpenMillis() {
+    if (state != State.OPEN)
+      return 0;
+    long remaining = config.getOpenDurationNanos()
+        - (ticker.read() - openedAt);
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remaining));
+  }
+
+  private synchronized void record(boolean failure, long durationNanos) {
+    boolean slowCall = durationNanos > config.getSlowCallDurationNanos();
+    switch (state) {
+      case CLOSED:
+        add(failure, slowCall);
+        if (calls >= config.getMinimumCalls()
+            && (exceeds(failedCalls, config.getFailureRateThreshold())
+                || exceeds(slowCalls, config.getSlowCallRateThreshold())))
+          transition(State.OPEN);
+        break;
+      case HALF_OPEN:
+        if (failure || slowCall)
+          transition(State.OPEN);
+        else if (++probesSucceeded >= config.getHalfOpenCalls())
+          transition(State.CLOSED);
+        break;
+      default:
+        // Calls that started before the circuit opened
+        break;
+    }
+  }
+
+  private void add(boolean failure, boolean slowCall) {
+    if (calls == failed.length) {
+      if (failed[next])
+        failedCalls--;
+      if (slow[next])
+        slowCalls--;
+    } else {
+      calls++;
+    }
+    failed[next] = failure;
+    slow[next] = slowCall;
+    if (failure)
+      failedCalls++;
+    if (slowCall)
+      slowCalls++;
+    next = (next + 1) % failed.length;
+  }
+
+  private boolean exceeds(int count, int thresholdPercent) {
+    return thresholdPercent > 0 && count * 100 >= thresholdPercent * calls;
+  }
+
+  private void transition(State to) {
+    switch (to) {
+      case OPEN:
+        LOGGER.warn("Jenkins at {} is failing, pausing notifications for {} ms",
+            name, TimeUnit.NANOSECONDS.toMillis(config.getOpenDurationNanos()));
+        openedAt = ticker.read();
+        break;
+      case HALF_OPEN:
+        LOGGER.info("Probing Jenkins at {}", name);
+        probesLeft = config.getHalfOpenCalls();
+        probesSucceeded = 0;
+        break;
+      default:
+        LOGGER.info("Jenkins at {} recovered, resuming notifications", name);
+        break;
+    }
+    state = to;
+    if (to != State.CLOSED)
+      return;
+
+    // Start over with an empty window
+    next = 0;
+    calls = 0;
+    failedCalls = 0;
+    slowCalls = 0;
+  }
+}
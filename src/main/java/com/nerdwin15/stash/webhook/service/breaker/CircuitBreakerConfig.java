@@ -0,0 +1,173 @@
+package com.nerdwin15.stash.webhook.service.breaker;
+
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+
+/**
+ * The thresholds shared by the circuit breakers of all Jenkins instances.
+ *
+ * A circuit opens once at least {@code minimumCalls} of the last
+ * {@code windowSize} calls were recorded and either the share of failed calls
+ * reaches {@code failureRateThreshold} percent or the share of calls slower
+ * than {@code slowCallDurationMillis} reaches {@code slowCallRateThreshold}
+ * percent. It stays open for {@code openDurationMillis} before letting
+ * {@code halfOpenCalls} probes through.
+ */
+public final class CircuitBreakerConfig {
+
+  /**
+   * Property prefix of the circuit breaker settings
+   */
+  public static final String PROPERTY_PREFIX =
+      "plugin.webhook.jenkins.breaker.";
+
+  /**
+   * Property switching the circuit breakers on or off
+   */
+  public static final String ENABLED_PROPERTY = PROPERTY_PREFIX + "enabled";
+
+  static final int DEFAULT_WINDOW_SIZE = 20;
+  static final int DEFAULT_MINIMUM_CALLS = 10;
+  static final int DEFAULT_FAILURE_RATE = 50;
+  static final int DEFAULT_SLOW_CALL_RATE = 80;
+  static final long DEFAULT_SLOW_CALL_MILLIS = 5000;
+  static final long DEFAULT_OPEN_MILLIS = 30000;
+  static final int DEFAULT_HALF_OPEN_CALLS = 2;
+
+  /**
+   * The built-in thresholds
+   */
+  public static final CircuitBreakerConfig DEFAULTS = new CircuitBreakerConfig(
+      true, DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_CALLS, DEFAULT_FAILURE_RATE,
+      DEFAULT_SLOW_CALL_RATE, DEFAULT_SLOW_CALL_MILLIS, DEFAULT_OPEN_MILLIS,
+      DEFAULT_HALF_OPEN_CALLS);
+
+  private final boolean enabled;
+  private final int windowSize;
+  private final int minimumCalls;
+  private final int failureRateThreshold;
+  private final int slowCallRateThreshold;
+  private final long slowCallDurationNanos;
+  private final long openDurationNanos;
+  private final int halfOpenCalls;
+
+  /**
+   * Create a new instance
+   * @param enabled Are the circuit breakers used at all?
+   * @param windowSize The number of most recent calls the rates are based on
+   * @param minimumCalls The number of calls needed before a circuit can open
+   * @param failureRateThreshold The percentage of failed calls that opens
+   * the circuit
+   * @param slowCallRateThreshold The percentage of slow calls that opens the
+   * circuit
+   * @param slowCallDurationMillis The duration after which a call is slow
+   * @param openDurationMillis How long a circuit stays open before probing
+   * @param halfOpenCalls The number of successful probes that close the
+   * circuit again
+   */
+  public CircuitBreakerConfig(boolean enabled, int windowSize,
+      int minimumCalls, int failureRateThreshold, int slowCallRateThreshold,
+      long slowCallDurationMillis, long openDurationMillis,
+      int halfOpenCalls) {
+    this.enabled = enabled;
+    this.windowSize = Math.max(1, windowSize);
+    this.minimumCalls = Math.max(1, Math.min(minimumCalls, this.windowSize));
+    this.failureRateThreshold = failureRateThreshold;
+    this.slowCallRateThreshold = slowCallRateThreshold;
+    this.slowCallDurationNanos =
+        TimeUnit.MILLISECONDS.toNanos(Math.max(0, slowCallDurationMillis));
+    this.openDurationNanos =
+        TimeUnit.MILLISECONDS.toNanos(Math.max(0, openDurationMillis));
+    this.halfOpenCalls = Math.max(1, halfOpenCalls);
+  }
+
+  /**
+   * Read the thresholds from the application properties
+   * @param propertiesService Service used to read the properties
+   * @return The configured thresholds
+   */
+  public static CircuitBreakerConfig fromProperties(
+      ApplicationPropertiesService propertiesService) {
+    return new CircuitBreakerConfig(
+        propertiesService.getPluginProperty(ENABLED_PROPERTY, true),
+        propertiesService.getPluginProperty(PROPERTY_PREFIX + "window",
+            DEFAULT_WINDOW_SIZE),
+        propertiesService.getPluginProperty(PROPERTY_PREFIX + "minimum.calls",
+            DEFAULT_MINIMUM_CALLS),
+        propertiesService.getPluginProperty(PROPERTY_PREFIX + "failure.rate",
+            DEFAULT_FAILURE_RATE),
+        propertiesService.getPluginProperty(PROPERTY_PREFIX + "slow.rate",
+            DEFAULT_SLOW_CALL_RATE),
+        propertiesService.getPluginProperty(PROPERTY_PREFIX + "slow.duration",
+            DEFAULT_SLOW_CALL_MILLIS),
+        propertiesService.getPluginProperty(PROPERTY_PREFIX + "open.duration",
+            DEFAULT_OPEN_MILLIS),
+        propertiesService.getPluginProperty(PROPERTY_PREFIX + "halfopen.calls",
+            DEFAULT_HALF_OPEN_CALLS));
+  }
+
+  /**
+   * Gets the {@code enabled} property.
+   * @return Are the circuit breakers used at all?
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Gets the {@code windowSize} property.
+   * @return The number of most recent calls the rates are based on
+   */
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Gets the {@code minimumCalls} property.
+   * @return The number of calls needed before a circuit can open
+   */
+  public int getMinimumCalls() {
+    return minimumCalls;
+  }
+
+  /**
+   * Gets the {@code failureRateThreshold} property.
+   * @return The percentage of failed calls that opens the circuit
+   */
+  public int getFailureRateThreshold() {
+    return failureRateThreshold;
+  }
+
+  /**
+   * Gets the {@code slowCallRateThreshold} property.
+   * @return The percentage of slow calls that opens the circuit
+   */
+  public int getSlowCallRateThreshold() {
+    return slowCallRateThreshold;
+  }
+
+  /**
+   * Gets the {@code slowCallDurationNanos} property.
+   * @return The duration in nanoseconds after which a call is slow
+   */
+  public long getSlowCallDurationNanos() {
+    return slowCallDurationNanos;
+  }
+
+  /**
+   * Gets the {@code openDurationNanos} property.
+   * @return How long in nanoseconds a circuit stays open before probing
+   */
+  public long getOpenDurationNanos() {
+    return openDurationNanos;
+  }
+
+  /**
+   * Gets the {@code halfOpenCalls} property.
+   * @return The number of successful probes that close the circuit again
+   */
+  public int getHalfOpenCalls() {
+    return halfOpenCalls;
+  }
+}
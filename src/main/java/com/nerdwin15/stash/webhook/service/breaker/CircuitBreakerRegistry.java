@@ -0,0 +1,81 @@
+package com.nerdwin15.stash.webhook.service.breaker;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.base.Ticker;
+
+/**
+ * Hands out one {@link CircuitBreaker} per Jenkins base URL, so all
+ * repositories notifying the same Jenkins instance share its circuit. A
+ * trailing slash on the base URL is ignored.
+ *
+ * The thresholds are read from the properties starting with
+ * {@value CircuitBreakerConfig#PROPERTY_PREFIX}. If
+ * {@value CircuitBreakerConfig#ENABLED_PROPERTY} is false, no circuits are
+ * kept and {@link #forJenkins(String)} returns null.
+ */
+public class CircuitBreakerRegistry {
+
+  private final CircuitBreakerConfig config;
+  private final Ticker ticker;
+  private final ConcurrentMap<String, CircuitBreaker> breakers =
+      new ConcurrentHashMap<String, CircuitBreaker>();
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the thresholds
+   */
+  public CircuitBreakerRegistry(
+      ApplicationPropertiesService propertiesService) {
+    this(CircuitBreakerConfig.fromProperties(propertiesService),
+        Ticker.systemTicker());
+  }
+
+  /**
+   * Create a new instance with explicit thresholds
+   * @param config The thresholds of every circuit
+   * @param ticker The time source
+   */
+  public CircuitBreakerRegistry(CircuitBreakerConfig config, Ticker ticker) {
+    this.config = config;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Get the circuit of a Jenkins instance, creating it if needed
+   * @param jenkinsBase The base URL of the Jenkins instance
+   * @return The circuit, or null if circuit breaking is switched off
+   */
+  public CircuitBreaker forJenkins(String jenkinsBase) {
+    if (!config.isEnabled() || jenkinsBase == null)
+      return null;
+    return breakers.computeIfAbsent(normalize(jenkinsBase),
+        base -> new CircuitBreaker(base, config, ticker));
+  }
+
+  /**
+   * Get the circuit of a Jenkins instance without creating it
+   * @param jenkinsBase The base URL of the Jenkins instance
+   * @return The circuit, or null if no call was made to the instance yet
+   */
+  public CircuitBreaker find(String jenkinsBase) {
+    return jenkinsBase == null ? null : breakers.get(normalize(jenkinsBase));
+  }
+
+  /**
+   * Gets all circuits created so far
+   * @return The circuits by Jenkins base URL
+   */
+  public Map<String, CircuitBreaker> getAll() {
+    return Collections.unmodifiableMap(breakers);
+  }
+
+  private static String normalize(String jenkinsBase) {
+    return jenkinsBase.endsWith("/")
+        ? jenkinsBase.substring(0, jenkinsBase.length() - 1) : jenkinsBase;
+  }
+}
@@ -0,0 +1,4 @@
+/**
+ * Circuit breakers that stop notifications to failing Jenkins instances
+ */
+package com.nerdwin15.stash.webhook.service.breaker;
@@ -0,0 +1,27 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import java.util.Set;
+
+/**
+ * Tells which nodes the Bitbucket cluster consists of.
+ */
+public interface ClusterMembership {
+
+  /**
+   * Gets the id of the node this plugin instance runs on
+   * @return The local node id
+   */
+  String getLocalNodeId();
+
+  /**
+   * Gets the nodes currently in the cluster, including the local one
+   * @return The node ids
+   */
+  Set<String> getNodeIds();
+
+  /**
+   * Register a listener called whenever nodes join or leave the cluster
+   * @param listener The listener
+   */
+  void addListener(Runnable listener);
+}
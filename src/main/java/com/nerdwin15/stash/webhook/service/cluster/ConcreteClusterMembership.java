@@ -0,0 +1,112 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.cluster.ClusterNode;
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.event.cluster.ClusterNodeAddedEvent;
+import com.atlassian.bitbucket.event.cluster.ClusterNodeEvent;
+import com.atlassian.bitbucket.event.cluster.ClusterNodeRejoinedEvent;
+import com.atlassian.bitbucket.event.cluster.ClusterNodeRemovedEvent;
+import com.atlassian.event.api.EventListener;
+
+/**
+ * Cluster membership backed by Bitbucket's {@link ClusterService}. The node
+ * list is refreshed from the cluster events, so listeners hear of a node
+ * joining or leaving as soon as Bitbucket does.
+ */
+public class ConcreteClusterMembership implements ClusterMembership {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConcreteClusterMembership.class);
+  private static final String STANDALONE_NODE_ID = "standalone";
+
+  private final ClusterService clusterService;
+  private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+  private volatile Set<String> nodeIds;
+
+  /**
+   * Create a new instance
+   * @param clusterService Service used to find the cluster nodes
+   */
+  public ConcreteClusterMembership(ClusterService clusterService) {
+    this.clusterService = clusterService;
+  }
+
+  @Override
+  public String getLocalNodeId() {
+    ClusterNode local = clusterService.getLocalNode();
+    return local == null ? STANDALONE_NODE_ID : local.getId();
+  }
+
+  @Override
+  public Set<String> getNodeIds() {
+    Set<String> ids = nodeIds;
+    if (ids == null) {
+      ids = toIds(clusterService.isAvailable()
+          ? clusterService.getNodes() : null);
+      nodeIds = ids;
+    }
+    return ids;
+  }
+
+  @Override
+  public void addListener(Runnable listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Event listener for nodes joining the cluster
+   * @param event The event
+   */
+  @EventListener
+  public void onNodeAdded(ClusterNodeAddedEvent event) {
+    update(event);
+  }
+
+  /**
+   * Event listener for nodes rejoining the cluster
+   * @param event The event
+   */
+  @EventListener
+  public void onNodeRejoined(ClusterNodeRejoinedEvent event) {
+    update(event);
+  }
+
+  /**
+   * Event listener for nodes leaving the cluster
+   * @param event The event
+   */
+  @EventListener
+  public void onNodeRemoved(ClusterNodeRemovedEvent event) {
+    update(event);
+  }
+
+  private void update(ClusterNodeEvent event) {
+    Set<String> ids = toIds(event.getCurrentNodes());
+    if (ids.equals(nodeIds))
+      return;
+    LOGGER.info("Cluster nodes changed to {}", ids);
+    nodeIds = ids;
+    for (Runnable listener : listeners)
+      listener.run();
+  }
+
+  private Set<String> toIds(Set<ClusterNode> nodes) {
+    Set<String> ids = new TreeSet<String>();
+    if (nodes != null) {
+      for (ClusterNode node : nodes)
+        ids.add(node.getId());
+    }
+    // A standalone or not yet started cluster consists of this node alone
+    ids.add(getLocalNodeId());
+    return Collections.unmodifiableSet(ids);
+  }
+}
@@ -0,0 +1,71 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Assigns keys to nodes by consistent hashing. Each node is placed on the
+ * ring many times, so keys are spread evenly and a node joining or leaving
+ * only moves the keys it takes over or gave up.
+ *
+ * Instances are immutable. The same nodes always make the same ring, so every
+ * node of the cluster agrees on the owner of a key.
+ */
+public final class ConsistentHashRing {
+
+  /**
+   * The number of places on the ring per node
+   */
+  public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final NavigableMap<Long, String> ring = new TreeMap<Long, String>();
+  private final Set<String> nodes;
+
+  /**
+   * Create a new ring
+   * @param nodeIds The nodes to place on the ring
+   * @param virtualNodes The number of places on the ring per node
+   */
+  public ConsistentHashRing(Collection<String> nodeIds, int virtualNodes) {
+    this.nodes = Collections.unmodifiableSet(new TreeSet<String>(nodeIds));
+    for (String node : nodes) {
+      for (int i = 0; i < Math.max(1, virtualNodes); i++)
+        ring.putIfAbsent(hash(node + "#" + i), node);
+    }
+  }
+
+  /**
+   * Gets the node owning a key
+   * @param key The key
+   * @return The owning node, or null if the ring is empty
+   */
+  public String getOwner(String key) {
+    if (ring.isEmpty())
+      return null;
+    Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+    return owner == null ? ring.firstEntry().getValue() : owner.getValue();
+  }
+
+  /**
+   * Gets the nodes on the ring
+   * @return The node ids
+   */
+  public Set<String> getNodes() {
+    return nodes;
+  }
+
+  private static long hash(String value) {
+    return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+  }
+}
@@ -0,0 +1,128 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+
+/**
+ * Decides which cluster node sends the notifications of a repository.
+ *
+ * Repositories are assigned to the nodes by a {@link ConsistentHashRing}, so
+ * the coalescing, retries and rate limits of a repository are all kept by a
+ * single node. The ring is rebuilt as soon as nodes join or leave, which only
+ * moves the repositories of the nodes that changed.
+ *
+ * Ownership can be switched off with {@value #ENABLED_PROPERTY}, in which
+ * case every node sends the notifications of the pushes it received.
+ */
+public class DeliveryOwnership {
+
+  /**
+   * Property switching repository ownership on or off
+   */
+  public static final String ENABLED_PROPERTY =
+      "plugin.webhook.jenkins.cluster.ownership";
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(DeliveryOwnership.class);
+
+  private final ClusterMembership membership;
+  private final boolean enabled;
+  private volatile ConsistentHashRing ring;
+
+  /**
+   * Create a new instance
+   * @param membership Tells which nodes the cluster consists of
+   * @param propertiesService Service used to read whether ownership is on
+   */
+  public DeliveryOwnership(ClusterMembership membership,
+      ApplicationPropertiesService propertiesService) {
+    this(membership, propertiesService.getPluginProperty(ENABLED_PROPERTY,
+        true));
+  }
+
+  /**
+   * Create a new instance
+   * @param membership Tells which nodes the cluster consists of
+   * @param enabled Is repository ownership on?
+   */
+  public DeliveryOwnership(ClusterMembership membership, boolean enabled) {
+    this.membership = membership;
+    this.enabled = enabled;
+    membership.addListener(this::rebalance);
+  }
+
+  /**
+   * Are notifications shared out between several nodes?
+   * @return True if ownership is on and the cluster has more than one node
+   */
+  public boolean isDistributed() {
+    return enabled && ring().getNodes().size() > 1;
+  }
+
+  /**
+   * Gets the id of the local node
+   * @return The local node id
+   */
+  public String getLocalNodeId() {
+    return membership.getLocalNodeId();
+  }
+
+  /**
+   * Gets the nodes repositories are assigned to
+   * @return The node ids
+   */
+  public Set<String> getNodeIds() {
+    return ring().getNodes();
+  }
+
+  /**
+   * Gets the node that sends the notifications of a repository
+   * @param repositoryId The id of the repository
+   * @return The owning node id
+   */
+  public String getOwner(int repositoryId) {
+    if (!enabled)
+      return getLocalNodeId();
+    return ring().getOwner("repository:" + repositoryId);
+  }
+
+  /**
+   * Gets the node that takes over the leftover work of a node that left
+   * @param nodeId The id of the node that left
+   * @return The id of the node taking over
+   */
+  public String getSuccessor(String nodeId) {
+    if (!enabled)
+      return getLocalNodeId();
+    return ring().getOwner("node:" + nodeId);
+  }
+
+  /**
+   * Does the local node send the notifications of a repository?
+   * @param repositoryId The id of the repository
+   * @return True if the local node owns the repository
+   */
+  public boolean isLocal(int repositoryId) {
+    return getLocalNodeId().equals(getOwner(repositoryId));
+  }
+
+  private ConsistentHashRing ring() {
+    ConsistentHashRing current = ring;
+    if (current == null) {
+      current = new ConsistentHashRing(membership.getNodeIds(),
+          ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+      ring = current;
+    }
+    return current;
+  }
+
+  private void rebalance() {
+    ring = new ConsistentHashRing(membership.getNodeIds(),
+        ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+    LOGGER.info("Repositories rebalanced over nodes {}", ring.getNodes());
+  }
+}
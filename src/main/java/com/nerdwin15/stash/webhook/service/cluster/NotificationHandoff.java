@@ -0,0 +1,235 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.nerdwin15.stash.webhook.NotificationRequest;
+
+/**
+ * Hands notifications over to the node owning their repository through a
+ * directory per node in the shared home.
+ *
+ * Each hand-over is a file that only appears in the inbox once completely
+ * written. Its name is unique to the sending node, and a hand-over fails
+ * rather than replace an existing file. Receiving nodes claim a file by
+ * atomically renaming it before reading it, so a file is never picked up
+ * twice, even while two nodes briefly disagree on who owns an inbox. A
+ * claimed file is only deleted once its notifications were delivered, and
+ * the files a node claimed but didn't deliver before leaving the cluster are
+ * taken over by its successor along with the rest of its inbox.
+ */
+public class NotificationHandoff {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationHandoff.class);
+  private static final String SUFFIX = ".req";
+  private static final String WRITING_SUFFIX = ".tmp";
+  private static final String CLAIMED_SUFFIX = ".claimed-";
+
+  private final File directory;
+  private final RepositoryService repositoryService;
+  private final SecurityService securityService;
+  private final String sender = UUID.randomUUID().toString();
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to find the shared home
+   * @param repositoryService Service used to find the repositories of
+   * received notifications
+   * @param securityService Service used to look repositories up
+   */
+  public NotificationHandoff(ApplicationPropertiesService propertiesService,
+      RepositoryService repositoryService, SecurityService securityService) {
+    this(new File(propertiesService.getSharedHomeDir(),
+        "jenkins-webhook/handoff"), repositoryService, securityService);
+  }
+
+  /**
+   * Create a new instance with an explicit directory
+   * @param directory The directory holding the inboxes of all nodes
+   * @param repositoryService Service used to find the repositories of
+   * received notifications
+   * @param securityService Service used to look repositories up
+   */
+  public NotificationHandoff(File directory,
+      RepositoryService repositoryService, SecurityService securityService) {
+    this.directory = directory;
+    this.repositoryService = repositoryService;
+    this.securityService = securityService;
+  }
+
+  /**
+   * Hand notifications over to another node
+   * @param nodeId The id of the receiving node
+   * @param requests The notifications
+   * @return True if the notifications were handed over, false if they
+   * couldn't be written and have to be sent locally
+   */
+  public boolean send(String nodeId, List<NotificationRequest> requests) {
+    File inbox = new File(directory, nodeId);
+    String name = String.format("%013d-%06d-%s", System.currentTimeMillis(),
+        sequence.incrementAndGet() % 1000000, sender);
+    File writing = new File(inbox, name + WRITING_SUFFIX);
+    try {
+      if (!inbox.isDirectory() && !inbox.mkdirs() && !inbox.isDirectory())
+        throw new IOException("Unable to create " + inbox);
+      Files.write(writing.toPath(), encode(requests));
+      // Fails instead of replacing a file that is already there
+      Files.move(writing.toPath(), new File(inbox, name + SUFFIX).toPath());
+      return true;
+    } catch (IOException e) {
+      LOGGER.warn("Unable to hand notifications over to node {}", nodeId, e);
+      writing.delete();
+      return false;
+    }
+  }
+
+  /**
+   * Take the notifications handed over to a node, oldest first, and deliver
+   * them file by file. A file is only deleted once its notifications were
+   * delivered; if the delivery fails, the file stays claimed and is
+   * delivered again on the next call. Notifications of repositories that no
+   * longer exist are dropped.
+   *
+   * When a node reads the inbox of another one, which only happens once
+   * that node left the cluster, it also takes over the files the departed
+   * node had claimed but not delivered before it went away.
+   * @param nodeId The id of the node whose inbox is read
+   * @param claimant The id of the node reading the inbox
+   * @param delivery Takes the notifications of each file. It must not return
+   * before they are sent or journaled
+   * @return The number of notifications delivered
+   */
+  public int receive(String nodeId, String claimant,
+      Consumer<List<NotificationRequest>> delivery) {
+    File inbox = new File(directory, nodeId);
+    String claimed = CLAIMED_SUFFIX + claimant;
+    String abandoned = nodeId.equals(claimant) ? null
+        : CLAIMED_SUFFIX + nodeId;
+    String[] names = inbox.list((dir, name) -> name.endsWith(SUFFIX)
+        || name.endsWith(claimed)
+        || (abandoned != null && name.endsWith(abandoned)));
+    if (names == null || names.length == 0)
+      return 0;
+    Arrays.sort(names);
+
+    int delivered = 0;
+    for (String name : names) {
+      File file = new File(inbox, name);
+      try {
+        // Files left claimed by an earlier run were never fully delivered
+        if (!name.endsWith(claimed)) {
+          String unclaimed = name.endsWith(SUFFIX) ? name
+              : name.substring(0, name.length() - abandoned.length());
+          File claim = new File(inbox, unclaimed + claimed);
+          Files.move(file.toPath(), claim.toPath(),
+              StandardCopyOption.ATOMIC_MOVE);
+          file = claim;
+        }
+        List<NotificationRequest> requests =
+            decode(Files.readAllBytes(file.toPath()));
+        if (!requests.isEmpty())
+          delivery.accept(requests);
+        delivered += requests.size();
+      } catch (IOException e) {
+        // Most likely claimed by another node first
+        LOGGER.debug("Skipping handed over notifications {}", file, e);
+        continue;
+      }
+      if (!file.delete())
+        LOGGER.warn("Unable to delete handed over notifications {}", file);
+    }
+    return delivered;
+  }
+
+  /**
+   * Gets the nodes that have an inbox
+   * @return The node ids
+   */
+  public Set<String> getInboxes() {
+    Set<String> nodes = new TreeSet<String>();
+    File[] inboxes = directory.listFiles(File::isDirectory);
+    if (inboxes != null) {
+      for (File inbox : inboxes)
+        nodes.add(inbox.getName());
+    }
+    return nodes;
+  }
+
+  /**
+   * Look up the repository of a received notification. Protected for testing
+   * purposes
+   * @param repositoryId The id of the repository
+   * @return The repository, or null if it no longer exists
+   */
+  protected Repository findRepository(final int repositoryId) {
+    return securityService.withPermission(Permission.REPO_READ,
+        "Receiving Jenkins notifications")
+        .call(() -> repositoryService.getById(repositoryId));
+  }
+
+  private static byte[] encode(List<NotificationRequest> requests)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(requests.size());
+    for (NotificationRequest request : requests) {
+      out.writeInt(request.getRepository().getId());
+      writeString(out, request.getRef());
+      writeString(out, request.getSha1());
+      writeString(out, request.getTargetBranch());
+    }
+    return bytes.toByteArray();
+  }
+
+  private List<NotificationRequest> decode(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    int count = in.readInt();
+    List<NotificationRequest> requests = new ArrayList<NotificationRequest>();
+    for (int i = 0; i < count; i++) {
+      int repositoryId = in.readInt();
+      String ref = readString(in);
+      String sha1 = readString(in);
+      String targetBranch = readString(in);
+      Repository repository = findRepository(repositoryId);
+      if (repository != null)
+        requests.add(new NotificationRequest(repository, ref, sha1,
+            targetBranch));
+    }
+    return requests;
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null)
+      out.writeUTF(value);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
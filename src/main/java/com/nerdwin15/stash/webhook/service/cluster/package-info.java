@@ -0,0 +1,4 @@
+/**
+ * Assignment of repositories to the nodes of a Data Center cluster
+ */
+package com.nerdwin15.stash.webhook.service.cluster;
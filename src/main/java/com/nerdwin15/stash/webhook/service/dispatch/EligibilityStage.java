@@ -0,0 +1,203 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.util.concurrent.ThreadFactories;
+
+/**
+ * Runs the eligibility checks of events on the plugin's own threads, so
+ * settings lookups and merge checks don't hold up the event threads
+ * Bitbucket shares between all plugins. The listeners only capture what
+ * they need from an event and hand it over.
+ *
+ * Each repository is always evaluated by the same of the
+ * {@value #THREADS_PROPERTY} workers (default {@value #DEFAULT_THREADS}), so
+ * the events of a repository keep their order and the newest push to a
+ * branch is still the one Jenkins hears about last. Workers run with the
+ * permission to read repositories, as there is no user on their threads.
+ *
+ * Up to {@value #QUEUE_PROPERTY} events (default {@value #DEFAULT_QUEUE})
+ * wait for the workers, split evenly between them. Once the queue of a
+ * worker is full, the event thread waits up to {@value #WAIT_PROPERTY}
+ * milliseconds (default {@value #DEFAULT_WAIT_MILLIS}) for room. Only then
+ * is the event dropped with a warning and counted in
+ * {@link #getDroppedCount()}, rather than evaluated on the event thread,
+ * which would hold up every plugin and let a later event of the repository
+ * overtake the queued ones. 0 workers evaluates every event on the calling
+ * thread.
+ */
+public class EligibilityStage implements DisposableBean {
+
+  /**
+   * Property holding the number of worker threads
+   */
+  public static final String THREADS_PROPERTY =
+      "plugin.webhook.jenkins.eligibility.threads";
+
+  /**
+   * Property holding the number of events waiting for a worker
+   */
+  public static final String QUEUE_PROPERTY =
+      "plugin.webhook.jenkins.eligibility.queue";
+
+  /**
+   * Property holding how long an event waits for room in a full queue, in
+   * milliseconds
+   */
+  public static final String WAIT_PROPERTY =
+      "plugin.webhook.jenkins.eligibility.wait";
+
+  static final int DEFAULT_THREADS = 2;
+  static final int DEFAULT_QUEUE = 10000;
+  static final long DEFAULT_WAIT_MILLIS = 250;
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(EligibilityStage.class);
+
+  private final SecurityService securityService;
+  private final ThreadPoolExecutor[] lanes;
+  private final AtomicLong dropped = new AtomicLong();
+  private final long waitMillis;
+
+  /**
+   * Create a new instance
+   * @param securityService Service used to run the checks with the
+   * permission to read repositories
+   * @param propertiesService Service used to read the worker configuration
+   */
+  public EligibilityStage(SecurityService securityService,
+      ApplicationPropertiesService propertiesService) {
+    this(securityService,
+        propertiesService.getPluginProperty(THREADS_PROPERTY, DEFAULT_THREADS),
+        propertiesService.getPluginProperty(QUEUE_PROPERTY, DEFAULT_QUEUE),
+        propertiesService.getPluginProperty(WAIT_PROPERTY,
+            DEFAULT_WAIT_MILLIS));
+  }
+
+  /**
+   * Create a new instance with explicit limits
+   * @param securityService Service used to run the checks with the
+   * permission to read repositories
+   * @param threads The number of worker threads. 0 or less evaluates
+   * events on the calling thread.
+   * @param queueCapacity The number of events waiting for a worker
+   */
+  public EligibilityStage(SecurityService securityService, int threads,
+      int queueCapacity) {
+    this(securityService, threads, queueCapacity, DEFAULT_WAIT_MILLIS);
+  }
+
+  /**
+   * Create a new instance with explicit limits and wait
+   * @param securityService Service used to run the checks with the
+   * permission to read repositories
+   * @param threads The number of worker threads. 0 or less evaluates
+   * events on the calling thread.
+   * @param queueCapacity The number of events waiting for a worker
+   * @param waitMillis How long an event waits for room in a full queue
+   * before it is dropped
+   */
+  public EligibilityStage(SecurityService securityService, int threads,
+      int queueCapacity, long waitMillis) {
+    this.securityService = securityService;
+    this.waitMillis = waitMillis;
+    this.lanes = new ThreadPoolExecutor[Math.max(0, threads)];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+              Math.max(1, queueCapacity / lanes.length)),
+          ThreadFactories.namedThreadFactory("JenkinsWebhookEligibility",
+              ThreadFactories.Type.DAEMON),
+          new DropHandler());
+      lanes[i].allowCoreThreadTimeOut(true);
+    }
+  }
+
+  /**
+   * Evaluate an event of a repository on the worker of the repository
+   * @param repository The repository of the event
+   * @param evaluation Checks the captured event and passes on the
+   * notifications that should be sent
+   */
+  public void submit(Repository repository, Runnable evaluation) {
+    if (lanes.length == 0) {
+      evaluation.run();
+      return;
+    }
+    int lane = Math.floorMod(repository.getId(), lanes.length);
+    lanes[lane].execute(() -> evaluate(evaluation));
+  }
+
+  /**
+   * Gets the number of events waiting for a worker
+   * @return The number of waiting events
+   */
+  public int getQueueDepth() {
+    int depth = 0;
+    for (ThreadPoolExecutor lane : lanes)
+      depth += lane.getQueue().size();
+    return depth;
+  }
+
+  /**
+   * Gets the number of events dropped as the queue of their worker stayed
+   * full
+   * @return The dropped count
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  @Override
+  public void destroy() {
+    for (ThreadPoolExecutor lane : lanes)
+      lane.shutdownNow();
+  }
+
+  private void evaluate(Runnable evaluation) {
+    try {
+      securityService.withPermission(Permission.REPO_READ,
+          "Evaluating Jenkins notifications").call(() -> {
+            evaluation.run();
+            return null;
+          });
+    } catch (RuntimeException e) {
+      LOGGER.warn("Unable to evaluate event for Jenkins notifications", e);
+    }
+  }
+
+  /**
+   * Waits for room in a worker's full queue, and drops the event if none
+   * frees up in time
+   */
+  private class DropHandler implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+      if (e.isShutdown())
+        return;
+      try {
+        if (waitMillis > 0
+            && e.getQueue().offer(r, waitMillis, TimeUnit.MILLISECONDS))
+          return;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      long count = dropped.incrementAndGet();
+      LOGGER.warn("Eligibility queue full, dropping event for Jenkins "
+          + "notifications ({} dropped so far)", count);
+    }
+  }
+}
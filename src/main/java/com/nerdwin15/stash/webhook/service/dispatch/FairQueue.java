@@ -0,0 +1,402 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationExecutor.Priority;
+
+/**
+ * The work queue of the {@link NotificationExecutor}, which hands out
+ * notifications fairly between repositories instead of in arrival order.
+ *
+ * Notifications wait in a lane per repository. Within a priority, lanes
+ * take turns and each turn hands out one notification, which is deficit
+ * round-robin with equal quanta: a repository pushing a tag every few
+ * seconds only delays every other repository by one notification per
+ * round, however much it queued. Between priorities, {@link Priority#HIGH}
+ * lanes get {@code weight} turns for every {@link Priority#NORMAL} one while
+ * both have work, so normal notifications are delayed but never starved.
+ *
+ * Runnables that aren't an {@link Entry} wait in a shared normal lane.
+ */
+final class FairQueue extends AbstractQueue<Runnable>
+    implements BlockingQueue<Runnable> {
+
+  /**
+   * Work that tells the queue which lane and priority it belongs to
+   */
+  interface Entry {
+    /**
+     * Gets the lane of the work, such as its repository
+     * @return The lane name
+     */
+    String getLane();
+
+    /**
+     * Gets the priority of the work
+     * @return The priority
+     */
+    Priority getPriority();
+  }
+
+  private static final String SHARED_LANE = "";
+
+  private final int capacity;
+  private final int weight;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Turns[] priorities = new Turns[Priority.values().length];
+  private int count;
+  private int highTurns;
+
+  /**
+   * Create a new instance
+   * @param capacity The maximum number of queued runnables
+   * @param weight The turns high priority lanes get for every normal one
+   */
+  FairQueue(int capacity, int weight) {
+    this.capacity = Math.max(1, capacity);
+    this.weight = Math.max(1, weight);
+    for (int i = 0; i < priorities.length; i++)
+      priorities[i] = new Turns();
+  }
+
+  @Override
+  public boolean offer(Runnable runnable) {
+    if (runnable == null)
+      throw new NullPointerException();
+    lock.lock();
+    try {
+      if (count == capacity)
+        return false;
+      enqueue(runnable);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(Runnable runnable, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    if (runnable == null)
+      throw new NullPointerException();
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (count == capacity) {
+        if (nanos <= 0)
+          return false;
+        nanos = notFull.awaitNanos(nanos);
+      }
+      enqueue(runnable);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void put(Runnable runnable) throws InterruptedException {
+    if (runnable == null)
+      throw new NullPointerException();
+    lock.lockInterruptibly();
+    try {
+      while (count == capacity)
+        notFull.await();
+      enqueue(runnable);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable poll() {
+    lock.lock();
+    try {
+      return count == 0 ? null : dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable poll(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (nanos <= 0)
+          return null;
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count == 0)
+        notEmpty.await();
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable peek() {
+    lock.lock();
+    try {
+      if (count == 0)
+        return null;
+      return next().lanes.peekFirst().runnables.peekFirst();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof Runnable))
+      return false;
+    lock.lock();
+    try {
+      Turns turns = priorities[priorityOf((Runnable) o).ordinal()];
+      Lane lane = turns.byName.get(laneOf((Runnable) o));
+      if (lane == null || !lane.runnables.remove(o))
+        return false;
+      if (lane.runnables.isEmpty())
+        turns.retire(lane);
+      removed();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Remove the oldest runnable of the lane with the most queued, looking at
+   * normal priority lanes before high priority ones
+   * @return The removed runnable, or null if the queue is empty
+   */
+  Runnable dropFromBusiest() {
+    lock.lock();
+    try {
+      for (int i = priorities.length - 1; i >= 0; i--) {
+        Lane busiest = null;
+        for (Lane lane : priorities[i].lanes) {
+          if (busiest == null
+              || lane.runnables.size() > busiest.runnables.size())
+            busiest = lane;
+        }
+        if (busiest != null) {
+          Runnable dropped = busiest.runnables.pollFirst();
+          if (busiest.runnables.isEmpty())
+            priorities[i].retire(busiest);
+          removed();
+          return dropped;
+        }
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of lanes with queued runnables
+   * @return The number of busy lanes
+   */
+  int getLaneCount() {
+    lock.lock();
+    try {
+      int lanes = 0;
+      for (Turns turns : priorities)
+        lanes += turns.lanes.size();
+      return lanes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      return capacity - count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c, int maxElements) {
+    if (c == this)
+      throw new IllegalArgumentException();
+    lock.lock();
+    try {
+      int drained = 0;
+      while (drained < maxElements && count > 0) {
+        c.add(dequeue());
+        drained++;
+      }
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Iterates over a snapshot of the queued runnables, lane by lane
+   */
+  @Override
+  public Iterator<Runnable> iterator() {
+    lock.lock();
+    try {
+      List<Runnable> snapshot = new ArrayList<Runnable>(count);
+      for (Turns turns : priorities) {
+        for (Lane lane : turns.lanes)
+          snapshot.addAll(lane.runnables);
+      }
+      final Iterator<Runnable> it = snapshot.iterator();
+      return new Iterator<Runnable>() {
+        private Runnable last;
+
+        @Override
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        @Override
+        public Runnable next() {
+          last = it.next();
+          return last;
+        }
+
+        @Override
+        public void remove() {
+          FairQueue.this.remove(last);
+        }
+      };
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void enqueue(Runnable runnable) {
+    Turns turns = priorities[priorityOf(runnable).ordinal()];
+    String name = laneOf(runnable);
+    Lane lane = turns.byName.get(name);
+    if (lane == null) {
+      lane = new Lane(name);
+      turns.byName.put(name, lane);
+      turns.lanes.addLast(lane);
+    }
+    lane.runnables.addLast(runnable);
+    count++;
+    notEmpty.signal();
+  }
+
+  private Runnable dequeue() {
+    Turns turns = next();
+    if (turns == priorities[Priority.HIGH.ordinal()])
+      highTurns++;
+    else
+      highTurns = 0;
+
+    Lane lane = turns.lanes.pollFirst();
+    Runnable runnable = lane.runnables.pollFirst();
+    if (lane.runnables.isEmpty())
+      turns.byName.remove(lane.name);
+    else
+      turns.lanes.addLast(lane);
+    removed();
+    return runnable;
+  }
+
+  /**
+   * Picks the priority whose turn it is, which has queued runnables
+   */
+  private Turns next() {
+    Turns high = priorities[Priority.HIGH.ordinal()];
+    Turns normal = priorities[Priority.NORMAL.ordinal()];
+    if (high.lanes.isEmpty())
+      return normal;
+    if (normal.lanes.isEmpty() || highTurns < weight)
+      return high;
+    return normal;
+  }
+
+  private void removed() {
+    count--;
+    notFull.signal();
+  }
+
+  private static String laneOf(Runnable runnable) {
+    return runnable instanceof Entry ? ((Entry) runnable).getLane()
+        : SHARED_LANE;
+  }
+
+  private static Priority priorityOf(Runnable runnable) {
+    return runnable instanceof Entry ? ((Entry) runnable).getPriority()
+        : Priority.NORMAL;
+  }
+
+  /**
+   * The lanes of a priority with queued runnables, in the order they take
+   * turns
+   */
+  private static final class Turns {
+    private final ArrayDeque<Lane> lanes = new ArrayDeque<Lane>();
+    private final Map<String, Lane> byName = new HashMap<String, Lane>();
+
+    void retire(Lane lane) {
+      lanes.remove(lane);
+      byName.remove(lane.name);
+    }
+  }
+
+  /**
+   * The queued runnables of a lane, oldest first
+   */
+  private static final class Lane {
+    private final String name;
+    private final ArrayDeque<Runnable> runnables = new ArrayDeque<Runnable>();
+
+    Lane(String name) {
+      this.name = name;
+    }
+  }
+}
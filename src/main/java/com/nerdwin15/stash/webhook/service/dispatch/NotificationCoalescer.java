@@ -0,0 +1,323 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.nerdwin15.stash.webhook.NotificationRequest;
+import com.nerdwin15.stash.webhook.Notifier;
+import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
+import com.nerdwin15.stash.webhook.service.cluster.DeliveryOwnership;
+import com.nerdwin15.stash.webhook.service.cluster.NotificationHandoff;
+import com.nerdwin15.stash.webhook.service.outbox.NotificationOutbox;
+
+/**
+ * Holds notifications back for a short window and sends only the newest one
+ * per repository, clone URL and branch.
+ *
+ * Several pushes to the same branch in quick succession make Jenkins poll
+ * the repository once instead of once per push. The window is opened by the
+ * first notification for a branch, so a steady stream of pushes can't delay
+ * a notification indefinitely.
+ *
+ * All branches of a repository whose window closes together are handed to
+ * the notifier at once, so repositories that batch branches send them in a
+ * single request.
+ *
+ * The window length is read from {@value #WINDOW_PROPERTY} in milliseconds
+ * (default {@value #DEFAULT_WINDOW_MILLIS}). A window of 0 disables
+ * coalescing.
+ *
+ * Notifications are journaled as they enter the window, and the entry of a
+ * replaced notification is acknowledged, so the ones still waiting when the
+ * plugin stops are sent again on start.
+ *
+ * In a cluster, notifications are only coalesced by the node owning their
+ * repository. Notifications for repositories owned by other nodes are handed
+ * over to them, and the inbox of this node is checked every
+ * {@value #HANDOFF_POLL_PROPERTY} milliseconds. This node also empties the
+ * inboxes of nodes that left the cluster if it is their successor. Journaled
+ * notifications, such as those replayed on start, are acknowledged once
+ * handed over, as the receiving node takes care of them from then on.
+ */
+public class NotificationCoalescer implements DisposableBean {
+
+  /**
+   * Property holding the coalescing window in milliseconds
+   */
+  public static final String WINDOW_PROPERTY =
+      "plugin.webhook.jenkins.coalesce.window";
+
+  /**
+   * Property holding how often the inbox of handed over notifications is
+   * checked, in milliseconds
+   */
+  public static final String HANDOFF_POLL_PROPERTY =
+      "plugin.webhook.jenkins.cluster.poll";
+
+  static final long DEFAULT_WINDOW_MILLIS = 500;
+  static final long DEFAULT_HANDOFF_POLL_MILLIS = 500;
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationCoalescer.class);
+
+  private final Notifier notifier;
+  private final SettingsService settingsService;
+  private final DeliveryOwnership ownership;
+  private final NotificationHandoff handoff;
+  private final NotificationOutbox outbox;
+  private final long windowMillis;
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final ConcurrentMap<Integer, Map<String, NotificationRequest>> pending =
+      new ConcurrentHashMap<Integer, Map<String, NotificationRequest>>();
+
+  /**
+   * Create a new instance
+   * @param notifier The notifier that sends the coalesced notifications
+   * @param settingsService Service used to get the webhook settings
+   * @param ownership Decides which node sends the notifications of a
+   * repository
+   * @param handoff Hands notifications over to other nodes
+   * @param outbox The journal of pending notifications
+   * @param propertiesService Service used to read the window length
+   */
+  public NotificationCoalescer(Notifier notifier,
+      SettingsService settingsService, DeliveryOwnership ownership,
+      NotificationHandoff handoff, NotificationOutbox outbox,
+      ApplicationPropertiesService propertiesService) {
+    this(notifier, settingsService, ownership, handoff, outbox,
+        propertiesService.getPluginProperty(WINDOW_PROPERTY,
+            DEFAULT_WINDOW_MILLIS),
+        propertiesService.getPluginProperty(HANDOFF_POLL_PROPERTY,
+            DEFAULT_HANDOFF_POLL_MILLIS));
+  }
+
+  /**
+   * Create a new instance with an explicit window that sends every
+   * notification from the local node
+   * @param notifier The notifier that sends the coalesced notifications
+   * @param settingsService Service used to get the webhook settings
+   * @param windowMillis The coalescing window in milliseconds
+   */
+  public NotificationCoalescer(Notifier notifier,
+      SettingsService settingsService, long windowMillis) {
+    this(notifier, settingsService, null, null, null, windowMillis, 0);
+  }
+
+  /**
+   * Create a new instance with an explicit window and hand-over interval
+   * @param notifier The notifier that sends the coalesced notifications
+   * @param settingsService Service used to get the webhook settings
+   * @param ownership Decides which node sends the notifications of a
+   * repository, or null to send every notification locally
+   * @param handoff Hands notifications over to other nodes
+   * @param outbox The journal of pending notifications, or null if not
+   * journaled
+   * @param windowMillis The coalescing window in milliseconds
+   * @param pollMillis How often handed over notifications are checked for
+   */
+  public NotificationCoalescer(Notifier notifier,
+      SettingsService settingsService, DeliveryOwnership ownership,
+      NotificationHandoff handoff, NotificationOutbox outbox,
+      long windowMillis, long pollMillis) {
+    this.notifier = notifier;
+    this.settingsService = settingsService;
+    this.ownership = handoff == null ? null : ownership;
+    this.handoff = handoff;
+    this.outbox = outbox;
+    this.windowMillis = windowMillis;
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+        ThreadFactories.namedThreadFactory("JenkinsWebhookCoalescer",
+            ThreadFactories.Type.DAEMON));
+    this.scheduler.setRemoveOnCancelPolicy(true);
+    if (this.ownership != null && pollMillis > 0) {
+      scheduler.scheduleWithFixedDelay(this::receiveHandedOver, pollMillis,
+          pollMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Queue a notification. If a notification for the same repository, clone
+   * URL and branch is already waiting, it is replaced by this one.
+   * @param request The notification to send
+   */
+  public void submit(NotificationRequest request) {
+    submitAll(Collections.singletonList(request));
+  }
+
+  /**
+   * Queue the notifications of a single push. Each one replaces a waiting
+   * notification for the same repository, clone URL and branch.
+   * Notifications for repositories owned by another node are handed over.
+   * @param requests The notifications to send
+   */
+  public void submitAll(Collection<NotificationRequest> requests) {
+    coalesce(handOver(requests));
+  }
+
+  /**
+   * Check the inbox of this node, and those of nodes that left the cluster
+   * and whose successor this node is, for handed over notifications.
+   * Package-private for testing purposes
+   */
+  void receiveHandedOver() {
+    try {
+      // Sent from here even if ownership moved on since they were handed
+      // over. Coalescing journals them before the hand-over is deleted
+      String local = ownership.getLocalNodeId();
+      handoff.receive(local, local, this::coalesce);
+      for (String node : handoff.getInboxes()) {
+        if (!ownership.getNodeIds().contains(node)
+            && local.equals(ownership.getSuccessor(node)))
+          handoff.receive(node, local, this::coalesce);
+      }
+    } catch (RuntimeException e) {
+      LOGGER.error("Unable to receive handed over notifications", e);
+    }
+  }
+
+  private Collection<NotificationRequest> handOver(
+      Collection<NotificationRequest> requests) {
+    if (ownership == null || !ownership.isDistributed())
+      return requests;
+
+    String local = ownership.getLocalNodeId();
+    List<NotificationRequest> kept = new ArrayList<NotificationRequest>();
+    for (List<NotificationRequest> batch : byRepository(requests).values()) {
+      String owner = ownership.getOwner(batch.get(0).getRepository().getId());
+      if (local.equals(owner) || !handoff.send(owner, batch)) {
+        kept.addAll(batch);
+        continue;
+      }
+      LOGGER.debug("Handed {} notifications over to node {}", batch.size(),
+          owner);
+      acknowledge(batch);
+    }
+    return kept;
+  }
+
+  /**
+   * Journal the requests that aren't yet, so they survive a restart while
+   * they wait for their window to close
+   */
+  private List<NotificationRequest> journal(
+      Collection<NotificationRequest> requests) {
+    List<NotificationRequest> journaled =
+        new ArrayList<NotificationRequest>(requests.size());
+    for (NotificationRequest request : requests) {
+      if (outbox == null || request.isJournaled())
+        journaled.add(request);
+      else
+        journaled.add(request.withEntryId(outbox.append(request)));
+    }
+    return journaled;
+  }
+
+  private void acknowledge(Collection<NotificationRequest> requests) {
+    if (outbox == null)
+      return;
+    for (NotificationRequest request : requests) {
+      if (request.isJournaled())
+        outbox.acknowledge(request.getEntryId());
+    }
+  }
+
+  private void coalesce(Collection<NotificationRequest> received) {
+    List<NotificationRequest> requests = journal(received);
+    if (windowMillis <= 0) {
+      for (List<NotificationRequest> batch : byRepository(requests).values())
+        send(batch);
+      return;
+    }
+
+    for (List<NotificationRequest> batch : byRepository(requests).values()) {
+      final Repository repository = batch.get(0).getRepository();
+      final String cloneUrl = cloneUrlFor(repository);
+      final boolean[] opened = new boolean[1];
+      pending.compute(repository.getId(), (id, waiting) -> {
+        if (waiting == null) {
+          waiting = new LinkedHashMap<String, NotificationRequest>();
+          opened[0] = true;
+        }
+        for (NotificationRequest request : batch) {
+          String key = cloneUrl + "|" + request.getRef();
+          NotificationRequest replaced = waiting.put(key, request);
+          if (replaced == null)
+            continue;
+          LOGGER.debug("Coalesced notification for {}|{}", id, key);
+          if (replaced.getEntryId() != request.getEntryId())
+            acknowledge(Collections.singletonList(replaced));
+        }
+        return waiting;
+      });
+
+      if (opened[0]) {
+        scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            flush(repository);
+          }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of notifications waiting for their window to close.
+   * The count is approximate while notifications are being submitted.
+   * @return The number of pending notifications
+   */
+  public int getPendingCount() {
+    int count = 0;
+    for (Map<String, NotificationRequest> waiting : pending.values())
+      count += waiting.size();
+    return count;
+  }
+
+  @Override
+  public void destroy() {
+    scheduler.shutdownNow();
+  }
+
+  private void flush(Repository repository) {
+    Map<String, NotificationRequest> waiting = pending.remove(repository.getId());
+    // Once removed, no submit can reach the map, so it is safe to read
+    if (waiting != null)
+      send(new ArrayList<NotificationRequest>(waiting.values()));
+  }
+
+  private void send(List<NotificationRequest> batch) {
+    notifier.notifyBackground(batch.get(0).getRepository(), batch);
+  }
+
+  private static Map<Integer, List<NotificationRequest>> byRepository(
+      Collection<NotificationRequest> requests) {
+    Map<Integer, List<NotificationRequest>> batches =
+        new LinkedHashMap<Integer, List<NotificationRequest>>();
+    for (NotificationRequest request : requests) {
+      batches.computeIfAbsent(request.getRepository().getId(),
+          id -> new ArrayList<NotificationRequest>()).add(request);
+    }
+    return batches;
+  }
+
+  private String cloneUrlFor(Repository repository) {
+    WebhookSettings settings = settingsService.getWebhookSettings(repository);
+    return settings == null ? null : settings.getCloneTarget();
+  }
+}
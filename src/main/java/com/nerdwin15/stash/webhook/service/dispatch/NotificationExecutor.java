@@ -0,0 +1,496 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * A bounded executor used to send notifications in the background.
+ *
+ * The number of worker threads and the queue capacity are fixed, so a mass
+ * push can't spawn an unbounded number of threads while Jenkins is slow.
+ * What happens once the queue is full is decided by the configured
+ * {@link RejectionPolicy}.
+ *
+ * A notification dropped or replaced before it was sent runs its drop
+ * callback, so its journal entry and retry state can be released.
+ *
+ * Notifications are only ever sent by the executor's own workers. Submitters
+ * such as the coalescer or the retry scheduler run on single threads of
+ * their own, which mustn't be held up by a slow Jenkins.
+ *
+ * Queued notifications are handed to the workers fairly between
+ * repositories, and pushes to a default branch ahead of the others, so a
+ * repository flooding the queue with tags or feature branches doesn't hold
+ * up everyone else. See {@link FairQueue}.
+ *
+ * Configured through the following properties in bitbucket.properties:
+ * <ul>
+ *   <li>{@value #THREADS_PROPERTY} (default {@value #DEFAULT_THREADS})</li>
+ *   <li>{@value #QUEUE_PROPERTY} (default {@value #DEFAULT_QUEUE})</li>
+ *   <li>{@value #REJECTION_PROPERTY} (default COALESCE)</li>
+ *   <li>{@value #PRIORITY_WEIGHT_PROPERTY} (default
+ *   {@value #DEFAULT_PRIORITY_WEIGHT})</li>
+ * </ul>
+ */
+public class NotificationExecutor implements DisposableBean {
+
+  /**
+   * Property holding the maximum number of worker threads
+   */
+  public static final String THREADS_PROPERTY =
+      "plugin.webhook.jenkins.executor.threads";
+
+  /**
+   * Property holding the capacity of the work queue
+   */
+  public static final String QUEUE_PROPERTY =
+      "plugin.webhook.jenkins.executor.queue";
+
+  /**
+   * Property holding the {@link RejectionPolicy} name
+   */
+  public static final String REJECTION_PROPERTY =
+      "plugin.webhook.jenkins.executor.rejection";
+
+  /**
+   * Property holding the number of high priority notifications handed out
+   * for every normal one while both are queued
+   */
+  public static final String PRIORITY_WEIGHT_PROPERTY =
+      "plugin.webhook.jenkins.executor.priority.weight";
+
+  static final int DEFAULT_THREADS = 4;
+  static final int DEFAULT_QUEUE = 1000;
+  static final int DEFAULT_PRIORITY_WEIGHT = 4;
+  private static final long KEEP_ALIVE_SECONDS = 60;
+  private static final long WAIT_WARNING_SECONDS = 10;
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationExecutor.class);
+
+  /**
+   * What to do with a notification when the queue is full.
+   */
+  public enum RejectionPolicy {
+    /**
+     * Make the submitting thread wait for room in the queue, slowing the
+     * producer down to the rate Jenkins can take. Configured as BLOCK or,
+     * as before, CALLER_RUNS.
+     */
+    BLOCK,
+    /**
+     * Drop the oldest queued notification of the repository with the most
+     * queued, preferring normal priority ones, to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * Fold the notification into a queued one with the same key, so only
+     * the newest is sent. Falls back to {@link #BLOCK} if there is nothing
+     * to fold into.
+     */
+    COALESCE
+  }
+
+  /**
+   * How urgently a queued notification should be sent.
+   */
+  public enum Priority {
+    /**
+     * Pushes to the default branch, which most builds watch.
+     */
+    HIGH,
+    /**
+     * Everything else, such as tags and feature branches.
+     */
+    NORMAL
+  }
+
+  private final FairQueue queue;
+  private final ThreadPoolExecutor executor;
+  private final RejectionPolicy rejectionPolicy;
+  private final ConcurrentMap<String, NotificationTask> pending =
+      new ConcurrentHashMap<String, NotificationTask>();
+
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the executor configuration
+   */
+  public NotificationExecutor(ApplicationPropertiesService propertiesService) {
+    this(propertiesService.getPluginProperty(THREADS_PROPERTY, DEFAULT_THREADS),
+        propertiesService.getPluginProperty(QUEUE_PROPERTY, DEFAULT_QUEUE),
+        parsePolicy(propertiesService.getPluginProperty(REJECTION_PROPERTY)),
+        propertiesService.getPluginProperty(PRIORITY_WEIGHT_PROPERTY,
+            DEFAULT_PRIORITY_WEIGHT));
+  }
+
+  /**
+   * Create a new instance with explicit limits
+   * @param threads The maximum number of worker threads
+   * @param queueCapacity The maximum number of queued notifications
+   * @param rejectionPolicy What to do when the queue is full
+   */
+  public NotificationExecutor(int threads, int queueCapacity,
+      RejectionPolicy rejectionPolicy) {
+    this(threads, queueCapacity, rejectionPolicy, DEFAULT_PRIORITY_WEIGHT);
+  }
+
+  /**
+   * Create a new instance with explicit limits and priority weight
+   * @param threads The maximum number of worker threads
+   * @param queueCapacity The maximum number of queued notifications
+   * @param rejectionPolicy What to do when the queue is full
+   * @param priorityWeight The number of high priority notifications handed
+   * out for every normal one while both are queued
+   */
+  public NotificationExecutor(int threads, int queueCapacity,
+      RejectionPolicy rejectionPolicy, int priorityWeight) {
+    this.rejectionPolicy = rejectionPolicy;
+    this.queue = new FairQueue(queueCapacity, priorityWeight);
+    this.executor = new ThreadPoolExecutor(Math.max(1, threads),
+        Math.max(1, threads), KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+        ThreadFactories.namedThreadFactory("JenkinsWebhook",
+            ThreadFactories.Type.DAEMON),
+        new PolicyHandler());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queue a notification with normal priority, in a lane of its own key.
+   * @param key Identifies notifications that supersede each other, for
+   * example the repository and branch. Used by {@link RejectionPolicy#COALESCE}.
+   * @param work The notification to send
+   * @return A future of the notification result. If the notification was
+   * coalesced, this is the future of the notification it was folded into.
+   */
+  public Future<NotificationResult> submit(String key,
+      Callable<NotificationResult> work) {
+    return submit(key, Priority.NORMAL, key, work);
+  }
+
+  /**
+   * Queue a notification.
+   * @param lane Identifies notifications that share a turn, for example
+   * the repository
+   * @param priority How urgently the notification should be sent
+   * @param key Identifies notifications that supersede each other, for
+   * example the repository and branch. Used by {@link RejectionPolicy#COALESCE}.
+   * @param work The notification to send
+   * @return A future of the notification result. If the notification was
+   * coalesced, this is the future of the notification it was folded into.
+   */
+  public Future<NotificationResult> submit(String lane, Priority priority,
+      String key, Callable<NotificationResult> work) {
+    return submit(lane, priority, key, work, null);
+  }
+
+  /**
+   * Queue a notification.
+   * @param lane Identifies notifications that share a turn, for example
+   * the repository
+   * @param priority How urgently the notification should be sent
+   * @param key Identifies notifications that supersede each other, for
+   * example the repository and branch. Used by {@link RejectionPolicy#COALESCE}.
+   * @param work The notification to send
+   * @param dropped Called instead of the work if the notification is
+   * dropped to make room or replaced by a newer one, may be null. Not called
+   * when the executor shuts down.
+   * @return A future of the notification result. If the notification was
+   * coalesced, this is the future of the notification it was folded into.
+   */
+  public Future<NotificationResult> submit(String lane, Priority priority,
+      String key, Callable<NotificationResult> work, Runnable dropped) {
+    Work next = new Work(work, dropped);
+    if (rejectionPolicy == RejectionPolicy.COALESCE
+        && executor.getQueue().remainingCapacity() == 0) {
+      NotificationTask queued = pending.get(key);
+      if (queued != null) {
+        Work replaced = queued.supersede(next);
+        if (replaced != null) {
+          coalescedCount.incrementAndGet();
+          LOGGER.debug("Queue full, coalesced notification for {}", key);
+          replaced.dropped();
+          return queued;
+        }
+      }
+    }
+
+    NotificationTask task = new NotificationTask(lane, priority, key, next);
+    pending.put(key, task);
+    executor.execute(task);
+    return task;
+  }
+
+  /**
+   * Gets the number of notifications waiting for a worker.
+   * @return The current queue depth
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Gets the number of lanes, such as repositories, with queued
+   * notifications.
+   * @return The number of busy lanes
+   */
+  public int getQueuedLanes() {
+    return queue.getLaneCount();
+  }
+
+  /**
+   * Gets the number of workers currently sending a notification.
+   * @return The number of active workers
+   */
+  public int getActiveWorkers() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Gets the number of worker threads currently alive.
+   * @return The current pool size
+   */
+  public int getPoolSize() {
+    return executor.getPoolSize();
+  }
+
+  /**
+   * Gets the number of notifications that have been sent.
+   * @return The completed task count
+   */
+  public long getCompletedCount() {
+    return executor.getCompletedTaskCount();
+  }
+
+  /**
+   * Gets the number of times the queue was full on submit.
+   * @return The rejection count
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Gets the number of queued notifications dropped to make room.
+   * @return The dropped count
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Gets the number of notifications folded into a queued one.
+   * @return The coalesced count
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * Gets the active rejection policy.
+   * @return The rejection policy
+   */
+  public RejectionPolicy getRejectionPolicy() {
+    return rejectionPolicy;
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  private static RejectionPolicy parsePolicy(String value) {
+    if (value == null)
+      return RejectionPolicy.COALESCE;
+    String name = value.trim().toUpperCase(Locale.ROOT);
+    // Notifications were once sent on the calling thread instead
+    if (name.equals("CALLER_RUNS"))
+      return RejectionPolicy.BLOCK;
+    try {
+      return RejectionPolicy.valueOf(name);
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn("Unknown {} '{}', using COALESCE", REJECTION_PROPERTY, value);
+      return RejectionPolicy.COALESCE;
+    }
+  }
+
+  /**
+   * Applies the configured policy once the queue is full.
+   */
+  private class PolicyHandler implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+      rejectedCount.incrementAndGet();
+      if (e.isShutdown()) {
+        cancel(r);
+        return;
+      }
+
+      if (rejectionPolicy == RejectionPolicy.DROP_OLDEST) {
+        Runnable oldest = queue.dropFromBusiest();
+        if (oldest instanceof NotificationTask) {
+          NotificationTask dropped = (NotificationTask) oldest;
+          Work work = dropped.drop();
+          droppedCount.incrementAndGet();
+          LOGGER.warn("Notification queue full, dropped notification for {}",
+              dropped.key);
+          if (work != null)
+            work.dropped();
+        }
+        e.execute(r);
+        return;
+      }
+
+      LOGGER.debug("Notification queue full, waiting for room");
+      waitForRoom(r, e);
+    }
+
+    /**
+     * Queue the notification once a worker made room. A notification that
+     * can't be queued as the executor shuts down is cancelled without
+     * running its drop callback, so it is replayed from the journal.
+     */
+    private void waitForRoom(Runnable r, ThreadPoolExecutor e) {
+      try {
+        while (!queue.offer(r, WAIT_WARNING_SECONDS, TimeUnit.SECONDS)) {
+          if (e.isShutdown()) {
+            cancel(r);
+            return;
+          }
+          LOGGER.warn("Notification queue still full after {} seconds, "
+              + "waiting for room", WAIT_WARNING_SECONDS);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        cancel(r);
+        return;
+      }
+      if (e.isShutdown() && queue.remove(r))
+        cancel(r);
+      else
+        e.prestartCoreThread();
+    }
+
+    private void cancel(Runnable r) {
+      if (r instanceof NotificationTask)
+        ((NotificationTask) r).cancel(false);
+    }
+  }
+
+  /**
+   * A queued notification whose work can be replaced by a newer one until it
+   * starts running.
+   */
+  private final class NotificationTask extends FutureTask<NotificationResult>
+      implements FairQueue.Entry {
+    private final String lane;
+    private final Priority priority;
+    private final String key;
+    private final AtomicReference<Work> work;
+
+    NotificationTask(String lane, Priority priority, String key, Work work) {
+      this(lane, priority, key, new AtomicReference<Work>(work));
+    }
+
+    private NotificationTask(String lane, Priority priority, String key,
+        AtomicReference<Work> work) {
+      super(() -> {
+        Work current = work.getAndSet(null);
+        return current == null ? null : current.call.call();
+      });
+      this.lane = lane;
+      this.priority = priority;
+      this.key = key;
+      this.work = work;
+    }
+
+    @Override
+    public String getLane() {
+      return lane;
+    }
+
+    @Override
+    public Priority getPriority() {
+      return priority;
+    }
+
+    /**
+     * Replace the work of this task, unless it has already started.
+     * @return The replaced work, or null if the task already started
+     */
+    Work supersede(Work newer) {
+      Work current = work.get();
+      while (current != null) {
+        if (work.compareAndSet(current, newer))
+          return current;
+        current = work.get();
+      }
+      return null;
+    }
+
+    /**
+     * Cancel this task without running its work.
+     * @return The work that won't run, or null if the task already started
+     */
+    Work drop() {
+      Work current = work.getAndSet(null);
+      cancel(false);
+      return current;
+    }
+
+    @Override
+    public void run() {
+      pending.remove(key, this);
+      super.run();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      pending.remove(key, this);
+      return super.cancel(mayInterruptIfRunning);
+    }
+  }
+
+  /**
+   * The work of a task and what to do if it never runs.
+   */
+  private static final class Work {
+    private final Callable<NotificationResult> call;
+    private final Runnable dropped;
+
+    Work(Callable<NotificationResult> call, Runnable dropped) {
+      this.call = call;
+      this.dropped = dropped;
+    }
+
+    void dropped() {
+      if (dropped == null)
+        return;
+      try {
+        dropped.run();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Unable to release dropped notification", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.util.concurrent.ThreadFactories;
+
+/**
+ * Schedules another attempt of notifications that failed for a reason that
+ * may go away, such as Jenkins restarting.
+ *
+ * The delay before attempt {@code n + 1} doubles with every attempt,
+ * starting at {@value #INITIAL_DELAY_PROPERTY} and capped at
+ * {@value #MAX_DELAY_PROPERTY} milliseconds. A random jitter of up to half
+ * the delay is taken off, so notifications that failed together don't all
+ * come back at once. A notification is given up after
+ * {@value #ATTEMPTS_PROPERTY} attempts in total.
+ *
+ * Each fresh notification starts with {@link #begin(String)}, which drops
+ * the retry waiting for the same key and makes the token of any attempt
+ * still in flight stale. Only the newest notification per key can schedule
+ * a retry, so retries never pile up behind fresh work.
+ */
+public class RetryScheduler implements DisposableBean {
+
+  /**
+   * Property holding the maximum number of attempts per notification
+   */
+  public static final String ATTEMPTS_PROPERTY =
+      "plugin.webhook.jenkins.retry.attempts";
+
+  /**
+   * Property holding the delay before the first retry in milliseconds
+   */
+  public static final String INITIAL_DELAY_PROPERTY =
+      "plugin.webhook.jenkins.retry.delay";
+
+  /**
+   * Property holding the longest delay between retries in milliseconds
+   */
+  public static final String MAX_DELAY_PROPERTY =
+      "plugin.webhook.jenkins.retry.max.delay";
+
+  static final int DEFAULT_ATTEMPTS = 5;
+  static final long DEFAULT_INITIAL_DELAY_MILLIS = 2000;
+  static final long DEFAULT_MAX_DELAY_MILLIS = 60000;
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(RetryScheduler.class);
+
+  private final int maxAttempts;
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final ConcurrentMap<String, Retry> pending =
+      new ConcurrentHashMap<String, Retry>();
+  private final ConcurrentMap<String, Object> owners =
+      new ConcurrentHashMap<String, Object>();
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the retry settings
+   */
+  public RetryScheduler(ApplicationPropertiesService propertiesService) {
+    this(propertiesService.getPluginProperty(ATTEMPTS_PROPERTY,
+            DEFAULT_ATTEMPTS),
+        propertiesService.getPluginProperty(INITIAL_DELAY_PROPERTY,
+            DEFAULT_INITIAL_DELAY_MILLIS),
+        propertiesService.getPluginProperty(MAX_DELAY_PROPERTY,
+            DEFAULT_MAX_DELAY_MILLIS));
+  }
+
+  /**
+   * Create a new instance with explicit retry settings
+   * @param maxAttempts The maximum number of attempts per notification,
+   * including the first one. 1 or less disables retries.
+   * @param initialDelayMillis The delay before the first retry
+   * @param maxDelayMillis The longest delay between retries
+   */
+  public RetryScheduler(int maxAttempts, long initialDelayMillis,
+      long maxDelayMillis) {
+    this.maxAttempts = maxAttempts;
+    this.initialDelayMillis = Math.max(1, initialDelayMillis);
+    this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+        ThreadFactories.namedThreadFactory("JenkinsWebhookRetry",
+            ThreadFactories.Type.DAEMON));
+    this.scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Register a fresh notification, superseding older ones for the same key
+   * @param key Identifies the repository and branch of the notification
+   * @return The token to pass to {@link #schedule} and {@link #complete}
+   */
+  public Object begin(String key) {
+    Object token = new Object();
+    owners.put(key, token);
+    Retry waiting = pending.remove(key);
+    if (waiting != null)
+      waiting.cancel();
+    return token;
+  }
+
+  /**
+   * Schedule another attempt of a failed notification
+   * @param key Identifies the repository and branch of the notification
+   * @param token The token returned by {@link #begin(String)}
+   * @param attempt The number of the attempt that just failed, starting at 1
+   * @param retry Sends the notification again
+   * @return True if the retry was scheduled, false if the notification was
+   * superseded or its attempt budget is spent
+   */
+  public boolean schedule(String key, Object token, int attempt,
+      Runnable retry) {
+    if (owners.get(key) != token || scheduler.isShutdown())
+      return false;
+    if (attempt >= maxAttempts) {
+      if (maxAttempts > 1)
+        LOGGER.warn("Giving up notifying {} after {} attempts", key, attempt);
+      owners.remove(key, token);
+      return false;
+    }
+
+    long delay = delayMillis(attempt);
+    LOGGER.debug("Retrying notification {} in {} ms", key, delay);
+    Retry scheduled = new Retry(key, retry);
+    Retry replaced = pending.put(key, scheduled);
+    if (replaced != null)
+      replaced.cancel();
+    scheduled.future = scheduler.schedule(scheduled, delay,
+        TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  /**
+   * Forget a notification that needs no further attempts
+   * @param key Identifies the repository and branch of the notification
+   * @param token The token returned by {@link #begin(String)}
+   */
+  public void complete(String key, Object token) {
+    owners.remove(key, token);
+  }
+
+  /**
+   * Gets the number of retries waiting to run
+   * @return The number of waiting retries
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Computes the delay before the next attempt
+   * @param attempt The number of the attempt that just failed, starting at 1
+   * @return The delay in milliseconds
+   */
+  long delayMillis(int attempt) {
+    int shift = Math.min(attempt - 1, 62);
+    long capped = initialDelayMillis > (maxDelayMillis >> shift)
+        ? maxDelayMillis : initialDelayMillis << shift;
+    return capped - ThreadLocalRandom.current().nextLong(capped / 2 + 1);
+  }
+
+  @Override
+  public void destroy() {
+    scheduler.shutdownNow();
+    pending.clear();
+    owners.clear();
+  }
+
+  /**
+   * A waiting retry. It only runs if it is still the one waiting for its
+   * key, which also covers being cancelled before it was scheduled.
+   */
+  private final class Retry implements Runnable {
+    private final String key;
+    private final Runnable work;
+    private volatile ScheduledFuture<?> future;
+
+    Retry(String key, Runnable work) {
+      this.key = key;
+      this.work = work;
+    }
+
+    @Override
+    public void run() {
+      if (pending.remove(key, this))
+        work.run();
+    }
+
+    void cancel() {
+      ScheduledFuture<?> scheduled = future;
+      if (scheduled != null)
+        scheduled.cancel(false);
+    }
+  }
+}
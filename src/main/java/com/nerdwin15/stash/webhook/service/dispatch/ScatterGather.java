@@ -0,0 +1,154 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.nerdwin15.stash.webhook.CompositeNotificationResult;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Gathers the results of a notification sent to several Jenkins instances
+ * at once into a single {@link CompositeNotificationResult}, so the
+ * notification takes as long as its slowest instance rather than all of
+ * them in a row.
+ *
+ * Each instance has {@value #TIMEOUT_PROPERTY} milliseconds (default
+ * {@value #DEFAULT_TIMEOUT_MILLIS}) to answer, counted from the moment the
+ * calls went out. An instance that doesn't answer in time has its call
+ * cancelled and a {@link NotificationResult.Status#TIMEOUT} result, without
+ * holding up the results of the others. 0 or less waits for the HTTP
+ * timeouts of each call only.
+ */
+public class ScatterGather implements DisposableBean {
+
+  /**
+   * Property holding the time each Jenkins instance has to answer, in
+   * milliseconds
+   */
+  public static final String TIMEOUT_PROPERTY =
+      "plugin.webhook.jenkins.fanout.timeout";
+
+  static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ScatterGather.class);
+
+  private final long timeoutMillis;
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the timeout
+   */
+  public ScatterGather(ApplicationPropertiesService propertiesService) {
+    this(propertiesService.getPluginProperty(TIMEOUT_PROPERTY,
+        DEFAULT_TIMEOUT_MILLIS));
+  }
+
+  /**
+   * Create a new instance with an explicit timeout
+   * @param timeoutMillis The time each Jenkins instance has to answer. 0 or
+   * less doesn't limit it.
+   */
+  public ScatterGather(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+        ThreadFactories.namedThreadFactory("JenkinsWebhookFanOut",
+            ThreadFactories.Type.DAEMON));
+    this.scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Gather the results of calls already sent to several Jenkins instances
+   * @param calls The call of each instance, by base URL, in the order the
+   * instances are configured
+   * @return A future completing with the result of every instance once
+   * each answered or timed out. It never completes exceptionally.
+   */
+  public CompletableFuture<NotificationResult> gather(
+      Map<String, CompletableFuture<NotificationResult>> calls) {
+    final Map<String, CompletableFuture<NotificationResult>> bounded =
+        new LinkedHashMap<String, CompletableFuture<NotificationResult>>();
+    for (Map.Entry<String, CompletableFuture<NotificationResult>> call
+        : calls.entrySet()) {
+      bounded.put(call.getKey(), withDeadline(call.getKey(), call.getValue()));
+    }
+    return CompletableFuture.allOf(bounded.values().toArray(
+        new CompletableFuture<?>[bounded.size()])).thenApply(done -> {
+          Map<String, NotificationResult> results =
+              new LinkedHashMap<String, NotificationResult>();
+          for (Map.Entry<String, CompletableFuture<NotificationResult>> result
+              : bounded.entrySet()) {
+            results.put(result.getKey(), result.getValue().join());
+          }
+          return new CompositeNotificationResult(results);
+        });
+  }
+
+  /**
+   * Gets the time each Jenkins instance has to answer
+   * @return The timeout in milliseconds. 0 or less if not limited.
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  @Override
+  public void destroy() {
+    scheduler.shutdownNow();
+  }
+
+  private CompletableFuture<NotificationResult> withDeadline(
+      final String jenkinsBase,
+      final CompletableFuture<NotificationResult> call) {
+    final CompletableFuture<NotificationResult> bounded =
+        new CompletableFuture<NotificationResult>();
+    final AtomicBoolean expired = new AtomicBoolean();
+    ScheduledFuture<?> deadline = null;
+    if (timeoutMillis > 0) {
+      try {
+        // Cancelling completes the call, and with it the bounded future, so
+        // the call is known to be cancelled once the result is gathered
+        deadline = scheduler.schedule(() -> {
+          expired.set(true);
+          if (call.cancel(false))
+            LOGGER.warn("Jenkins at '{}' didn't answer within {} ms",
+                jenkinsBase, timeoutMillis);
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // Shutting down, the HTTP timeouts still apply
+      }
+    }
+    final ScheduledFuture<?> timer = deadline;
+    call.whenComplete((result, e) -> {
+      if (timer != null)
+        timer.cancel(false);
+      if (result != null)
+        bounded.complete(result);
+      else if (expired.get() && call.isCancelled())
+        bounded.complete(timedOut());
+      else
+        bounded.complete(new NotificationResult(
+            NotificationResult.Status.ERROR, null, e == null
+                ? "No result" : String.valueOf(e.getMessage())));
+    });
+    return bounded;
+  }
+
+  private NotificationResult timedOut() {
+    return new NotificationResult(NotificationResult.Status.TIMEOUT, null,
+        "Timed out: no answer within " + timeoutMillis + " ms");
+  }
+}
@@ -0,0 +1,4 @@
+/**
+ * Scheduling and delivery of Jenkins notifications
+ */
+package com.nerdwin15.stash.webhook.service.dispatch;
@@ -1,12 +1,12 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
-import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import java.util.Collections;
+
 import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.RefChangeType;
-import com.atlassian.bitbucket.setting.Settings;
-import com.nerdwin15.stash.webhook.Notifier;
 import com.nerdwin15.stash.webhook.service.BranchEvaluator;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
 
 /**
  * Defines an eligibility filter that provides the ability to create a 
@@ -33,56 +33,46 @@ public class BranchEligibilityFilter
   }
 
 
+  /**
+   * Matches the pushed branches against the configured patterns.
+   */
+  @Override
+  public int getEstimatedCost() {
+    return 10;
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public boolean shouldDeliverNotification(EventContext context) {
-    if (!RepositoryRefsChangedEvent.class.isAssignableFrom(context.getEventSource()
-        .getClass()))
+    RefChange refCh = context.getRefChange();
+    if (refCh == null)
       return true;
 
-    RepositoryRefsChangedEvent event = (RepositoryRefsChangedEvent) context.getEventSource();
-
     // Don't trigger Jenkins Webhook on deleted branches
-    RefChange refCh = event.getRefChanges().iterator().next();
     if (refCh.getType().compareTo(RefChangeType.DELETE) == 0)
       return false;
 
-    final Settings settings = settingsService.getSettings(
+    final WebhookSettings settings = settingsService.getWebhookSettings(
         context.getRepository());
-    String branchOption = settings.getString(Notifier.BRANCH_OPTIONS);
+    if (settings == null)
+      return true;
+
+    String branchOption = settings.getBranchOptions();
     if (branchOption == null ||
         (!branchOption.equals("blacklist") && !branchOption.equals("whitelist")))
       return true;
 
-    String[] branchesSettings =
-        settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES).split(" ");
     Iterable<String> branches =
-        branchEvaluator.getBranches(event.getRefChanges());
+        branchEvaluator.getBranches(Collections.singletonList(refCh));
 
-    boolean haveMatch = hasMatch(branchesSettings, branches);
+    boolean haveMatch = settings.getBranchMatcher().matchesAny(branches);
     if (haveMatch && branchOption.equals("blacklist"))
       return false;
     else if (!haveMatch && branchOption.equals("whitelist"))
       return false;
     return true;
   }
-  
-  protected boolean hasMatch(String[] settings, 
-      Iterable<String> affectedBranches) {
-    for (String branch : affectedBranches) {
-      branch = branch.toLowerCase();
-      for (String s : settings) {
-        s = s.toLowerCase();
-        if (s.endsWith("*") && branch.startsWith(s.substring(0, s.length() - 1)))
-          return true;
-        if (s.equals(branch))
-          return true;
-      }
-    }
-    
-    return false;
-  }
 
 }
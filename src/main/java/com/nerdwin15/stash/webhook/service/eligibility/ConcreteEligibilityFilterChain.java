@@ -1,31 +1,215 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.nerdwin15.stash.webhook.service.metrics.FilterStats;
+import com.nerdwin15.stash.webhook.service.metrics.NotificationMetrics;
 
 /**
  * A concrete implementation of the EligiblityFilterChain.
- * 
+ *
+ * Filters are asked cheapest first, by their
+ * {@link EligibilityFilter#getEstimatedCost() estimated cost}, so an
+ * expensive filter only runs for events no cheaper filter stopped. Filters
+ * of equal cost keep the order they were given in.
+ *
+ * If {@value #ADAPTIVE_PROPERTY} is true, the chain also times each filter
+ * and counts how often it rejects. Every {@value #REORDER_INTERVAL} events
+ * it orders the filters by their expected time per rejected event, so a
+ * cheap filter that stops most events runs before an equally cheap filter
+ * that never does. The estimated costs serve as the starting point until
+ * enough decisions were observed.
+ *
  * @author Michael Irwin (mikesir87)
  */
 public class ConcreteEligibilityFilterChain implements EligibilityFilterChain {
-  
-  private List<EligibilityFilter> filters;
-  
+
+  /**
+   * Property that turns ordering by observed timings and reject rates on
+   */
+  public static final String ADAPTIVE_PROPERTY =
+      "plugin.webhook.jenkins.filters.adaptive";
+
+  static final int REORDER_INTERVAL = 1000;
+
+  /**
+   * Number of decisions the estimated cost of a filter weighs as much as
+   */
+  private static final int PRIOR_DECISIONS = 100;
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConcreteEligibilityFilterChain.class);
+
+  private final Stage[] stages;
+  private final boolean timed;
+  private final boolean adaptive;
+  private final AtomicLong evaluations = new AtomicLong();
+  private volatile Stage[] order;
+
   /**
    * Construct a new instance with the provided filters
    * @param filters The EligibilityFilters to be used.
    */
   public ConcreteEligibilityFilterChain(List<EligibilityFilter> filters) {
-    this.filters = filters;
+    this(filters, null, false);
+  }
+
+  /**
+   * Construct a new instance with the provided filters, counting the
+   * decisions of each filter
+   * @param filters The EligibilityFilters to be used.
+   * @param metrics The metrics the decisions are counted in
+   */
+  public ConcreteEligibilityFilterChain(List<EligibilityFilter> filters,
+      NotificationMetrics metrics) {
+    this(filters, metrics, false);
+  }
+
+  /**
+   * Construct a new instance with the provided filters, counting the
+   * decisions of each filter
+   * @param filters The EligibilityFilters to be used.
+   * @param metrics The metrics the decisions are counted in
+   * @param propertiesService Service used to read whether to adapt the order
+   */
+  public ConcreteEligibilityFilterChain(List<EligibilityFilter> filters,
+      NotificationMetrics metrics,
+      ApplicationPropertiesService propertiesService) {
+    this(filters, metrics,
+        propertiesService.getPluginProperty(ADAPTIVE_PROPERTY, false));
+  }
+
+  /**
+   * Construct a new instance with the provided filters
+   * @param filters The EligibilityFilters to be used.
+   * @param metrics The metrics the decisions are counted in, or null
+   * @param adaptive True to order the filters by observed timings and reject
+   * rates, false to only use their estimated costs
+   */
+  public ConcreteEligibilityFilterChain(List<EligibilityFilter> filters,
+      NotificationMetrics metrics, boolean adaptive) {
+    this.stages = new Stage[filters.size()];
+    for (int i = 0; i < stages.length; i++) {
+      EligibilityFilter filter = filters.get(i);
+      stages[i] = new Stage(filter,
+          metrics == null ? null : metrics.forFilter(filter), adaptive);
+    }
+    this.timed = metrics != null || adaptive;
+    this.adaptive = adaptive;
+    install(sorted(Comparator.comparingLong(stage -> stage.estimatedCost)));
   }
-  
+
   @Override
   public boolean shouldDeliverNotification(EventContext event) {
-    for (EligibilityFilter filter : filters) {
-      if (!filter.shouldDeliverNotification(event))
+    if (adaptive && evaluations.incrementAndGet() % REORDER_INTERVAL == 0)
+      reorder();
+    for (Stage stage : order) {
+      if (!stage.shouldDeliverNotification(event, timed))
         return false;
     }
     return true;
   }
 
+  /**
+   * Gets the filters in the order they are currently asked
+   * @return The filters
+   */
+  public EligibilityFilter[] getFilters() {
+    Stage[] current = order;
+    EligibilityFilter[] filters = new EligibilityFilter[current.length];
+    for (int i = 0; i < current.length; i++)
+      filters[i] = current[i].filter;
+    return filters;
+  }
+
+  /**
+   * Order the filters by their expected time per rejected event, based on
+   * the decisions observed so far. Package-private for testing purposes
+   */
+  void reorder() {
+    Stage[] reordered = sorted(Comparator.comparingDouble(Stage::rank));
+    if (!Arrays.equals(reordered, order)) {
+      install(reordered);
+      LOGGER.debug("Reordered eligibility filters to {}",
+          Arrays.toString(reordered));
+    }
+  }
+
+  private Stage[] sorted(Comparator<Stage> comparator) {
+    Stage[] sorted = stages.clone();
+    Arrays.sort(sorted, comparator);
+    return sorted;
+  }
+
+  private void install(Stage[] stages) {
+    for (int i = 0; i < stages.length; i++) {
+      if (stages[i].stats != null)
+        stages[i].stats.setPosition(i);
+    }
+    order = stages;
+  }
+
+  /**
+   * A filter of the chain with what was observed of its decisions
+   */
+  private static final class Stage {
+    private final EligibilityFilter filter;
+    private final FilterStats stats;
+    private final long estimatedCost;
+    private final LongAdder evaluated;
+    private final LongAdder rejected;
+    private final LongAdder nanos;
+
+    Stage(EligibilityFilter filter, FilterStats stats, boolean adaptive) {
+      this.filter = filter;
+      this.stats = stats;
+      this.estimatedCost = Math.max(0, filter.getEstimatedCost());
+      this.evaluated = adaptive ? new LongAdder() : null;
+      this.rejected = adaptive ? new LongAdder() : null;
+      this.nanos = adaptive ? new LongAdder() : null;
+    }
+
+    boolean shouldDeliverNotification(EventContext event, boolean timed) {
+      if (!timed)
+        return filter.shouldDeliverNotification(event);
+      long start = System.nanoTime();
+      boolean delivered = filter.shouldDeliverNotification(event);
+      long elapsed = System.nanoTime() - start;
+      if (stats != null)
+        stats.record(delivered, elapsed);
+      if (evaluated != null) {
+        evaluated.increment();
+        nanos.add(elapsed);
+        if (!delivered)
+          rejected.increment();
+      }
+      return delivered;
+    }
+
+    /**
+     * The expected time spent in the filter per event it rejects. The
+     * estimated cost counts as {@link #PRIOR_DECISIONS} decisions and the
+     * reject rate starts at one half, so neither jumps on the first few
+     * decisions.
+     */
+    double rank() {
+      double count = evaluated.sum();
+      double priorNanos = estimatedCost * 1000.0 * PRIOR_DECISIONS;
+      double meanNanos = (nanos.sum() + priorNanos) / (count + PRIOR_DECISIONS);
+      double rejectRate = (rejected.sum() + 1) / (count + 2);
+      return meanNanos / rejectRate;
+    }
+
+    @Override
+    public String toString() {
+      return filter.getClass().getSimpleName();
+    }
+  }
 }
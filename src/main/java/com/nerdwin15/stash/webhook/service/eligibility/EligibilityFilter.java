@@ -12,6 +12,11 @@ package com.nerdwin15.stash.webhook.service.eligibility;
  */
 public interface EligibilityFilter {
 
+  /**
+   * The cost assumed for filters that don't estimate their own
+   */
+  int DEFAULT_COST = 100;
+
   /**
    * Determines whether a notification should be delivered based on the provided
    * event.
@@ -21,4 +26,14 @@ public interface EligibilityFilter {
    */
   boolean shouldDeliverNotification(EventContext event);
 
+  /**
+   * Gets a rough estimate of how long a decision of this filter takes, in
+   * microseconds. The chain asks cheaper filters first, so an expensive
+   * filter only runs for events no cheaper filter stopped.
+   * @return The estimated cost, {@value #DEFAULT_COST} unless overridden
+   */
+  default int getEstimatedCost() {
+    return DEFAULT_COST;
+  }
+
 }
@@ -1,39 +1,75 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestRef;
+import com.atlassian.bitbucket.pull.PullRequestState;
+import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.SimpleMinimalRef;
+import com.atlassian.bitbucket.repository.SimpleRefChange;
 
 /**
  * A context object that will be used throughout the eligibility filter chain.
- * The purpose is to encapsulate the original event and provide a single
- * context object.
+ * The purpose is to provide a single context object holding what the filters
+ * need to know about an event.
+ *
+ * The context is captured on the event thread and evaluated later on the
+ * eligibility workers, so it only holds copies of the ref, hashes, user name
+ * and pull request ids of the event, never the event itself or its live
+ * collections. Events that change several refs are evaluated once per ref,
+ * with the ref being evaluated available from {@link #getRefChange()}.
  *
  * @author Michael Irwin (mikesir87)
  */
 public class EventContext {
 
-  private final Object eventSource;
   private final Repository repository;
   private final String username;
-  
+  private final RefChange refChange;
+  private final Long pullRequestId;
+  private final PullRequestState pullRequestState;
+  private final String fromHash;
+  private final String toHash;
+  private final String previousFromHash;
+
   /**
-   * Constructs a new context instance
-   * @param source The original event source
+   * Constructs a new context instance for a single ref of an event
    * @param repository The repository being affected by the event
    * @param username The username of the user that initiated the event
+   * @param refChange The ref change being evaluated, copied
    */
-  public EventContext(Object source, Repository repository, String username) {
-    this.eventSource = source;
+  public EventContext(Repository repository, String username,
+      RefChange refChange) {
     this.repository = repository;
     this.username = username;
+    this.refChange = copyOf(refChange);
+    this.pullRequestId = null;
+    this.pullRequestState = null;
+    this.fromHash = null;
+    this.toHash = null;
+    this.previousFromHash = null;
   }
-  
+
   /**
-   * Gets the {@code eventSource} property.
-   * @return The original source for the event
+   * Constructs a new context instance for a pull request event
+   * @param repository The repository being affected by the event
+   * @param username The username of the user that initiated the event
+   * @param pullRequest The pull request, whose ids and hashes are copied
+   * @param previousFromHash The latest commit of the from side before the
+   * pull request was rescoped. Null if it wasn't.
    */
-  public Object getEventSource() {
-    return eventSource;
+  public EventContext(Repository repository, String username,
+      PullRequest pullRequest, String previousFromHash) {
+    this.repository = repository;
+    this.username = username;
+    this.refChange = null;
+    this.pullRequestId = pullRequest.getId();
+    this.pullRequestState = pullRequest.getState();
+    this.fromHash = latestCommit(pullRequest.getFromRef());
+    this.toHash = latestCommit(pullRequest.getToRef());
+    this.previousFromHash = previousFromHash;
   }
+
   /**
    * Gets the {@code repository} property.
    * @return The repository that was affected by this event
@@ -41,7 +77,7 @@ public class EventContext {
   public Repository getRepository() {
     return repository;
   }
-  
+
   /**
    * Gets the {@code username} property.
    * @return The username of the user that initiated the event
@@ -49,4 +85,74 @@ public class EventContext {
   public String getUsername() {
     return username;
   }
+
+  /**
+   * Gets the {@code refChange} property.
+   * @return The ref change being evaluated. Null if the event didn't change
+   * refs.
+   */
+  public RefChange getRefChange() {
+    return refChange;
+  }
+
+  /**
+   * Gets the {@code pullRequestId} property.
+   * @return The id of the pull request, within its target repository. Null
+   * if the event isn't about a pull request.
+   */
+  public Long getPullRequestId() {
+    return pullRequestId;
+  }
+
+  /**
+   * Gets the {@code pullRequestState} property.
+   * @return The state of the pull request when the event was raised. Null
+   * if the event isn't about a pull request.
+   */
+  public PullRequestState getPullRequestState() {
+    return pullRequestState;
+  }
+
+  /**
+   * Gets the {@code fromHash} property.
+   * @return The latest commit of the from side of the pull request, if any
+   */
+  public String getFromHash() {
+    return fromHash;
+  }
+
+  /**
+   * Gets the {@code toHash} property.
+   * @return The latest commit of the to side of the pull request, if any
+   */
+  public String getToHash() {
+    return toHash;
+  }
+
+  /**
+   * Gets the {@code previousFromHash} property.
+   * @return The latest commit of the from side before the pull request was
+   * rescoped. Null if the event isn't a rescope.
+   */
+  public String getPreviousFromHash() {
+    return previousFromHash;
+  }
+
+  private static RefChange copyOf(RefChange refChange) {
+    if (refChange == null)
+      return null;
+    return new SimpleRefChange.Builder()
+        .ref(new SimpleMinimalRef.Builder()
+            .id(refChange.getRef().getId())
+            .displayId(refChange.getRef().getDisplayId())
+            .build())
+        .fromHash(refChange.getFromHash())
+        .toHash(refChange.getToHash())
+        .type(refChange.getType())
+        .build();
+  }
+
+  private static String latestCommit(PullRequestRef ref) {
+    return ref == null ? null : ref.getLatestCommit();
+  }
 }
@@ -3,9 +3,8 @@ package com.nerdwin15.stash.webhook.service.eligibility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.atlassian.bitbucket.setting.Settings;
-import com.nerdwin15.stash.webhook.Notifier;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
 
 /**
  * An EligibilityFilter that checks if the user that initiated the 
@@ -30,17 +29,24 @@ public class IgnoreCommittersEligibilityFilter implements EligibilityFilter {
     this.settingsService = settingsService;
   }
 
+  /**
+   * Compares the user against the cached settings of the repository.
+   */
+  @Override
+  public int getEstimatedCost() {
+    return 2;
+  }
+
   @Override
   public boolean shouldDeliverNotification(EventContext event) {
     String eventUserName = event.getUsername();
 
-    final Settings settings = settingsService.getSettings(
+    final WebhookSettings settings = settingsService.getWebhookSettings(
         event.getRepository());
-    String ignoreCommitters = settings.getString(Notifier.IGNORE_COMMITTERS);
-    if (ignoreCommitters == null || eventUserName == null)
+    if (settings == null || eventUserName == null)
       return true;
 
-    for (String committer : ignoreCommitters.split(" ")) {
+    for (String committer : settings.getIgnoreCommitters()) {
       if (committer.equalsIgnoreCase(eventUserName)) {
         logger.debug("Ignoring push event due to ignore committer {}",
             committer);
@@ -3,15 +3,16 @@ package com.nerdwin15.stash.webhook.service.eligibility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.atlassian.bitbucket.event.pull.PullRequestEvent;
-import com.atlassian.bitbucket.pull.PullRequestService;
 import com.atlassian.bitbucket.pull.PullRequestState;
+import com.nerdwin15.stash.webhook.service.MergeabilityService;
 
 /**
  * An EligibilityFilter that checks if the commit that was
  * made, is auto-mergeable by Stash.
  * 
- * This filter works with all PullRequestEvents that come through.
+ * This filter works with all pull request events that come through. The
+ * outcome of the merge check is reused for as long as neither side of the
+ * pull request moves.
  * 
  * @author Melvyn de Kort (lordmatanza)
  * @author Michael Irwin (mikesir87)
@@ -21,33 +22,38 @@ public class IsMergeableEligibilityFilter implements EligibilityFilter {
   private static final Logger logger = // CHECKSTYLE:logger
       LoggerFactory.getLogger(IsMergeableEligibilityFilter.class);
 
-  private PullRequestService pullRequestService;
+  private MergeabilityService mergeabilityService;
 
   /**
    * Constructs a new instance
-   * @param pullRequestService Service to get the webhook settings
+   * @param mergeabilityService Service to check for merge conflicts
    */
   public IsMergeableEligibilityFilter(
-      PullRequestService pullRequestService) {
-    this.pullRequestService = pullRequestService;
+      MergeabilityService mergeabilityService) {
+    this.mergeabilityService = mergeabilityService;
+  }
+
+  /**
+   * Asking whether a pull request can be merged may run a merge check in
+   * the repository, unless its outcome is cached.
+   */
+  @Override
+  public int getEstimatedCost() {
+    return 10000;
   }
 
   @Override
   public boolean shouldDeliverNotification(EventContext context) {
     
-    if (!PullRequestEvent.class
-        .isAssignableFrom(context.getEventSource().getClass()))
+    Long pullRequestId = context.getPullRequestId();
+    if (pullRequestId == null)
       return true;
     
-    PullRequestEvent event = (PullRequestEvent) context.getEventSource();
-    
-    if (!event.getPullRequest().getState().equals(PullRequestState.OPEN))
+    if (!PullRequestState.OPEN.equals(context.getPullRequestState()))
       return true;
     
-    int repoId = context.getRepository().getId();
-    long pullRequestId = event.getPullRequest().getId();
-
-    if (pullRequestService.canMerge(repoId, pullRequestId).isConflicted()) {
+    if (mergeabilityService.isConflicted(context.getRepository().getId(),
+        pullRequestId, context.getFromHash(), context.getToHash())) {
       logger.debug("Ignoring push event due to conflicts in merge");
       return false;
     }
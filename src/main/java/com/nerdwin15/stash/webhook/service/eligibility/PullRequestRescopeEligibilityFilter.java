@@ -3,11 +3,9 @@ package com.nerdwin15.stash.webhook.service.eligibility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
-
 /**
  * An EligibilityFilter that ensures PullRequestRescopedEvents come from
- * the "from" side.
+ * the "from" side. Other events have no previous from hash and pass.
  *
  * @author Michael Irwin (mikesir87)
  * @author Melvyn de Kort (lordmatanza)
@@ -17,19 +15,24 @@ public class PullRequestRescopeEligibilityFilter implements EligibilityFilter {
   private static final Logger logger = // CHECKSTYLE:logger
       LoggerFactory.getLogger(PullRequestRescopeEligibilityFilter.class);
 
+  /**
+   * Only compares hashes of the event.
+   */
+  @Override
+  public int getEstimatedCost() {
+    return 1;
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public boolean shouldDeliverNotification(EventContext context) {
-    if (!PullRequestRescopedEvent.class
-        .isAssignableFrom(context.getEventSource().getClass()))
+    String previousFromHash = context.getPreviousFromHash();
+    if (previousFromHash == null)
       return true;
     
-    PullRequestRescopedEvent event = 
-        (PullRequestRescopedEvent) context.getEventSource();
-    if (event.getPreviousFromHash().equals(event.getPullRequest().getFromRef()
-            .getLatestCommit())) {
+    if (previousFromHash.equals(context.getFromHash())) {
       logger.debug("Ignoring push event due to push not coming from the "
               + "from-side");
       return false;
@@ -0,0 +1,121 @@
+package com.nerdwin15.stash.webhook.service.history;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Keeps the most recent notification attempts of each repository in memory,
+ * so it's easy to tell whether a push reached Jenkins.
+ *
+ * Each repository keeps its last {@value #SIZE_PROPERTY} attempts (default
+ * {@value #DEFAULT_SIZE}) in a lock-free ring. At most
+ * {@value #REPOSITORIES_PROPERTY} repositories (default
+ * {@value #DEFAULT_REPOSITORIES}) are kept, the least recently used evicted
+ * first, which bounds the memory used overall. Recording only contends on
+ * the cache segment of the repository when its ring is first created.
+ */
+public class DeliveryHistory {
+
+  /**
+   * Property holding the number of attempts kept per repository
+   */
+  public static final String SIZE_PROPERTY =
+      "plugin.webhook.jenkins.history.size";
+
+  /**
+   * Property holding the maximum number of repositories with a history
+   */
+  public static final String REPOSITORIES_PROPERTY =
+      "plugin.webhook.jenkins.history.repositories";
+
+  static final int DEFAULT_SIZE = 25;
+  static final long DEFAULT_REPOSITORIES = 1000;
+
+  private final int size;
+  private final Cache<Integer, HistoryRing> rings;
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the history limits
+   */
+  public DeliveryHistory(ApplicationPropertiesService propertiesService) {
+    this(propertiesService.getPluginProperty(SIZE_PROPERTY, DEFAULT_SIZE),
+        propertiesService.getPluginProperty(REPOSITORIES_PROPERTY,
+            DEFAULT_REPOSITORIES));
+  }
+
+  /**
+   * Create a new instance with explicit limits
+   * @param size The number of attempts kept per repository. 0 or less turns
+   * the history off.
+   * @param repositories The maximum number of repositories with a history
+   */
+  public DeliveryHistory(int size, long repositories) {
+    this.size = size;
+    this.rings = CacheBuilder.newBuilder()
+        .maximumSize(Math.max(0, repositories))
+        .build();
+  }
+
+  /**
+   * Record an attempt to notify Jenkins
+   * @param repository The repository notified about
+   * @param ref The branch or branches notified
+   * @param sha1 The commit notified, if any
+   * @param attempt The number of the attempt, starting at 1
+   * @param latencyMillis How long the attempt took
+   * @param result The result of the attempt
+   */
+  public void record(Repository repository, String ref, String sha1,
+      int attempt, long latencyMillis, NotificationResult result) {
+    if (size <= 0)
+      return;
+    HistoryRing ring = ring(repository.getId());
+    ring.put(new DeliveryRecord(ring.claim(), System.currentTimeMillis(), ref,
+        sha1, attempt, latencyMillis, result));
+  }
+
+  /**
+   * Gets a page of the attempts recorded for a repository, newest first
+   * @param repository The repository
+   * @param start The number of attempts to skip
+   * @param limit The maximum number of attempts to return
+   * @return The attempts
+   */
+  public List<DeliveryRecord> getRecords(Repository repository, int start,
+      int limit) {
+    HistoryRing ring = rings.getIfPresent(repository.getId());
+    if (ring == null || start < 0 || limit <= 0)
+      return Collections.emptyList();
+    List<DeliveryRecord> records = ring.snapshot();
+    if (start >= records.size())
+      return Collections.emptyList();
+    return records.subList(start, Math.min(records.size(), start + limit));
+  }
+
+  /**
+   * Gets the number of repositories with a history
+   * @return The repository count
+   */
+  public long getRepositoryCount() {
+    return rings.size();
+  }
+
+  private HistoryRing ring(int repositoryId) {
+    HistoryRing ring = rings.getIfPresent(repositoryId);
+    if (ring != null)
+      return ring;
+    try {
+      return rings.get(repositoryId, () -> new HistoryRing(size));
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
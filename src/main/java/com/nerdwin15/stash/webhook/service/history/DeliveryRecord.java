@@ -0,0 +1,95 @@
+package com.nerdwin15.stash.webhook.service.history;
+
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * An attempt to notify Jenkins of a push, as kept in the
+ * {@link DeliveryHistory}.
+ */
+public class DeliveryRecord {
+
+  private final long sequence;
+  private final long timestamp;
+  private final String ref;
+  private final String sha1;
+  private final int attempt;
+  private final long latencyMillis;
+  private final NotificationResult result;
+
+  /**
+   * Create a new record
+   * @param sequence The position of the record in its repository's history
+   * @param timestamp When the attempt completed, in epoch milliseconds
+   * @param ref The branch or branches notified
+   * @param sha1 The commit notified, if any
+   * @param attempt The number of the attempt, starting at 1
+   * @param latencyMillis How long the attempt took
+   * @param result The result of the attempt
+   */
+  public DeliveryRecord(long sequence, long timestamp, String ref,
+      String sha1, int attempt, long latencyMillis, NotificationResult result) {
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.ref = ref;
+    this.sha1 = sha1;
+    this.attempt = attempt;
+    this.latencyMillis = latencyMillis;
+    this.result = result;
+  }
+
+  /**
+   * Gets the {@code sequence} property.
+   * @return The position of the record in its repository's history
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Gets the {@code timestamp} property.
+   * @return When the attempt completed, in epoch milliseconds
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Gets the {@code ref} property.
+   * @return The branch or comma-separated branches notified
+   */
+  public String getRef() {
+    return ref;
+  }
+
+  /**
+   * Gets the {@code sha1} property.
+   * @return The commit notified, or null if none was sent
+   */
+  public String getSha1() {
+    return sha1;
+  }
+
+  /**
+   * Gets the {@code attempt} property.
+   * @return The number of the attempt, starting at 1
+   */
+  public int getAttempt() {
+    return attempt;
+  }
+
+  /**
+   * Gets the {@code latencyMillis} property.
+   * @return How long the attempt took, in milliseconds
+   */
+  public long getLatencyMillis() {
+    return latencyMillis;
+  }
+
+  /**
+   * Gets the {@code result} property.
+   * @return The result of the attempt
+   */
+  public NotificationResult getResult() {
+    return result;
+  }
+}
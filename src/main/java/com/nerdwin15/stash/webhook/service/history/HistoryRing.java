@@ -0,0 +1,60 @@
+package com.nerdwin15.stash.webhook.service.history;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size, lock-free ring of the most recent records of one repository.
+ *
+ * Writers claim a sequence number and store their record in its slot.
+ * Readers walk back from the newest sequence and skip slots that were
+ * already overwritten or are still being written, so neither side waits.
+ */
+final class HistoryRing {
+
+  private final AtomicReferenceArray<DeliveryRecord> slots;
+  private final AtomicLong next = new AtomicLong();
+
+  HistoryRing(int capacity) {
+    this.slots = new AtomicReferenceArray<DeliveryRecord>(capacity);
+  }
+
+  /**
+   * Claim the sequence number of the next record
+   * @return The sequence number
+   */
+  long claim() {
+    return next.getAndIncrement();
+  }
+
+  /**
+   * Store a record in the slot of its sequence number
+   * @param record The record
+   */
+  void put(DeliveryRecord record) {
+    slots.set(slot(record.getSequence()), record);
+  }
+
+  /**
+   * Gets the records still held, newest first
+   * @return The records
+   */
+  List<DeliveryRecord> snapshot() {
+    long newest = next.get() - 1;
+    long oldest = Math.max(0, newest - slots.length() + 1);
+    List<DeliveryRecord> records =
+        new ArrayList<DeliveryRecord>((int) (newest - oldest + 1));
+    for (long sequence = newest; sequence >= oldest; sequence--) {
+      DeliveryRecord record = slots.get(slot(sequence));
+      if (record != null && record.getSequence() == sequence)
+        records.add(record);
+    }
+    return records;
+  }
+
+  private int slot(long sequence) {
+    return (int) (sequence % slots.length());
+  }
+}
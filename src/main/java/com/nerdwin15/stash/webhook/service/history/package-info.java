@@ -0,0 +1,4 @@
+/**
+ * Recent notification results per repository
+ */
+package com.nerdwin15.stash.webhook.service.history;
@@ -0,0 +1,73 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+/**
+ * JMX view of the background notification machinery.
+ */
+public interface DispatchStatsMXBean {
+
+  /**
+   * Gets the number of notifications waiting for a worker
+   * @return The queue depth
+   */
+  int getQueueDepth();
+
+  /**
+   * Gets the number of repositories with notifications waiting for a worker
+   * @return The number of queued repositories
+   */
+  int getQueuedRepositories();
+
+  /**
+   * Gets the number of workers sending a notification
+   * @return The active thread count
+   */
+  int getActiveThreads();
+
+  /**
+   * Gets the number of worker threads alive
+   * @return The pool size
+   */
+  int getPoolSize();
+
+  /**
+   * Gets the number of times the queue was full on submit
+   * @return The rejection count
+   */
+  long getRejectedCount();
+
+  /**
+   * Gets the number of queued notifications dropped to make room
+   * @return The dropped count
+   */
+  long getDroppedCount();
+
+  /**
+   * Gets the number of notifications folded into a queued one
+   * @return The coalesced count
+   */
+  long getCoalescedCount();
+
+  /**
+   * Gets the number of events waiting for an eligibility worker
+   * @return The eligibility queue depth
+   */
+  int getEligibilityQueueDepth();
+
+  /**
+   * Gets the number of events dropped as the eligibility queue was full
+   * @return The eligibility dropped count
+   */
+  long getEligibilityDroppedCount();
+
+  /**
+   * Gets the number of retries waiting to run
+   * @return The pending retry count
+   */
+  int getPendingRetries();
+
+  /**
+   * Gets the number of journaled notifications not yet answered
+   * @return The pending journal entry count
+   */
+  int getPendingJournalEntries();
+}
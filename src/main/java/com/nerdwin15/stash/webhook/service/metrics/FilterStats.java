@@ -0,0 +1,80 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the decisions of one eligibility filter and the time they took.
+ */
+public class FilterStats implements FilterStatsMXBean {
+
+  private final String filter;
+  private final int estimatedCost;
+  private final LongAdder evaluated = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private volatile int position = -1;
+
+  FilterStats(String filter, int estimatedCost) {
+    this.filter = filter;
+    this.estimatedCost = estimatedCost;
+  }
+
+  /**
+   * Count a decision of the filter
+   * @param delivered True if the filter let the event through
+   * @param nanos How long the decision took
+   */
+  public void record(boolean delivered, long nanos) {
+    evaluated.increment();
+    totalNanos.add(nanos);
+    if (!delivered)
+      rejected.increment();
+  }
+
+  /**
+   * Sets where the filter currently runs in its chain
+   * @param position The position, starting at 0
+   */
+  public void setPosition(int position) {
+    this.position = position;
+  }
+
+  @Override
+  public String getFilter() {
+    return filter;
+  }
+
+  @Override
+  public long getEvaluatedCount() {
+    return evaluated.sum();
+  }
+
+  @Override
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+
+  @Override
+  public int getEstimatedCost() {
+    return estimatedCost;
+  }
+
+  @Override
+  public double getMeanMicros() {
+    long count = evaluated.sum();
+    return count == 0 ? 0 : totalNanos.sum() / 1000.0 / count;
+  }
+
+  @Override
+  public int getPosition() {
+    return position;
+  }
+
+  /**
+   * Gets the total time spent in the filter
+   * @return The time in nanoseconds
+   */
+  public long getTotalNanos() {
+    return totalNanos.sum();
+  }
+}
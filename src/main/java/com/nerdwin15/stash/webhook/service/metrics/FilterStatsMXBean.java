@@ -0,0 +1,44 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+/**
+ * JMX view of the decisions of one eligibility filter.
+ */
+public interface FilterStatsMXBean {
+
+  /**
+   * Gets the name of the filter
+   * @return The simple class name of the filter
+   */
+  String getFilter();
+
+  /**
+   * Gets the number of events the filter was asked about
+   * @return The evaluated count
+   */
+  long getEvaluatedCount();
+
+  /**
+   * Gets the number of events the filter stopped
+   * @return The rejected count
+   */
+  long getRejectedCount();
+
+  /**
+   * Gets the cost the filter declares
+   * @return The estimated cost in microseconds per decision
+   * @see com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilter#getEstimatedCost()
+   */
+  int getEstimatedCost();
+
+  /**
+   * Gets the mean time the filter took to decide
+   * @return The mean time in microseconds
+   */
+  double getMeanMicros();
+
+  /**
+   * Gets where the filter currently runs in its chain
+   * @return The position, starting at 0, or -1 if not part of a chain
+   */
+  int getPosition();
+}
@@ -0,0 +1,83 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes statistics as MXBeans in the {@value #DOMAIN} domain of the
+ * platform MBean server.
+ */
+class JmxBridge implements MeterBridge {
+
+  static final String DOMAIN = "com.nerdwin15.stash.webhook";
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(JmxBridge.class);
+
+  private final MBeanServer server;
+  private final List<ObjectName> registered =
+      new CopyOnWriteArrayList<ObjectName>();
+
+  JmxBridge() {
+    this(ManagementFactory.getPlatformMBeanServer());
+  }
+
+  JmxBridge(MBeanServer server) {
+    this.server = server;
+  }
+
+  @Override
+  public void bindDispatch(DispatchStatsMXBean stats) {
+    register(DOMAIN + ":type=Dispatch", stats);
+  }
+
+  @Override
+  public void bindNotifications(NotificationStats stats) {
+    register(DOMAIN + ":type=Notifications,host="
+        + ObjectName.quote(stats.getHost()) + ",outcome=" + stats.getOutcome(),
+        stats);
+  }
+
+  @Override
+  public void bindFilter(FilterStats stats) {
+    register(DOMAIN + ":type=EligibilityFilter,name="
+        + ObjectName.quote(stats.getFilter()), stats);
+  }
+
+  @Override
+  public void close() {
+    for (ObjectName name : registered) {
+      try {
+        server.unregisterMBean(name);
+      } catch (JMException e) {
+        LOGGER.debug("Unable to unregister {}", name, e);
+      }
+    }
+    registered.clear();
+  }
+
+  private void register(String name, Object bean) {
+    try {
+      ObjectName objectName = new ObjectName(name);
+      try {
+        server.registerMBean(bean, objectName);
+      } catch (InstanceAlreadyExistsException e) {
+        // Left behind by an earlier instance of the plugin
+        server.unregisterMBean(objectName);
+        server.registerMBean(bean, objectName);
+      }
+      registered.add(objectName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register {}", name, e);
+    }
+  }
+}
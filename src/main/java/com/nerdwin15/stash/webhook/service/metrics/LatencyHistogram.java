@@ -0,0 +1,92 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with fixed buckets, from 1 ms to one minute.
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ */
+final class LatencyHistogram {
+
+  private static final long[] BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200,
+      500, 1000, 2000, 5000, 10000, 30000, 60000, Long.MAX_VALUE};
+
+  private final LongAdder[] buckets = new LongAdder[BOUNDS_MILLIS.length];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+  LatencyHistogram() {
+    for (int i = 0; i < buckets.length; i++)
+      buckets[i] = new LongAdder();
+  }
+
+  /**
+   * Count an event, with its latency if it has one
+   * @param nanos The latency, or a negative value if there is none
+   */
+  void record(long nanos) {
+    count.increment();
+    if (nanos < 0)
+      return;
+    totalNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int bucket = 0;
+    while (millis > BOUNDS_MILLIS[bucket])
+      bucket++;
+    buckets[bucket].increment();
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  double getMeanMillis() {
+    long timed = getTimedCount();
+    return timed == 0 ? 0 : totalNanos.sum() / 1e6 / timed;
+  }
+
+  double getMaxMillis() {
+    return maxNanos.get() / 1e6;
+  }
+
+  long getTotalNanos() {
+    return totalNanos.sum();
+  }
+
+  /**
+   * Gets the upper bound of the bucket holding a percentile
+   * @param percentile The percentile, between 0 and 1
+   * @return The bound in milliseconds, the maximum for the last bucket and 0
+   * if nothing was timed
+   */
+  double getPercentileMillis(double percentile) {
+    long[] counts = new long[buckets.length];
+    long timed = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      counts[i] = buckets[i].sum();
+      timed += counts[i];
+    }
+    if (timed == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(percentile * timed);
+    long seen = 0;
+    for (int i = 0; i < counts.length - 1; i++) {
+      seen += counts[i];
+      if (seen >= rank)
+        return BOUNDS_MILLIS[i];
+    }
+    return getMaxMillis();
+  }
+
+  private long getTimedCount() {
+    long timed = 0;
+    for (LongAdder bucket : buckets)
+      timed += bucket.sum();
+    return timed;
+  }
+}
@@ -0,0 +1,32 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+/**
+ * Publishes the statistics kept by {@link NotificationMetrics} to a
+ * monitoring system. Statistics are bound once, when they are created, and
+ * read by the monitoring system whenever it polls.
+ */
+interface MeterBridge {
+
+  /**
+   * Publish the state of the background notification machinery
+   * @param stats The statistics
+   */
+  void bindDispatch(DispatchStatsMXBean stats);
+
+  /**
+   * Publish the notifications sent to one host with one outcome
+   * @param stats The statistics
+   */
+  void bindNotifications(NotificationStats stats);
+
+  /**
+   * Publish the decisions of one eligibility filter
+   * @param stats The statistics
+   */
+  void bindFilter(FilterStats stats);
+
+  /**
+   * Withdraw everything published
+   */
+  void close();
+}
@@ -0,0 +1,112 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Publishes statistics to a Micrometer registry. The meters read the
+ * statistics when polled, so notifications aren't recorded twice.
+ *
+ * Only loaded once Micrometer is known to be available.
+ */
+class MicrometerBridge implements MeterBridge {
+
+  private static final String PREFIX = "jenkins.webhook.";
+
+  private final MeterRegistry registry;
+  private final List<Meter> meters = new CopyOnWriteArrayList<Meter>();
+
+  MicrometerBridge() {
+    this(Metrics.globalRegistry);
+  }
+
+  MicrometerBridge(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Override
+  public void bindDispatch(DispatchStatsMXBean stats) {
+    meters.add(Gauge.builder(PREFIX + "executor.queue", stats,
+        DispatchStatsMXBean::getQueueDepth)
+        .description("Notifications waiting for a worker")
+        .register(registry));
+    meters.add(Gauge.builder(PREFIX + "executor.queue.repositories", stats,
+        DispatchStatsMXBean::getQueuedRepositories)
+        .description("Repositories with notifications waiting for a worker")
+        .register(registry));
+    meters.add(Gauge.builder(PREFIX + "executor.active", stats,
+        DispatchStatsMXBean::getActiveThreads)
+        .description("Workers sending a notification")
+        .register(registry));
+    meters.add(FunctionCounter.builder(PREFIX + "executor.rejected", stats,
+        DispatchStatsMXBean::getRejectedCount)
+        .description("Times the notification queue was full")
+        .register(registry));
+    meters.add(Gauge.builder(PREFIX + "eligibility.queue", stats,
+        DispatchStatsMXBean::getEligibilityQueueDepth)
+        .description("Events waiting for an eligibility worker")
+        .register(registry));
+    meters.add(FunctionCounter.builder(PREFIX + "eligibility.dropped", stats,
+        DispatchStatsMXBean::getEligibilityDroppedCount)
+        .description("Events dropped as the eligibility queue was full")
+        .register(registry));
+    meters.add(Gauge.builder(PREFIX + "retries.pending", stats,
+        DispatchStatsMXBean::getPendingRetries)
+        .description("Retries waiting to run")
+        .register(registry));
+    meters.add(Gauge.builder(PREFIX + "outbox.pending", stats,
+        DispatchStatsMXBean::getPendingJournalEntries)
+        .description("Journaled notifications not yet answered")
+        .register(registry));
+  }
+
+  @Override
+  public void bindNotifications(NotificationStats stats) {
+    meters.add(FunctionTimer.builder(PREFIX + "notifications", stats,
+        NotificationStats::getCount, NotificationStats::getTotalNanos,
+        TimeUnit.NANOSECONDS)
+        .tag("host", stats.getHost())
+        .tag("outcome", stats.getOutcome())
+        .description("Notifications sent to Jenkins")
+        .register(registry));
+  }
+
+  @Override
+  public void bindFilter(FilterStats stats) {
+    meters.add(FunctionCounter.builder(PREFIX + "filter.evaluated", stats,
+        FilterStats::getEvaluatedCount)
+        .tag("filter", stats.getFilter())
+        .register(registry));
+    meters.add(FunctionCounter.builder(PREFIX + "filter.rejected", stats,
+        FilterStats::getRejectedCount)
+        .tag("filter", stats.getFilter())
+        .description("Events stopped by the eligibility filter")
+        .register(registry));
+    meters.add(FunctionTimer.builder(PREFIX + "filter.time", stats,
+        FilterStats::getEvaluatedCount, FilterStats::getTotalNanos,
+        TimeUnit.NANOSECONDS)
+        .tag("filter", stats.getFilter())
+        .description("Time spent in the eligibility filter")
+        .register(registry));
+    meters.add(Gauge.builder(PREFIX + "filter.position", stats,
+        FilterStats::getPosition)
+        .tag("filter", stats.getFilter())
+        .description("Position of the filter in the chain")
+        .register(registry));
+  }
+
+  @Override
+  public void close() {
+    for (Meter meter : meters)
+      registry.remove(meter);
+    meters.clear();
+  }
+}
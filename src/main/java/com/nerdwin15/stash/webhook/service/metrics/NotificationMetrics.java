@@ -0,0 +1,397 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.nerdwin15.stash.webhook.service.dispatch.EligibilityStage;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationExecutor;
+import com.nerdwin15.stash.webhook.service.dispatch.RetryScheduler;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilter;
+import com.nerdwin15.stash.webhook.service.outbox.NotificationOutbox;
+
+/**
+ * Keeps counters and latency histograms of the notifications sent to each
+ * Jenkins host, per {@link Outcome}, along with the decisions of each
+ * eligibility filter and the state of the background executor.
+ *
+ * Everything is published as MXBeans in the
+ * {@code com.nerdwin15.stash.webhook} domain unless
+ * {@value #JMX_PROPERTY} is false. If Micrometer is available to the plugin,
+ * the same statistics are also published to its global registry, unless
+ * {@value #MICROMETER_PROPERTY} is false.
+ *
+ * At most {@value #MAX_HOSTS} hosts are tracked, further hosts are counted
+ * as {@value #OTHER_HOST}.
+ */
+public class NotificationMetrics implements InitializingBean, DisposableBean {
+
+  /**
+   * Property that turns the JMX MBeans off
+   */
+  public static final String JMX_PROPERTY = "plugin.webhook.jenkins.metrics.jmx";
+
+  /**
+   * Property that turns publishing to Micrometer off
+   */
+  public static final String MICROMETER_PROPERTY =
+      "plugin.webhook.jenkins.metrics.micrometer";
+
+  static final int MAX_HOSTS = 100;
+  static final String OTHER_HOST = "other";
+  static final String UNKNOWN_HOST = "unknown";
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationMetrics.class);
+  private static final String MICROMETER_CLASS =
+      "io.micrometer.core.instrument.Metrics";
+
+  /**
+   * The outcome of a notification, as seen by monitoring
+   */
+  public enum Outcome {
+    /** Jenkins scheduled the polling */
+    SCHEDULED("scheduled"),
+    /** Jenkins answered, but has no job for the repository */
+    NO_JOB("no-job"),
+    /** Jenkins answered with an HTTP error */
+    HTTP_ERROR("http-error"),
+    /** Jenkins didn't connect or respond in time */
+    TIMEOUT("timeout"),
+    /** Not sent, as the circuit of the Jenkins instance is open */
+    REJECTED("rejected"),
+    /** Jenkins couldn't be reached */
+    ERROR("error");
+
+    private final String tag;
+
+    Outcome(String tag) {
+      this.tag = tag;
+    }
+
+    /**
+     * Gets the name used to tag metrics
+     * @return The tag value
+     */
+    public String getTag() {
+      return tag;
+    }
+  }
+
+  private final NotificationExecutor executor;
+  private final EligibilityStage stage;
+  private final RetryScheduler retries;
+  private final NotificationOutbox outbox;
+  private final boolean jmx;
+  private final boolean micrometer;
+  private final ConcurrentMap<String, Host> hostsByBase =
+      new ConcurrentHashMap<String, Host>();
+  private final ConcurrentMap<String, Host> hosts =
+      new ConcurrentHashMap<String, Host>();
+  private final ConcurrentMap<String, FilterStats> filters =
+      new ConcurrentHashMap<String, FilterStats>();
+  private final List<MeterBridge> bridges =
+      new CopyOnWriteArrayList<MeterBridge>();
+
+  /**
+   * Create a new instance
+   * @param executor The executor of background notifications
+   * @param stage The workers deciding which events are notified
+   * @param retries The scheduler of retries
+   * @param outbox The journal of background notifications
+   * @param propertiesService Service used to read the metrics configuration
+   */
+  public NotificationMetrics(NotificationExecutor executor,
+      EligibilityStage stage, RetryScheduler retries,
+      NotificationOutbox outbox,
+      ApplicationPropertiesService propertiesService) {
+    this(executor, stage, retries, outbox,
+        propertiesService.getPluginProperty(JMX_PROPERTY, true),
+        propertiesService.getPluginProperty(MICROMETER_PROPERTY, true));
+  }
+
+  /**
+   * Create a new instance with explicit publishing settings
+   * @param executor The executor of background notifications
+   * @param stage The workers deciding which events are notified
+   * @param retries The scheduler of retries
+   * @param outbox The journal of background notifications
+   * @param jmx True to publish MXBeans
+   * @param micrometer True to publish to Micrometer, if available
+   */
+  public NotificationMetrics(NotificationExecutor executor,
+      EligibilityStage stage, RetryScheduler retries,
+      NotificationOutbox outbox, boolean jmx, boolean micrometer) {
+    this.executor = executor;
+    this.stage = stage;
+    this.retries = retries;
+    this.outbox = outbox;
+    this.jmx = jmx;
+    this.micrometer = micrometer;
+  }
+
+  /**
+   * Start publishing
+   */
+  @Override
+  public void afterPropertiesSet() {
+    if (jmx)
+      start(new JmxBridge());
+    if (micrometer && isMicrometerAvailable()) {
+      LOGGER.info("Publishing Jenkins webhook metrics to Micrometer");
+      start(new MicrometerBridge());
+    }
+  }
+
+  /**
+   * Stop publishing
+   */
+  @Override
+  public void destroy() {
+    for (MeterBridge bridge : bridges)
+      bridge.close();
+    bridges.clear();
+  }
+
+  /**
+   * Count a notification
+   * @param jenkinsBase The base URL of the Jenkins instance
+   * @param outcome The outcome of the notification
+   * @param nanos How long the notification took, or a negative value if it
+   * wasn't sent
+   */
+  public void record(String jenkinsBase, Outcome outcome, long nanos) {
+    String base = jenkinsBase == null ? "" : jenkinsBase;
+    Host host = hostsByBase.get(base);
+    if (host == null)
+      host = hostFor(base);
+    host.get(outcome).record(nanos);
+  }
+
+  /**
+   * Gets the counters of an eligibility filter, to count its decisions in
+   * @param filter The filter
+   * @return The counters of the filter
+   */
+  public FilterStats forFilter(EligibilityFilter filter) {
+    Class<?> type = filter.getClass();
+    String name = type.getSimpleName().isEmpty() ? type.getName()
+        : type.getSimpleName();
+    FilterStats stats = filters.get(name);
+    if (stats != null)
+      return stats;
+    synchronized (this) {
+      stats = filters.get(name);
+      if (stats == null) {
+        stats = new FilterStats(name, filter.getEstimatedCost());
+        filters.put(name, stats);
+        for (MeterBridge bridge : bridges)
+          bridge.bindFilter(stats);
+      }
+      return stats;
+    }
+  }
+
+  /**
+   * Gets the statistics of the notifications sent so far
+   * @return The statistics, one per host and outcome seen
+   */
+  public Collection<NotificationStats> getNotificationStats() {
+    List<NotificationStats> all = new ArrayList<NotificationStats>();
+    for (Host host : hosts.values())
+      host.collect(all);
+    return all;
+  }
+
+  /**
+   * Gets the statistics of the eligibility filters
+   * @return The statistics, one per filter
+   */
+  public Collection<FilterStats> getFilterStats() {
+    return filters.values();
+  }
+
+  /**
+   * Gets the state of the background notification machinery
+   * @return The statistics
+   */
+  public DispatchStatsMXBean getDispatchStats() {
+    return new DispatchStats();
+  }
+
+  /**
+   * Start publishing through a bridge, including the statistics that exist
+   * already. Package-private for testing purposes
+   * @param bridge The bridge
+   */
+  synchronized void start(MeterBridge bridge) {
+    bridge.bindDispatch(getDispatchStats());
+    for (NotificationStats stats : getNotificationStats())
+      bridge.bindNotifications(stats);
+    for (FilterStats stats : filters.values())
+      bridge.bindFilter(stats);
+    bridges.add(bridge);
+  }
+
+  /**
+   * Gets the host a Jenkins base URL is reported under
+   * @param jenkinsBase The base URL
+   * @return The host, with the port if one is set
+   */
+  static String hostOf(String jenkinsBase) {
+    try {
+      URI uri = new URI(jenkinsBase.trim());
+      String host = uri.getHost();
+      if (host == null)
+        return UNKNOWN_HOST;
+      host = host.toLowerCase(Locale.ROOT);
+      return uri.getPort() < 0 ? host : host + ":" + uri.getPort();
+    } catch (URISyntaxException e) {
+      return UNKNOWN_HOST;
+    }
+  }
+
+  private synchronized Host hostFor(String base) {
+    Host host = hostsByBase.get(base);
+    if (host != null)
+      return host;
+
+    String name = hostOf(base);
+    host = hosts.get(name);
+    if (host == null) {
+      if (hosts.size() >= MAX_HOSTS)
+        name = OTHER_HOST;
+      host = hosts.get(name);
+      if (host == null) {
+        host = new Host(name);
+        hosts.put(name, host);
+      }
+    }
+    if (hostsByBase.size() < MAX_HOSTS * 4)
+      hostsByBase.put(base, host);
+    return host;
+  }
+
+  private static boolean isMicrometerAvailable() {
+    try {
+      Class.forName(MICROMETER_CLASS, false,
+          NotificationMetrics.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * The statistics of one host, created per outcome as they are first seen
+   */
+  private final class Host {
+    private final String name;
+    private final AtomicReferenceArray<NotificationStats> outcomes =
+        new AtomicReferenceArray<NotificationStats>(Outcome.values().length);
+
+    Host(String name) {
+      this.name = name;
+    }
+
+    NotificationStats get(Outcome outcome) {
+      NotificationStats stats = outcomes.get(outcome.ordinal());
+      return stats != null ? stats : create(outcome);
+    }
+
+    private NotificationStats create(Outcome outcome) {
+      synchronized (NotificationMetrics.this) {
+        NotificationStats stats = outcomes.get(outcome.ordinal());
+        if (stats == null) {
+          stats = new NotificationStats(name, outcome);
+          outcomes.set(outcome.ordinal(), stats);
+          for (MeterBridge bridge : bridges)
+            bridge.bindNotifications(stats);
+        }
+        return stats;
+      }
+    }
+
+    void collect(List<NotificationStats> all) {
+      for (int i = 0; i < outcomes.length(); i++) {
+        NotificationStats stats = outcomes.get(i);
+        if (stats != null)
+          all.add(stats);
+      }
+    }
+  }
+
+  /**
+   * Reads the executor, eligibility stage, retry scheduler and journal when
+   * polled
+   */
+  private final class DispatchStats implements DispatchStatsMXBean {
+    @Override
+    public int getQueueDepth() {
+      return executor.getQueueDepth();
+    }
+
+    @Override
+    public int getQueuedRepositories() {
+      return executor.getQueuedLanes();
+    }
+
+    @Override
+    public int getActiveThreads() {
+      return executor.getActiveWorkers();
+    }
+
+    @Override
+    public int getPoolSize() {
+      return executor.getPoolSize();
+    }
+
+    @Override
+    public long getRejectedCount() {
+      return executor.getRejectedCount();
+    }
+
+    @Override
+    public long getDroppedCount() {
+      return executor.getDroppedCount();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+      return executor.getCoalescedCount();
+    }
+
+    @Override
+    public int getEligibilityQueueDepth() {
+      return stage.getQueueDepth();
+    }
+
+    @Override
+    public long getEligibilityDroppedCount() {
+      return stage.getDroppedCount();
+    }
+
+    @Override
+    public int getPendingRetries() {
+      return retries.getPendingCount();
+    }
+
+    @Override
+    public int getPendingJournalEntries() {
+      return outbox.getPendingCount();
+    }
+  }
+}
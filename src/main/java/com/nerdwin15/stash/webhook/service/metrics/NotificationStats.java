@@ -0,0 +1,65 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+/**
+ * Counts and times the notifications sent to one Jenkins host with one
+ * outcome.
+ */
+public class NotificationStats implements NotificationStatsMXBean {
+
+  private final String host;
+  private final NotificationMetrics.Outcome outcome;
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  NotificationStats(String host, NotificationMetrics.Outcome outcome) {
+    this.host = host;
+    this.outcome = outcome;
+  }
+
+  void record(long nanos) {
+    latency.record(nanos);
+  }
+
+  long getTotalNanos() {
+    return latency.getTotalNanos();
+  }
+
+  @Override
+  public String getHost() {
+    return host;
+  }
+
+  @Override
+  public String getOutcome() {
+    return outcome.getTag();
+  }
+
+  @Override
+  public long getCount() {
+    return latency.getCount();
+  }
+
+  @Override
+  public double getMeanMillis() {
+    return latency.getMeanMillis();
+  }
+
+  @Override
+  public double getMaxMillis() {
+    return latency.getMaxMillis();
+  }
+
+  @Override
+  public double get50thPercentileMillis() {
+    return latency.getPercentileMillis(0.5);
+  }
+
+  @Override
+  public double get95thPercentileMillis() {
+    return latency.getPercentileMillis(0.95);
+  }
+
+  @Override
+  public double get99thPercentileMillis() {
+    return latency.getPercentileMillis(0.99);
+  }
+}
@@ -0,0 +1,55 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+/**
+ * JMX view of the notifications sent to one Jenkins host with one outcome.
+ */
+public interface NotificationStatsMXBean {
+
+  /**
+   * Gets the Jenkins host
+   * @return The host, with the port if one is set
+   */
+  String getHost();
+
+  /**
+   * Gets the outcome counted
+   * @return The outcome name
+   */
+  String getOutcome();
+
+  /**
+   * Gets the number of notifications
+   * @return The count
+   */
+  long getCount();
+
+  /**
+   * Gets the mean latency
+   * @return The mean in milliseconds
+   */
+  double getMeanMillis();
+
+  /**
+   * Gets the highest latency
+   * @return The maximum in milliseconds
+   */
+  double getMaxMillis();
+
+  /**
+   * Gets the median latency
+   * @return The bucket bound holding the median, in milliseconds
+   */
+  double get50thPercentileMillis();
+
+  /**
+   * Gets the 95th percentile latency
+   * @return The bucket bound holding the percentile, in milliseconds
+   */
+  double get95thPercentileMillis();
+
+  /**
+   * Gets the 99th percentile latency
+   * @return The bucket bound holding the percentile, in milliseconds
+   */
+  double get99thPercentileMillis();
+}
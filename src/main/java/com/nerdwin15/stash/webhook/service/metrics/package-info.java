@@ -0,0 +1,5 @@
+/**
+ * Counters and latency histograms of notifications, exposed through JMX and
+ * Micrometer
+ */
+package com.nerdwin15.stash.webhook.service.metrics;
@@ -0,0 +1,533 @@
+package com.nerdwin15.stash.webhook.service.outbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.nerdwin15.stash.webhook.NotificationRequest;
+
+/**
+ * An append-only journal of the background notifications that haven't been
+ * answered yet, so they can be sent again after Bitbucket restarts.
+ *
+ * The journal is a sequence of memory-mapped segment files of
+ * {@value #SEGMENT_SIZE_PROPERTY} bytes in the node's home directory. A
+ * notification is written as a pending record by {@link #append} and
+ * cancelled by an acknowledgement record written by {@link #acknowledge}.
+ * Records are only ever appended to the newest segment, so writing costs a
+ * copy into the page cache. A newer notification for the same repository and
+ * branch supersedes the pending one, just like the notification itself does.
+ *
+ * Once a segment no longer holds pending notifications it is deleted. When
+ * there are more than {@value #MAX_SEGMENTS} segments, the pending
+ * notifications of the oldest one are copied to the newest and the oldest is
+ * deleted. Segments are always deleted oldest first, so an acknowledgement is
+ * never lost while the record it cancels is still on disk.
+ *
+ * Every record carries a checksum and becomes visible only once its length is
+ * written, so a record torn by a crash ends the replay of its segment.
+ */
+public class NotificationOutbox implements DisposableBean {
+
+  /**
+   * Property switching the journal on or off
+   */
+  public static final String ENABLED_PROPERTY =
+      "plugin.webhook.jenkins.outbox.enabled";
+
+  /**
+   * Property holding the directory of the journal
+   */
+  public static final String DIRECTORY_PROPERTY =
+      "plugin.webhook.jenkins.outbox.dir";
+
+  /**
+   * Property holding the size of a journal segment in bytes
+   */
+  public static final String SEGMENT_SIZE_PROPERTY =
+      "plugin.webhook.jenkins.outbox.segment.size";
+
+  static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+  static final int MIN_SEGMENT_SIZE = 64 * 1024;
+  static final int MAX_SEGMENTS = 4;
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationOutbox.class);
+  private static final String SEGMENT_PREFIX = "outbox-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final int HEADER_LENGTH = 8;
+  private static final byte PENDING = 1;
+  private static final byte ACKNOWLEDGED = 2;
+
+  private final File directory;
+  private final int segmentSize;
+  private final RepositoryService repositoryService;
+  private final SecurityService securityService;
+
+  private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private final Map<Long, String> keysById = new HashMap<Long, String>();
+  private final CRC32 checksum = new CRC32();
+  private Segment head;
+  private long nextId = 1;
+  private boolean broken;
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the journal settings
+   * @param repositoryService Service used to find the repositories of
+   * replayed notifications
+   * @param securityService Service used to look repositories up
+   */
+  public NotificationOutbox(ApplicationPropertiesService propertiesService,
+      RepositoryService repositoryService, SecurityService securityService) {
+    this(directory(propertiesService),
+        propertiesService.getPluginProperty(SEGMENT_SIZE_PROPERTY,
+            DEFAULT_SEGMENT_SIZE),
+        repositoryService, securityService);
+  }
+
+  /**
+   * Create a new instance with explicit journal settings
+   * @param directory The directory of the journal, or null to disable it
+   * @param segmentSize The size of a journal segment in bytes
+   * @param repositoryService Service used to find the repositories of
+   * replayed notifications
+   * @param securityService Service used to look repositories up
+   */
+  public NotificationOutbox(File directory, int segmentSize,
+      RepositoryService repositoryService, SecurityService securityService) {
+    this.directory = directory;
+    this.segmentSize = Math.max(MIN_SEGMENT_SIZE, segmentSize);
+    this.repositoryService = repositoryService;
+    this.securityService = securityService;
+  }
+
+  private static File directory(ApplicationPropertiesService properties) {
+    if (!properties.getPluginProperty(ENABLED_PROPERTY, true))
+      return null;
+    String configured = properties.getPluginProperty(DIRECTORY_PROPERTY);
+    if (configured != null && !configured.trim().isEmpty())
+      return new File(configured.trim());
+    // The local home: each node replays only the notifications it accepted
+    return new File(properties.getHomeDir(), "jenkins-webhook/outbox");
+  }
+
+  /**
+   * Record a notification before it is sent
+   * @param request The notification
+   * @return The id to acknowledge the notification with, or -1 if the
+   * journal is disabled or couldn't be written
+   */
+  public synchronized long append(NotificationRequest request) {
+    if (!open())
+      return -1;
+
+    Entry entry = new Entry(nextId++, request.getRepository().getId(),
+        request.getRef(), request.getSha1(), request.getTargetBranch());
+    try {
+      write(encode(PENDING, entry.id, entry));
+    } catch (IOException e) {
+      LOGGER.error("Unable to journal notification " + entry.key(), e);
+      return -1;
+    }
+    track(entry, head);
+    return entry.id;
+  }
+
+  /**
+   * Record that a notification needs no further attempts. Does nothing if
+   * the notification was superseded or already acknowledged.
+   * @param id The id returned by {@link #append}
+   */
+  public synchronized void acknowledge(long id) {
+    String key = keysById.get(id);
+    if (key == null || head == null)
+      return;
+
+    try {
+      write(encode(ACKNOWLEDGED, id, null));
+    } catch (IOException e) {
+      // Worst case the notification is sent once more after a restart
+      LOGGER.warn("Unable to journal acknowledgement of {}", key, e);
+    }
+    untrack(entries.remove(key));
+    dropAcknowledged();
+  }
+
+  /**
+   * Read the journal and get the notifications that were still pending when
+   * Bitbucket stopped. Notifications of repositories that no longer exist are
+   * acknowledged. The returned notifications carry the id of their entry and
+   * stay pending until they are acknowledged or superseded.
+   * @return The pending notifications, oldest first
+   */
+  public List<NotificationRequest> replay() {
+    List<Entry> pending;
+    synchronized (this) {
+      if (!open())
+        return Collections.emptyList();
+      pending = new ArrayList<Entry>(entries.values());
+    }
+    Collections.sort(pending, Comparator.comparingLong(entry -> entry.id));
+
+    List<NotificationRequest> requests = new ArrayList<NotificationRequest>();
+    for (Entry entry : pending) {
+      Repository repository = findRepository(entry.repositoryId);
+      if (repository == null) {
+        acknowledge(entry.id);
+        continue;
+      }
+      requests.add(new NotificationRequest(repository, entry.ref, entry.sha1,
+          entry.targetBranch, entry.id));
+    }
+    return requests;
+  }
+
+  /**
+   * Gets the number of pending notifications
+   * @return The number of notifications neither acknowledged nor superseded
+   */
+  public synchronized int getPendingCount() {
+    return entries.size();
+  }
+
+  /**
+   * Gets the number of segment files
+   * @return The number of segments on disk
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Look up the repository of a replayed notification. Protected for testing
+   * purposes
+   * @param repositoryId The id of the repository
+   * @return The repository, or null if it no longer exists
+   */
+  protected Repository findRepository(final int repositoryId) {
+    return securityService.withPermission(Permission.REPO_READ,
+        "Replaying Jenkins notifications")
+        .call(() -> repositoryService.getById(repositoryId));
+  }
+
+  @Override
+  public synchronized void destroy() {
+    if (head != null)
+      head.close();
+    head = null;
+    segments.clear();
+    entries.clear();
+    keysById.clear();
+  }
+
+  /**
+   * Open the journal on first use, reading the existing segments and starting
+   * a fresh one to append to.
+   */
+  private boolean open() {
+    if (head != null)
+      return true;
+    if (directory == null || broken)
+      return false;
+
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs())
+        throw new IOException("Unable to create " + directory);
+      for (File file : listSegments()) {
+        Segment segment = new Segment(sequence(file), file);
+        segments.put(segment.sequence, segment);
+        read(segment);
+      }
+      long sequence = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+      head = new Segment(sequence, segmentFile(sequence));
+      head.map(segmentSize);
+      segments.put(sequence, head);
+    } catch (IOException e) {
+      LOGGER.error("Unable to open the notification journal in " + directory
+          + ", pending notifications won't survive a restart", e);
+      broken = true;
+      segments.clear();
+      entries.clear();
+      keysById.clear();
+      head = null;
+      return false;
+    }
+
+    if (!entries.isEmpty())
+      LOGGER.info("Found {} pending notifications in {}", entries.size(),
+          directory);
+    dropAcknowledged();
+    return true;
+  }
+
+  private List<File> listSegments() {
+    File[] files = directory.listFiles((dir, name) ->
+        name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)
+            && sequence(name) > 0);
+    List<File> sorted = new ArrayList<File>();
+    if (files != null)
+      Collections.addAll(sorted, files);
+    Collections.sort(sorted,
+        Comparator.comparingLong(NotificationOutbox::sequence));
+    return sorted;
+  }
+
+  private void read(Segment segment) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = new RandomAccessFile(segment.file, "r")
+        .getChannel()) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    while (buffer.remaining() >= HEADER_LENGTH) {
+      int length = buffer.getInt();
+      int crc = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining())
+        break;
+      byte[] body = new byte[length];
+      buffer.get(body);
+      if (crc != checksum(body)) {
+        LOGGER.warn("Ignoring the torn end of {}", segment.file);
+        break;
+      }
+      apply(body, segment);
+    }
+  }
+
+  private void apply(byte[] body, Segment segment) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    byte type = in.readByte();
+    long id = in.readLong();
+    nextId = Math.max(nextId, id + 1);
+    if (type == PENDING) {
+      track(new Entry(id, in.readInt(), readString(in), readString(in),
+          readString(in)), segment);
+    } else if (type == ACKNOWLEDGED) {
+      String key = keysById.get(id);
+      if (key != null)
+        untrack(entries.remove(key));
+    }
+  }
+
+  private void track(Entry entry, Segment segment) {
+    entry.segment = segment.sequence;
+    segment.live++;
+    untrack(entries.put(entry.key(), entry));
+    keysById.put(entry.id, entry.key());
+  }
+
+  private void untrack(Entry entry) {
+    if (entry == null)
+      return;
+    keysById.remove(entry.id);
+    Segment segment = segments.get(entry.segment);
+    if (segment != null)
+      segment.live--;
+  }
+
+  private void write(byte[] body) throws IOException {
+    if (body.length > segmentSize - HEADER_LENGTH)
+      throw new IOException("Record of " + body.length + " bytes too large");
+    if (!head.fits(body.length))
+      roll();
+    head.append(body, checksum(body));
+  }
+
+  private void roll() throws IOException {
+    head.close();
+    long sequence = head.sequence + 1;
+    Segment next = new Segment(sequence, segmentFile(sequence));
+    next.map(segmentSize);
+    segments.put(sequence, next);
+    head = next;
+    compact();
+  }
+
+  /**
+   * Moves the pending notifications of the oldest segments to the head until
+   * at most {@value #MAX_SEGMENTS} segments are left.
+   */
+  private void compact() throws IOException {
+    dropAcknowledged();
+    while (segments.size() > MAX_SEGMENTS) {
+      Segment oldest = segments.firstEntry().getValue();
+      for (Entry entry : entries.values()) {
+        if (entry.segment != oldest.sequence)
+          continue;
+        byte[] body = encode(PENDING, entry.id, entry);
+        if (!head.fits(body.length))
+          return;
+        head.append(body, checksum(body));
+        oldest.live--;
+        head.live++;
+        entry.segment = head.sequence;
+      }
+      delete(oldest);
+    }
+  }
+
+  private void dropAcknowledged() {
+    Iterator<Segment> oldestFirst = segments.values().iterator();
+    while (oldestFirst.hasNext()) {
+      Segment segment = oldestFirst.next();
+      if (segment == head || segment.live > 0)
+        return;
+      oldestFirst.remove();
+      if (!segment.file.delete())
+        LOGGER.debug("Unable to delete {}", segment.file);
+    }
+  }
+
+  private void delete(Segment segment) {
+    segments.remove(segment.sequence);
+    if (!segment.file.delete())
+      LOGGER.debug("Unable to delete {}", segment.file);
+  }
+
+  private int checksum(byte[] body) {
+    checksum.reset();
+    checksum.update(body, 0, body.length);
+    return (int) checksum.getValue();
+  }
+
+  private static byte[] encode(byte type, long id, Entry entry)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(type);
+    out.writeLong(id);
+    if (entry != null) {
+      out.writeInt(entry.repositoryId);
+      writeString(out, entry.ref);
+      writeString(out, entry.sha1);
+      writeString(out, entry.targetBranch);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null)
+      out.writeUTF(value);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private File segmentFile(long sequence) {
+    return new File(directory,
+        String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+  }
+
+  private static long sequence(File file) {
+    return sequence(file.getName());
+  }
+
+  private static long sequence(String name) {
+    try {
+      return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+          name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * A pending notification
+   */
+  private static final class Entry {
+    private final long id;
+    private final int repositoryId;
+    private final String ref;
+    private final String sha1;
+    private final String targetBranch;
+    private long segment;
+
+    Entry(long id, int repositoryId, String ref, String sha1,
+        String targetBranch) {
+      this.id = id;
+      this.repositoryId = repositoryId;
+      this.ref = ref;
+      this.sha1 = sha1;
+      this.targetBranch = targetBranch;
+    }
+
+    String key() {
+      return repositoryId + ":" + ref;
+    }
+  }
+
+  /**
+   * A segment file. Only the head is mapped, as the others are read once on
+   * start and never written again.
+   */
+  private static final class Segment {
+    private final long sequence;
+    private final File file;
+    private int live;
+    private MappedByteBuffer buffer;
+
+    Segment(long sequence, File file) {
+      this.sequence = sequence;
+      this.file = file;
+    }
+
+    void map(int size) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    boolean fits(int length) {
+      return buffer.remaining() >= HEADER_LENGTH + length;
+    }
+
+    /**
+     * Writes the body before the length, so readers never see a record whose
+     * body isn't there yet.
+     */
+    void append(byte[] body, int crc) {
+      int position = buffer.position();
+      buffer.putInt(position + 4, crc);
+      buffer.position(position + HEADER_LENGTH);
+      buffer.put(body);
+      buffer.putInt(position, body.length);
+    }
+
+    void close() {
+      if (buffer == null)
+        return;
+      buffer.force();
+      buffer = null;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.nerdwin15.stash.webhook.service.outbox;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.nerdwin15.stash.webhook.NotificationRequest;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationCoalescer;
+
+/**
+ * Sends the background notifications that were still pending when
+ * Bitbucket or the plugin stopped, once the plugin has started.
+ *
+ * The journal is read on a worker thread rather than while the plugin is
+ * being enabled, and the notifications go through the
+ * {@link NotificationCoalescer} like new ones, so they are coalesced and
+ * handed over to the node owning their repository in a cluster. Each
+ * notification keeps its journal entry, which is acknowledged once the
+ * notification is handed over or answered, and batches are sent as they were
+ * journaled.
+ */
+public class OutboxReplay implements LifecycleAware, DisposableBean {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(OutboxReplay.class);
+
+  private final NotificationOutbox outbox;
+  private final NotificationCoalescer coalescer;
+  private final ExecutorService worker;
+
+  /**
+   * Create a new instance
+   * @param outbox The journal of pending notifications
+   * @param coalescer Coalesces and sends the notifications
+   */
+  public OutboxReplay(NotificationOutbox outbox,
+      NotificationCoalescer coalescer) {
+    this.outbox = outbox;
+    this.coalescer = coalescer;
+    this.worker = Executors.newSingleThreadExecutor(
+        ThreadFactories.namedThreadFactory("JenkinsWebhookReplay",
+            ThreadFactories.Type.DAEMON));
+  }
+
+  @Override
+  public void onStart() {
+    try {
+      worker.execute(this::replay);
+    } catch (RejectedExecutionException e) {
+      // Stopped before the plugin started, the journal is kept for next time
+    }
+  }
+
+  @Override
+  public void onStop() {
+    worker.shutdownNow();
+  }
+
+  @Override
+  public void destroy() {
+    worker.shutdownNow();
+  }
+
+  /**
+   * Read the journal and submit its pending notifications.
+   * Package-private for testing purposes
+   */
+  void replay() {
+    try {
+      List<NotificationRequest> pending = outbox.replay();
+      if (pending.isEmpty())
+        return;
+      LOGGER.info("Resending {} notifications pending since the last shutdown",
+          pending.size());
+      coalescer.submitAll(pending);
+    } catch (RuntimeException e) {
+      LOGGER.error("Unable to resend the pending notifications", e);
+    }
+  }
+}
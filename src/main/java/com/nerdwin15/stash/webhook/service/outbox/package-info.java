@@ -0,0 +1,4 @@
+/**
+ * On-disk journal keeping pending notifications across restarts
+ */
+package com.nerdwin15.stash.webhook.service.outbox;
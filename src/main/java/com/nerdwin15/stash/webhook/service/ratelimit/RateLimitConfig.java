@@ -0,0 +1,123 @@
+package com.nerdwin15.stash.webhook.service.ratelimit;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+
+/**
+ * The limits shared by the token buckets of all Jenkins instances and
+ * repositories.
+ *
+ * Each Jenkins instance may be sent {@code hostRatePerMinute} notifications
+ * a minute, with bursts of up to {@code hostBurst}, and each repository
+ * {@code repositoryRatePerMinute} with bursts of up to
+ * {@code repositoryBurst}. A rate of 0 or less lifts the limit of its scope.
+ */
+public final class RateLimitConfig {
+
+  /**
+   * Property prefix of the rate limit settings
+   */
+  public static final String PROPERTY_PREFIX =
+      "plugin.webhook.jenkins.ratelimit.";
+
+  /**
+   * Property switching the rate limits on or off
+   */
+  public static final String ENABLED_PROPERTY = PROPERTY_PREFIX + "enabled";
+
+  static final int DEFAULT_HOST_RATE = 600;
+  static final int DEFAULT_HOST_BURST = 100;
+  static final int DEFAULT_REPOSITORY_RATE = 120;
+  static final int DEFAULT_REPOSITORY_BURST = 30;
+
+  /**
+   * The built-in limits
+   */
+  public static final RateLimitConfig DEFAULTS = new RateLimitConfig(true,
+      DEFAULT_HOST_RATE, DEFAULT_HOST_BURST, DEFAULT_REPOSITORY_RATE,
+      DEFAULT_REPOSITORY_BURST);
+
+  private final boolean enabled;
+  private final int hostRatePerMinute;
+  private final int hostBurst;
+  private final int repositoryRatePerMinute;
+  private final int repositoryBurst;
+
+  /**
+   * Create a new instance
+   * @param enabled Are the rate limits used at all?
+   * @param hostRatePerMinute The notifications per minute per Jenkins
+   * instance, 0 or less for no limit
+   * @param hostBurst The notifications a Jenkins instance may be sent at once
+   * @param repositoryRatePerMinute The notifications per minute per
+   * repository, 0 or less for no limit
+   * @param repositoryBurst The notifications a repository may send at once
+   */
+  public RateLimitConfig(boolean enabled, int hostRatePerMinute,
+      int hostBurst, int repositoryRatePerMinute, int repositoryBurst) {
+    this.enabled = enabled;
+    this.hostRatePerMinute = Math.max(0, hostRatePerMinute);
+    this.hostBurst = Math.max(1, hostBurst);
+    this.repositoryRatePerMinute = Math.max(0, repositoryRatePerMinute);
+    this.repositoryBurst = Math.max(1, repositoryBurst);
+  }
+
+  /**
+   * Read the limits from the application properties
+   * @param propertiesService Service used to read the properties
+   * @return The configured limits
+   */
+  public static RateLimitConfig fromProperties(
+      ApplicationPropertiesService propertiesService) {
+    return new RateLimitConfig(
+        propertiesService.getPluginProperty(ENABLED_PROPERTY, true),
+        propertiesService.getPluginProperty(PROPERTY_PREFIX + "host.rate",
+            DEFAULT_HOST_RATE),
+        propertiesService.getPluginProperty(PROPERTY_PREFIX + "host.burst",
+            DEFAULT_HOST_BURST),
+        propertiesService.getPluginProperty(
+            PROPERTY_PREFIX + "repository.rate", DEFAULT_REPOSITORY_RATE),
+        propertiesService.getPluginProperty(
+            PROPERTY_PREFIX + "repository.burst", DEFAULT_REPOSITORY_BURST));
+  }
+
+  /**
+   * Gets the {@code enabled} property.
+   * @return Are the rate limits used at all?
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Gets the {@code hostRatePerMinute} property.
+   * @return The notifications per minute per Jenkins instance, 0 for no
+   * limit
+   */
+  public int getHostRatePerMinute() {
+    return hostRatePerMinute;
+  }
+
+  /**
+   * Gets the {@code hostBurst} property.
+   * @return The notifications a Jenkins instance may be sent at once
+   */
+  public int getHostBurst() {
+    return hostBurst;
+  }
+
+  /**
+   * Gets the {@code repositoryRatePerMinute} property.
+   * @return The notifications per minute per repository, 0 for no limit
+   */
+  public int getRepositoryRatePerMinute() {
+    return repositoryRatePerMinute;
+  }
+
+  /**
+   * Gets the {@code repositoryBurst} property.
+   * @return The notifications a repository may send at once
+   */
+  public int getRepositoryBurst() {
+    return repositoryBurst;
+  }
+}
@@ -0,0 +1,503 @@
+package com.nerdwin15.stash.webhook.service.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Limits the rate of background notifications per Jenkins instance and per
+ * repository, so a mass import or bulk branch creation can't flood Jenkins
+ * with thousands of calls a minute.
+ *
+ * Every notification takes a token from the {@link TokenBucket} of each
+ * Jenkins instance it goes to and of its repository before it is
+ * dispatched. A
+ * notification that finds a bucket empty isn't dropped: it is parked until
+ * all its buckets have a token again, and a newer notification for the same
+ * key replaces the parked one, so only the newest push to a branch is sent.
+ * Parked notifications are dispatched in the order they were parked, and
+ * fresh ones wait behind those of the same repository, and behind those of
+ * a Jenkins instance they share while its bucket is empty. A repository over its
+ * own limit doesn't hold up the other repositories.
+ *
+ * The limits are read from the properties starting with
+ * {@value RateLimitConfig#PROPERTY_PREFIX}. Repositories idle for
+ * {@value #IDLE_MINUTES} minutes give up their bucket, which is full again
+ * by then.
+ */
+public class RateLimiter implements DisposableBean {
+
+  static final long IDLE_MINUTES = 10;
+  private static final long MIN_DRAIN_DELAY_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(RateLimiter.class);
+
+  private final RateLimitConfig config;
+  private final Ticker ticker;
+  private final ConcurrentMap<String, TokenBucket> hosts =
+      new ConcurrentHashMap<String, TokenBucket>();
+  private final Cache<Integer, TokenBucket> repositories;
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  // Guarded by this
+  private final Map<String, Parked> parked =
+      new LinkedHashMap<String, Parked>();
+  private final Map<String, Integer> parkedByHost =
+      new HashMap<String, Integer>();
+  private final Map<Integer, Integer> parkedByRepository =
+      new HashMap<Integer, Integer>();
+  private final Set<String> exhaustedHosts = new HashSet<String>();
+  private ScheduledFuture<?> drain;
+  private long throttledCount;
+  private long coalescedCount;
+
+  /**
+   * Create a new instance
+   * @param propertiesService Service used to read the limits
+   */
+  public RateLimiter(ApplicationPropertiesService propertiesService) {
+    this(RateLimitConfig.fromProperties(propertiesService),
+        Ticker.systemTicker());
+  }
+
+  /**
+   * Create a new instance with explicit limits
+   * @param config The limits of every bucket
+   * @param ticker The time source
+   */
+  public RateLimiter(RateLimitConfig config, Ticker ticker) {
+    this.config = config;
+    this.ticker = ticker;
+    this.repositories = CacheBuilder.newBuilder()
+        .expireAfterAccess(IDLE_MINUTES, TimeUnit.MINUTES)
+        .ticker(ticker)
+        .build();
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+        ThreadFactories.namedThreadFactory("JenkinsWebhookRateLimit",
+            ThreadFactories.Type.DAEMON));
+    this.scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Dispatch a notification once the Jenkins instance and repository have a
+   * token for it
+   * @param jenkinsBase The base URL of the Jenkins instance, may be null
+   * @param repositoryId The id of the repository
+   * @param key Identifies notifications that supersede each other, for
+   * example the repository and branch
+   * @param dispatch Sends the notification
+   * @param superseded Called if a newer notification for the same key
+   * replaces this one while it is parked
+   * @return The future of the notification
+   * @see #submit(List, int, String, Supplier, Runnable)
+   */
+  public Future<NotificationResult> submit(String jenkinsBase,
+      int repositoryId, String key,
+      Supplier<Future<NotificationResult>> dispatch, Runnable superseded) {
+    return submit(jenkinsBase == null ? Collections.<String>emptyList()
+        : Collections.singletonList(jenkinsBase), repositoryId, key, dispatch,
+        superseded);
+  }
+
+  /**
+   * Dispatch a notification once all the Jenkins instances it goes to and
+   * its repository have a token for it
+   * @param jenkinsBases The base URLs of the Jenkins instances
+   * @param repositoryId The id of the repository
+   * @param key Identifies notifications that supersede each other, for
+   * example the repository and branch
+   * @param dispatch Sends the notification
+   * @param superseded Called if a newer notification for the same key
+   * replaces this one while it is parked
+   * @return The future of the notification. If the notification was parked,
+   * it completes once the notification was dispatched and sent. If it
+   * replaced a parked one, it is the future of the parked one.
+   */
+  public Future<NotificationResult> submit(List<String> jenkinsBases,
+      int repositoryId, String key,
+      Supplier<Future<NotificationResult>> dispatch, Runnable superseded) {
+    if (!config.isEnabled())
+      return dispatch.get();
+
+    List<String> hosts = new ArrayList<String>(jenkinsBases.size());
+    for (String jenkinsBase : jenkinsBases) {
+      if (jenkinsBase != null && !hosts.contains(normalize(jenkinsBase)))
+        hosts.add(normalize(jenkinsBase));
+    }
+    Runnable replaced;
+    Parked queued;
+    synchronized (this) {
+      queued = parked.get(key);
+      if (queued == null) {
+        TokenBucket empty = isParked(hosts, repositoryId) ? null
+            : tryAcquire(hosts, repositoryId);
+        if (empty != null || isParked(hosts, repositoryId)) {
+          Parked waiting = new Parked(key, hosts, repositoryId, dispatch,
+              superseded);
+          park(waiting, empty);
+          return waiting;
+        }
+        replaced = null;
+      } else {
+        replaced = queued.superseded;
+        queued.dispatch = dispatch;
+        queued.superseded = superseded;
+        coalescedCount++;
+      }
+    }
+    // Dispatch outside the lock, the executor may send on this thread
+    if (queued == null)
+      return dispatch.get();
+    LOGGER.debug("Coalesced rate limited notification for {}", key);
+    replaced.run();
+    return queued;
+  }
+
+  /**
+   * Get the bucket of a Jenkins instance without creating it
+   * @param jenkinsBase The base URL of the Jenkins instance
+   * @return The bucket, or null if the instance wasn't notified yet or
+   * isn't limited
+   */
+  public TokenBucket findHost(String jenkinsBase) {
+    return jenkinsBase == null ? null : hosts.get(normalize(jenkinsBase));
+  }
+
+  /**
+   * Get the bucket of a repository without creating it
+   * @param repositoryId The id of the repository
+   * @return The bucket, or null if the repository didn't notify recently or
+   * isn't limited
+   */
+  public TokenBucket findRepository(int repositoryId) {
+    return repositories.getIfPresent(repositoryId);
+  }
+
+  /**
+   * Gets the number of notifications parked for a Jenkins instance
+   * @param jenkinsBase The base URL of the Jenkins instance
+   * @return The number of parked notifications
+   */
+  public synchronized int getParkedForHost(String jenkinsBase) {
+    Integer count = jenkinsBase == null ? null
+        : parkedByHost.get(normalize(jenkinsBase));
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Gets the number of notifications parked for a repository
+   * @param repositoryId The id of the repository
+   * @return The number of parked notifications
+   */
+  public synchronized int getParkedForRepository(int repositoryId) {
+    Integer count = parkedByRepository.get(repositoryId);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Gets the number of parked notifications
+   * @return The number of parked notifications
+   */
+  public synchronized int getParkedCount() {
+    return parked.size();
+  }
+
+  /**
+   * Gets the number of notifications that had to be parked
+   * @return The throttled count
+   */
+  public synchronized long getThrottledCount() {
+    return throttledCount;
+  }
+
+  /**
+   * Gets the number of notifications that replaced a parked one
+   * @return The coalesced count
+   */
+  public synchronized long getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /**
+   * Gets the limits of the buckets
+   * @return The limits
+   */
+  public RateLimitConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * Dispatches the parked notifications whose buckets have a token again.
+   * Package-private for testing purposes.
+   */
+  void drain() {
+    List<Parked> ready = new ArrayList<Parked>();
+    synchronized (this) {
+      drain = null;
+      exhaustedHosts.clear();
+      Set<Integer> blockedRepositories = new HashSet<Integer>();
+      long nextWait = Long.MAX_VALUE;
+      for (Iterator<Parked> it = parked.values().iterator(); it.hasNext();) {
+        Parked waiting = it.next();
+        // Keep the order: nothing goes ahead of a notification blocked on
+        // the same bucket
+        if (!Collections.disjoint(exhaustedHosts, waiting.hosts)
+            || blockedRepositories.contains(waiting.repositoryId))
+          continue;
+        TokenBucket empty = tryAcquire(waiting.hosts, waiting.repositoryId);
+        if (empty == null) {
+          it.remove();
+          unpark(waiting);
+          ready.add(waiting);
+          continue;
+        }
+        if (!exhaust(waiting.hosts, empty))
+          blockedRepositories.add(waiting.repositoryId);
+        nextWait = Math.min(nextWait, empty.getWaitNanos());
+      }
+      if (!parked.isEmpty())
+        scheduleDrain(nextWait);
+    }
+    for (Parked waiting : ready)
+      waiting.dispatch();
+  }
+
+  @Override
+  public void destroy() {
+    scheduler.shutdownNow();
+    List<Parked> dropped;
+    synchronized (this) {
+      dropped = new ArrayList<Parked>(parked.values());
+      parked.clear();
+      parkedByHost.clear();
+      parkedByRepository.clear();
+      exhaustedHosts.clear();
+    }
+    // Still journaled, so sent again on the next start
+    for (Parked waiting : dropped)
+      waiting.cancelled();
+  }
+
+  /**
+   * Park a notification until the empty bucket, or the notifications it
+   * waits behind, let it through
+   */
+  private void park(Parked waiting, TokenBucket empty) {
+    parked.put(waiting.key, waiting);
+    if (empty != null)
+      exhaust(waiting.hosts, empty);
+    for (String host : waiting.hosts)
+      parkedByHost.merge(host, 1, Integer::sum);
+    parkedByRepository.merge(waiting.repositoryId, 1, Integer::sum);
+    throttledCount++;
+    LOGGER.debug("Rate limit reached, parked notification for {}",
+        waiting.key);
+    scheduleDrain(empty == null ? 0 : empty.getWaitNanos());
+  }
+
+  private void unpark(Parked waiting) {
+    for (String host : waiting.hosts) {
+      parkedByHost.computeIfPresent(host,
+          (name, count) -> count > 1 ? count - 1 : null);
+    }
+    parkedByRepository.computeIfPresent(waiting.repositoryId,
+        (id, count) -> count > 1 ? count - 1 : null);
+  }
+
+  private boolean isParked(List<String> hosts, int repositoryId) {
+    return !Collections.disjoint(exhaustedHosts, hosts)
+        || parkedByRepository.containsKey(repositoryId);
+  }
+
+  /**
+   * Marks the host of the empty bucket as exhausted
+   * @return False if the empty bucket is the repository's
+   */
+  private boolean exhaust(List<String> hosts, TokenBucket empty) {
+    for (String host : hosts) {
+      if (empty == hostBucket(host)) {
+        exhaustedHosts.add(host);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Take a token from every bucket, or from none
+   * @return The bucket that had no token, or null if the tokens were taken
+   */
+  private TokenBucket tryAcquire(List<String> hosts, int repositoryId) {
+    List<TokenBucket> taken = new ArrayList<TokenBucket>(hosts.size());
+    TokenBucket empty = null;
+    for (String host : hosts) {
+      TokenBucket hostBucket = hostBucket(host);
+      if (hostBucket == null)
+        continue;
+      if (!hostBucket.tryAcquire()) {
+        empty = hostBucket;
+        break;
+      }
+      taken.add(hostBucket);
+    }
+    if (empty == null) {
+      TokenBucket repositoryBucket = repositoryBucket(repositoryId);
+      if (repositoryBucket != null && !repositoryBucket.tryAcquire())
+        empty = repositoryBucket;
+    }
+    if (empty != null) {
+      for (TokenBucket bucket : taken)
+        bucket.refund();
+    }
+    return empty;
+  }
+
+  private void scheduleDrain(long delayNanos) {
+    long delay = Math.max(MIN_DRAIN_DELAY_NANOS, delayNanos);
+    if (drain != null) {
+      if (drain.getDelay(TimeUnit.NANOSECONDS) <= delay)
+        return;
+      drain.cancel(false);
+    }
+    if (!scheduler.isShutdown())
+      drain = scheduler.schedule(this::drain, delay, TimeUnit.NANOSECONDS);
+  }
+
+  private TokenBucket hostBucket(String host) {
+    if (host == null || config.getHostRatePerMinute() == 0)
+      return null;
+    return hosts.computeIfAbsent(host, name -> new TokenBucket(name,
+        config.getHostRatePerMinute(), config.getHostBurst(), ticker));
+  }
+
+  private TokenBucket repositoryBucket(final int repositoryId) {
+    if (config.getRepositoryRatePerMinute() == 0)
+      return null;
+    try {
+      return repositories.get(repositoryId, () -> new TokenBucket(
+          String.valueOf(repositoryId), config.getRepositoryRatePerMinute(),
+          config.getRepositoryBurst(), ticker));
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private static String normalize(String jenkinsBase) {
+    return jenkinsBase.endsWith("/")
+        ? jenkinsBase.substring(0, jenkinsBase.length() - 1) : jenkinsBase;
+  }
+
+  /**
+   * A parked notification. Its future follows the future of the dispatched
+   * notification once it was dispatched, and can't be cancelled before.
+   */
+  private static final class Parked implements Future<NotificationResult> {
+    private final String key;
+    private final List<String> hosts;
+    private final int repositoryId;
+    private final CountDownLatch dispatched = new CountDownLatch(1);
+    // Replaced while parked, guarded by the limiter
+    private Supplier<Future<NotificationResult>> dispatch;
+    private Runnable superseded;
+    private volatile Future<NotificationResult> delegate;
+
+    Parked(String key, List<String> hosts, int repositoryId,
+        Supplier<Future<NotificationResult>> dispatch, Runnable superseded) {
+      this.key = key;
+      this.hosts = hosts;
+      this.repositoryId = repositoryId;
+      this.dispatch = dispatch;
+      this.superseded = superseded;
+    }
+
+    /**
+     * Dispatch the newest notification, once no longer parked
+     */
+    void dispatch() {
+      try {
+        delegate = dispatch.get();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Unable to dispatch rate limited notification for {}",
+            key, e);
+        CompletableFuture<NotificationResult> failed =
+            new CompletableFuture<NotificationResult>();
+        failed.completeExceptionally(e);
+        delegate = failed;
+      }
+      dispatched.countDown();
+    }
+
+    void cancelled() {
+      CompletableFuture<NotificationResult> cancelled =
+          new CompletableFuture<NotificationResult>();
+      cancelled.cancel(false);
+      delegate = cancelled;
+      dispatched.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      Future<NotificationResult> sent = delegate;
+      return sent != null && sent.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      Future<NotificationResult> sent = delegate;
+      return sent != null && sent.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      Future<NotificationResult> sent = delegate;
+      return sent != null && sent.isDone();
+    }
+
+    @Override
+    public NotificationResult get()
+        throws InterruptedException, ExecutionException {
+      dispatched.await();
+      return delegate.get();
+    }
+
+    @Override
+    public NotificationResult get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      if (!dispatched.await(timeout, unit))
+        throw new TimeoutException();
+      return delegate.get(Math.max(0, deadline - System.nanoTime()),
+          TimeUnit.NANOSECONDS);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.nerdwin15.stash.webhook.service.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+/**
+ * A token bucket allowing a sustained rate of notifications with bursts.
+ *
+ * The bucket holds up to {@code burst} tokens and starts full. Every
+ * notification takes a token, and tokens are added back at
+ * {@code ratePerMinute}, spread evenly over the minute. Tokens are topped up
+ * lazily whenever the bucket is used, so an idle bucket costs nothing.
+ *
+ * The bucket is guarded by its own monitor.
+ */
+public class TokenBucket {
+
+  private static final long NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+  private final String name;
+  private final int burst;
+  private final int ratePerMinute;
+  private final double nanosPerToken;
+  private final Ticker ticker;
+
+  private double tokens;
+  private long refilledAt;
+
+  /**
+   * Create a new, full bucket
+   * @param name The name used in the limiter state, such as the Jenkins
+   * base URL
+   * @param ratePerMinute The number of tokens added per minute
+   * @param burst The maximum number of tokens held
+   * @param ticker The time source
+   */
+  public TokenBucket(String name, int ratePerMinute, int burst,
+      Ticker ticker) {
+    this.name = name;
+    this.ratePerMinute = Math.max(1, ratePerMinute);
+    this.burst = Math.max(1, burst);
+    this.nanosPerToken = (double) NANOS_PER_MINUTE / this.ratePerMinute;
+    this.ticker = ticker;
+    this.tokens = this.burst;
+    this.refilledAt = ticker.read();
+  }
+
+  /**
+   * Take a token if one is available
+   * @return True if a token was taken
+   */
+  public synchronized boolean tryAcquire() {
+    refill();
+    if (tokens < 1)
+      return false;
+    tokens -= 1;
+    return true;
+  }
+
+  /**
+   * Put back a token taken by {@link #tryAcquire()} that wasn't used
+   */
+  public synchronized void refund() {
+    tokens = Math.min(burst, tokens + 1);
+  }
+
+  /**
+   * Gets the time until a token is available
+   * @return The time in nanoseconds, 0 if a token is available now
+   */
+  public synchronized long getWaitNanos() {
+    refill();
+    return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * nanosPerToken);
+  }
+
+  /**
+   * Gets the number of whole tokens available
+   * @return The available tokens
+   */
+  public synchronized int getAvailableTokens() {
+    refill();
+    return (int) tokens;
+  }
+
+  /**
+   * Gets the name of the bucket
+   * @return The name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the maximum number of tokens held
+   * @return The burst size
+   */
+  public int getBurst() {
+    return burst;
+  }
+
+  /**
+   * Gets the number of tokens added per minute
+   * @return The sustained rate
+   */
+  public int getRatePerMinute() {
+    return ratePerMinute;
+  }
+
+  private void refill() {
+    long now = ticker.read();
+    long elapsed = now - refilledAt;
+    if (elapsed <= 0)
+      return;
+    tokens = Math.min(burst, tokens + elapsed / nanosPerToken);
+    refilledAt = now;
+  }
+}
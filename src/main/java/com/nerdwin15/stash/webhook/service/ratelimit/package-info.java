@@ -0,0 +1,5 @@
+/**
+ * Token buckets that limit the rate of notifications per Jenkins instance
+ * and per repository
+ */
+package com.nerdwin15.stash.webhook.service.ratelimit;
@@ -0,0 +1,83 @@
+package com.nerdwin15.stash.webhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.NotificationResult.Status;
+
+/**
+ * Test case for the {@link CompositeNotificationResult} class.
+ */
+public class CompositeNotificationResultTest {
+
+  /**
+   * Validate that the result is successful if every instance scheduled the
+   * polling
+   */
+  @Test
+  public void shouldSucceedWhenEveryTargetSucceeded() {
+    Map<String, NotificationResult> results =
+        new LinkedHashMap<String, NotificationResult>();
+    results.put("http://a", new NotificationResult(true, "http://a/x", "ok"));
+    results.put("http://b", new NotificationResult(true, "http://b/x", "ok"));
+
+    CompositeNotificationResult result =
+        new CompositeNotificationResult(results);
+
+    assertTrue(result.isSuccessful());
+    assertEquals("http://a/x http://b/x", result.getUrl());
+    assertEquals("http://a: ok\nhttp://b: ok", result.getMessage());
+    assertEquals(Collections.emptyList(), result.getRetryableTargets());
+  }
+
+  /**
+   * Validate that a failure that may go away wins over one that won't, so
+   * the notification is retried for the instances that may take it
+   */
+  @Test
+  public void shouldPreferRetryableFailure() {
+    Map<String, NotificationResult> results =
+        new LinkedHashMap<String, NotificationResult>();
+    results.put("http://a", new NotificationResult(true, "http://a/x", "ok"));
+    results.put("http://b", new NotificationResult(false, "http://b/x",
+        "no job"));
+    results.put("http://c", new NotificationResult(Status.TIMEOUT, null,
+        "timed out"));
+
+    CompositeNotificationResult result =
+        new CompositeNotificationResult(results);
+
+    assertFalse(result.isSuccessful());
+    assertEquals(Status.TIMEOUT, result.getStatus());
+    assertTrue(result.isRetryable());
+    assertEquals("http://a/x http://b/x", result.getUrl());
+    assertEquals(Arrays.asList("http://c"), result.getRetryableTargets());
+  }
+
+  /**
+   * Validate that a failure that won't go away isn't retried
+   */
+  @Test
+  public void shouldTakeFirstFailure() {
+    Map<String, NotificationResult> results =
+        new LinkedHashMap<String, NotificationResult>();
+    results.put("http://a", new NotificationResult(true, "http://a/x", "ok"));
+    results.put("http://b", new NotificationResult(false, "http://b/x",
+        "no job"));
+
+    CompositeNotificationResult result =
+        new CompositeNotificationResult(results);
+
+    assertEquals(Status.FAILURE, result.getStatus());
+    assertFalse(result.isRetryable());
+    assertEquals(2, result.getResults().size());
+  }
+}
@@ -3,26 +3,72 @@ package com.nerdwin15.stash.webhook;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
 
 import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
 import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
 import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
-import com.atlassian.bitbucket.hook.repository.RepositoryHook;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.bitbucket.util.Operation;
+import com.google.common.base.Ticker;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.cache.memory.MemoryCacheManager;
+import com.nerdwin15.stash.webhook.service.AsyncHttpClientFactory;
+import com.nerdwin15.stash.webhook.service.ConcreteCloneUrlService;
+import com.nerdwin15.stash.webhook.service.ConcreteNotificationUrlBuilder;
+import com.nerdwin15.stash.webhook.service.DefaultBranchService;
 import com.nerdwin15.stash.webhook.service.HttpClientFactory;
+import com.nerdwin15.stash.webhook.service.HttpTimeouts;
+import com.nerdwin15.stash.webhook.service.PrefixResponseConsumer;
+import com.nerdwin15.stash.webhook.service.ResponsePrefix;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreakerConfig;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreakerRegistry;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationExecutor;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationExecutor.Priority;
+import com.nerdwin15.stash.webhook.service.dispatch.RetryScheduler;
+import com.nerdwin15.stash.webhook.service.dispatch.ScatterGather;
+import com.nerdwin15.stash.webhook.service.history.DeliveryHistory;
+import com.nerdwin15.stash.webhook.service.history.DeliveryRecord;
+import com.nerdwin15.stash.webhook.service.metrics.NotificationMetrics;
+import com.nerdwin15.stash.webhook.service.metrics.NotificationStats;
+import com.nerdwin15.stash.webhook.service.outbox.NotificationOutbox;
+import com.nerdwin15.stash.webhook.service.ratelimit.RateLimitConfig;
+import com.nerdwin15.stash.webhook.service.ratelimit.RateLimiter;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 import org.mockito.invocation.InvocationOnMock;
@@ -45,16 +91,26 @@ public class NotifierTest {
       "http://custom.host/custom.git";
 
   private HttpClientFactory httpClientFactory;
+  private AsyncHttpClientFactory asyncHttpClientFactory;
+  private ApplicationPropertiesService propertiesService;
+  private CircuitBreakerRegistry breakers;
+  private RetryScheduler retries;
+  private NotificationOutbox outbox;
+  private NotificationMetrics metrics;
+  private DeliveryHistory history;
   private HttpClient httpClient;
   private ClientConnectionManager connectionManager;
   private Repository repo;
-  private RepositoryHook repoHook;
   private Settings settings;
   private SettingsService settingsService;
   private Notifier notifier;
   private SecurityService securityService;
   private SshScmProtocol sshScmProtocol;
   private HttpScmProtocol httpScmProtocol;
+  private NotificationExecutor executor;
+  private DefaultBranchService defaultBranches;
+  private RateLimiter limiter;
+  private ScatterGather scatterGather;
 
   /**
    * Setup tasks
@@ -86,19 +142,36 @@ public class NotifierTest {
 
     sshScmProtocol = mock(SshScmProtocol.class);
     httpScmProtocol = mock(HttpScmProtocol.class);
-    notifier = new Notifier(settingsService, httpClientFactory, securityService, sshScmProtocol, httpScmProtocol);
+    executor = mock(NotificationExecutor.class);
+    defaultBranches = mock(DefaultBranchService.class);
+    asyncHttpClientFactory = mock(AsyncHttpClientFactory.class);
+    propertiesService = mock(ApplicationPropertiesService.class);
+    breakers = new CircuitBreakerRegistry(new CircuitBreakerConfig(true, 2, 2,
+        50, 0, 1000, 60000, 1), Ticker.systemTicker());
+    limiter = new RateLimiter(new RateLimitConfig(false, 0, 1, 0, 1),
+        Ticker.systemTicker());
+    retries = mock(RetryScheduler.class);
+    scatterGather = new ScatterGather(5000);
+    outbox = mock(NotificationOutbox.class);
+    metrics = new NotificationMetrics(null, null, null, null, false, false);
+    history = new DeliveryHistory(10, 10);
+    notifier = new Notifier(settingsService, httpClientFactory,
+        asyncHttpClientFactory, new ConcreteCloneUrlService(securityService,
+            sshScmProtocol, httpScmProtocol, new MemoryCacheManager(), 100,
+            300), executor,
+        scatterGather, defaultBranches, breakers, limiter, retries, outbox,
+        new ConcreteNotificationUrlBuilder(100), metrics, history,
+        propertiesService);
 
     repo = mock(Repository.class);
-    repoHook = mock(RepositoryHook.class);
     settings = mock(Settings.class);
     httpClient = mock(HttpClient.class);
     connectionManager = mock(ClientConnectionManager.class);
 
-    when(repoHook.isEnabled()).thenReturn(true);
-    when(settingsService.getRepositoryHook(repo)).thenReturn(repoHook);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
     when(httpClientFactory
-        .getHttpClient(any(Boolean.class), any(Boolean.class)))
+        .getHttpClient(any(String.class), any(Boolean.class)))
         .thenReturn(httpClient);
     when(httpClient.getConnectionManager()).thenReturn(connectionManager);
 
@@ -113,39 +186,40 @@ public class NotifierTest {
   }
 
   /**
-   * Validates nothing happens if the hook isn't found
+   * Validates that nothing happens if the hook is disabled
    * @throws Exception
    */
   @Test
-  public void shouldReturnEarlyWhenHookIsNull() throws Exception {
-    when(settingsService.getRepositoryHook(repo)).thenReturn(null);
+  public void shouldReturnEarlyWhenHookIsNotEnabled() throws Exception {
+    WebhookSettings disabled = new WebhookSettings(false, settings);
+    doReturn(disabled).when(settingsService).getWebhookSettings(repo);
     notifier.notify(repo, "refs/heads/master", "sha1", "refs/heads/master");
     verify(httpClientFactory, never())
-      .getHttpClient(anyBoolean(), anyBoolean());
+        .getHttpClient(anyString(), anyBoolean());
   }
 
   /**
-   * Validates that nothing happens if the hook is disabled
+   * Validates that nothing happens if the settings aren't set properly
    * @throws Exception
    */
   @Test
-  public void shouldReturnEarlyWhenHookIsNotEnabled() throws Exception {
-    when(repoHook.isEnabled()).thenReturn(false);
+  public void shouldReturnEarlyWhenSettingsAreNull() throws Exception {
+    doReturn(null).when(settingsService).getWebhookSettings(repo);
     notifier.notify(repo, "refs/heads/master", "sha1", "refs/heads/master");
     verify(httpClientFactory, never())
-        .getHttpClient(anyBoolean(), anyBoolean());
+      .getHttpClient(anyString(), anyBoolean());
   }
 
   /**
-   * Validates that nothing happens if the settings aren't set properly
+   * Validates that the pooled clients are closed when the notifier is
+   * destroyed
    * @throws Exception
    */
   @Test
-  public void shouldReturnEarlyWhenSettingsAreNull() throws Exception {
-    when(settingsService.getSettings(repo)).thenReturn(null);
-    notifier.notify(repo, "refs/heads/master", "sha1", "refs/heads/master");
-    verify(httpClientFactory, never())
-      .getHttpClient(anyBoolean(), anyBoolean());
+  public void shouldShutdownClientFactoryOnDestroy() throws Exception {
+    notifier.destroy();
+    verify(httpClientFactory, times(1)).shutdown();
+    verify(asyncHttpClientFactory, times(1)).shutdown();
   }
 
   /**
@@ -159,9 +233,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -181,9 +255,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=ssh%3A%2F%2Fgit%40some.stash.com%3A12345%2Ffoo%2Fbar.git"
@@ -205,9 +279,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fcustom.host%2Fcustom.git"
@@ -229,9 +303,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fcustom.host%2Fcustom.git"
@@ -263,9 +337,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?" 
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -287,9 +361,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(true, false);
+    verify(httpClientFactory, times(1)).getHttpClient(
+        JENKINS_BASE_URL.replace("http", "https"), false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("https://localhost.jenkins/git/notifyCommit?" 
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -313,9 +388,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(true, true);
+    verify(httpClientFactory, times(1)).getHttpClient(
+        JENKINS_BASE_URL.replace("http", "https"), true);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("https://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -339,9 +415,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -363,9 +439,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -386,9 +462,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-   verify(httpClientFactory, times(1)).getHttpClient(false, false);
+   verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
    verify(httpClient, times(1)).execute(captor.capture());
-   verify(connectionManager, times(1)).shutdown();
+   verify(connectionManager, never()).shutdown();
 
    assertEquals("http://localhost.jenkins/git/notifyCommit?"
        + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -410,9 +486,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -433,9 +509,9 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-   verify(httpClientFactory, times(1)).getHttpClient(false, false);
+   verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
    verify(httpClient, times(1)).execute(captor.capture());
-   verify(connectionManager, times(1)).shutdown();
+   verify(connectionManager, never()).shutdown();
 
    assertEquals("http://localhost.jenkins/git/notifyCommit?"
        + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -456,13 +532,768 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
         + "&branches=refs%2Fheads%2Fmaster&TARGET_BRANCH=master",
         captor.getValue().getURI().toString());
   }
+
+  /**
+   * Validates that all branches are sent in one request without hash codes
+   * when batching is on
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldBatchBranchesWhenEnabled() throws Exception {
+    when(settings.getBoolean(Notifier.BATCH_BRANCHES, false)).thenReturn(true);
+    notifier.notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master"),
+        new NotificationRequest(repo, "feature/a", "sha2", "feature/a")));
+
+    ArgumentCaptor<Callable> workCaptor = ArgumentCaptor.forClass(Callable.class);
+    verify(executor, times(1)).submit(anyString(), any(Priority.class),
+        anyString(), workCaptor.capture(), any(Runnable.class));
+    workCaptor.getValue().call();
+
+    ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
+    verify(httpClient, times(1)).execute(captor.capture());
+    assertEquals("http://localhost.jenkins/git/notifyCommit?"
+        + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
+        + "&branches=master%2Cfeature%2Fa",
+        captor.getValue().getURI().toString());
+  }
+
+  /**
+   * Validates that a pull request flushed in the same window as a push is
+   * sent on its own, keeping its commit and target branch
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldNotBatchPullRequests() throws Exception {
+    when(settings.getBoolean(Notifier.BATCH_BRANCHES, false)).thenReturn(true);
+    notifier.notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "feature/a", "sha1", "feature/a"),
+        new NotificationRequest(repo, "pr/7/from", "sha1", "master"),
+        new NotificationRequest(repo, "feature/b", "sha2", "feature/b")));
+
+    ArgumentCaptor<Callable> workCaptor = ArgumentCaptor.forClass(Callable.class);
+    verify(executor, times(2)).submit(anyString(), any(Priority.class),
+        anyString(), workCaptor.capture(), any(Runnable.class));
+    for (Callable work : workCaptor.getAllValues())
+      work.call();
+
+    ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
+    verify(httpClient, times(2)).execute(captor.capture());
+    assertEquals("http://localhost.jenkins/git/notifyCommit?"
+        + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
+        + "&branches=pr%2F7%2Ffrom&sha1=sha1&TARGET_BRANCH=master",
+        captor.getAllValues().get(0).getURI().toString());
+    assertEquals("http://localhost.jenkins/git/notifyCommit?"
+        + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
+        + "&branches=feature%2Fa%2Cfeature%2Fb",
+        captor.getAllValues().get(1).getURI().toString());
+  }
+
+  /**
+   * Validates that journaled requests keep their entry, that a batch
+   * replayed from the journal is sent as it is, and that the entries of
+   * batched requests are acknowledged once their batch is journaled
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldKeepJournalEntriesOfRequests() throws Exception {
+    when(repo.getId()).thenReturn(1);
+    when(settings.getBoolean(Notifier.BATCH_BRANCHES, false)).thenReturn(true);
+    notifier.notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "a,b", null, null, 5),
+        new NotificationRequest(repo, "c", "sha1", "c", 6),
+        new NotificationRequest(repo, "d", "sha2", "d", 7)));
+
+    verify(executor).submit(eq("1"), any(Priority.class), eq("1:a,b"),
+        any(Callable.class), any(Runnable.class));
+    verify(executor).submit(eq("1"), any(Priority.class), eq("1:c,d"),
+        any(Callable.class), any(Runnable.class));
+    verify(outbox, times(1)).append(any(NotificationRequest.class));
+    verify(outbox).append(new NotificationRequest(repo, "c,d", null, null));
+    verify(outbox).acknowledge(6);
+    verify(outbox).acknowledge(7);
+    verify(outbox, never()).acknowledge(5);
+  }
+
+  /**
+   * Validates that each branch is sent on its own when batching is off
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldNotBatchBranchesWhenDisabled() throws Exception {
+    notifier.notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master"),
+        new NotificationRequest(repo, "feature/a", "sha2", "feature/a")));
+
+    verify(executor, times(2)).submit(anyString(), any(Priority.class),
+        anyString(), any(Callable.class), any(Runnable.class));
+  }
+
+  /**
+   * Validates that batched branches are split to keep the URL short
+   */
+  @Test
+  public void shouldSplitBatchesAtLengthLimit() {
+    List<NotificationRequest> requests = new ArrayList<NotificationRequest>();
+    char[] name = new char[Notifier.MAX_BATCH_BRANCHES_LENGTH / 3];
+    Arrays.fill(name, 'b');
+    for (int i = 0; i < 5; i++)
+      requests.add(new NotificationRequest(repo, i + new String(name), null, null));
+
+    List<String> batches = notifier.joinBranches(requests);
+
+    assertEquals(3, batches.size());
+    assertEquals(2, batches.get(0).split(",").length);
+    assertEquals(2, batches.get(1).split(",").length);
+    assertEquals(1, batches.get(2).split(",").length);
+  }
+
+  /**
+   * Validates that the repository timeouts are set on the request, falling
+   * back to the global timeouts, rather than getting a client of their own
+   * @throws Exception
+   */
+  @Test
+  public void shouldUseRepositoryTimeouts() throws Exception {
+    when(settings.getString(Notifier.CONNECT_TIMEOUT)).thenReturn("1500");
+    when(settings.getString(Notifier.SOCKET_TIMEOUT)).thenReturn(" 3000 ");
+    notifier.notify(repo, "refs/heads/master", "sha1", "master");
+
+    verify(httpClientFactory, times(1)).getHttpClient(JENKINS_BASE_URL, false);
+    ArgumentCaptor<HttpGet> request = ArgumentCaptor.forClass(HttpGet.class);
+    verify(httpClient).execute(request.capture());
+    RequestConfig config = request.getValue().getConfig();
+    assertEquals(1500, config.getConnectTimeout());
+    assertEquals(3000, config.getSocketTimeout());
+    assertEquals(HttpTimeouts.DEFAULTS.getPoolTimeout().intValue(),
+        config.getConnectionRequestTimeout());
+  }
+
+  /**
+   * Validates that a timeout is reported with its own status
+   * @throws Exception
+   */
+  @Test
+  public void shouldReportTimeouts() throws Exception {
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new SocketTimeoutException("Read timed out"));
+
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1", "master");
+
+    assertFalse(result.isSuccessful());
+    assertTrue(result.isTimedOut());
+    assertEquals(NotificationResult.Status.TIMEOUT, result.getStatus());
+  }
+
+  /**
+   * Validates that notifications stop once the circuit of a failing Jenkins
+   * instance opens
+   * @throws Exception
+   */
+  @Test
+  public void shouldShortCircuitWhenJenkinsKeepsFailing() throws Exception {
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new IOException("Connection refused"));
+
+    notifier.notify(repo, "refs/heads/master", "sha1", "master");
+    notifier.notify(repo, "refs/heads/master", "sha1", "master");
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1", "master");
+
+    assertEquals(NotificationResult.Status.CIRCUIT_OPEN, result.getStatus());
+    verify(httpClient, times(2)).execute(any(HttpGet.class));
+  }
+
+  /**
+   * Validates that other errors are not reported as timeouts
+   * @throws Exception
+   */
+  @Test
+  public void shouldReportFailures() throws Exception {
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new IOException("Connection refused"));
+
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1", "master");
+
+    assertEquals(NotificationResult.Status.ERROR, result.getStatus());
+    assertFalse(result.isTimedOut());
+  }
+
+  /**
+   * Validates that a background notification that couldn't reach Jenkins is
+   * retried
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldScheduleRetryWhenJenkinsUnreachable() throws Exception {
+    Object token = new Object();
+    when(retries.begin("1:master")).thenReturn(token);
+    when(retries.schedule(anyString(), any(), anyInt(), any(Runnable.class)))
+        .thenReturn(true);
+    when(repo.getId()).thenReturn(1);
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new IOException("Connection refused"));
+
+    notifier.notifyBackground(repo, "master", "sha1", "master");
+    ArgumentCaptor<Callable> workCaptor = ArgumentCaptor.forClass(Callable.class);
+    verify(executor).submit(eq("1"), eq(Priority.NORMAL), eq("1:master"),
+        workCaptor.capture(), any(Runnable.class));
+    workCaptor.getValue().call();
+
+    ArgumentCaptor<Runnable> retryCaptor =
+        ArgumentCaptor.forClass(Runnable.class);
+    verify(retries).schedule(eq("1:master"), same(token), eq(1),
+        retryCaptor.capture());
+    verify(outbox, never()).acknowledge(anyLong());
+
+    retryCaptor.getValue().run();
+    verify(executor, times(2)).submit(eq("1"), eq(Priority.NORMAL),
+        eq("1:master"), any(Callable.class), any(Runnable.class));
+    verify(retries, times(1)).begin("1:master");
+  }
+
+  /**
+   * Validates that a notification Jenkins answered is not retried
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldNotRetryWhenJenkinsAnswered() throws Exception {
+    Object token = new Object();
+    when(retries.begin("1:master")).thenReturn(token);
+    when(outbox.append(any(NotificationRequest.class))).thenReturn(7L);
+    when(repo.getId()).thenReturn(1);
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200,
+        "OK");
+    response.setEntity(new StringEntity("No git jobs using repository"));
+    when(httpClient.execute(any(HttpGet.class))).thenReturn(response);
+
+    notifier.notifyBackground(repo, "master", "sha1", "master");
+    ArgumentCaptor<Callable> workCaptor = ArgumentCaptor.forClass(Callable.class);
+    verify(executor).submit(eq("1"), eq(Priority.NORMAL), eq("1:master"),
+        workCaptor.capture(), any(Runnable.class));
+    NotificationResult result = (NotificationResult) workCaptor.getValue().call();
+
+    assertEquals(NotificationResult.Status.FAILURE, result.getStatus());
+    verify(retries).complete("1:master", token);
+    verify(outbox).acknowledge(7L);
+    verify(retries, never()).schedule(anyString(), any(), anyInt(),
+        any(Runnable.class));
+  }
+
+  /**
+   * Validates that a notification dropped from a full queue has its journal
+   * entry acknowledged and its retry state released
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldAcknowledgeDroppedNotification() throws Exception {
+    Object token = new Object();
+    when(retries.begin("1:master")).thenReturn(token);
+    when(outbox.append(any(NotificationRequest.class))).thenReturn(5L);
+    when(repo.getId()).thenReturn(1);
+
+    notifier.notifyBackground(repo, "master", "sha1", "master");
+    ArgumentCaptor<Runnable> droppedCaptor =
+        ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).submit(eq("1"), eq(Priority.NORMAL), eq("1:master"),
+        any(Callable.class), droppedCaptor.capture());
+    verify(outbox, never()).acknowledge(anyLong());
+
+    droppedCaptor.getValue().run();
+    verify(retries).complete("1:master", token);
+    verify(outbox).acknowledge(5L);
+  }
+
+  /**
+   * Validates that each attempt of a background notification is recorded in
+   * the history of its repository
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldRecordAttemptsInHistory() throws Exception {
+    when(repo.getId()).thenReturn(1);
+    when(retries.schedule(anyString(), any(), anyInt(), any(Runnable.class)))
+        .thenReturn(true);
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new IOException("Connection refused"));
+
+    notifier.notifyBackground(repo, "master", "sha1", "target");
+    ArgumentCaptor<Callable> workCaptor = ArgumentCaptor.forClass(Callable.class);
+    verify(executor).submit(eq("1"), eq(Priority.NORMAL), eq("1:master"),
+        workCaptor.capture(), any(Runnable.class));
+    workCaptor.getValue().call();
+
+    List<DeliveryRecord> records = history.getRecords(repo, 0, 10);
+    assertEquals(1, records.size());
+    assertEquals("master", records.get(0).getRef());
+    assertEquals("sha1", records.get(0).getSha1());
+    assertEquals(1, records.get(0).getAttempt());
+    assertEquals(NotificationResult.Status.ERROR,
+        records.get(0).getResult().getStatus());
+  }
+
+  /**
+   * Validates that a notification is journaled before it is sent
+   * @throws Exception
+   */
+  @Test
+  public void shouldJournalBackgroundNotification() throws Exception {
+    when(repo.getId()).thenReturn(1);
+
+    notifier.notifyBackground(repo, "master", "sha1", "target");
+
+    ArgumentCaptor<NotificationRequest> captor =
+        ArgumentCaptor.forClass(NotificationRequest.class);
+    verify(outbox).append(captor.capture());
+    assertEquals(repo, captor.getValue().getRepository());
+    assertEquals("master", captor.getValue().getRef());
+    assertEquals("sha1", captor.getValue().getSha1());
+    assertEquals("target", captor.getValue().getTargetBranch());
+  }
+
+  /**
+   * Validates that a notification whose retries are used up is acknowledged
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldAcknowledgeWhenRetriesGiveUp() throws Exception {
+    when(repo.getId()).thenReturn(1);
+    when(outbox.append(any(NotificationRequest.class))).thenReturn(3L);
+    when(retries.schedule(anyString(), any(), anyInt(), any(Runnable.class)))
+        .thenReturn(false);
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new IOException("Connection refused"));
+
+    notifier.notifyBackground(repo, "master", "sha1", "master");
+    ArgumentCaptor<Callable> workCaptor = ArgumentCaptor.forClass(Callable.class);
+    verify(executor).submit(eq("1"), eq(Priority.NORMAL), eq("1:master"),
+        workCaptor.capture(), any(Runnable.class));
+    workCaptor.getValue().call();
+
+    verify(outbox).acknowledge(3L);
+  }
+
+  /**
+   * Validates that background notifications of the default branch jump the
+   * queue, alone or in a batch
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldPrioritizeDefaultBranch() throws Exception {
+    when(repo.getId()).thenReturn(1);
+    when(defaultBranches.isDefaultBranch(repo, "refs/heads/master"))
+        .thenReturn(true);
+
+    notifier.notifyBackground(repo, "refs/heads/master", "sha1", null);
+    notifier.notifyBackground(repo, "refs/heads/feature", "sha2", null);
+    notifier.notifyBackground(repo, "refs/heads/feature,refs/heads/master",
+        null, null);
+
+    verify(executor).submit(eq("1"), eq(Priority.HIGH),
+        eq("1:refs/heads/master"), any(Callable.class), any(Runnable.class));
+    verify(executor).submit(eq("1"), eq(Priority.NORMAL),
+        eq("1:refs/heads/feature"), any(Callable.class), any(Runnable.class));
+    verify(executor).submit(eq("1"), eq(Priority.HIGH),
+        eq("1:refs/heads/feature,refs/heads/master"), any(Callable.class), any(Runnable.class));
+  }
+
+  /**
+   * Validates that server errors are reported as errors
+   * @throws Exception
+   */
+  @Test
+  public void shouldReportServerErrorsAsErrors() throws Exception {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 503,
+        "Service Unavailable");
+    response.setEntity(new StringEntity("Jenkins is getting ready to work"));
+    when(httpClient.execute(any(HttpGet.class))).thenReturn(response);
+
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1", "master");
+
+    assertEquals(NotificationResult.Status.ERROR, result.getStatus());
+    assertTrue(result.isRetryable());
+  }
+
+  /**
+   * Validates that only the start of a long response is kept, and that the
+   * connection is released once the rest was read
+   * @throws Exception
+   */
+  @Test
+  public void shouldKeepStartOfLongResponse() throws Exception {
+    StringBuilder body = new StringBuilder();
+    while (body.length() <= ResponsePrefix.MAX_BYTES * 4)
+      body.append("Scheduled polling of job\n");
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenReturn(response(200, body.toString()));
+
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1", "master");
+
+    assertTrue(result.isSuccessful());
+    assertTrue(result.getMessage().endsWith("..."));
+    assertTrue(result.getMessage().length() < body.length());
+    ArgumentCaptor<HttpGet> requestCaptor =
+        ArgumentCaptor.forClass(HttpGet.class);
+    verify(httpClient).execute(requestCaptor.capture());
+    assertFalse(requestCaptor.getValue().isAborted());
+  }
+
+  /**
+   * Validates that the request is aborted rather than read to the end when
+   * the response is too long to be worth draining
+   * @throws Exception
+   */
+  @Test
+  public void shouldAbortRequestOnOversizedResponse() throws Exception {
+    final long length = ResponsePrefix.MAX_BYTES
+        + ResponsePrefix.MAX_DRAIN_BYTES * 4;
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200,
+        "OK");
+    response.setEntity(new InputStreamEntity(new InputStream() {
+      private long read;
+
+      @Override
+      public int read() {
+        return read++ < length ? 'x' : -1;
+      }
+    }, length));
+    when(httpClient.execute(any(HttpGet.class))).thenReturn(response);
+
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1", "master");
+
+    assertFalse(result.isSuccessful());
+    ArgumentCaptor<HttpGet> requestCaptor =
+        ArgumentCaptor.forClass(HttpGet.class);
+    verify(httpClient).execute(requestCaptor.capture());
+    assertTrue(requestCaptor.getValue().isAborted());
+  }
+
+  /**
+   * Validates that notifications are counted per Jenkins host and outcome
+   * @throws Exception
+   */
+  @Test
+  public void shouldRecordOutcomesPerHost() throws Exception {
+    when(httpClient.execute(any(HttpGet.class))).thenReturn(
+        response(200, "Scheduled polling of job"),
+        response(200, "No git jobs using repository"),
+        response(404, "Not found"))
+        .thenThrow(new SocketTimeoutException("Read timed out"));
+
+    for (int i = 0; i < 5; i++)
+      notifier.notify(repo, "refs/heads/master", "sha1", "master");
+
+    assertEquals(1, count("scheduled"));
+    assertEquals(1, count("no-job"));
+    assertEquals(1, count("http-error"));
+    assertEquals(1, count("timeout"));
+    // The timeout opens the circuit
+    assertEquals(1, count("rejected"));
+    for (NotificationStats stats : metrics.getNotificationStats())
+      assertEquals("localhost.jenkins", stats.getHost());
+  }
+
+  /**
+   * Validates that the async engine completes the future with the Jenkins
+   * response without blocking the caller
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldCompleteAsyncNotificationWithResponse() throws Exception {
+    HttpAsyncClient asyncClient = mock(HttpAsyncClient.class);
+    when(asyncHttpClientFactory.getHttpAsyncClient(JENKINS_BASE_URL, false))
+        .thenReturn(asyncClient);
+
+    CompletableFuture<NotificationResult> future =
+        notifier.notifyAsync(repo, "refs/heads/master", "sha1", "develop");
+    assertFalse(future.isDone());
+
+    ArgumentCaptor<HttpAsyncRequestProducer> requestCaptor =
+        ArgumentCaptor.forClass(HttpAsyncRequestProducer.class);
+    ArgumentCaptor<FutureCallback> callbackCaptor =
+        ArgumentCaptor.forClass(FutureCallback.class);
+    verify(asyncClient).execute(requestCaptor.capture(),
+        any(PrefixResponseConsumer.class), callbackCaptor.capture());
+    assertEquals("http://localhost.jenkins/git/notifyCommit?"
+        + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
+        + "&branches=refs%2Fheads%2Fmaster"
+        + "&sha1=sha1&TARGET_BRANCH=develop",
+        requestCaptor.getValue().generateRequest().getRequestLine().getUri());
+
+    HttpResponse response = new BasicHttpResponse(
+        HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new StringEntity("Scheduled polling of job"));
+    callbackCaptor.getValue().completed(response);
+
+    assertTrue(future.isDone());
+    assertTrue(future.get().isSuccessful());
+    verify(httpClientFactory, never()).getHttpClient(anyString(), anyBoolean());
+  }
+
+  /**
+   * Validates that a failed async request completes the future with a
+   * failed result
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldCompleteAsyncNotificationOnFailure() throws Exception {
+    HttpAsyncClient asyncClient = mock(HttpAsyncClient.class);
+    when(asyncHttpClientFactory.getHttpAsyncClient(JENKINS_BASE_URL, false))
+        .thenReturn(asyncClient);
+
+    CompletableFuture<NotificationResult> future =
+        notifier.notifyAsync(repo, "refs/heads/master", "sha1", "develop");
+
+    ArgumentCaptor<FutureCallback> callbackCaptor =
+        ArgumentCaptor.forClass(FutureCallback.class);
+    verify(asyncClient).execute(any(HttpAsyncRequestProducer.class),
+        any(PrefixResponseConsumer.class), callbackCaptor.capture());
+    callbackCaptor.getValue().failed(new IOException("refused"));
+
+    assertFalse(future.get().isSuccessful());
+    assertEquals("refused", future.get().getMessage());
+  }
+
+  /**
+   * Validates that the async path returns a completed future when the hook
+   * is disabled
+   * @throws Exception
+   */
+  @Test
+  public void shouldCompleteAsyncNotificationWhenNotEnabled() throws Exception {
+    WebhookSettings disabled = new WebhookSettings(false, settings);
+    doReturn(disabled).when(settingsService).getWebhookSettings(repo);
+
+    Future<NotificationResult> future =
+        notifier.notifyAsync(repo, "refs/heads/master", "sha1", "master");
+
+    assertNull(future.get());
+    verifyZeroInteractions(asyncHttpClientFactory);
+  }
+
+  /**
+   * Validates that background notifications still queue on the executor
+   * when the async engine is switched on, and are sent through it once
+   * their turn comes
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldUseAsyncEngineWhenEnabled() throws Exception {
+    when(propertiesService.getPluginProperty(Notifier.ASYNC_PROPERTY, false))
+        .thenReturn(true);
+    notifier = new Notifier(settingsService, httpClientFactory,
+        asyncHttpClientFactory, new ConcreteCloneUrlService(securityService,
+            sshScmProtocol, httpScmProtocol, new MemoryCacheManager(), 100,
+            300), executor,
+        scatterGather, defaultBranches, breakers, limiter, retries, outbox,
+        new ConcreteNotificationUrlBuilder(100), metrics, history,
+        propertiesService);
+    HttpAsyncClient asyncClient = mock(HttpAsyncClient.class);
+    when(asyncHttpClientFactory.getHttpAsyncClient(JENKINS_BASE_URL, false))
+        .thenReturn(asyncClient);
+
+    notifier.notifyBackground(repo, "refs/heads/master", "sha1", "master");
+    ArgumentCaptor<Callable> workCaptor = ArgumentCaptor.forClass(Callable.class);
+    verify(executor).submit(anyString(), any(Priority.class), anyString(),
+        workCaptor.capture(), any(Runnable.class));
+    verifyZeroInteractions(asyncClient);
+
+    workCaptor.getValue().call();
+    verify(asyncClient).execute(any(HttpAsyncRequestProducer.class),
+        any(PrefixResponseConsumer.class), any(FutureCallback.class));
+  }
+
+  /**
+   * Validates that the async engine only sends as many notifications at
+   * once as allowed, and the next once one of them was answered
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldLimitAsyncRequestsInFlight() throws Exception {
+    when(propertiesService.getPluginProperty(Notifier.ASYNC_PROPERTY, false))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(
+        Notifier.ASYNC_IN_FLIGHT_PROPERTY, Notifier.DEFAULT_ASYNC_IN_FLIGHT))
+        .thenReturn(1);
+    notifier = new Notifier(settingsService, httpClientFactory,
+        asyncHttpClientFactory, new ConcreteCloneUrlService(securityService,
+            sshScmProtocol, httpScmProtocol, new MemoryCacheManager(), 100,
+            300), executor,
+        scatterGather, defaultBranches, breakers, limiter, retries, outbox,
+        new ConcreteNotificationUrlBuilder(100), metrics, history,
+        propertiesService);
+    when(repo.getId()).thenReturn(1);
+    HttpAsyncClient asyncClient = mock(HttpAsyncClient.class);
+    when(asyncHttpClientFactory.getHttpAsyncClient(JENKINS_BASE_URL, false))
+        .thenReturn(asyncClient);
+
+    notifier.notifyBackground(repo, "master", "sha1", "master");
+    notifier.notifyBackground(repo, "develop", "sha2", "develop");
+    ArgumentCaptor<Callable> workCaptor = ArgumentCaptor.forClass(Callable.class);
+    verify(executor, times(2)).submit(anyString(), any(Priority.class),
+        anyString(), workCaptor.capture(), any(Runnable.class));
+    workCaptor.getAllValues().get(0).call();
+    CompletableFuture<Object> second = CompletableFuture.supplyAsync(() -> {
+      try {
+        return workCaptor.getAllValues().get(1).call();
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+
+    ArgumentCaptor<FutureCallback> callbackCaptor =
+        ArgumentCaptor.forClass(FutureCallback.class);
+    verify(asyncClient).execute(any(HttpAsyncRequestProducer.class),
+        any(PrefixResponseConsumer.class), callbackCaptor.capture());
+    Thread.sleep(100);
+    assertFalse(second.isDone());
+
+    callbackCaptor.getValue().completed(
+        response(200, "Scheduled polling of job"));
+    second.get(5, TimeUnit.SECONDS);
+    verify(asyncClient, times(2)).execute(any(HttpAsyncRequestProducer.class),
+        any(PrefixResponseConsumer.class), any(FutureCallback.class));
+  }
+
+  /**
+   * Validates that a repository notifying several Jenkins instances calls
+   * them all at once and gathers their answers into one result
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldNotifyEveryJenkinsAtOnce() throws Exception {
+    when(settings.getString(Notifier.ADDITIONAL_JENKINS_BASES))
+        .thenReturn("http://scanner.jenkins");
+    HttpAsyncClient asyncClient = mock(HttpAsyncClient.class);
+    when(asyncHttpClientFactory.getHttpAsyncClient(anyString(), anyBoolean())).thenReturn(asyncClient);
+
+    CompletableFuture<NotificationResult> pending = CompletableFuture
+        .supplyAsync(() -> notifier.notify(repo, "master", "sha1", "master"));
+
+    ArgumentCaptor<HttpAsyncRequestProducer> requestCaptor =
+        ArgumentCaptor.forClass(HttpAsyncRequestProducer.class);
+    ArgumentCaptor<FutureCallback> callbackCaptor =
+        ArgumentCaptor.forClass(FutureCallback.class);
+    verify(asyncClient, timeout(5000).times(2)).execute(
+        requestCaptor.capture(), any(PrefixResponseConsumer.class),
+        callbackCaptor.capture());
+    assertTrue(requestCaptor.getAllValues().get(0).generateRequest()
+        .getRequestLine().getUri().startsWith(JENKINS_BASE_URL));
+    assertTrue(requestCaptor.getAllValues().get(1).generateRequest()
+        .getRequestLine().getUri().startsWith("http://scanner.jenkins"));
+    assertFalse(pending.isDone());
+
+    callbackCaptor.getAllValues().get(1).completed(
+        response(200, "Scheduled polling of job"));
+    callbackCaptor.getAllValues().get(0).completed(
+        response(200, "Scheduled polling of job"));
+
+    CompositeNotificationResult result = (CompositeNotificationResult)
+        pending.get(5, TimeUnit.SECONDS);
+    assertTrue(result.isSuccessful());
+    assertEquals(2, result.getResults().size());
+    verifyZeroInteractions(httpClientFactory);
+  }
+
+  /**
+   * Validates that only the Jenkins instances that failed are notified
+   * again
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldRetryOnlyFailedJenkins() throws Exception {
+    when(propertiesService.getPluginProperty(Notifier.ASYNC_PROPERTY, false))
+        .thenReturn(true);
+    notifier = new Notifier(settingsService, httpClientFactory,
+        asyncHttpClientFactory, new ConcreteCloneUrlService(securityService,
+            sshScmProtocol, httpScmProtocol, new MemoryCacheManager(), 100,
+            300), executor,
+        scatterGather, defaultBranches, breakers, limiter, retries, outbox,
+        new ConcreteNotificationUrlBuilder(100), metrics, history,
+        propertiesService);
+    when(settings.getString(Notifier.ADDITIONAL_JENKINS_BASES))
+        .thenReturn("http://scanner.jenkins");
+    when(repo.getId()).thenReturn(1);
+    when(retries.schedule(anyString(), any(), anyInt(), any(Runnable.class)))
+        .thenReturn(true);
+    HttpAsyncClient asyncClient = mock(HttpAsyncClient.class);
+    when(asyncHttpClientFactory.getHttpAsyncClient(anyString(), anyBoolean())).thenReturn(asyncClient);
+
+    notifier.notifyBackground(repo, "master", "sha1", "master");
+    ArgumentCaptor<Callable> workCaptor = ArgumentCaptor.forClass(Callable.class);
+    verify(executor).submit(anyString(), any(Priority.class), anyString(),
+        workCaptor.capture(), any(Runnable.class));
+    workCaptor.getValue().call();
+    ArgumentCaptor<FutureCallback> callbackCaptor =
+        ArgumentCaptor.forClass(FutureCallback.class);
+    verify(asyncClient, times(2)).execute(any(HttpAsyncRequestProducer.class),
+        any(PrefixResponseConsumer.class), callbackCaptor.capture());
+    callbackCaptor.getAllValues().get(0).completed(
+        response(200, "Scheduled polling of job"));
+    callbackCaptor.getAllValues().get(1).failed(new IOException("refused"));
+
+    ArgumentCaptor<Runnable> retryCaptor =
+        ArgumentCaptor.forClass(Runnable.class);
+    verify(retries, timeout(5000)).schedule(eq("1:master"), any(), eq(1),
+        retryCaptor.capture());
+    retryCaptor.getValue().run();
+    verify(executor, times(2)).submit(anyString(), any(Priority.class),
+        anyString(), workCaptor.capture(), any(Runnable.class));
+    workCaptor.getAllValues().get(workCaptor.getAllValues().size() - 1)
+        .call();
+
+    ArgumentCaptor<HttpAsyncRequestProducer> requestCaptor =
+        ArgumentCaptor.forClass(HttpAsyncRequestProducer.class);
+    verify(asyncClient, times(3)).execute(requestCaptor.capture(),
+        any(PrefixResponseConsumer.class), any(FutureCallback.class));
+    assertTrue(requestCaptor.getAllValues().get(2).generateRequest()
+        .getRequestLine().getUri().startsWith("http://scanner.jenkins"));
+  }
+
+  private static HttpResponse response(int status, String body)
+      throws Exception {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+        status, null);
+    response.setEntity(new StringEntity(body));
+    return response;
+  }
+
+  private long count(String outcome) {
+    long count = 0;
+    for (NotificationStats stats : metrics.getNotificationStats()) {
+      if (stats.getOutcome().equals(outcome))
+        count += stats.getCount();
+    }
+    return count;
+  }
 }
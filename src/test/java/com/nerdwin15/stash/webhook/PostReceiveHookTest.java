@@ -3,6 +3,7 @@ package com.nerdwin15.stash.webhook;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -111,4 +112,48 @@ public class PostReceiveHookTest {
     verify(errors).addFieldError(eq(Notifier.CLONE_URL), anyString());
   }
 
+
+  /**
+   * Validate that an error is added when a timeout isn't a positive number
+   * @throws Exception
+   */
+  @Test
+  public void shouldAddErrorWhenTimeoutInvalid() throws Exception {
+    when(settings.getString(Notifier.CONNECT_TIMEOUT)).thenReturn("soon");
+    when(settings.getString(Notifier.SOCKET_TIMEOUT)).thenReturn("0");
+    when(settings.getString(Notifier.POOL_TIMEOUT)).thenReturn("2000");
+    hook.validate(settings, errors, repo);
+    verify(errors).addFieldError(eq(Notifier.CONNECT_TIMEOUT), anyString());
+    verify(errors).addFieldError(eq(Notifier.SOCKET_TIMEOUT), anyString());
+    verify(errors, never()).addFieldError(eq(Notifier.POOL_TIMEOUT),
+        anyString());
+  }
+
+  /**
+   * Validate that an error is added when an additional Jenkins url isn't an
+   * http or https url
+   * @throws Exception
+   */
+  @Test
+  public void shouldAddErrorWhenAdditionalJenkinsBaseInvalid()
+      throws Exception {
+    when(settings.getString(Notifier.ADDITIONAL_JENKINS_BASES))
+      .thenReturn("https://other.jenkins ftp://files.jenkins");
+    hook.validate(settings, errors, repo);
+    verify(errors).addFieldError(eq(Notifier.ADDITIONAL_JENKINS_BASES),
+        anyString());
+  }
+
+  /**
+   * Validate that http and https additional Jenkins urls are accepted
+   * @throws Exception
+   */
+  @Test
+  public void shouldAcceptAdditionalJenkinsBases() throws Exception {
+    when(settings.getString(Notifier.ADDITIONAL_JENKINS_BASES))
+      .thenReturn(" http://other.jenkins  https://third.jenkins:8443/ci ");
+    hook.validate(settings, errors, repo);
+    verify(errors, never()).addFieldError(
+        eq(Notifier.ADDITIONAL_JENKINS_BASES), anyString());
+  }
 }
@@ -24,6 +24,8 @@ import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.user.ApplicationUser;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.dispatch.EligibilityStage;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationCoalescer;
 import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
 import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 
@@ -36,7 +38,7 @@ import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 @PrepareForTest(PullRequestEvent.class)
 public class PullRequestEventListenerTest {
 
-  private Notifier notifier;
+  private NotificationCoalescer coalescer;
   private EligibilityFilterChain filterChain;
   private PullRequestEventListener listener;
   private SettingsService settingsService;
@@ -56,11 +58,11 @@ public class PullRequestEventListenerTest {
     when(request.getToRef()).thenReturn(toRef);
     when(toRef.getRepository()).thenReturn(repo);
     
-    notifier = mock(Notifier.class);
+    coalescer = mock(NotificationCoalescer.class);
     filterChain = mock(EligibilityFilterChain.class);
     settingsService = mock(SettingsService.class);
-    listener = new PullRequestEventListener(filterChain, notifier, 
-        settingsService);
+    listener = new PullRequestEventListener(filterChain, coalescer, 
+        settingsService, new EligibilityStage(null, 0, 0));
   }
 
   /**
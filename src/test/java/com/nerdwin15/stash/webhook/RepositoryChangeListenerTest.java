@@ -1,10 +1,12 @@
 package com.nerdwin15.stash.webhook;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import com.atlassian.bitbucket.repository.Ref;
@@ -18,9 +20,13 @@ import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.user.ApplicationUser;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
+import com.nerdwin15.stash.webhook.service.dispatch.EligibilityStage;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationCoalescer;
 import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
 import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -31,7 +37,7 @@ import java.util.List;
  */
 public class RepositoryChangeListenerTest {
 
-  private Notifier notifier;
+  private NotificationCoalescer coalescer;
   private EligibilityFilterChain filterChain;
   private RepositoryChangeListener listener;
   private SettingsService settingsService;
@@ -41,11 +47,11 @@ public class RepositoryChangeListenerTest {
    */
   @Before
   public void setup() throws Exception {
-    notifier = mock(Notifier.class);
+    coalescer = mock(NotificationCoalescer.class);
     filterChain = mock(EligibilityFilterChain.class);
     settingsService = mock(SettingsService.class);
-    listener = new RepositoryChangeListener(filterChain, notifier, 
-        settingsService);
+    listener = new RepositoryChangeListener(filterChain, coalescer, 
+        settingsService, new EligibilityStage(null, 0, 0));
   }
 
   /**
@@ -77,14 +83,16 @@ public class RepositoryChangeListenerTest {
     when(user.getName()).thenReturn(username);
     
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
     when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
         .thenReturn(true);
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier).notifyBackground(repo, "master", "sha1", "master");
-    assertEquals(e, contextCaptor.getValue().getEventSource());
+    verify(coalescer).submitAll(Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master")));
+    assertEquals("sha1", contextCaptor.getValue().getRefChange().getToHash());
     assertEquals(username, contextCaptor.getValue().getUsername());
     assertEquals(repo, contextCaptor.getValue().getRepository());
   }
@@ -116,14 +124,16 @@ public class RepositoryChangeListenerTest {
     when(e.getUser()).thenReturn(null);
     
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
     when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
         .thenReturn(true);
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier).notifyBackground(repo, "master", "sha1", "master");
-    assertEquals(e, contextCaptor.getValue().getEventSource());
+    verify(coalescer).submitAll(Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master")));
+    assertEquals("sha1", contextCaptor.getValue().getRefChange().getToHash());
     assertEquals(null, contextCaptor.getValue().getUsername());
     assertEquals(repo, contextCaptor.getValue().getRepository());
   }
@@ -155,14 +165,15 @@ public class RepositoryChangeListenerTest {
     when(user.getName()).thenReturn(username);
 
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
     when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
         .thenReturn(false);
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier, never()).notifyBackground(repo, "master", "sha1", "master");
-    assertEquals(e, contextCaptor.getValue().getEventSource());
+    verifyZeroInteractions(coalescer);
+    assertEquals("sha1", contextCaptor.getValue().getRefChange().getToHash());
     assertEquals(username, contextCaptor.getValue().getUsername());
     assertEquals(repo, contextCaptor.getValue().getRepository());
   }
@@ -177,11 +188,11 @@ public class RepositoryChangeListenerTest {
     Repository repo = mock(Repository.class);
 
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(null);
+    when(settingsService.getWebhookSettings(repo)).thenReturn(null);
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier, never()).notifyBackground(repo, "master", "sha1", "master");
+    verifyZeroInteractions(coalescer);
   }
   
   /**
@@ -203,13 +214,14 @@ public class RepositoryChangeListenerTest {
     when(e.getUser()).thenReturn(null);
 
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
     when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
         .thenReturn(true);
 
     listener.onRefsChangedEvent(e);
     
-    verifyNoMoreInteractions(notifier);
+    verifyNoMoreInteractions(coalescer);
   }
 
   /**
@@ -249,7 +261,8 @@ public class RepositoryChangeListenerTest {
     when(user.getName()).thenReturn(username);
 
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
     when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
         .thenReturn(true);
 
@@ -257,16 +270,63 @@ public class RepositoryChangeListenerTest {
 
     List<EventContext> captures = contextCaptor.getAllValues();
 
+    verify(coalescer).submitAll(Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master"),
+        new NotificationRequest(repo, "feature/branch", "sha2", "release/2.1")));
+
     EventContext ctx = captures.get(0);
-    verify(notifier).notifyBackground(repo, "master", "sha1", "master");
-    assertEquals(e, ctx.getEventSource());
+    assertEquals("refs/heads/master", ctx.getRefChange().getRef().getId());
+    assertEquals("sha1", ctx.getRefChange().getToHash());
     assertEquals(username, ctx.getUsername());
     assertEquals(repo, ctx.getRepository());
 
     ctx = captures.get(1);
-    verify(notifier).notifyBackground(repo, "feature/branch", "sha2", "release/2.1");
-    assertEquals(e, ctx.getEventSource());
+    assertEquals("refs/heads/feature/branch",
+        ctx.getRefChange().getRef().getId());
+    assertEquals("sha2", ctx.getRefChange().getToHash());
     assertEquals(username, ctx.getUsername());
     assertEquals(repo, ctx.getRepository());
   }
+
+  /**
+   * Validates that the listener only copies the ref changes of the event,
+   * and leaves the settings lookup and filter chain to the eligibility stage
+   */
+  @Test
+  public void shouldEvaluateOnEligibilityStage() {
+    EligibilityStage stage = mock(EligibilityStage.class);
+    listener = new RepositoryChangeListener(filterChain, coalescer,
+        settingsService, stage);
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    RefChange r = mock(RefChange.class);
+    Ref ref = mock(Ref.class);
+    when(r.getRef()).thenReturn(ref);
+    when(r.getToHash()).thenReturn("sha1");
+    when(ref.getId()).thenReturn("refs/heads/master");
+    when(ref.getDisplayId()).thenReturn("master");
+    List<RefChange> refChanges = new LinkedList<RefChange>(Arrays.asList(r));
+    when(e.getRefChanges()).thenReturn(refChanges);
+    when(e.getRepository()).thenReturn(repo);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true,
+            mock(Settings.class)));
+    when(filterChain.shouldDeliverNotification(any(EventContext.class)))
+        .thenReturn(true);
+
+    listener.onRefsChangedEvent(e);
+
+    verifyZeroInteractions(settingsService, filterChain, coalescer);
+    ArgumentCaptor<Runnable> evaluation =
+        ArgumentCaptor.forClass(Runnable.class);
+    verify(stage).submit(eq(repo), evaluation.capture());
+
+    // The event may be recycled once the listener returned
+    refChanges.clear();
+    when(r.getToHash()).thenReturn("sha2");
+    evaluation.getValue().run();
+
+    verify(coalescer).submitAll(Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master")));
+  }
 }
@@ -7,13 +7,14 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import javax.ws.rs.core.Response;
 
-import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
-import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -24,9 +25,21 @@ import com.atlassian.bitbucket.repository.RefService;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.ssh.SshConfiguration;
 import com.atlassian.bitbucket.ssh.SshConfigurationService;
+import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.atlassian.bitbucket.setting.Settings;
+import com.google.common.base.Ticker;
 import com.nerdwin15.stash.webhook.NotificationResult;
 import com.nerdwin15.stash.webhook.Notifier;
+import com.nerdwin15.stash.webhook.service.CloneUrlService;
+import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreaker;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreakerConfig;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreakerRegistry;
+import com.nerdwin15.stash.webhook.service.history.DeliveryHistory;
+import com.nerdwin15.stash.webhook.service.ratelimit.RateLimitConfig;
+import com.nerdwin15.stash.webhook.service.ratelimit.RateLimiter;
 import com.sun.jersey.api.client.ClientResponse.Status;
 
 /**
@@ -37,6 +50,8 @@ import com.sun.jersey.api.client.ClientResponse.Status;
 public class JenkinsResourceTest {
 
   private static final String JENKINS_BASE = "http://jenkins.localhost/jenkins";
+  private static final String OTHER_JENKINS_BASE =
+      "https://other.jenkins.localhost";
   private static final String CLONE_TYPE = "http";
   private static final boolean IGNORE_CERTS = false;
   private static final boolean OMIT_HASH_CODE = false;
@@ -54,9 +69,12 @@ public class JenkinsResourceTest {
   private PermissionValidationService permissionValidationService;
   private I18nService i18nService;
   private SshConfigurationService sshConfigurationService;
-  private SshScmProtocol sshScmProtocol;
-  private HttpScmProtocol httpScmProtocol;
+  private CloneUrlService cloneUrls;
   private RefService refService;
+  private SettingsService settingsService;
+  private CircuitBreakerRegistry breakers;
+  private RateLimiter limiter;
+  private DeliveryHistory history;
 
   private Repository repository;
 
@@ -70,14 +88,19 @@ public class JenkinsResourceTest {
     i18nService = mock(I18nService.class);
     sshConfigurationService = mock(SshConfigurationService.class);
 
-    sshScmProtocol = mock(SshScmProtocol.class);
-    httpScmProtocol = mock(HttpScmProtocol.class);
+    cloneUrls = mock(CloneUrlService.class);
 
     refService = mock(RefService.class);
+    settingsService = mock(SettingsService.class);
+    breakers = new CircuitBreakerRegistry(new CircuitBreakerConfig(true, 2, 2,
+        50, 0, 1000, 60000, 1), Ticker.systemTicker());
 
+    limiter = new RateLimiter(new RateLimitConfig(true, 60, 2, 0, 1),
+        Ticker.systemTicker());
+    history = new DeliveryHistory(10, 10);
     resource = new JenkinsResource(notifier, permissionValidationService,
-        i18nService, sshConfigurationService, sshScmProtocol, httpScmProtocol,
-        refService);
+        i18nService, sshConfigurationService, cloneUrls, refService,
+        settingsService, breakers, limiter, history);
 
     repository = mock(Repository.class);
     Project project = mock(Project.class);
@@ -148,13 +171,13 @@ public class JenkinsResourceTest {
   @Test
   @SuppressWarnings("unchecked")
   public void testConfigResource() {
-    when(httpScmProtocol.getCloneUrl(repository, null)).thenReturn(HTTP_URL);
+    when(cloneUrls.getHttpCloneUrl(repository)).thenReturn(HTTP_URL);
 
     SshConfiguration sshConfiguration = mock(SshConfiguration.class);
 
     when(sshConfigurationService.getConfiguration()).thenReturn(sshConfiguration);
     when(sshConfiguration.isEnabled()).thenReturn(true);
-    when(sshScmProtocol.getCloneUrl(repository, null)).thenReturn(SSH_URL);
+    when(cloneUrls.getSshCloneUrl(repository)).thenReturn(SSH_URL);
 
     Response response = resource.config(repository);
     assertEquals(Status.OK.getStatusCode(), response.getStatus());
@@ -162,8 +185,8 @@ public class JenkinsResourceTest {
     assertEquals(data.get("ssh"), SSH_URL);
     assertEquals(data.get("http"), HTTP_URL);
 
-    verify(sshScmProtocol).getCloneUrl(repository, null);
-    verify(httpScmProtocol).getCloneUrl(repository, null);
+    verify(cloneUrls).getSshCloneUrl(repository);
+    verify(cloneUrls).getHttpCloneUrl(repository);
   }
 
   /**
@@ -172,13 +195,13 @@ public class JenkinsResourceTest {
    */
   @Test
   public void shouldNotProduceExceptionWhenSshDisabled() {
-    when(httpScmProtocol.getCloneUrl(repository, null)).thenReturn(HTTP_URL);
+    when(cloneUrls.getHttpCloneUrl(repository)).thenReturn(HTTP_URL);
 
     SshConfiguration sshConfiguration = mock(SshConfiguration.class);
 
     when(sshConfigurationService.getConfiguration()).thenReturn(sshConfiguration);
     when(sshConfiguration.isEnabled()).thenReturn(false);
-    when(sshScmProtocol.getCloneUrl(repository, null)).thenThrow(
+    when(cloneUrls.getSshCloneUrl(repository)).thenThrow(
             new IllegalStateException("Internal SSH server is disabled"));
 
     Response response = resource.config(repository);
@@ -187,8 +210,122 @@ public class JenkinsResourceTest {
     assertEquals(data.get("ssh"), EMPTY_SSH_URL);
     assertEquals(data.get("http"), HTTP_URL);
 
-    verify(sshScmProtocol, never()).getCloneUrl(repository, null);
-    verify(httpScmProtocol).getCloneUrl(repository, null);
+    verify(cloneUrls, never()).getSshCloneUrl(repository);
+    verify(cloneUrls).getHttpCloneUrl(repository);
   }
 
+  /**
+   * Validate that the circuit endpoint reports the state of the circuit of
+   * each configured Jenkins instance
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldReportCircuitState() {
+    Settings settings = mock(Settings.class);
+    when(settings.getString(Notifier.JENKINS_BASE)).thenReturn(JENKINS_BASE);
+    when(settings.getString(Notifier.ADDITIONAL_JENKINS_BASES))
+        .thenReturn(OTHER_JENKINS_BASE);
+    when(settingsService.getWebhookSettings(repository))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
+
+    Map<String, Object> result = resource.circuit(repository);
+    List<Map<String, Object>> instances =
+        (List<Map<String, Object>>) result.get("instances");
+    assertEquals(2, instances.size());
+    assertEquals(CircuitBreaker.State.CLOSED, instances.get(0).get("state"));
+
+    CircuitBreaker breaker = breakers.forJenkins(JENKINS_BASE + "/");
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+
+    result = resource.circuit(repository);
+    instances = (List<Map<String, Object>>) result.get("instances");
+    assertEquals(JENKINS_BASE, instances.get(0).get("jenkinsBase"));
+    assertEquals(CircuitBreaker.State.OPEN, instances.get(0).get("state"));
+    assertEquals(100f, instances.get(0).get("failureRate"));
+    assertEquals(2, instances.get(0).get("bufferedCalls"));
+    assertEquals(OTHER_JENKINS_BASE, instances.get(1).get("jenkinsBase"));
+    assertEquals(CircuitBreaker.State.CLOSED, instances.get(1).get("state"));
+  }
+
+  /**
+   * Validate that the circuit endpoint handles unconfigured repositories
+   */
+  @Test
+  public void shouldNotReportCircuitWithoutSettings() {
+    Map<String, Object> result = resource.circuit(repository);
+    assertFalse(result.containsKey("instances"));
+  }
+
+  /**
+   * Validate that the rate limit endpoint reports the buckets of the
+   * repository and of each configured Jenkins instance
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldReportRateLimitState() {
+    Settings settings = mock(Settings.class);
+    when(settings.getString(Notifier.JENKINS_BASE)).thenReturn(JENKINS_BASE);
+    when(settings.getString(Notifier.ADDITIONAL_JENKINS_BASES))
+        .thenReturn(OTHER_JENKINS_BASE);
+    when(settingsService.getWebhookSettings(repository))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
+    when(repository.getId()).thenReturn(1);
+    for (int i = 0; i < 3; i++) {
+      limiter.submit(JENKINS_BASE, 1, "1:b" + i,
+          () -> new CompletableFuture<NotificationResult>(), () -> { });
+    }
+
+    Map<String, Object> result = resource.rateLimit(repository);
+    assertEquals(true, result.get("enabled"));
+    assertEquals(1L, result.get("throttled"));
+    List<Map<String, Object>> hosts =
+        (List<Map<String, Object>>) result.get("hosts");
+    assertEquals(2, hosts.size());
+    Map<String, Object> host = hosts.get(0);
+    assertEquals(JENKINS_BASE, host.get("jenkinsBase"));
+    assertEquals(60, host.get("ratePerMinute"));
+    assertEquals(0, host.get("availableTokens"));
+    assertEquals(1, host.get("parked"));
+    Map<String, Object> other = hosts.get(1);
+    assertEquals(OTHER_JENKINS_BASE, other.get("jenkinsBase"));
+    assertEquals(other.get("burst"), other.get("availableTokens"));
+    assertEquals(0, other.get("parked"));
+    Map<String, Object> repo = (Map<String, Object>) result.get("repository");
+    assertEquals(false, repo.get("limited"));
+    assertEquals(1, repo.get("parked"));
+    limiter.destroy();
+  }
+
+  /**
+   * Validate that the history endpoint pages through the recent
+   * notifications, newest first
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldPageThroughHistory() {
+    for (int i = 0; i < 5; i++) {
+      history.record(repository, "refs/heads/b" + i, "sha" + i, 1, i,
+          new NotificationResult(true, "url", "Scheduled"));
+    }
+
+    Map<String, Object> page = resource.history(repository, 0, 3);
+    List<Map<String, Object>> values =
+        (List<Map<String, Object>>) page.get("values");
+    assertEquals(3, values.size());
+    assertEquals("refs/heads/b4", values.get(0).get("ref"));
+    assertEquals(NotificationResult.Status.SUCCESS,
+        values.get(0).get("status"));
+    assertEquals(false, page.get("isLastPage"));
+    assertEquals(3, page.get("nextPageStart"));
+
+    page = resource.history(repository, 3, 3);
+    values = (List<Map<String, Object>>) page.get("values");
+    assertEquals(2, values.size());
+    assertEquals("refs/heads/b0", values.get(1).get("ref"));
+    assertEquals(true, page.get("isLastPage"));
+    assertFalse(page.containsKey("nextPageStart"));
+    verify(permissionValidationService, times(2)).validateForRepository(
+        repository, Permission.REPO_ADMIN);
+  }
 }
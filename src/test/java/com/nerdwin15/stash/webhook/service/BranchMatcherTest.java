@@ -0,0 +1,102 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Test case for the {@link BranchMatcher} class.
+ */
+public class BranchMatcherTest {
+
+  /**
+   * Validate exact matching
+   */
+  @Test
+  public void shouldMatchExactNames() {
+    BranchMatcher matcher = compile("master", "develop");
+    assertTrue(matcher.matches("master"));
+    assertTrue(matcher.matches("develop"));
+    assertFalse(matcher.matches("mast"));
+    assertFalse(matcher.matches("master2"));
+    assertFalse(matcher.matches(""));
+  }
+
+  /**
+   * Validate prefix matching with a trailing wildcard
+   */
+  @Test
+  public void shouldMatchPrefixes() {
+    BranchMatcher matcher = compile("feature/*", "rel*");
+    assertTrue(matcher.matches("feature/"));
+    assertTrue(matcher.matches("feature/login"));
+    assertTrue(matcher.matches("release/1.0"));
+    assertTrue(matcher.matches("rel"));
+    assertFalse(matcher.matches("feature"));
+    assertFalse(matcher.matches("hotfix/1"));
+  }
+
+  /**
+   * Validate that a lone wildcard matches everything
+   */
+  @Test
+  public void shouldMatchEverythingWithLoneWildcard() {
+    BranchMatcher matcher = compile("*");
+    assertTrue(matcher.matches(""));
+    assertTrue(matcher.matches("anything"));
+  }
+
+  /**
+   * Validate that matching ignores case on both sides
+   */
+  @Test
+  public void shouldIgnoreCase() {
+    BranchMatcher matcher = compile("MASTER", "Feature/*");
+    assertTrue(matcher.matches("master"));
+    assertTrue(matcher.matches("FEATURE/X"));
+  }
+
+  /**
+   * Validate that patterns sharing a prefix don't shadow each other
+   */
+  @Test
+  public void shouldKeepOverlappingPatterns() {
+    BranchMatcher matcher = compile("dev", "develop", "devops/*", "a", "z");
+    assertTrue(matcher.matches("dev"));
+    assertTrue(matcher.matches("develop"));
+    assertTrue(matcher.matches("devops/ci"));
+    assertTrue(matcher.matches("a"));
+    assertTrue(matcher.matches("z"));
+    assertFalse(matcher.matches("devel"));
+    assertFalse(matcher.matches("devops"));
+  }
+
+  /**
+   * Validate matching against several branches
+   */
+  @Test
+  public void shouldMatchAny() {
+    BranchMatcher matcher = compile("master", "release/*");
+    assertTrue(matcher.matchesAny(Arrays.asList("foo", "release/2")));
+    assertFalse(matcher.matchesAny(Arrays.asList("foo", "bar")));
+    assertFalse(matcher.matchesAny(Collections.<String>emptyList()));
+  }
+
+  /**
+   * Validate that an empty pattern list matches nothing
+   */
+  @Test
+  public void shouldMatchNothingWhenEmpty() {
+    BranchMatcher matcher = compile("", null);
+    assertTrue(matcher.isEmpty());
+    assertFalse(matcher.matchesAny(Arrays.asList("master", "")));
+  }
+
+  private static BranchMatcher compile(String... patterns) {
+    return BranchMatcher.compile(Arrays.asList(patterns));
+  }
+}
@@ -0,0 +1,127 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.config.Registry;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link ConcreteAsyncHttpClientFactory} class.
+ */
+public class ConcreteAsyncHttpClientFactoryTest {
+
+  private static final String HTTP_BASE = "http://jenkins.localhost";
+  private static final String HTTPS_BASE = "https://jenkins.localhost";
+
+  private InstrumentedConcreteAsyncHttpClientFactory factory;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    factory = new InstrumentedConcreteAsyncHttpClientFactory();
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    factory.shutdown();
+  }
+
+  /**
+   * Validate that not trusting all certs works as expected
+   */
+  @Test
+  public void validateUsingDefaultCertificates() throws Exception {
+    factory.getHttpAsyncClient(HTTPS_BASE, false);
+    assertFalse(factory.wasSslContextCreated());
+    assertFalse(factory.wasRegistryCreated());
+  }
+
+  /**
+   * Validate that if all certs are trusted, the custom configuration was used
+   */
+  @Test
+  public void validateIgnoringSslCertValidation() throws Exception {
+    factory.getHttpAsyncClient(HTTPS_BASE, true);
+    assertTrue(factory.wasSslContextCreated());
+    assertTrue(factory.wasRegistryCreated());
+  }
+
+  /**
+   * Validate that one client is shared by all Jenkins instances, and a
+   * second one by those whose certificates are all trusted
+   */
+  @Test
+  public void validateClientsAreShared() throws Exception {
+    HttpAsyncClient client = factory.getHttpAsyncClient(HTTPS_BASE, false);
+    assertSame(client, factory.getHttpAsyncClient(HTTPS_BASE, false));
+    assertSame(client, factory.getHttpAsyncClient(HTTP_BASE, false));
+    assertSame(client, factory.getHttpAsyncClient(HTTP_BASE, true));
+    HttpAsyncClient trusting = factory.getHttpAsyncClient(HTTPS_BASE, true);
+    assertNotSame(client, trusting);
+    assertSame(trusting, factory.getHttpAsyncClient(
+        "https://other.localhost", true));
+  }
+
+  /**
+   * Validate that shutting down discards the clients
+   */
+  @Test
+  public void validateShutdownDiscardsClients() throws Exception {
+    HttpAsyncClient client = factory.getHttpAsyncClient(HTTP_BASE, false);
+    factory.shutdown();
+    assertNotSame(client, factory.getHttpAsyncClient(HTTP_BASE, false));
+  }
+
+  /**
+   * An instrumented extension of the ConcreteAsyncHttpClientFactory that
+   * checks that various methods are actually being called as expected.
+   */
+  private class InstrumentedConcreteAsyncHttpClientFactory
+      extends ConcreteAsyncHttpClientFactory {
+    private boolean sslContextCreated = false;
+    private boolean registryCreated = false;
+
+    InstrumentedConcreteAsyncHttpClientFactory() {
+      super(1, HttpTimeouts.DEFAULTS);
+    }
+
+    public boolean wasRegistryCreated() {
+      return registryCreated;
+    }
+
+    public boolean wasSslContextCreated() {
+      return sslContextCreated;
+    }
+
+    @Override
+    protected SSLContext createContext() throws NoSuchAlgorithmException,
+        KeyManagementException {
+      sslContextCreated = true;
+      return super.createContext();
+    }
+
+    @Override
+    protected Registry<SchemeIOSessionStrategy> createRegistry(
+        SSLContext sslContext) {
+      registryCreated = true;
+      return super.createRegistry(sslContext);
+    }
+  }
+}
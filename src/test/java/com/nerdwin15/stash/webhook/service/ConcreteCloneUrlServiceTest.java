@@ -0,0 +1,154 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.bitbucket.event.project.ProjectModifiedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryModifiedEvent;
+import com.atlassian.bitbucket.event.ssh.SshConfigurationChangedEvent;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
+import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.atlassian.cache.memory.MemoryCacheManager;
+
+/**
+ * Test case for the {@link ConcreteCloneUrlService} class
+ */
+public class ConcreteCloneUrlServiceTest {
+
+  private static final String HTTP_URL = "http://stash/scm/key/slug.git";
+  private static final String SSH_URL = "ssh://git@stash:7999/key/slug.git";
+
+  private SecurityService securityService;
+  private SshScmProtocol sshScmProtocol;
+  private HttpScmProtocol httpScmProtocol;
+  private ConcreteCloneUrlService service;
+  private Repository repository;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setup() throws Throwable {
+    securityService = mock(SecurityService.class);
+    EscalatedSecurityContext context = mock(EscalatedSecurityContext.class);
+    when(securityService.withPermission(any(Permission.class), anyString()))
+        .thenReturn(context);
+    when(context.call(any(Operation.class))).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return ((Operation<?, ?>) invocation.getArguments()[0]).perform();
+      }
+    });
+    sshScmProtocol = mock(SshScmProtocol.class);
+    httpScmProtocol = mock(HttpScmProtocol.class);
+    service = new ConcreteCloneUrlService(securityService, sshScmProtocol,
+        httpScmProtocol, new MemoryCacheManager(), 100, 300);
+
+    repository = repository(1);
+    when(httpScmProtocol.getCloneUrl(repository, null)).thenReturn(HTTP_URL);
+    when(sshScmProtocol.getCloneUrl(repository, null)).thenReturn(SSH_URL);
+  }
+
+  /**
+   * Validates that the URLs are resolved once per repository
+   */
+  @Test
+  public void shouldCacheUrls() {
+    for (int i = 0; i < 3; i++) {
+      assertEquals(HTTP_URL, service.getHttpCloneUrl(repository));
+      assertEquals(SSH_URL, service.getSshCloneUrl(repository));
+    }
+
+    verify(httpScmProtocol).getCloneUrl(repository, null);
+    verify(sshScmProtocol).getCloneUrl(repository, null);
+    verify(securityService).withPermission(eq(Permission.REPO_READ),
+        anyString());
+  }
+
+  /**
+   * Validates that a missing URL isn't cached
+   */
+  @Test
+  public void shouldNotCacheMissingUrl() {
+    Repository other = repository(2);
+
+    assertNull(service.getHttpCloneUrl(other));
+    assertNull(service.getHttpCloneUrl(other));
+
+    verify(httpScmProtocol, times(2)).getCloneUrl(other, null);
+  }
+
+  /**
+   * Validates that the URLs of a renamed or moved repository are resolved
+   * again
+   */
+  @Test
+  public void shouldInvalidateModifiedRepository() {
+    Repository other = repository(2);
+    when(httpScmProtocol.getCloneUrl(other, null)).thenReturn("other");
+    service.getHttpCloneUrl(repository);
+    service.getSshCloneUrl(repository);
+    service.getHttpCloneUrl(other);
+
+    RepositoryModifiedEvent event = mock(RepositoryModifiedEvent.class);
+    when(event.getOldValue()).thenReturn(repository);
+    when(event.getNewValue()).thenReturn(repository);
+    service.onRepositoryModified(event);
+    service.getHttpCloneUrl(repository);
+    service.getSshCloneUrl(repository);
+    service.getHttpCloneUrl(other);
+
+    verify(httpScmProtocol, times(2)).getCloneUrl(repository, null);
+    verify(sshScmProtocol, times(2)).getCloneUrl(repository, null);
+    verify(httpScmProtocol).getCloneUrl(other, null);
+  }
+
+  /**
+   * Validates that all URLs are resolved again after the SSH configuration
+   * changes
+   */
+  @Test
+  public void shouldInvalidateAllOnSshConfigurationChange() {
+    service.getSshCloneUrl(repository);
+    service.onSshConfigurationChanged(new SshConfigurationChangedEvent());
+    service.getSshCloneUrl(repository);
+
+    verify(sshScmProtocol, times(2)).getCloneUrl(repository, null);
+  }
+
+  /**
+   * Validates that all URLs are resolved again after a project changes
+   */
+  @Test
+  public void shouldInvalidateAllOnProjectChange() {
+    service.getHttpCloneUrl(repository);
+    service.onProjectModified(mock(ProjectModifiedEvent.class));
+    service.getHttpCloneUrl(repository);
+
+    verify(httpScmProtocol, times(2)).getCloneUrl(repository, null);
+  }
+
+  private static Repository repository(int id) {
+    Repository repository = mock(Repository.class);
+    when(repository.getId()).thenReturn(id);
+    return repository;
+  }
+}
@@ -0,0 +1,116 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.bitbucket.event.repository.RepositoryModifiedEvent;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Branch;
+import com.atlassian.bitbucket.repository.RefService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+
+/**
+ * Test case for the {@link ConcreteDefaultBranchService} class
+ */
+public class ConcreteDefaultBranchServiceTest {
+
+  private SecurityService securityService;
+  private RefService refService;
+  private ConcreteDefaultBranchService service;
+  private Repository repository;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setup() throws Throwable {
+    securityService = mock(SecurityService.class);
+    EscalatedSecurityContext context = mock(EscalatedSecurityContext.class);
+    when(securityService.withPermission(any(Permission.class), anyString()))
+        .thenReturn(context);
+    when(context.call(any(Operation.class))).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return ((Operation<?, ?>) invocation.getArguments()[0]).perform();
+      }
+    });
+    refService = mock(RefService.class);
+    service = new ConcreteDefaultBranchService(refService, securityService,
+        100, 300);
+
+    repository = mock(Repository.class);
+    when(repository.getId()).thenReturn(1);
+    Branch master = mock(Branch.class);
+    when(master.getId()).thenReturn("refs/heads/master");
+    when(refService.getDefaultBranch(repository)).thenReturn(master);
+  }
+
+  /**
+   * Validates that the default branch matches by ref or display name
+   */
+  @Test
+  public void shouldMatchDefaultBranch() {
+    assertTrue(service.isDefaultBranch(repository, "refs/heads/master"));
+    assertTrue(service.isDefaultBranch(repository, "master"));
+    assertFalse(service.isDefaultBranch(repository, "refs/heads/develop"));
+    assertFalse(service.isDefaultBranch(repository, "refs/tags/master"));
+    assertFalse(service.isDefaultBranch(repository, null));
+
+    verify(refService).getDefaultBranch(repository);
+    verify(securityService).withPermission(eq(Permission.REPO_READ),
+        anyString());
+  }
+
+  /**
+   * Validates that no branch is the default of a repository without one
+   */
+  @Test
+  public void shouldNotMatchWithoutDefaultBranch() {
+    when(refService.getDefaultBranch(repository)).thenReturn(null);
+
+    assertFalse(service.isDefaultBranch(repository, "master"));
+  }
+
+  /**
+   * Validates that a failed lookup is treated as not the default branch
+   */
+  @Test
+  public void shouldNotMatchWhenLookupFails() {
+    when(refService.getDefaultBranch(repository))
+        .thenThrow(new IllegalStateException("No default branch"));
+
+    assertFalse(service.isDefaultBranch(repository, "master"));
+  }
+
+  /**
+   * Validates that the default branch is looked up again once the
+   * repository is modified
+   */
+  @Test
+  public void shouldInvalidateModifiedRepository() {
+    service.isDefaultBranch(repository, "master");
+    RepositoryModifiedEvent event = mock(RepositoryModifiedEvent.class);
+    when(event.getOldValue()).thenReturn(repository);
+    when(event.getNewValue()).thenReturn(repository);
+    service.onRepositoryModified(event);
+    service.isDefaultBranch(repository, "master");
+
+    verify(refService, times(2)).getDefaultBranch(repository);
+  }
+}
@@ -1,6 +1,8 @@
 package com.nerdwin15.stash.webhook.service;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.security.KeyManagementException;
@@ -8,6 +10,7 @@ import java.security.NoSuchAlgorithmException;
 
 import javax.net.ssl.SSLContext;
 
+import org.apache.http.client.HttpClient;
 import org.apache.http.config.Registry;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.junit.Before;
@@ -20,6 +23,9 @@ import org.junit.Test;
  */
 public class ConcreteHttpClientFactoryTest {
 
+  private static final String HTTP_BASE = "http://jenkins.localhost";
+  private static final String HTTPS_BASE = "https://jenkins.localhost";
+
   private InstrumentedConcreteHttpClientFactory factory;
   
   /**
@@ -35,11 +41,11 @@ public class ConcreteHttpClientFactoryTest {
    */
   @Test
   public void validateNonSslGeneration() throws Exception {
-    factory.getHttpClient(false, false);
+    factory.getHttpClient(HTTP_BASE, false);
     assertFalse(factory.wasSslContextCreated());
     assertFalse(factory.wasSchemeRegistryCreated());
 
-    factory.getHttpClient(false, true);
+    factory.getHttpClient(HTTP_BASE, true);
     assertFalse(factory.wasSslContextCreated());
     assertFalse(factory.wasSchemeRegistryCreated());
   }
@@ -49,7 +55,7 @@ public class ConcreteHttpClientFactoryTest {
    */
   @Test
   public void validateUsingDefaultCertificates() throws Exception {
-    factory.getHttpClient(true, false);
+    factory.getHttpClient(HTTPS_BASE, false);
     assertFalse(factory.wasSslContextCreated());
     assertFalse(factory.wasSchemeRegistryCreated());
   }
@@ -59,11 +65,34 @@ public class ConcreteHttpClientFactoryTest {
    */
   @Test
   public void validateIgnoringSslCertValidation() throws Exception {
-    factory.getHttpClient(true, true);
+    factory.getHttpClient(HTTPS_BASE, true);
     assertTrue(factory.wasSslContextCreated());
     assertTrue(factory.wasSchemeRegistryCreated());
   }
 
+  /**
+   * Validate that the same pooled client is handed out for the same Jenkins
+   * instance and certificate mode
+   */
+  @Test
+  public void validateClientsAreReused() throws Exception {
+    HttpClient client = factory.getHttpClient(HTTPS_BASE, false);
+    assertSame(client, factory.getHttpClient(HTTPS_BASE, false));
+    assertNotSame(client, factory.getHttpClient(HTTPS_BASE, true));
+    assertNotSame(client, factory.getHttpClient(HTTP_BASE, false));
+  }
+
+  /**
+   * Validate that shutting down discards the pooled clients
+   */
+  @Test
+  public void validateShutdownDiscardsClients() throws Exception {
+    HttpClient client = factory.getHttpClient(HTTP_BASE, false);
+    factory.shutdown();
+    assertNotSame(client, factory.getHttpClient(HTTP_BASE, false));
+    factory.shutdown();
+  }
+
   /**
    * An instrumented extension of the ConcreteHttpClientFactory that delegates
    * all functionality to the parent, but checks that various methods are
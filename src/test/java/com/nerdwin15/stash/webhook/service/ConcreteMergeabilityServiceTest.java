@@ -0,0 +1,110 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bitbucket.pull.PullRequestMergeability;
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.google.common.base.Ticker;
+
+/**
+ * Test case for the {@link ConcreteMergeabilityService} class
+ */
+public class ConcreteMergeabilityServiceTest {
+
+  private static final int REPO_ID = 1;
+  private static final long PR_ID = 2L;
+
+  private PullRequestService pullRequestService;
+  private PullRequestMergeability mergeability;
+  private ConcreteMergeabilityService service;
+  private long now;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    pullRequestService = mock(PullRequestService.class);
+    mergeability = mock(PullRequestMergeability.class);
+    when(pullRequestService.canMerge(REPO_ID, PR_ID)).thenReturn(mergeability);
+    when(mergeability.isConflicted()).thenReturn(true);
+    service = new ConcreteMergeabilityService(pullRequestService, 2, 600,
+        new Ticker() {
+          @Override
+          public long read() {
+            return now;
+          }
+        });
+  }
+
+  /**
+   * Validates that the merge check runs once for the same commits
+   */
+  @Test
+  public void shouldReuseOutcomeForSameCommits() {
+    for (int i = 0; i < 3; i++)
+      assertTrue(service.isConflicted(REPO_ID, PR_ID, "from-1", "to-1"));
+
+    verify(pullRequestService).canMerge(REPO_ID, PR_ID);
+  }
+
+  /**
+   * Validates that the merge check runs again once either side moved
+   */
+  @Test
+  public void shouldCheckAgainWhenEitherSideMoves() {
+    assertTrue(service.isConflicted(REPO_ID, PR_ID, "from-1", "to-1"));
+    when(mergeability.isConflicted()).thenReturn(false);
+
+    assertFalse(service.isConflicted(REPO_ID, PR_ID, "from-2", "to-1"));
+    assertFalse(service.isConflicted(REPO_ID, PR_ID, "from-2", "to-2"));
+
+    verify(pullRequestService, times(3)).canMerge(REPO_ID, PR_ID);
+  }
+
+  /**
+   * Validates that outcomes expire
+   */
+  @Test
+  public void shouldExpireOutcomes() {
+    service.isConflicted(REPO_ID, PR_ID, "from-1", "to-1");
+    now += TimeUnit.SECONDS.toNanos(601);
+    service.isConflicted(REPO_ID, PR_ID, "from-1", "to-1");
+
+    verify(pullRequestService, times(2)).canMerge(REPO_ID, PR_ID);
+  }
+
+  /**
+   * Validates that the number of cached outcomes is bounded
+   */
+  @Test
+  public void shouldBoundCachedOutcomes() {
+    for (int i = 0; i < 10; i++)
+      service.isConflicted(REPO_ID, PR_ID, "from-" + i, "to-1");
+
+    assertTrue(service.getCachedCount() <= 2);
+  }
+
+  /**
+   * Validates that the outcome isn't cached without both commits
+   */
+  @Test
+  public void shouldNotCacheWithoutCommits() {
+    service.isConflicted(REPO_ID, PR_ID, null, "to-1");
+    service.isConflicted(REPO_ID, PR_ID, null, "to-1");
+
+    verify(pullRequestService, times(2)).canMerge(REPO_ID, PR_ID);
+    assertEquals(0, service.getCachedCount());
+  }
+}
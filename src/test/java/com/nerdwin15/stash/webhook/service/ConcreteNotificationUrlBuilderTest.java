@@ -0,0 +1,158 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.URLEncoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bitbucket.repository.Repository;
+
+/**
+ * Test case for the {@link ConcreteNotificationUrlBuilder} class
+ */
+public class ConcreteNotificationUrlBuilderTest {
+
+  private static final String JENKINS_BASE = "http://localhost.jenkins";
+  private static final String CLONE_URL =
+      "http://some.stash.com/scm/foo/bar.git";
+  private static final String[] VALUES = {
+      "", "master", "feature/ABC-123_fix.it*", "with space",
+      "a+b&c=d?e#f%g", "~!@$^()[]{}|\\:;'\"<>,`", "tab\tnew\nline",
+      "caf\u00e9/na\u00efve", "\u65e5\u672c\u8a9e-branch",
+      "emoji-\ud83d\ude00-end", "lone-\ud83d-high", "lone-\ude00-low",
+      "\u00e9 mixed \u4e2d/\ud83d\udc4d ascii"
+  };
+
+  private ConcreteNotificationUrlBuilder builder;
+  private Repository repository;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    builder = new ConcreteNotificationUrlBuilder(100);
+    repository = repository(1);
+  }
+
+  /**
+   * Validates that the URL is the same as the one built with URLEncoder
+   * @throws Exception
+   */
+  @Test
+  public void shouldEncodeLikeUrlEncoder() throws Exception {
+    for (String value : VALUES) {
+      String expected = JENKINS_BASE + "/git/notifyCommit?url="
+          + URLEncoder.encode(value, "UTF-8") + "&branches="
+          + URLEncoder.encode(value, "UTF-8") + "&sha1=sha1"
+          + "&TARGET_BRANCH=target";
+      assertEquals(expected, builder.getUrl(repository(value.hashCode()),
+          JENKINS_BASE, value, value, "sha1", "target", false, false, false));
+    }
+  }
+
+  /**
+   * Validates that the encoded length matches URLEncoder
+   * @throws Exception
+   */
+  @Test
+  public void shouldComputeEncodedLength() throws Exception {
+    for (String value : VALUES)
+      assertEquals(value, URLEncoder.encode(value, "UTF-8").length(),
+          builder.getEncodedLength(value));
+  }
+
+  /**
+   * Validates that omitted and missing parameters are left out
+   */
+  @Test
+  public void shouldLeaveOutOmittedParameters() {
+    String base = JENKINS_BASE + "/git/notifyCommit?url="
+        + "http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git";
+
+    assertEquals(base, builder.getUrl(repository, JENKINS_BASE, CLONE_URL,
+        "refs/heads/master", "sha1", "dev", true, true, true));
+    assertEquals(base, builder.getUrl(repository, JENKINS_BASE, CLONE_URL,
+        null, null, null, false, false, false));
+    assertEquals(base + "&sha1=sha1", builder.getUrl(repository,
+        JENKINS_BASE, CLONE_URL, "refs/heads/master", "sha1", "dev", false,
+        true, true));
+  }
+
+  /**
+   * Validates that the encoded prefix is reused while the settings stay
+   * the same
+   */
+  @Test
+  public void shouldReusePrefix() {
+    String prefix = builder.getPrefix(repository, JENKINS_BASE, CLONE_URL);
+    builder.getUrl(repository, JENKINS_BASE, CLONE_URL, "refs/heads/master",
+        null, null, false, false, false);
+
+    assertSame(prefix, builder.getPrefix(repository, JENKINS_BASE,
+        new String(CLONE_URL)));
+  }
+
+  /**
+   * Validates that a changed Jenkins base or clone URL rebuilds the prefix
+   */
+  @Test
+  public void shouldRebuildPrefixWhenSettingsChange() {
+    String prefix = builder.getPrefix(repository, JENKINS_BASE, CLONE_URL);
+
+    assertNotSame(prefix, builder.getPrefix(repository, JENKINS_BASE,
+        CLONE_URL + "/"));
+    assertEquals("http://other.jenkins/git/notifyCommit?url="
+        + "http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git",
+        builder.getUrl(repository, "http://other.jenkins", CLONE_URL, null,
+            null, null, false, false, false));
+    assertEquals(JENKINS_BASE + "/git/notifyCommit?url=ssh%3A%2F%2Fgit",
+        builder.getUrl(repository, JENKINS_BASE, "ssh://git", null, null,
+            null, false, false, false));
+  }
+
+  /**
+   * Validates that repositories don't share their prefix
+   */
+  @Test
+  public void shouldKeepPrefixPerRepository() {
+    builder.getUrl(repository, JENKINS_BASE, CLONE_URL, null, null, null,
+        false, false, false);
+
+    assertEquals(JENKINS_BASE + "/git/notifyCommit?url=other",
+        builder.getUrl(repository(2), JENKINS_BASE, "other", null, null,
+            null, false, false, false));
+    assertEquals(JENKINS_BASE + "/git/notifyCommit?url="
+        + "http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git",
+        builder.getUrl(repository, JENKINS_BASE, CLONE_URL, null, null, null,
+            false, false, false));
+  }
+
+  /**
+   * Validates that the Jenkins instances of a repository each keep their
+   * prefix, rather than evicting each other's
+   */
+  @Test
+  public void shouldKeepPrefixPerJenkinsInstance() {
+    String prefix = builder.getPrefix(repository, JENKINS_BASE, CLONE_URL);
+    String other = builder.getPrefix(repository, "http://other.jenkins",
+        CLONE_URL);
+
+    assertSame(prefix, builder.getPrefix(repository, JENKINS_BASE,
+        CLONE_URL));
+    assertSame(other, builder.getPrefix(repository, "http://other.jenkins",
+        CLONE_URL));
+  }
+
+  private static Repository repository(int id) {
+    Repository repository = mock(Repository.class);
+    when(repository.getId()).thenReturn(id);
+    return repository;
+  }
+}
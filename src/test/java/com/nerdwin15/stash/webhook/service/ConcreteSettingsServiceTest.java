@@ -1,17 +1,28 @@
 package com.nerdwin15.stash.webhook.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+
 import com.atlassian.bitbucket.user.EscalatedSecurityContext;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import com.atlassian.bitbucket.event.hook.RepositoryHookDisabledEvent;
+import com.atlassian.bitbucket.event.hook.RepositoryHookSettingsChangedEvent;
 import com.atlassian.bitbucket.hook.repository.RepositoryHook;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
 import com.atlassian.bitbucket.repository.Repository;
@@ -19,6 +30,11 @@ import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.bitbucket.util.Operation;
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheFactory;
+import com.atlassian.cache.CacheLoader;
+import com.atlassian.cache.CacheSettings;
+import com.atlassian.cache.memory.MemoryCacheManager;
 import com.nerdwin15.stash.webhook.Notifier;
 
 /**
@@ -40,8 +56,8 @@ public class ConcreteSettingsServiceTest {
   public void setUp() {
     hookService = mock(RepositoryHookService.class);
     securityService = mock(SecurityService.class);
-    settingsService = new ConcreteSettingsService(hookService, 
-        securityService);
+    settingsService = new ConcreteSettingsService(hookService,
+        securityService, new MemoryCacheManager(), 10, 60);
     
     repository = mock(Repository.class);
   }
@@ -93,4 +109,153 @@ public class ConcreteSettingsServiceTest {
     verify(hookService, times(1)).getSettings(repository, Notifier.KEY);
     assertEquals(settings, returnValue);
   }
+
+  /**
+   * Validate that the settings snapshot is cached per repository
+   */
+  @Test
+  public void shouldCacheWebhookSettings() throws Throwable {
+    Settings settings = mockSettingsLookup(true);
+
+    WebhookSettings first = settingsService.getWebhookSettings(repository);
+    WebhookSettings second = settingsService.getWebhookSettings(repository);
+
+    assertSame(first, second);
+    assertTrue(first.isEnabled());
+    assertEquals("http://jenkins", first.getJenkinsBase());
+    verify(hookService, times(1)).getSettings(repository, Notifier.KEY);
+    verify(settings, times(1)).getString(Notifier.JENKINS_BASE);
+  }
+
+  /**
+   * Validate that the snapshot lists the configured Jenkins instance first,
+   * then the additional ones without duplicates
+   */
+  @Test
+  public void shouldListJenkinsBases() throws Throwable {
+    Settings settings = mockSettingsLookup(true);
+    when(settings.getString(Notifier.ADDITIONAL_JENKINS_BASES))
+        .thenReturn(" http://scanner  http://jenkins http://new-jenkins ");
+
+    WebhookSettings snapshot = settingsService.getWebhookSettings(repository);
+
+    assertEquals(Arrays.asList("http://jenkins", "http://scanner",
+        "http://new-jenkins"), snapshot.getJenkinsBases());
+  }
+
+  /**
+   * Validate that Jenkins instances differing only by a trailing slash are
+   * listed once
+   */
+  @Test
+  public void shouldListJenkinsBasesOnceRegardlessOfTrailingSlash()
+      throws Throwable {
+    Settings settings = mockSettingsLookup(true);
+    when(settings.getString(Notifier.ADDITIONAL_JENKINS_BASES))
+        .thenReturn("http://jenkins/ http://scanner/ http://scanner");
+
+    WebhookSettings snapshot = settingsService.getWebhookSettings(repository);
+
+    assertEquals(Arrays.asList("http://jenkins", "http://scanner"),
+        snapshot.getJenkinsBases());
+  }
+
+  /**
+   * Validate that the cached snapshot is dropped when the settings change
+   */
+  @Test
+  public void shouldInvalidateOnSettingsChanged() throws Throwable {
+    mockSettingsLookup(true);
+    RepositoryHookSettingsChangedEvent event =
+        mock(RepositoryHookSettingsChangedEvent.class);
+    when(event.getRepositoryHookKey()).thenReturn(Notifier.KEY);
+    when(event.getRepository()).thenReturn(repository);
+
+    WebhookSettings first = settingsService.getWebhookSettings(repository);
+    settingsService.onHookSettingsChanged(event);
+    WebhookSettings second = settingsService.getWebhookSettings(repository);
+
+    assertNotSame(first, second);
+    verify(hookService, times(2)).getSettings(repository, Notifier.KEY);
+  }
+
+  /**
+   * Validate that events for other hooks leave the cache alone
+   */
+  @Test
+  public void shouldIgnoreEventsForOtherHooks() throws Throwable {
+    mockSettingsLookup(true);
+    RepositoryHookDisabledEvent event = mock(RepositoryHookDisabledEvent.class);
+    when(event.getRepositoryHookKey()).thenReturn("some.other:hook");
+    when(event.getRepository()).thenReturn(repository);
+
+    WebhookSettings first = settingsService.getWebhookSettings(repository);
+    settingsService.onHookDisabled(event);
+
+    assertSame(first, settingsService.getWebhookSettings(repository));
+  }
+
+  /**
+   * Validate that a missing hook yields a disabled snapshot and missing
+   * settings yield no snapshot
+   */
+  @Test
+  public void shouldHandleMissingHookAndSettings() throws Throwable {
+    mockSettingsLookup(false);
+    assertFalse(settingsService.getWebhookSettings(repository).isEnabled());
+
+    Repository other = mock(Repository.class);
+    when(other.getId()).thenReturn(2);
+    assertNull(settingsService.getWebhookSettings(other));
+  }
+
+  /**
+   * Validate that the snapshots are kept on each node, with removals
+   * replicated to the rest of the cluster
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldInvalidateAcrossCluster() {
+    CacheFactory cacheFactory = mock(CacheFactory.class);
+    Cache<Integer, Object> cache = mock(Cache.class);
+    ArgumentCaptor<CacheSettings> captor =
+        ArgumentCaptor.forClass(CacheSettings.class);
+    when(cacheFactory.getCache(eq(ConcreteSettingsService.CACHE_NAME),
+        any(CacheLoader.class), captor.capture()))
+        .thenReturn(cache);
+
+    new ConcreteSettingsService(hookService, securityService, cacheFactory,
+        10, 60);
+
+    CacheSettings cacheSettings = captor.getValue();
+    assertEquals(Boolean.FALSE, cacheSettings.getLocal());
+    assertEquals(Boolean.FALSE, cacheSettings.getReplicateViaCopy());
+    assertEquals(Integer.valueOf(10), cacheSettings.getMaxEntries());
+    assertEquals(Long.valueOf(60000), cacheSettings.getExpireAfterWrite());
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private Settings mockSettingsLookup(boolean withHook) throws Throwable {
+    EscalatedSecurityContext escalatedSecurityContext =
+        mock(EscalatedSecurityContext.class);
+    when(securityService.withPermission(eq(Permission.REPO_ADMIN),
+        anyString())).thenReturn(escalatedSecurityContext);
+    when(escalatedSecurityContext.call(any(Operation.class)))
+        .thenAnswer(invocation ->
+            ((Operation) invocation.getArguments()[0]).perform());
+
+    Settings settings = mock(Settings.class);
+    when(settings.getString(Notifier.JENKINS_BASE))
+        .thenReturn("http://jenkins");
+    when(repository.getId()).thenReturn(1);
+    when(hookService.getSettings(repository, Notifier.KEY))
+        .thenReturn(settings);
+
+    if (withHook) {
+      RepositoryHook hook = mock(RepositoryHook.class);
+      when(hook.isEnabled()).thenReturn(true);
+      when(hookService.getByKey(repository, Notifier.KEY)).thenReturn(hook);
+    }
+    return settings;
+  }
 }
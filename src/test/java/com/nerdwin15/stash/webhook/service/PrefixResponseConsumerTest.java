@@ -0,0 +1,57 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.IOControl;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link PrefixResponseConsumer} class
+ */
+public class PrefixResponseConsumerTest {
+
+  /**
+   * Validates that only the start of the body is kept, with a byte more to
+   * tell it was cut
+   * @throws Exception
+   */
+  @Test
+  public void shouldKeepStartOfBody() throws Exception {
+    PrefixResponseConsumer consumer = new PrefixResponseConsumer();
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200,
+        "OK");
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContentType(ContentType.TEXT_PLAIN.toString());
+    response.setEntity(entity);
+    consumer.onResponseReceived(response);
+
+    byte[] chunk = new byte[1000];
+    Arrays.fill(chunk, (byte) 'x');
+    ByteBuffer buf = ByteBuffer.wrap(chunk);
+    for (int i = 0; i < 10; i++) {
+      buf.rewind();
+      consumer.onByteReceived(buf, mock(IOControl.class));
+      assertEquals(0, buf.remaining());
+    }
+    HttpResponse result = consumer.buildResult(new BasicHttpContext());
+
+    assertEquals(ResponsePrefix.MAX_BYTES + 1,
+        result.getEntity().getContentLength());
+    assertEquals(ContentType.TEXT_PLAIN.toString(),
+        result.getEntity().getContentType().getValue());
+    ResponsePrefix body = ResponsePrefix.read(result.getEntity());
+    assertEquals(ResponsePrefix.MAX_BYTES, body.getText().length());
+    assertTrue(body.isTruncated());
+  }
+}
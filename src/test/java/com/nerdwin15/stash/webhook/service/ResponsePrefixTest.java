@@ -0,0 +1,122 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link ResponsePrefix} class
+ */
+public class ResponsePrefixTest {
+
+  /**
+   * Validates that a short body is kept whole
+   * @throws Exception
+   */
+  @Test
+  public void shouldKeepShortBody() throws Exception {
+    ResponsePrefix body = ResponsePrefix.read(
+        new StringEntity("Scheduled polling of job"));
+
+    assertEquals("Scheduled polling of job", body.getText());
+    assertEquals("Scheduled polling of job", body.toString());
+    assertFalse(body.isTruncated());
+    assertTrue(body.isConsumed());
+  }
+
+  /**
+   * Validates that a long body is cut, and read to the end
+   * @throws Exception
+   */
+  @Test
+  public void shouldCutLongBody() throws Exception {
+    InputStream content = stream(ResponsePrefix.MAX_BYTES * 3, (byte) 'x');
+
+    ResponsePrefix body = ResponsePrefix.read(
+        new InputStreamEntity(content, -1));
+
+    assertEquals(ResponsePrefix.MAX_BYTES, body.getText().length());
+    assertTrue(body.isTruncated());
+    assertTrue(body.toString().endsWith("..."));
+    assertTrue(body.isConsumed());
+    assertEquals(-1, content.read());
+  }
+
+  /**
+   * Validates that a body exactly as long as the prefix isn't cut
+   * @throws Exception
+   */
+  @Test
+  public void shouldNotCutBodyOfPrefixLength() throws Exception {
+    ResponsePrefix body = ResponsePrefix.read(new InputStreamEntity(
+        stream(ResponsePrefix.MAX_BYTES, (byte) 'x'), -1));
+
+    assertFalse(body.isTruncated());
+    assertTrue(body.isConsumed());
+  }
+
+  /**
+   * Validates that a character cut in half at the end of the prefix is left
+   * out
+   * @throws Exception
+   */
+  @Test
+  public void shouldLeaveOutCharacterCutInHalf() throws Exception {
+    byte[] start = new byte[ResponsePrefix.MAX_BYTES - 1];
+    Arrays.fill(start, (byte) 'x');
+    byte[] euro = "\u20ac".getBytes(StandardCharsets.UTF_8);
+    byte[] bytes = Arrays.copyOf(start, start.length + euro.length);
+    System.arraycopy(euro, 0, bytes, start.length, euro.length);
+
+    ResponsePrefix body = ResponsePrefix.read(
+        new InputStreamEntity(new ByteArrayInputStream(bytes), -1));
+
+    assertEquals(new String(start, StandardCharsets.UTF_8), body.getText());
+    assertTrue(body.isTruncated());
+  }
+
+  /**
+   * Validates that reading gives up on bodies too long to drain
+   * @throws Exception
+   */
+  @Test
+  public void shouldNotDrainOversizedBody() throws Exception {
+    InputStream content = stream(ResponsePrefix.MAX_BYTES
+        + ResponsePrefix.MAX_DRAIN_BYTES * 4, (byte) 'x');
+
+    ResponsePrefix body = ResponsePrefix.read(
+        new InputStreamEntity(content, -1));
+
+    assertTrue(body.isTruncated());
+    assertFalse(body.isConsumed());
+    assertTrue(content.read() != -1);
+  }
+
+  /**
+   * Validates that a missing body reads as empty
+   * @throws Exception
+   */
+  @Test
+  public void shouldReadMissingBodyAsEmpty() throws Exception {
+    ResponsePrefix body = ResponsePrefix.read(null);
+
+    assertEquals("", body.getText());
+    assertFalse(body.isTruncated());
+    assertTrue(body.isConsumed());
+  }
+
+  private static InputStream stream(long length, byte value) {
+    byte[] bytes = new byte[(int) length];
+    Arrays.fill(bytes, value);
+    return new ByteArrayInputStream(bytes);
+  }
+}
@@ -0,0 +1,169 @@
+package com.nerdwin15.stash.webhook.service.breaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.nerdwin15.stash.webhook.service.breaker.CircuitBreaker.State;
+
+/**
+ * Test case for the {@link CircuitBreaker} class.
+ */
+public class CircuitBreakerTest {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.SECONDS.toNanos(2);
+
+  private FakeTicker ticker;
+  private CircuitBreaker breaker;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    ticker = new FakeTicker();
+    // Window of 4 calls, at least 4 calls, 50% failures, 75% slow calls,
+    // slow after 1s, open for 30s, 2 probes
+    breaker = new CircuitBreaker("http://jenkins",
+        new CircuitBreakerConfig(true, 4, 4, 50, 75, 1000, 30000, 2), ticker);
+  }
+
+  /**
+   * Validate that the circuit stays closed until enough calls are recorded
+   */
+  @Test
+  public void shouldStayClosedBelowMinimumCalls() {
+    breaker.onFailure(FAST);
+    breaker.onFailure(FAST);
+    breaker.onFailure(FAST);
+
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(-1f, breaker.getFailureRate(), 0f);
+    assertTrue(breaker.tryAcquire());
+  }
+
+  /**
+   * Validate that the circuit opens when the failure rate is reached
+   */
+  @Test
+  public void shouldOpenOnFailureRate() {
+    breaker.onSuccess(FAST);
+    breaker.onFailure(FAST);
+    breaker.onSuccess(FAST);
+    assertEquals(State.CLOSED, breaker.getState());
+
+    breaker.onFailure(FAST);
+
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+    assertEquals(30000, breaker.getRemainingOpenMillis());
+  }
+
+  /**
+   * Validate that the circuit opens when the slow call rate is reached
+   */
+  @Test
+  public void shouldOpenOnSlowCallRate() {
+    breaker.onSuccess(SLOW);
+    breaker.onSuccess(SLOW);
+    breaker.onSuccess(FAST);
+    breaker.onSuccess(SLOW);
+
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  /**
+   * Validate that old calls drop out of the window
+   */
+  @Test
+  public void shouldOnlyCountCallsInWindow() {
+    breaker.onFailure(FAST);
+    breaker.onSuccess(FAST);
+    breaker.onSuccess(FAST);
+    breaker.onSuccess(FAST);
+    breaker.onSuccess(FAST);
+
+    assertEquals(4, breaker.getBufferedCalls());
+    assertEquals(0f, breaker.getFailureRate(), 0f);
+  }
+
+  /**
+   * Validate that the circuit closes again once the probes succeed
+   */
+  @Test
+  public void shouldCloseAfterSuccessfulProbes() {
+    open();
+    ticker.advance(30, TimeUnit.SECONDS);
+
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+    assertTrue(breaker.tryAcquire());
+    assertFalse(breaker.tryAcquire());
+
+    breaker.onSuccess(FAST);
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    breaker.onSuccess(FAST);
+
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(0, breaker.getBufferedCalls());
+    assertTrue(breaker.tryAcquire());
+  }
+
+  /**
+   * Validate that a failing probe opens the circuit again
+   */
+  @Test
+  public void shouldReopenOnFailedProbe() {
+    open();
+    ticker.advance(30, TimeUnit.SECONDS);
+    assertTrue(breaker.tryAcquire());
+
+    breaker.onFailure(FAST);
+
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+  }
+
+  /**
+   * Validate that a slow probe opens the circuit again
+   */
+  @Test
+  public void shouldReopenOnSlowProbe() {
+    open();
+    ticker.advance(30, TimeUnit.SECONDS);
+    assertTrue(breaker.tryAcquire());
+
+    breaker.onSuccess(SLOW);
+
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  private void open() {
+    for (int i = 0; i < 4; i++)
+      breaker.onFailure(FAST);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  /**
+   * A ticker that only moves when told to
+   */
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+}
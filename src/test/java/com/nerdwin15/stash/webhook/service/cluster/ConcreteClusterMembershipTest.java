@@ -0,0 +1,121 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bitbucket.cluster.ClusterNode;
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.event.cluster.ClusterNodeAddedEvent;
+import com.atlassian.bitbucket.event.cluster.ClusterNodeRemovedEvent;
+
+/**
+ * Test case for the {@link ConcreteClusterMembership} class
+ */
+public class ConcreteClusterMembershipTest {
+
+  private ClusterService clusterService;
+  private ClusterNode local;
+  private ClusterNode other;
+  private ConcreteClusterMembership membership;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    clusterService = mock(ClusterService.class);
+    local = node("local");
+    other = node("other");
+    when(clusterService.getLocalNode()).thenReturn(local);
+    membership = new ConcreteClusterMembership(clusterService);
+  }
+
+  /**
+   * Validates that a standalone instance consists of the local node
+   */
+  @Test
+  public void shouldHaveLocalNodeWhenStandalone() {
+    when(clusterService.isAvailable()).thenReturn(false);
+
+    assertEquals("local", membership.getLocalNodeId());
+    assertEquals(new HashSet<String>(Arrays.asList("local")),
+        membership.getNodeIds());
+  }
+
+  /**
+   * Validates that the nodes are read from the cluster service
+   */
+  @Test
+  public void shouldReadClusterNodes() {
+    when(clusterService.isAvailable()).thenReturn(true);
+    when(clusterService.getNodes()).thenReturn(nodes(local, other));
+
+    assertEquals(new HashSet<String>(Arrays.asList("local", "other")),
+        membership.getNodeIds());
+  }
+
+  /**
+   * Validates that listeners hear of nodes joining and leaving
+   */
+  @Test
+  public void shouldNotifyListenersOfChanges() {
+    Runnable listener = mock(Runnable.class);
+    membership.addListener(listener);
+
+    ClusterNodeAddedEvent added = mock(ClusterNodeAddedEvent.class);
+    when(added.getCurrentNodes()).thenReturn(nodes(local, other));
+    membership.onNodeAdded(added);
+    membership.onNodeAdded(added);
+
+    verify(listener, times(1)).run();
+    assertEquals(new HashSet<String>(Arrays.asList("local", "other")),
+        membership.getNodeIds());
+
+    ClusterNodeRemovedEvent removed = mock(ClusterNodeRemovedEvent.class);
+    when(removed.getCurrentNodes()).thenReturn(nodes(local));
+    membership.onNodeRemoved(removed);
+
+    verify(listener, times(2)).run();
+    assertEquals(new HashSet<String>(Arrays.asList("local")),
+        membership.getNodeIds());
+  }
+
+  /**
+   * Validates that nothing happens without a listener-visible change
+   */
+  @Test
+  public void shouldIgnoreUnchangedNodes() {
+    when(clusterService.isAvailable()).thenReturn(true);
+    when(clusterService.getNodes()).thenReturn(nodes(local));
+    membership.getNodeIds();
+    Runnable listener = mock(Runnable.class);
+    membership.addListener(listener);
+
+    ClusterNodeAddedEvent added = mock(ClusterNodeAddedEvent.class);
+    when(added.getCurrentNodes()).thenReturn(nodes(local));
+    membership.onNodeAdded(added);
+
+    verify(listener, never()).run();
+  }
+
+  private static ClusterNode node(String id) {
+    ClusterNode node = mock(ClusterNode.class);
+    when(node.getId()).thenReturn(id);
+    return node;
+  }
+
+  private static Set<ClusterNode> nodes(ClusterNode... nodes) {
+    return new HashSet<ClusterNode>(Arrays.asList(nodes));
+  }
+}
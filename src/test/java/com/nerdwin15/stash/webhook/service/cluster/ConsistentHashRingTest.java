@@ -0,0 +1,78 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test case for the {@link ConsistentHashRing} class
+ */
+public class ConsistentHashRingTest {
+
+  private static final int KEYS = 10000;
+
+  /**
+   * Validates that an empty ring has no owners
+   */
+  @Test
+  public void shouldHaveNoOwnerWhenEmpty() {
+    assertNull(new ConsistentHashRing(Collections.<String>emptySet(), 16)
+        .getOwner("key"));
+  }
+
+  /**
+   * Validates that rings of the same nodes agree, whatever the node order
+   */
+  @Test
+  public void shouldAgreeOnOwners() {
+    ConsistentHashRing one = new ConsistentHashRing(
+        Arrays.asList("a", "b", "c"), 64);
+    ConsistentHashRing two = new ConsistentHashRing(
+        Arrays.asList("c", "a", "b"), 64);
+
+    for (int i = 0; i < 1000; i++)
+      assertEquals(one.getOwner("key" + i), two.getOwner("key" + i));
+  }
+
+  /**
+   * Validates that keys are spread roughly evenly
+   */
+  @Test
+  public void shouldSpreadKeys() {
+    ConsistentHashRing ring = new ConsistentHashRing(
+        Arrays.asList("a", "b", "c", "d"),
+        ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (int i = 0; i < KEYS; i++)
+      counts.merge(ring.getOwner("key" + i), 1, Integer::sum);
+
+    assertEquals(4, counts.size());
+    for (int count : counts.values())
+      assertTrue("Uneven spread " + counts, count > KEYS / 8);
+  }
+
+  /**
+   * Validates that a node leaving only moves its own keys
+   */
+  @Test
+  public void shouldOnlyMoveKeysOfLeavingNode() {
+    ConsistentHashRing before = new ConsistentHashRing(
+        Arrays.asList("a", "b", "c"), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+    ConsistentHashRing after = new ConsistentHashRing(
+        Arrays.asList("a", "b"), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+
+    for (int i = 0; i < KEYS; i++) {
+      String owner = before.getOwner("key" + i);
+      if (!owner.equals("c"))
+        assertEquals(owner, after.getOwner("key" + i));
+    }
+  }
+}
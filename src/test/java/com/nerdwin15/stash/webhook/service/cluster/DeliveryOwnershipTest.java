@@ -0,0 +1,100 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link DeliveryOwnership} class
+ */
+public class DeliveryOwnershipTest {
+
+  private static final int REPOSITORIES = 1000;
+
+  private LocalClusterMembership.Cluster cluster;
+  private DeliveryOwnership node1;
+  private DeliveryOwnership node2;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    cluster = new LocalClusterMembership.Cluster();
+    node1 = new DeliveryOwnership(cluster.join("node1"), true);
+    node2 = new DeliveryOwnership(cluster.join("node2"), true);
+  }
+
+  /**
+   * Validates that each repository is owned by exactly one node
+   */
+  @Test
+  public void shouldAssignEachRepositoryToOneNode() {
+    assertTrue(node1.isDistributed());
+    int owned1 = 0;
+    int owned2 = 0;
+    for (int id = 1; id <= REPOSITORIES; id++) {
+      assertEquals(node1.getOwner(id), node2.getOwner(id));
+      assertTrue(node1.isLocal(id) != node2.isLocal(id));
+      owned1 += node1.isLocal(id) ? 1 : 0;
+      owned2 += node2.isLocal(id) ? 1 : 0;
+    }
+    assertTrue(owned1 > 0);
+    assertTrue(owned2 > 0);
+  }
+
+  /**
+   * Validates that the repositories of a leaving node are taken over
+   */
+  @Test
+  public void shouldRebalanceWhenNodeLeaves() {
+    node1.getOwner(1);
+    cluster.leave("node2");
+
+    assertFalse(node1.isDistributed());
+    for (int id = 1; id <= REPOSITORIES; id++)
+      assertTrue(node1.isLocal(id));
+    assertEquals("node1", node1.getSuccessor("node2"));
+  }
+
+  /**
+   * Validates that a joining node only takes repositories over
+   */
+  @Test
+  public void shouldOnlyMoveRepositoriesToJoiningNode() {
+    String[] before = new String[REPOSITORIES + 1];
+    for (int id = 1; id <= REPOSITORIES; id++)
+      before[id] = node1.getOwner(id);
+
+    DeliveryOwnership node3 = new DeliveryOwnership(cluster.join("node3"),
+        true);
+
+    assertEquals(new HashSet<String>(Arrays.asList("node1", "node2", "node3")),
+        node1.getNodeIds());
+    for (int id = 1; id <= REPOSITORIES; id++) {
+      String owner = node1.getOwner(id);
+      assertEquals(owner, node3.getOwner(id));
+      if (!owner.equals("node3"))
+        assertEquals(before[id], owner);
+    }
+  }
+
+  /**
+   * Validates that every repository is local when ownership is off
+   */
+  @Test
+  public void shouldOwnEverythingWhenDisabled() {
+    DeliveryOwnership disabled = new DeliveryOwnership(cluster.join("node3"),
+        false);
+
+    assertFalse(disabled.isDistributed());
+    for (int id = 1; id <= REPOSITORIES; id++)
+      assertTrue(disabled.isLocal(id));
+  }
+}
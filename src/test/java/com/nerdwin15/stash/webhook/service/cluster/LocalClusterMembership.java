@@ -0,0 +1,83 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process stand-in for the cluster membership of a single node. All
+ * members created from the same {@link Cluster} see the same nodes, so
+ * several nodes can be simulated in one test.
+ */
+public class LocalClusterMembership implements ClusterMembership {
+
+  private final Cluster cluster;
+  private final String localNodeId;
+  private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+  private LocalClusterMembership(Cluster cluster, String localNodeId) {
+    this.cluster = cluster;
+    this.localNodeId = localNodeId;
+  }
+
+  @Override
+  public String getLocalNodeId() {
+    return localNodeId;
+  }
+
+  @Override
+  public Set<String> getNodeIds() {
+    return cluster.getNodeIds();
+  }
+
+  @Override
+  public void addListener(Runnable listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * A simulated cluster
+   */
+  public static class Cluster {
+    private final Set<String> nodes = new TreeSet<String>();
+    private final List<LocalClusterMembership> members =
+        new ArrayList<LocalClusterMembership>();
+
+    /**
+     * Start a node and join it to the cluster
+     * @param nodeId The id of the node
+     * @return The membership as seen from the node
+     */
+    public synchronized LocalClusterMembership join(String nodeId) {
+      LocalClusterMembership member = new LocalClusterMembership(this, nodeId);
+      members.add(member);
+      nodes.add(nodeId);
+      changed();
+      return member;
+    }
+
+    /**
+     * Remove a node from the cluster
+     * @param nodeId The id of the node
+     */
+    public synchronized void leave(String nodeId) {
+      nodes.remove(nodeId);
+      members.removeIf(member -> member.localNodeId.equals(nodeId));
+      changed();
+    }
+
+    synchronized Set<String> getNodeIds() {
+      return Collections.unmodifiableSet(new TreeSet<String>(nodes));
+    }
+
+    private void changed() {
+      for (LocalClusterMembership member : members) {
+        for (Runnable listener : member.listeners)
+          listener.run();
+      }
+    }
+  }
+}
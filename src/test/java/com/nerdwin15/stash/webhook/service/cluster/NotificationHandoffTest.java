@@ -0,0 +1,181 @@
+package com.nerdwin15.stash.webhook.service.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.nerdwin15.stash.webhook.NotificationRequest;
+
+/**
+ * Test case for the {@link NotificationHandoff} class
+ */
+public class NotificationHandoffTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Map<Integer, Repository> repositories =
+      new HashMap<Integer, Repository>();
+  private File directory;
+  private NotificationHandoff handoff;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    directory = new File(folder.getRoot(), "handoff");
+    for (int id = 1; id <= 2; id++) {
+      Repository repository = mock(Repository.class);
+      when(repository.getId()).thenReturn(id);
+      repositories.put(id, repository);
+    }
+    handoff = new NotificationHandoff(directory, null, null) {
+      @Override
+      protected Repository findRepository(int repositoryId) {
+        return repositories.get(repositoryId);
+      }
+    };
+  }
+
+  /**
+   * Validates that handed over notifications are received once, in order
+   */
+  @Test
+  public void shouldReceiveHandedOverNotificationsOnce() {
+    NotificationRequest first = request(1, "master", "sha1");
+    NotificationRequest second = request(2, "develop", null);
+    NotificationRequest third = request(1, "feature", "sha3");
+
+    assertTrue(handoff.send("node2", Arrays.asList(first, second)));
+    assertTrue(handoff.send("node2", Collections.singletonList(third)));
+
+    assertTrue(receive("node1", "node1").isEmpty());
+    assertEquals(Arrays.asList(first, second, third),
+        receive("node2", "node2"));
+    assertTrue(receive("node2", "node2").isEmpty());
+    assertEquals(Collections.singleton("node2"), handoff.getInboxes());
+  }
+
+  /**
+   * Validates that notifications of deleted repositories are dropped
+   */
+  @Test
+  public void shouldDropNotificationsOfDeletedRepositories() {
+    handoff.send("node2", Arrays.asList(request(1, "master", "sha1"),
+        request(2, "master", "sha2")));
+    repositories.remove(1);
+
+    List<NotificationRequest> received = receive("node2", "node2");
+
+    assertEquals(Collections.singletonList(request(2, "master", "sha2")),
+        received);
+  }
+
+  /**
+   * Validates that files another node claimed are left alone
+   * @throws Exception
+   */
+  @Test
+  public void shouldSkipFilesClaimedByOtherNodes() throws Exception {
+    handoff.send("node2", Collections.singletonList(
+        request(1, "master", "sha1")));
+    File inbox = new File(directory, "node2");
+    File file = inbox.listFiles()[0];
+    assertTrue(file.renameTo(new File(inbox, file.getName()
+        + ".claimed-node3")));
+
+    assertTrue(receive("node2", "node1").isEmpty());
+    assertEquals(1, receive("node2", "node3").size());
+  }
+
+  /**
+   * Validates that the successor of a departed node also takes the files
+   * the departed node had claimed but not delivered, in order
+   * @throws Exception
+   */
+  @Test
+  public void shouldTakeOverFilesClaimedByDepartedNode() throws Exception {
+    NotificationRequest first = request(1, "master", "sha1");
+    NotificationRequest second = request(2, "develop", "sha2");
+    handoff.send("node2", Collections.singletonList(first));
+    handoff.send("node2", Collections.singletonList(second));
+    File inbox = new File(directory, "node2");
+    String[] names = inbox.list();
+    Arrays.sort(names);
+    File file = new File(inbox, names[0]);
+    assertTrue(file.renameTo(new File(inbox, file.getName()
+        + ".claimed-node2")));
+
+    assertEquals(Arrays.asList(first, second),
+        receive("node2", "node1"));
+    assertEquals(0, inbox.list().length);
+  }
+
+  /**
+   * Validates that a hand-over is kept until its notifications were
+   * delivered
+   */
+  @Test
+  public void shouldKeepFilesUntilDelivered() {
+    NotificationRequest first = request(1, "master", "sha1");
+    handoff.send("node2", Collections.singletonList(first));
+
+    try {
+      handoff.receive("node2", "node2", requests -> {
+        throw new IllegalStateException();
+      });
+      fail("Expected the delivery to fail");
+    } catch (IllegalStateException e) {
+      // The file stays claimed
+    }
+
+    assertEquals(Collections.singletonList(first), receive("node2", "node2"));
+    assertEquals(0, new File(directory, "node2").list().length);
+  }
+
+  /**
+   * Validates that hand-overs from different nodes don't replace each other
+   */
+  @Test
+  public void shouldNotReplaceHandOversOfOtherNodes() {
+    NotificationHandoff other = new NotificationHandoff(directory, null,
+        null);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(handoff.send("node2", Collections.singletonList(
+          request(1, "master", "sha1"))));
+      assertTrue(other.send("node2", Collections.singletonList(
+          request(2, "master", "sha2"))));
+    }
+
+    assertEquals(200, new File(directory, "node2").list().length);
+  }
+
+  private List<NotificationRequest> receive(String nodeId, String claimant) {
+    List<NotificationRequest> received = new ArrayList<NotificationRequest>();
+    handoff.receive(nodeId, claimant, received::addAll);
+    return received;
+  }
+
+  private NotificationRequest request(int repositoryId, String ref,
+      String sha1) {
+    return new NotificationRequest(repositories.get(repositoryId), ref, sha1,
+        ref);
+  }
+}
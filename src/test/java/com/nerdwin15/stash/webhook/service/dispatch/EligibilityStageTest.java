@@ -0,0 +1,188 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+
+/**
+ * Test case for the {@link EligibilityStage} class.
+ */
+public class EligibilityStageTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private SecurityService securityService;
+  private EligibilityStage stage;
+  private Repository repository;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    securityService = mock(SecurityService.class);
+    // Not a mock, as Mockito serializes answers and evaluations may block
+    EscalatedSecurityContext context = (EscalatedSecurityContext)
+        Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { EscalatedSecurityContext.class },
+            (proxy, method, args) -> ((Operation<?, ?>) args[0]).perform());
+    when(securityService.withPermission(any(Permission.class), anyString()))
+        .thenReturn(context);
+    repository = mock(Repository.class);
+    when(repository.getId()).thenReturn(1);
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    release.countDown();
+    if (stage != null)
+      stage.destroy();
+  }
+
+  /**
+   * Validate that events are evaluated on a worker, with the permission to
+   * read repositories
+   */
+  @Test
+  public void shouldEvaluateOnWorker() throws Exception {
+    stage = new EligibilityStage(securityService, 2, 10);
+    final AtomicReference<Thread> worker = new AtomicReference<Thread>();
+    final CountDownLatch done = new CountDownLatch(1);
+
+    stage.submit(repository, () -> {
+      worker.set(Thread.currentThread());
+      done.countDown();
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), worker.get());
+    verify(securityService).withPermission(eq(Permission.REPO_READ),
+        anyString());
+  }
+
+  /**
+   * Validate that the events of a repository are evaluated in order
+   */
+  @Test
+  public void shouldKeepOrderPerRepository() throws Exception {
+    stage = new EligibilityStage(securityService, 4, 1000);
+    final List<Integer> evaluated =
+        Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(100);
+
+    for (int i = 0; i < 100; i++) {
+      final int event = i;
+      stage.submit(repository, () -> {
+        evaluated.add(event);
+        done.countDown();
+      });
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 100; i++)
+      assertEquals(Integer.valueOf(i), evaluated.get(i));
+  }
+
+  /**
+   * Validate that events are dropped, not evaluated on the calling thread,
+   * once the queue of the worker stays full
+   */
+  @Test
+  public void shouldDropWhenQueueFull() throws Exception {
+    stage = new EligibilityStage(securityService, 1, 1, 50);
+    final CountDownLatch started = new CountDownLatch(1);
+    stage.submit(repository, () -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    stage.submit(repository, () -> { });
+    assertEquals(1, stage.getQueueDepth());
+
+    final AtomicReference<Thread> evaluator = new AtomicReference<Thread>();
+    stage.submit(repository, () -> evaluator.set(Thread.currentThread()));
+
+    assertNull(evaluator.get());
+    assertEquals(1, stage.getDroppedCount());
+    assertEquals(1, stage.getQueueDepth());
+  }
+
+  /**
+   * Validate that an event waits for room in a full queue instead of being
+   * dropped
+   */
+  @Test
+  public void shouldWaitForRoomWhenQueueFull() throws Exception {
+    stage = new EligibilityStage(securityService, 1, 1, 5000);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    stage.submit(repository, () -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    stage.submit(repository, () -> { });
+
+    new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      release.countDown();
+    }).start();
+    stage.submit(repository, done::countDown);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, stage.getDroppedCount());
+  }
+
+  /**
+   * Validate that without workers the calling thread evaluates the event
+   */
+  @Test
+  public void shouldEvaluateOnCallerWithoutWorkers() {
+    stage = new EligibilityStage(securityService, 0, 10);
+    final AtomicReference<Thread> evaluator = new AtomicReference<Thread>();
+
+    stage.submit(repository, () -> evaluator.set(Thread.currentThread()));
+
+    assertSame(Thread.currentThread(), evaluator.get());
+  }
+}
@@ -0,0 +1,151 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationExecutor.Priority;
+
+/**
+ * Test case for the {@link FairQueue} class.
+ */
+public class FairQueueTest {
+
+  /**
+   * Validate that lanes take turns, whatever the order work arrived in
+   */
+  @Test
+  public void shouldAlternateBetweenLanes() {
+    FairQueue queue = new FairQueue(100, 4);
+    for (int i = 0; i < 5; i++)
+      queue.offer(new Work("noisy", Priority.NORMAL, "noisy-" + i));
+    queue.offer(new Work("quiet", Priority.NORMAL, "quiet-0"));
+    queue.offer(new Work("other", Priority.NORMAL, "other-0"));
+
+    assertEquals("noisy-0", next(queue));
+    assertEquals("quiet-0", next(queue));
+    assertEquals("other-0", next(queue));
+    assertEquals("noisy-1", next(queue));
+    assertEquals("noisy-2", next(queue));
+    assertEquals(2, queue.size());
+  }
+
+  /**
+   * Validate that high priority work gets the configured number of turns for
+   * every normal one
+   */
+  @Test
+  public void shouldFavorHighPriorityWithoutStarvingNormal() {
+    FairQueue queue = new FairQueue(100, 2);
+    for (int i = 0; i < 3; i++)
+      queue.offer(new Work("tags", Priority.NORMAL, "normal-" + i));
+    for (int i = 0; i < 5; i++)
+      queue.offer(new Work("main", Priority.HIGH, "high-" + i));
+
+    List<String> order = new ArrayList<String>();
+    while (!queue.isEmpty())
+      order.add(next(queue));
+
+    assertEquals("[high-0, high-1, normal-0, high-2, high-3, normal-1, "
+        + "high-4, normal-2]", order.toString());
+  }
+
+  /**
+   * Validate that the queue is bounded
+   */
+  @Test
+  public void shouldRejectWhenFull() {
+    FairQueue queue = new FairQueue(2, 4);
+
+    assertTrue(queue.offer(new Work("a", Priority.NORMAL, "a")));
+    assertTrue(queue.offer(new Work("b", Priority.HIGH, "b")));
+    assertFalse(queue.offer(new Work("c", Priority.HIGH, "c")));
+    assertEquals(0, queue.remainingCapacity());
+  }
+
+  /**
+   * Validate that making room drops the oldest work of the busiest normal
+   * lane
+   */
+  @Test
+  public void shouldDropFromBusiestLane() {
+    FairQueue queue = new FairQueue(100, 4);
+    queue.offer(new Work("main", Priority.HIGH, "high-0"));
+    queue.offer(new Work("main", Priority.HIGH, "high-1"));
+    queue.offer(new Work("quiet", Priority.NORMAL, "quiet-0"));
+    queue.offer(new Work("noisy", Priority.NORMAL, "noisy-0"));
+    queue.offer(new Work("noisy", Priority.NORMAL, "noisy-1"));
+
+    assertEquals("noisy-0", ((Work) queue.dropFromBusiest()).name);
+    assertEquals(4, queue.size());
+    assertEquals(3, queue.getLaneCount());
+  }
+
+  /**
+   * Validate that removing work retires its lane once empty
+   */
+  @Test
+  public void shouldRemoveWork() {
+    FairQueue queue = new FairQueue(100, 4);
+    Work work = new Work("a", Priority.NORMAL, "a");
+    queue.offer(work);
+
+    assertTrue(queue.remove(work));
+    assertFalse(queue.remove(work));
+    assertEquals(0, queue.getLaneCount());
+    assertNull(queue.poll());
+  }
+
+  /**
+   * Validate that waiting for work times out on an empty queue, and that
+   * plain runnables share a lane
+   */
+  @Test
+  public void shouldWaitForWork() throws Exception {
+    FairQueue queue = new FairQueue(100, 4);
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+    Runnable plain = () -> { };
+    queue.offer(plain);
+    assertSame(plain, queue.peek());
+    assertSame(plain, queue.take());
+  }
+
+  private static String next(FairQueue queue) {
+    return ((Work) queue.poll()).name;
+  }
+
+  private static final class Work implements Runnable, FairQueue.Entry {
+    private final String lane;
+    private final Priority priority;
+    private final String name;
+
+    Work(String lane, Priority priority, String name) {
+      this.lane = lane;
+      this.priority = priority;
+      this.name = name;
+    }
+
+    @Override
+    public String getLane() {
+      return lane;
+    }
+
+    @Override
+    public Priority getPriority() {
+      return priority;
+    }
+
+    @Override
+    public void run() {
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyListOf;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.setting.Settings;
+import com.nerdwin15.stash.webhook.NotificationRequest;
+import com.nerdwin15.stash.webhook.Notifier;
+import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
+import com.nerdwin15.stash.webhook.service.cluster.DeliveryOwnership;
+import com.nerdwin15.stash.webhook.service.cluster.LocalClusterMembership;
+import com.nerdwin15.stash.webhook.service.cluster.NotificationHandoff;
+import com.nerdwin15.stash.webhook.service.outbox.NotificationOutbox;
+
+/**
+ * Test case for the {@link NotificationCoalescer} class.
+ */
+public class NotificationCoalescerTest {
+
+  private static final long WINDOW = 200;
+  private static final int WAIT = 2000;
+  private static final long POLL = 50;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Notifier notifier;
+  private SettingsService settingsService;
+  private Settings settings;
+  private Repository repo;
+  private NotificationCoalescer coalescer;
+  private final Map<Integer, Repository> repositories =
+      new HashMap<Integer, Repository>();
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    notifier = mock(Notifier.class);
+    settingsService = mock(SettingsService.class);
+    settings = mock(Settings.class);
+    repo = mock(Repository.class);
+
+    when(repo.getId()).thenReturn(1);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
+    when(settings.getString(Notifier.CLONE_TYPE)).thenReturn("http");
+
+    coalescer = new NotificationCoalescer(notifier, settingsService, WINDOW);
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    coalescer.destroy();
+  }
+
+  /**
+   * Validate that only the latest sha1 is sent for pushes to the same branch
+   * within the window
+   */
+  @Test
+  public void shouldSendOnlyLatestWithinWindow() throws Exception {
+    coalescer.submit(new NotificationRequest(repo, "master", "sha1", "master"));
+    coalescer.submit(new NotificationRequest(repo, "master", "sha2", "master"));
+
+    verify(notifier, timeout(WAIT)).notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "master", "sha2", "master")));
+  }
+
+  /**
+   * Validate that notifications are journaled as they enter the window, and
+   * that the entry of a replaced notification is acknowledged
+   */
+  @Test
+  public void shouldJournalWhileWaiting() throws Exception {
+    NotificationOutbox outbox = mock(NotificationOutbox.class);
+    NotificationRequest first =
+        new NotificationRequest(repo, "master", "sha1", "master");
+    NotificationRequest second =
+        new NotificationRequest(repo, "master", "sha2", "master");
+    when(outbox.append(first)).thenReturn(1L);
+    when(outbox.append(second)).thenReturn(2L);
+    coalescer.destroy();
+    coalescer = new NotificationCoalescer(notifier, settingsService, null,
+        null, outbox, WINDOW, 0);
+
+    coalescer.submit(first);
+    coalescer.submit(second);
+
+    verify(outbox).acknowledge(1);
+    ArgumentCaptor<List> sent = ArgumentCaptor.forClass(List.class);
+    verify(notifier, timeout(WAIT)).notifyBackground(eq(repo),
+        sent.capture());
+    assertEquals(Arrays.asList(second), sent.getValue());
+    assertEquals(2, ((NotificationRequest) sent.getValue().get(0))
+        .getEntryId());
+  }
+
+  /**
+   * Validate that different branches are not coalesced, but are sent
+   * together
+   */
+  @Test
+  public void shouldSendEachBranch() throws Exception {
+    coalescer.submit(new NotificationRequest(repo, "master", "sha1", "master"));
+    coalescer.submit(new NotificationRequest(repo, "develop", "sha2", "develop"));
+
+    verify(notifier, timeout(WAIT)).notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master"),
+        new NotificationRequest(repo, "develop", "sha2", "develop")));
+  }
+
+  /**
+   * Validate that a notification submitted after the window closed is sent
+   * again
+   */
+  @Test
+  public void shouldOpenNewWindowAfterFlush() throws Exception {
+    coalescer.submit(new NotificationRequest(repo, "master", "sha1", "master"));
+    verify(notifier, timeout(WAIT)).notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master")));
+
+    coalescer.submit(new NotificationRequest(repo, "master", "sha2", "master"));
+    verify(notifier, timeout(WAIT)).notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "master", "sha2", "master")));
+  }
+
+  /**
+   * Validate that the branches of different repositories are sent separately
+   */
+  @Test
+  public void shouldSendEachRepositorySeparately() throws Exception {
+    Repository other = mock(Repository.class);
+    when(other.getId()).thenReturn(2);
+
+    coalescer.submitAll(Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master"),
+        new NotificationRequest(other, "master", "sha2", "master")));
+
+    verify(notifier, timeout(WAIT)).notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master")));
+    verify(notifier, timeout(WAIT)).notifyBackground(other, Arrays.asList(
+        new NotificationRequest(other, "master", "sha2", "master")));
+  }
+
+  /**
+   * Validate that a window of 0 sends immediately
+   */
+  @Test
+  public void shouldSendImmediatelyWithoutWindow() throws Exception {
+    coalescer.destroy();
+    coalescer = new NotificationCoalescer(notifier, settingsService, 0);
+
+    coalescer.submit(new NotificationRequest(repo, "master", "sha1", "master"));
+    verify(notifier).notifyBackground(repo, Arrays.asList(
+        new NotificationRequest(repo, "master", "sha1", "master")));
+    assertEquals(0, coalescer.getPendingCount());
+  }
+
+  /**
+   * Validate that notifications for a repository owned by another node are
+   * sent by that node
+   */
+  @Test
+  public void shouldHandOverToOwningNode() throws Exception {
+    LocalClusterMembership.Cluster cluster =
+        new LocalClusterMembership.Cluster();
+    DeliveryOwnership node1 = new DeliveryOwnership(cluster.join("node1"),
+        true);
+    DeliveryOwnership node2 = new DeliveryOwnership(cluster.join("node2"),
+        true);
+    Repository remote = repositoryOwnedBy(node1, "node2");
+    Notifier notifier2 = mock(Notifier.class);
+    coalescer.destroy();
+    coalescer = new NotificationCoalescer(notifier, settingsService, node1,
+        handoff(), null, 0, POLL);
+    NotificationCoalescer coalescer2 = new NotificationCoalescer(notifier2,
+        settingsService, node2, handoff(), null, 0, POLL);
+
+    try {
+      coalescer.submit(new NotificationRequest(remote, "master", "sha1",
+          "master"));
+
+      verify(notifier2, timeout(WAIT)).notifyBackground(remote, Arrays.asList(
+          new NotificationRequest(remote, "master", "sha1", "master")));
+      verify(notifier, never()).notifyBackground(any(Repository.class),
+          anyListOf(NotificationRequest.class));
+    } finally {
+      coalescer2.destroy();
+    }
+  }
+
+  /**
+   * Validate that the journal entry of a notification, such as one replayed
+   * on start, is acknowledged once it is handed over to the owning node
+   */
+  @Test
+  public void shouldAcknowledgeJournaledRequestsOnceHandedOver() {
+    LocalClusterMembership.Cluster cluster =
+        new LocalClusterMembership.Cluster();
+    DeliveryOwnership node1 = new DeliveryOwnership(cluster.join("node1"),
+        true);
+    cluster.join("node2");
+    Repository remote = repositoryOwnedBy(node1, "node2");
+    NotificationOutbox outbox = mock(NotificationOutbox.class);
+    coalescer.destroy();
+    coalescer = new NotificationCoalescer(notifier, settingsService, node1,
+        handoff(), outbox, 0, 0);
+
+    coalescer.submitAll(Arrays.asList(
+        new NotificationRequest(remote, "master", "sha1", "master", 3),
+        new NotificationRequest(remote, "develop", "sha2", "develop")));
+
+    verify(outbox).acknowledge(3);
+    verify(notifier, never()).notifyBackground(any(Repository.class),
+        anyListOf(NotificationRequest.class));
+  }
+
+  /**
+   * Validate that notifications handed over to a node that left are sent by
+   * its successor
+   */
+  @Test
+  public void shouldTakeOverInboxOfLeavingNode() throws Exception {
+    LocalClusterMembership.Cluster cluster =
+        new LocalClusterMembership.Cluster();
+    DeliveryOwnership node1 = new DeliveryOwnership(cluster.join("node1"),
+        true);
+    cluster.join("node2");
+    Repository remote = repositoryOwnedBy(node1, "node2");
+    coalescer.destroy();
+    coalescer = new NotificationCoalescer(notifier, settingsService, node1,
+        handoff(), null, 0, POLL);
+
+    coalescer.submit(new NotificationRequest(remote, "master", "sha1",
+        "master"));
+    Thread.sleep(3 * POLL);
+    verify(notifier, never()).notifyBackground(any(Repository.class),
+        anyListOf(NotificationRequest.class));
+
+    cluster.leave("node2");
+    verify(notifier, timeout(WAIT)).notifyBackground(remote, Arrays.asList(
+        new NotificationRequest(remote, "master", "sha1", "master")));
+  }
+
+  private NotificationHandoff handoff() {
+    return new NotificationHandoff(folder.getRoot(), null, null) {
+      @Override
+      protected Repository findRepository(int repositoryId) {
+        return repositories.get(repositoryId);
+      }
+    };
+  }
+
+  private Repository repositoryOwnedBy(DeliveryOwnership ownership,
+      String nodeId) {
+    int id = 100;
+    while (!nodeId.equals(ownership.getOwner(id)))
+      id++;
+    Repository repository = mock(Repository.class);
+    when(repository.getId()).thenReturn(id);
+    repositories.put(id, repository);
+    return repository;
+  }
+}
@@ -0,0 +1,274 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.NotificationResult;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationExecutor.Priority;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationExecutor.RejectionPolicy;
+
+/**
+ * Test case for the {@link NotificationExecutor} class.
+ */
+public class NotificationExecutorTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch started = new CountDownLatch(1);
+  private NotificationExecutor executor;
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    release.countDown();
+    if (executor != null)
+      executor.destroy();
+  }
+
+  /**
+   * Validate that a submitted notification is sent in the background
+   */
+  @Test
+  public void shouldRunSubmittedNotification() throws Exception {
+    executor = new NotificationExecutor(1, 1, RejectionPolicy.BLOCK);
+    Future<NotificationResult> future = executor.submit("1:master",
+        result("http://jenkins/1"));
+    assertEquals("http://jenkins/1", future.get(5, TimeUnit.SECONDS).getUrl());
+  }
+
+  /**
+   * Validate that with BLOCK the submitting thread waits for room once the
+   * queue is full, and the notification is still sent by a worker
+   */
+  @Test
+  public void shouldWaitForRoomWhenQueueFull() throws Exception {
+    executor = new NotificationExecutor(1, 1, RejectionPolicy.BLOCK);
+    occupyWorker();
+    executor.submit("1:queued", result("queued"));
+    new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      release.countDown();
+    }).start();
+
+    final Thread caller = Thread.currentThread();
+    Future<NotificationResult> future = executor.submit("1:master",
+        new Callable<NotificationResult>() {
+          @Override
+          public NotificationResult call() {
+            return new NotificationResult(
+                Thread.currentThread() != caller, "worker", null);
+          }
+        });
+
+    assertTrue(future.get(5, TimeUnit.SECONDS).isSuccessful());
+    assertEquals(1, executor.getRejectedCount());
+  }
+
+  /**
+   * Validate that a submitter waiting for room gives up when interrupted,
+   * without sending the notification itself
+   */
+  @Test
+  public void shouldCancelWhenInterruptedWhileWaiting() throws Exception {
+    executor = new NotificationExecutor(1, 1, RejectionPolicy.BLOCK);
+    occupyWorker();
+    executor.submit("1:queued", result("queued"));
+
+    Thread.currentThread().interrupt();
+    Future<NotificationResult> future = executor.submit("1:master",
+        result("master"));
+
+    assertTrue(Thread.interrupted());
+    assertTrue(future.isCancelled());
+  }
+
+  /**
+   * Validate that with DROP_OLDEST the oldest queued notification is
+   * cancelled to make room
+   */
+  @Test
+  public void shouldDropOldestWhenQueueFull() throws Exception {
+    executor = new NotificationExecutor(1, 1, RejectionPolicy.DROP_OLDEST);
+    occupyWorker();
+    Future<NotificationResult> oldest = executor.submit("1:a", result("a"));
+    Future<NotificationResult> newest = executor.submit("1:b", result("b"));
+
+    assertTrue(oldest.isCancelled());
+    assertEquals(1, executor.getDroppedCount());
+    assertEquals(1, executor.getQueueDepth());
+
+    release.countDown();
+    assertEquals("b", newest.get(5, TimeUnit.SECONDS).getUrl());
+  }
+
+  /**
+   * Validate that with COALESCE a notification for the same key replaces the
+   * queued one instead of being rejected
+   */
+  @Test
+  public void shouldCoalesceWhenQueueFull() throws Exception {
+    executor = new NotificationExecutor(1, 1, RejectionPolicy.COALESCE);
+    occupyWorker();
+    Future<NotificationResult> first = executor.submit("1:a", result("old"));
+    Future<NotificationResult> second = executor.submit("1:a", result("new"));
+
+    assertSame(first, second);
+    assertEquals(1, executor.getCoalescedCount());
+    assertEquals(0, executor.getRejectedCount());
+
+    release.countDown();
+    assertEquals("new", first.get(5, TimeUnit.SECONDS).getUrl());
+  }
+
+  /**
+   * Validate that a notification dropped or replaced before it was sent
+   * runs its drop callback, and one that was sent doesn't
+   */
+  @Test
+  public void shouldReleaseDroppedNotification() throws Exception {
+    executor = new NotificationExecutor(1, 2, RejectionPolicy.DROP_OLDEST);
+    occupyWorker();
+    final List<String> dropped =
+        Collections.synchronizedList(new ArrayList<String>());
+    executor.submit("1", Priority.NORMAL, "1:a", result("a"),
+        () -> dropped.add("a"));
+    executor.submit("1", Priority.NORMAL, "1:b", result("b"),
+        () -> dropped.add("b"));
+    Future<NotificationResult> newest = executor.submit("1", Priority.NORMAL,
+        "1:c", result("c"), () -> dropped.add("c"));
+
+    assertEquals(Collections.singletonList("a"), dropped);
+    release.countDown();
+    assertEquals("c", newest.get(5, TimeUnit.SECONDS).getUrl());
+    assertEquals(Collections.singletonList("a"), dropped);
+  }
+
+  /**
+   * Validate that a notification replaced by a newer one for the same key
+   * runs its drop callback
+   */
+  @Test
+  public void shouldReleaseCoalescedNotification() throws Exception {
+    executor = new NotificationExecutor(1, 1, RejectionPolicy.COALESCE);
+    occupyWorker();
+    final List<String> dropped =
+        Collections.synchronizedList(new ArrayList<String>());
+    executor.submit("1", Priority.NORMAL, "1:a", result("old"),
+        () -> dropped.add("old"));
+    Future<NotificationResult> newer = executor.submit("1", Priority.NORMAL,
+        "1:a", result("new"), () -> dropped.add("new"));
+
+    assertEquals(Collections.singletonList("old"), dropped);
+    release.countDown();
+    assertEquals("new", newer.get(5, TimeUnit.SECONDS).getUrl());
+    assertEquals(Collections.singletonList("old"), dropped);
+  }
+
+  /**
+   * Validate the worker and queue metrics
+   */
+  @Test
+  public void shouldReportQueueDepthAndActiveWorkers() throws Exception {
+    executor = new NotificationExecutor(1, 5, RejectionPolicy.BLOCK);
+    occupyWorker();
+    executor.submit("1:a", result("a"));
+    executor.submit("1:b", result("b"));
+
+    assertEquals(1, executor.getActiveWorkers());
+    assertEquals(2, executor.getQueueDepth());
+  }
+
+  /**
+   * Validate that queued notifications are sent fairly between
+   * repositories, with high priority ones first
+   */
+  @Test
+  public void shouldSendFairlyBetweenRepositories() throws Exception {
+    executor = new NotificationExecutor(1, 10, RejectionPolicy.BLOCK);
+    occupyWorker();
+    final List<String> sent =
+        Collections.synchronizedList(new ArrayList<String>());
+    executor.submit("1", Priority.NORMAL, "1:tag-a", record(sent, "1:tag-a"));
+    executor.submit("1", Priority.NORMAL, "1:tag-b", record(sent, "1:tag-b"));
+    executor.submit("2", Priority.NORMAL, "2:feature",
+        record(sent, "2:feature"));
+    Future<NotificationResult> last = executor.submit("3", Priority.HIGH,
+        "3:master", record(sent, "3:master"));
+
+    assertEquals(3, executor.getQueuedLanes());
+    release.countDown();
+    last.get(5, TimeUnit.SECONDS);
+    executor.submit("1", Priority.NORMAL, "1:done", record(sent, "1:done"))
+        .get(5, TimeUnit.SECONDS);
+
+    assertEquals("[3:master, 1:tag-a, 2:feature, 1:tag-b, 1:done]",
+        sent.toString());
+  }
+
+  /**
+   * Validate that with DROP_OLDEST the repository with the most queued
+   * gives up a notification
+   */
+  @Test
+  public void shouldDropFromBusiestRepository() throws Exception {
+    executor = new NotificationExecutor(1, 3, RejectionPolicy.DROP_OLDEST);
+    occupyWorker();
+    Future<NotificationResult> quiet = executor.submit("2", Priority.NORMAL,
+        "2:a", result("quiet"));
+    Future<NotificationResult> oldest = executor.submit("1", Priority.NORMAL,
+        "1:a", result("a"));
+    executor.submit("1", Priority.NORMAL, "1:b", result("b"));
+    executor.submit("1", Priority.NORMAL, "1:c", result("c"));
+
+    assertTrue(oldest.isCancelled());
+    assertFalse(quiet.isCancelled());
+    assertEquals(3, executor.getQueueDepth());
+  }
+
+  private void occupyWorker() throws InterruptedException {
+    executor.submit("busy", new Callable<NotificationResult>() {
+      @Override
+      public NotificationResult call() throws Exception {
+        started.countDown();
+        release.await();
+        return null;
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+  }
+
+  private Callable<NotificationResult> record(final List<String> sent,
+      final String url) {
+    return () -> {
+      sent.add(url);
+      return new NotificationResult(true, url, null);
+    };
+  }
+
+  private Callable<NotificationResult> result(final String url) {
+    return new Callable<NotificationResult>() {
+      @Override
+      public NotificationResult call() {
+        return new NotificationResult(true, url, null);
+      }
+    };
+  }
+}
@@ -0,0 +1,118 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link RetryScheduler} class.
+ */
+public class RetrySchedulerTest {
+
+  private static final String KEY = "1:master";
+
+  private RetryScheduler scheduler;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    scheduler = new RetryScheduler(3, 10, 40);
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    scheduler.destroy();
+  }
+
+  /**
+   * Validate that a scheduled retry runs
+   */
+  @Test
+  public void shouldRunRetry() throws Exception {
+    CountDownLatch ran = new CountDownLatch(1);
+    Object token = scheduler.begin(KEY);
+
+    assertTrue(scheduler.schedule(KEY, token, 1, ran::countDown));
+
+    assertTrue(ran.await(2, TimeUnit.SECONDS));
+    assertEquals(0, scheduler.getPendingCount());
+  }
+
+  /**
+   * Validate that no retry is scheduled once the attempt budget is spent
+   */
+  @Test
+  public void shouldStopAtAttemptBudget() {
+    Object token = scheduler.begin(KEY);
+
+    assertTrue(scheduler.schedule(KEY, token, 2, () -> { }));
+    assertFalse(scheduler.schedule(KEY, token, 3, () -> { }));
+  }
+
+  /**
+   * Validate that a fresh notification drops the waiting retry and keeps
+   * older attempts from scheduling new ones
+   */
+  @Test
+  public void shouldDropRetriesOfSupersededNotifications() throws Exception {
+    scheduler.destroy();
+    scheduler = new RetryScheduler(3, 60000, 60000);
+    AtomicInteger runs = new AtomicInteger();
+    Object old = scheduler.begin(KEY);
+    assertTrue(scheduler.schedule(KEY, old, 1, runs::incrementAndGet));
+    assertEquals(1, scheduler.getPendingCount());
+
+    Object fresh = scheduler.begin(KEY);
+
+    assertEquals(0, scheduler.getPendingCount());
+    assertFalse(scheduler.schedule(KEY, old, 2, runs::incrementAndGet));
+    assertTrue(scheduler.schedule(KEY, fresh, 1, runs::incrementAndGet));
+    assertEquals(0, runs.get());
+  }
+
+  /**
+   * Validate that a completed notification can't schedule retries
+   */
+  @Test
+  public void shouldNotRetryCompletedNotifications() {
+    Object token = scheduler.begin(KEY);
+    scheduler.complete(KEY, token);
+
+    assertFalse(scheduler.schedule(KEY, token, 1, () -> { }));
+  }
+
+  /**
+   * Validate that the delay grows exponentially up to the cap, with up to
+   * half of it taken off as jitter
+   */
+  @Test
+  public void shouldBackOffExponentiallyWithJitter() {
+    scheduler.destroy();
+    scheduler = new RetryScheduler(10, 1000, 5000);
+    for (int i = 0; i < 100; i++) {
+      assertBetween(500, 1000, scheduler.delayMillis(1));
+      assertBetween(1000, 2000, scheduler.delayMillis(2));
+      assertBetween(2000, 4000, scheduler.delayMillis(3));
+      assertBetween(2500, 5000, scheduler.delayMillis(4));
+      assertBetween(2500, 5000, scheduler.delayMillis(64));
+    }
+  }
+
+  private static void assertBetween(long min, long max, long actual) {
+    assertTrue(actual + " < " + min, actual >= min);
+    assertTrue(actual + " > " + max, actual <= max);
+  }
+}
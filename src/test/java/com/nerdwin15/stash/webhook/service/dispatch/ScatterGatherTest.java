@@ -0,0 +1,108 @@
+package com.nerdwin15.stash.webhook.service.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.CompositeNotificationResult;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Test case for the {@link ScatterGather} class.
+ */
+public class ScatterGatherTest {
+
+  private ScatterGather scatterGather;
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    if (scatterGather != null)
+      scatterGather.destroy();
+  }
+
+  /**
+   * Validate that the results are gathered once every instance answered,
+   * in the order of the instances
+   */
+  @Test
+  public void shouldGatherOnceAllAnswered() throws Exception {
+    scatterGather = new ScatterGather(5000);
+    CompletableFuture<NotificationResult> first =
+        new CompletableFuture<NotificationResult>();
+    CompletableFuture<NotificationResult> second =
+        new CompletableFuture<NotificationResult>();
+    Map<String, CompletableFuture<NotificationResult>> calls =
+        new LinkedHashMap<String, CompletableFuture<NotificationResult>>();
+    calls.put("http://a", first);
+    calls.put("http://b", second);
+
+    CompletableFuture<NotificationResult> gathered =
+        scatterGather.gather(calls);
+    second.complete(new NotificationResult(true, "http://b/x", "ok"));
+    assertFalse(gathered.isDone());
+    first.complete(new NotificationResult(false, "http://a/x", "no job"));
+
+    CompositeNotificationResult result =
+        (CompositeNotificationResult) gathered.get(5, TimeUnit.SECONDS);
+    assertEquals(Arrays.asList("http://a", "http://b"),
+        new ArrayList<String>(result.getResults().keySet()));
+    assertEquals(NotificationResult.Status.FAILURE, result.getStatus());
+  }
+
+  /**
+   * Validate that an instance not answering in time times out and has its
+   * call cancelled, without holding up the others
+   */
+  @Test
+  public void shouldTimeOutSlowTarget() throws Exception {
+    scatterGather = new ScatterGather(50);
+    CompletableFuture<NotificationResult> slow =
+        new CompletableFuture<NotificationResult>();
+    Map<String, CompletableFuture<NotificationResult>> calls =
+        new LinkedHashMap<String, CompletableFuture<NotificationResult>>();
+    calls.put("http://a", CompletableFuture.completedFuture(
+        new NotificationResult(true, "http://a/x", "ok")));
+    calls.put("http://b", slow);
+
+    CompositeNotificationResult result = (CompositeNotificationResult)
+        scatterGather.gather(calls).get(5, TimeUnit.SECONDS);
+
+    assertEquals(NotificationResult.Status.TIMEOUT, result.getStatus());
+    assertTrue(result.getResults().get("http://a").isSuccessful());
+    assertTrue(slow.isCancelled());
+    assertEquals(Arrays.asList("http://b"), result.getRetryableTargets());
+  }
+
+  /**
+   * Validate that a call completing exceptionally is gathered as an error
+   */
+  @Test
+  public void shouldGatherFailedCallAsError() throws Exception {
+    scatterGather = new ScatterGather(0);
+    CompletableFuture<NotificationResult> failed =
+        new CompletableFuture<NotificationResult>();
+    failed.completeExceptionally(new IllegalStateException("broken"));
+    Map<String, CompletableFuture<NotificationResult>> calls =
+        new LinkedHashMap<String, CompletableFuture<NotificationResult>>();
+    calls.put("http://a", failed);
+
+    NotificationResult result =
+        scatterGather.gather(calls).get(5, TimeUnit.SECONDS);
+
+    assertEquals(NotificationResult.Status.ERROR, result.getStatus());
+    assertEquals("http://a: broken", result.getMessage());
+  }
+}
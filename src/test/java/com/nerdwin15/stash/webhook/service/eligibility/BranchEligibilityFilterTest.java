@@ -8,21 +8,21 @@ import static org.mockito.Mockito.when;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
-import java.util.LinkedList;
 
 import com.atlassian.bitbucket.repository.RefChangeType;
 import org.junit.Before;
 import org.junit.Test;
 
-import com.atlassian.bitbucket.event.repository.RepositoryPushEvent;
 import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.Settings;
 import com.nerdwin15.stash.webhook.Notifier;
 import com.nerdwin15.stash.webhook.service.BranchEvaluator;
+import com.nerdwin15.stash.webhook.service.BranchMatcher;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
 
 /**
  * Test case for the {@link BranchEligibilityFilter} filter.
@@ -36,12 +36,10 @@ public class BranchEligibilityFilterTest {
   private BranchEvaluator branchEvaluator;
   private BranchEligibilityFilter filter;
   private Repository repo;
-  private RepositoryPushEvent event;
   private EventContext eventContext;
   private String branches = "ignoreMe wild*";
-  private Collection<RefChange> changes = mock(LinkedList.class);
-  private Iterator<RefChange> iterChanges = mock(Iterator.class);
   private RefChange change = mock(RefChange.class);
+  private Collection<RefChange> changes = Collections.singletonList(change);
   private RefChangeType changeTypeUpdate = RefChangeType.UPDATE;
   private RefChangeType changeTypeDelete = RefChangeType.DELETE;
   
@@ -53,17 +51,14 @@ public class BranchEligibilityFilterTest {
     settingsService = mock(SettingsService.class);
     settings = mock(Settings.class);
     branchEvaluator = mock(BranchEvaluator.class);
-    event = mock(RepositoryPushEvent.class);
     repo = mock(Repository.class);
     eventContext = mock(EventContext.class);
 
     when(change.getType()).thenReturn(changeTypeUpdate);
-    when(iterChanges.next()).thenReturn(change);
-    when(changes.iterator()).thenReturn(iterChanges);
-    when(event.getRefChanges()).thenReturn(changes);
-    when(eventContext.getEventSource()).thenReturn(event);
+    when(eventContext.getRefChange()).thenReturn(change);
     when(eventContext.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
     when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("blacklist");
     when(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES))
         .thenReturn(branches);
@@ -72,26 +67,31 @@ public class BranchEligibilityFilterTest {
   }
   
   /**
-   * Validate that the matcher works as expected
+   * Validate that the matcher the filter uses works as expected
    */
   @Test
-  public void testHasMatchMethod() {
-    assertTrue(filter.hasMatch(array("master"), iterable("master")));
-    assertTrue(filter.hasMatch(array("mas*"), iterable("master")));
-    assertFalse(filter.hasMatch(array("master"), iterable("develop")));
-    assertTrue(filter.hasMatch(array("master", "deve*"), iterable("develop")));
-    assertFalse(filter.hasMatch(array("mas*", "dev*"), iterable("issue")));
-    assertTrue(filter.hasMatch(array("MASTER", "DEVE*"), iterable("develop")));
-    assertTrue(filter.hasMatch(array("master", "deve*"), iterable("DEVELOP")));
+  public void testBranchMatcher() {
+    assertTrue(matches(iterable("master"), iterable("master")));
+    assertTrue(matches(iterable("mas*"), iterable("master")));
+    assertFalse(matches(iterable("master"), iterable("develop")));
+    assertTrue(matches(iterable("master", "deve*"), iterable("develop")));
+    assertFalse(matches(iterable("mas*", "dev*"), iterable("issue")));
+    assertTrue(matches(iterable("MASTER", "DEVE*"), iterable("develop")));
+    assertTrue(matches(iterable("master", "deve*"), iterable("DEVELOP")));
+
+    BranchMatcher configured = settingsService.getWebhookSettings(repo)
+        .getBranchMatcher();
+    assertTrue(configured.matchesAny(iterable("wildCard")));
+    assertFalse(configured.matchesAny(iterable("asdf")));
   }
   
   /**
-   * Validate that if another event type is provided, the filter doesn't process
-   * it.
+   * Validate that if an event without ref changes is provided, the filter
+   * doesn't process it.
    */
   @Test
-  public void testEnsureOnlyWorksWithRepositoryPushEvents() {
-    when(eventContext.getEventSource()).thenReturn("Something else");
+  public void testEnsureOnlyWorksWithRefChanges() {
+    when(eventContext.getRefChange()).thenReturn(null);
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
   
@@ -104,7 +104,6 @@ public class BranchEligibilityFilterTest {
     when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn(null);
     assertTrue(filter.shouldDeliverNotification(eventContext));
     
-    when(settingsService.getSettings(repo)).thenReturn(settings);
     when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("somethingElse");
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
@@ -140,15 +139,30 @@ public class BranchEligibilityFilterTest {
   @Test
   public void testEnsureDeleteBranchNoNotification() {
     when(change.getType()).thenReturn(changeTypeDelete);
-    when(iterChanges.next()).thenReturn(change);
-    when(changes.iterator()).thenReturn(iterChanges);
-    when(event.getRefChanges()).thenReturn(changes);
-    when(eventContext.getEventSource()).thenReturn(event);
     assertFalse(filter.shouldDeliverNotification(eventContext));
   }
   
-  private String[] array(String... elements) {
-    return elements;
+  /**
+   * Ensure that only the ref being evaluated is checked for deletion and
+   * matched against the branch list
+   */
+  @Test
+  public void testEvaluatesOnlyTheContextRef() {
+    RefChange deleted = mock(RefChange.class);
+    when(deleted.getType()).thenReturn(changeTypeDelete);
+    when(eventContext.getRefChange()).thenReturn(deleted);
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+
+    RefChange updated = mock(RefChange.class);
+    when(updated.getType()).thenReturn(changeTypeUpdate);
+    when(eventContext.getRefChange()).thenReturn(updated);
+    when(branchEvaluator.getBranches(Collections.singletonList(updated)))
+        .thenReturn(iterable("asdf"));
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+  }
+
+  private boolean matches(List<String> patterns, List<String> branches) {
+    return BranchMatcher.compile(patterns).matchesAny(branches);
   }
   
   private List<String> iterable(String... elements) {
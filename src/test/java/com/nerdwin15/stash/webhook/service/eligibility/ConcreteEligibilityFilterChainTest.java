@@ -1,8 +1,11 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
@@ -11,6 +14,8 @@ import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.nerdwin15.stash.webhook.service.metrics.NotificationMetrics;
+
 /**
  * Test case for the {@link ConcreteEligibilityFilterChain} class.
  * 
@@ -30,6 +35,8 @@ public class ConcreteEligibilityFilterChainTest {
   @Before
   public void setUp() throws Exception {
     filter = mock(EligibilityFilter.class);
+    when(filter.getEstimatedCost())
+        .thenReturn(EligibilityFilter.DEFAULT_COST);
     filters.add(filter);
     filterChain = new ConcreteEligibilityFilterChain(filters);
     event = mock(EventContext.class);
@@ -55,4 +62,114 @@ public class ConcreteEligibilityFilterChainTest {
     when(filter.shouldDeliverNotification(event)).thenReturn(false);
     assertFalse(filterChain.shouldDeliverNotification(event));
   }
+
+  /**
+   * Validate that the decisions of each filter are counted, and that filters
+   * after a rejecting one aren't asked.
+   * @throws Exception
+   */
+  @Test
+  public void shouldCountDecisionsPerFilter() throws Exception {
+    NotificationMetrics metrics =
+        new NotificationMetrics(null, null, null, null, false, false);
+    EligibilityFilter accepting = new FixedFilter(true);
+    EligibilityFilter rejecting = new FixedFilter(false) { };
+    filters.add(0, accepting);
+    filters.add(1, rejecting);
+    filterChain = new ConcreteEligibilityFilterChain(filters, metrics);
+
+    assertFalse(filterChain.shouldDeliverNotification(event));
+    assertFalse(filterChain.shouldDeliverNotification(event));
+
+    assertEquals(2, metrics.forFilter(accepting).getEvaluatedCount());
+    assertEquals(0, metrics.forFilter(accepting).getRejectedCount());
+    assertEquals(2, metrics.forFilter(rejecting).getEvaluatedCount());
+    assertEquals(2, metrics.forFilter(rejecting).getRejectedCount());
+    verify(filter, never()).shouldDeliverNotification(event);
+  }
+
+  /**
+   * Validate that cheaper filters are asked first, whatever the order they
+   * were given in.
+   * @throws Exception
+   */
+  @Test
+  public void shouldAskCheaperFiltersFirst() throws Exception {
+    when(filter.getEstimatedCost()).thenReturn(10000);
+    when(filter.shouldDeliverNotification(event)).thenReturn(false);
+    filters.add(new FixedFilter(false, 1));
+    filterChain = new ConcreteEligibilityFilterChain(filters);
+
+    assertFalse(filterChain.shouldDeliverNotification(event));
+    verify(filter, never()).shouldDeliverNotification(event);
+    assertEquals(filter, filterChain.getFilters()[1]);
+  }
+
+  /**
+   * Validate that the adaptive chain moves a filter that rejects most events
+   * ahead of an equally cheap one that never does, and publishes the order.
+   * @throws Exception
+   */
+  @Test
+  public void shouldAskSelectiveFiltersFirstWhenAdaptive() throws Exception {
+    NotificationMetrics metrics =
+        new NotificationMetrics(null, null, null, null, false, false);
+    EligibilityFilter accepting = new FixedFilter(true, 1);
+    EligibilityFilter rejecting = new FixedFilter(false, 1) { };
+    filters.clear();
+    filters.add(accepting);
+    filters.add(rejecting);
+    filterChain = new ConcreteEligibilityFilterChain(filters, metrics, true);
+    assertEquals(0, metrics.forFilter(accepting).getPosition());
+
+    for (int i = 0; i < ConcreteEligibilityFilterChain.REORDER_INTERVAL; i++)
+      assertFalse(filterChain.shouldDeliverNotification(event));
+
+    assertEquals(rejecting, filterChain.getFilters()[0]);
+    assertEquals(0, metrics.forFilter(rejecting).getPosition());
+    assertEquals(1, metrics.forFilter(accepting).getPosition());
+  }
+
+  /**
+   * Validate that the order only follows the estimated costs unless adaptive.
+   * @throws Exception
+   */
+  @Test
+  public void shouldKeepOrderWhenNotAdaptive() throws Exception {
+    EligibilityFilter accepting = new FixedFilter(true, 1);
+    EligibilityFilter rejecting = new FixedFilter(false, 1) { };
+    filters.clear();
+    filters.add(accepting);
+    filters.add(rejecting);
+    filterChain = new ConcreteEligibilityFilterChain(filters);
+
+    for (int i = 0; i < ConcreteEligibilityFilterChain.REORDER_INTERVAL; i++)
+      filterChain.shouldDeliverNotification(event);
+
+    assertEquals(accepting, filterChain.getFilters()[0]);
+  }
+
+  private static class FixedFilter implements EligibilityFilter {
+    private final boolean deliver;
+    private final int cost;
+
+    FixedFilter(boolean deliver) {
+      this(deliver, DEFAULT_COST);
+    }
+
+    FixedFilter(boolean deliver, int cost) {
+      this.deliver = deliver;
+      this.cost = cost;
+    }
+
+    @Override
+    public boolean shouldDeliverNotification(EventContext context) {
+      return deliver;
+    }
+
+    @Override
+    public int getEstimatedCost() {
+      return cost;
+    }
+  }
 }
@@ -0,0 +1,82 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestRef;
+import com.atlassian.bitbucket.pull.PullRequestState;
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+
+/**
+ * Test case for the {@link EventContext} class
+ */
+public class EventContextTest {
+
+  private final Repository repo = mock(Repository.class);
+
+  /**
+   * Validate that the ref change is copied, so the context doesn't change
+   * along with the event
+   */
+  @Test
+  public void shouldCopyRefChange() {
+    RefChange refChange = mock(RefChange.class);
+    Ref ref = mock(Ref.class);
+    when(refChange.getRef()).thenReturn(ref);
+    when(ref.getId()).thenReturn("refs/heads/master");
+    when(ref.getDisplayId()).thenReturn("master");
+    when(refChange.getFromHash()).thenReturn("sha1");
+    when(refChange.getToHash()).thenReturn("sha2");
+    when(refChange.getType()).thenReturn(RefChangeType.UPDATE);
+
+    EventContext context = new EventContext(repo, "pinky", refChange);
+    when(ref.getId()).thenReturn("refs/heads/develop");
+    when(refChange.getToHash()).thenReturn("sha3");
+
+    RefChange copy = context.getRefChange();
+    assertEquals("refs/heads/master", copy.getRef().getId());
+    assertEquals("master", copy.getRef().getDisplayId());
+    assertEquals("sha1", copy.getFromHash());
+    assertEquals("sha2", copy.getToHash());
+    assertEquals(RefChangeType.UPDATE, copy.getType());
+    assertEquals("pinky", context.getUsername());
+    assertNull(context.getPullRequestId());
+  }
+
+  /**
+   * Validate that the ids and commits of the pull request are copied, so the
+   * context doesn't change as the pull request moves on
+   */
+  @Test
+  public void shouldCopyPullRequest() {
+    PullRequest pullRequest = mock(PullRequest.class);
+    PullRequestRef fromRef = mock(PullRequestRef.class);
+    PullRequestRef toRef = mock(PullRequestRef.class);
+    when(pullRequest.getId()).thenReturn(7L);
+    when(pullRequest.getState()).thenReturn(PullRequestState.OPEN);
+    when(pullRequest.getFromRef()).thenReturn(fromRef);
+    when(pullRequest.getToRef()).thenReturn(toRef);
+    when(fromRef.getLatestCommit()).thenReturn("sha1");
+    when(toRef.getLatestCommit()).thenReturn("sha2");
+
+    EventContext context = new EventContext(repo, "pinky", pullRequest,
+        "sha0");
+    when(pullRequest.getState()).thenReturn(PullRequestState.MERGED);
+    when(fromRef.getLatestCommit()).thenReturn("sha3");
+
+    assertEquals(Long.valueOf(7), context.getPullRequestId());
+    assertEquals(PullRequestState.OPEN, context.getPullRequestState());
+    assertEquals("sha1", context.getFromHash());
+    assertEquals("sha2", context.getToHash());
+    assertEquals("sha0", context.getPreviousFromHash());
+    assertNull(context.getRefChange());
+  }
+}
@@ -12,6 +12,7 @@ import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.Settings;
 import com.nerdwin15.stash.webhook.Notifier;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.WebhookSettings;
 
 /**
  * Test case for the {@link IgnoreCommittersEligibilityFilter} class
@@ -36,10 +37,10 @@ public class IgnoreCommittersEligibilityFilterTest {
     repo = mock(Repository.class);
     filter = new IgnoreCommittersEligibilityFilter(settingsService);
     settings = mock(Settings.class);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settingsService.getWebhookSettings(repo))
+        .thenAnswer(invocation -> new WebhookSettings(true, settings));
     
     eventContext = mock(EventContext.class);
-    when(eventContext.getEventSource()).thenReturn(null);
     when(eventContext.getRepository()).thenReturn(repo);
     when(eventContext.getUsername()).thenReturn(username);
   }
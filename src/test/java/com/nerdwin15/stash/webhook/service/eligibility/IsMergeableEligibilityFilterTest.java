@@ -8,13 +8,9 @@ import static org.mockito.Mockito.when;
 import org.junit.Before;
 import org.junit.Test;
 
-import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
-import com.atlassian.bitbucket.pull.PullRequest;
-import com.atlassian.bitbucket.pull.PullRequestMergeability;
-import com.atlassian.bitbucket.pull.PullRequestRef;
-import com.atlassian.bitbucket.pull.PullRequestService;
 import com.atlassian.bitbucket.pull.PullRequestState;
 import com.atlassian.bitbucket.repository.Repository;
+import com.nerdwin15.stash.webhook.service.MergeabilityService;
 
 /**
  * Test case for the {@link IsMergeableEligibilityFilter} class
@@ -23,12 +19,10 @@ import com.atlassian.bitbucket.repository.Repository;
  */
 public class IsMergeableEligibilityFilterTest {
 
-  private PullRequestService pullRequestService;
+  private MergeabilityService mergeabilityService;
   private IsMergeableEligibilityFilter filter;
   private Repository repo;
   private EventContext eventContext;
-  private PullRequest pullRequest;
-  private PullRequestRescopedEvent event;
   private String username = "pinky";
   private int repoId = 1;
   
@@ -37,31 +31,29 @@ public class IsMergeableEligibilityFilterTest {
    */
   @Before
   public void setUp() throws Exception {
-    pullRequestService = mock(PullRequestService.class);
+    mergeabilityService = mock(MergeabilityService.class);
     repo = mock(Repository.class);
-    pullRequest = mock(PullRequest.class);
     eventContext = mock(EventContext.class);
-    event = mock(PullRequestRescopedEvent.class);
 
     when(repo.getId()).thenReturn(repoId);
     
-    filter = new IsMergeableEligibilityFilter(pullRequestService);
+    filter = new IsMergeableEligibilityFilter(mergeabilityService);
     
-    when(event.getPullRequest()).thenReturn(pullRequest);
-    when(pullRequest.getState()).thenReturn(PullRequestState.OPEN);
-    when(eventContext.getEventSource()).thenReturn(event);
+    when(eventContext.getPullRequestId()).thenReturn(2L);
+    when(eventContext.getPullRequestState()).thenReturn(PullRequestState.OPEN);
+    when(eventContext.getFromHash()).thenReturn("from");
+    when(eventContext.getToHash()).thenReturn("to");
     when(eventContext.getRepository()).thenReturn(repo);
     when(eventContext.getUsername()).thenReturn(username);
   }
   
   /**
-   * Validate that when the event source is not a PullRequestEvent,
-   * the filter just passes it on.
+   * Validate that when the event is not about a pull request, the filter
+   * just passes it on.
    */
   @Test
-  public void shouldIgnoreIfEventSourceNotPullRequestEvent() {
-    String event = "Hi there";
-    when(eventContext.getEventSource()).thenReturn(event);
+  public void shouldIgnoreIfEventNotAboutPullRequest() {
+    when(eventContext.getPullRequestId()).thenReturn(null);
     
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
@@ -71,17 +63,7 @@ public class IsMergeableEligibilityFilterTest {
    */
   @Test
   public void shouldNotContinueIfMergeConflictOccurs() {
-    Long prId = 2L;
-    PullRequestRef ref = mock(PullRequestRef.class);
-    PullRequestMergeability mergability = mock(PullRequestMergeability.class);
-    
-    when(pullRequest.getFromRef()).thenReturn(ref);
-    when(pullRequest.getId()).thenReturn(prId);
-    
-    when(event.getPreviousFromHash()).thenReturn("event-hash");
-    when(ref.getLatestCommit()).thenReturn("ref-hash");
-    when(pullRequestService.canMerge(repoId, prId)).thenReturn(mergability);
-    when(mergability.isConflicted()).thenReturn(true);
+    when(mergeabilityService.isConflicted(repoId, 2L, "from", "to")).thenReturn(true);
     
     assertFalse(filter.shouldDeliverNotification(eventContext));
   }
@@ -91,18 +73,7 @@ public class IsMergeableEligibilityFilterTest {
    */
   @Test
   public void shouldContinueIfMergeConflictWillNotOccur() {
-    Long prId = 2L;
-    PullRequestRef ref = mock(PullRequestRef.class);
-    PullRequestMergeability mergability = mock(PullRequestMergeability.class);
-    
-    when(event.getPullRequest()).thenReturn(pullRequest);
-    when(pullRequest.getFromRef()).thenReturn(ref);
-    when(pullRequest.getId()).thenReturn(prId);
-    
-    when(event.getPreviousFromHash()).thenReturn("event-hash");
-    when(ref.getLatestCommit()).thenReturn("ref-hash");
-    when(pullRequestService.canMerge(repoId, prId)).thenReturn(mergability);
-    when(mergability.isConflicted()).thenReturn(false);
+    when(mergeabilityService.isConflicted(repoId, 2L, "from", "to")).thenReturn(false);
     
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
@@ -113,7 +84,8 @@ public class IsMergeableEligibilityFilterTest {
    */
   @Test
   public void shouldContinueIfPullRequestNotInOpenState() {
-    when(pullRequest.getState()).thenReturn(PullRequestState.MERGED);
+    when(eventContext.getPullRequestState())
+        .thenReturn(PullRequestState.MERGED);
     
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
@@ -8,10 +8,6 @@ import static org.mockito.Mockito.when;
 import org.junit.Before;
 import org.junit.Test;
 
-import com.atlassian.bitbucket.event.pull.PullRequestOpenedEvent;
-import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
-import com.atlassian.bitbucket.pull.PullRequest;
-import com.atlassian.bitbucket.pull.PullRequestRef;
 import com.atlassian.bitbucket.repository.Repository;
 
 /**
@@ -24,7 +20,6 @@ public class PullRequestRescopeEligibilityFilterTest {
   private PullRequestRescopeEligibilityFilter filter;
   private Repository repo;
   private EventContext eventContext;
-  private PullRequestRescopedEvent event;
   private String username = "pinky";
   private int repoId = 1;
   
@@ -38,21 +33,19 @@ public class PullRequestRescopeEligibilityFilterTest {
     
     filter = new PullRequestRescopeEligibilityFilter();
     
-    event = mock(PullRequestRescopedEvent.class);
     eventContext = mock(EventContext.class);
-    when(eventContext.getEventSource()).thenReturn(event);
     when(eventContext.getRepository()).thenReturn(repo);
     when(eventContext.getUsername()).thenReturn(username);
   }
   
   /**
-   * Validate that when the event source is not a PullRequestRescopedEvent,
-   * the filter just passes it on.
+   * Validate that when the event is not a rescope, the filter just passes
+   * it on.
    */
   @Test
-  public void shouldIgnoreIfEventSourceNotPullRequestRescopedEvent() {
-    PullRequestOpenedEvent event = mock(PullRequestOpenedEvent.class);
-    when(eventContext.getEventSource()).thenReturn(event);
+  public void shouldIgnoreIfEventNotPullRequestRescope() {
+    when(eventContext.getPreviousFromHash()).thenReturn(null);
+    when(eventContext.getFromHash()).thenReturn("some-hash");
     
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
@@ -63,15 +56,10 @@ public class PullRequestRescopeEligibilityFilterTest {
    */
   @Test
   public void shouldNotContinueIfUpdateComesFromFromSide() {
-    PullRequest request = mock(PullRequest.class);
-    PullRequestRef ref = mock(PullRequestRef.class);
     String hash = "some-hash";
     
-    when(event.getPullRequest()).thenReturn(request);
-    when(request.getFromRef()).thenReturn(ref);
-    
-    when(event.getPreviousFromHash()).thenReturn(hash);
-    when(ref.getLatestCommit()).thenReturn(hash);
+    when(eventContext.getPreviousFromHash()).thenReturn(hash);
+    when(eventContext.getFromHash()).thenReturn(hash);
     
     assertFalse(filter.shouldDeliverNotification(eventContext));
   }
@@ -82,15 +70,10 @@ public class PullRequestRescopeEligibilityFilterTest {
    */
   @Test
   public void shouldContinueIfUpdateComesFromFromSide() {
-    PullRequest request = mock(PullRequest.class);
-    PullRequestRef ref = mock(PullRequestRef.class);
     String hash = "some-hash";
     
-    when(event.getPullRequest()).thenReturn(request);
-    when(request.getFromRef()).thenReturn(ref);
-    
-    when(event.getPreviousFromHash()).thenReturn(hash);
-    when(ref.getLatestCommit()).thenReturn(hash + hash);
+    when(eventContext.getPreviousFromHash()).thenReturn(hash);
+    when(eventContext.getFromHash()).thenReturn(hash + hash);
     
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
@@ -0,0 +1,108 @@
+package com.nerdwin15.stash.webhook.service.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Test case for the {@link DeliveryHistory} class
+ */
+public class DeliveryHistoryTest {
+
+  private static final NotificationResult RESULT =
+      new NotificationResult(true, "url", "Scheduled");
+
+  /**
+   * Validates that only the most recent attempts are kept, newest first
+   */
+  @Test
+  public void shouldKeepMostRecentAttempts() {
+    DeliveryHistory history = new DeliveryHistory(3, 10);
+    Repository repository = repository(1);
+    for (int i = 0; i < 5; i++)
+      history.record(repository, "refs/heads/b" + i, "sha" + i, i + 1, i,
+          RESULT);
+
+    List<DeliveryRecord> records = history.getRecords(repository, 0, 10);
+    assertEquals(3, records.size());
+    assertEquals("refs/heads/b4", records.get(0).getRef());
+    assertEquals("refs/heads/b2", records.get(2).getRef());
+    assertEquals("sha4", records.get(0).getSha1());
+    assertEquals(5, records.get(0).getAttempt());
+    assertEquals(4, records.get(0).getLatencyMillis());
+    assertEquals(RESULT, records.get(0).getResult());
+  }
+
+  /**
+   * Validates that the attempts can be read a page at a time
+   */
+  @Test
+  public void shouldPageThroughAttempts() {
+    DeliveryHistory history = new DeliveryHistory(10, 10);
+    Repository repository = repository(1);
+    for (int i = 0; i < 5; i++)
+      history.record(repository, "refs/heads/b" + i, null, 1, 0, RESULT);
+
+    List<DeliveryRecord> page = history.getRecords(repository, 2, 2);
+    assertEquals(2, page.size());
+    assertEquals("refs/heads/b2", page.get(0).getRef());
+    assertEquals("refs/heads/b1", page.get(1).getRef());
+    assertEquals(1, history.getRecords(repository, 4, 2).size());
+    assertTrue(history.getRecords(repository, 5, 2).isEmpty());
+    assertTrue(history.getRecords(repository, -1, 2).isEmpty());
+  }
+
+  /**
+   * Validates that the histories of repositories are kept apart
+   */
+  @Test
+  public void shouldKeepHistoryPerRepository() {
+    DeliveryHistory history = new DeliveryHistory(10, 10);
+    history.record(repository(1), "refs/heads/one", null, 1, 0, RESULT);
+    history.record(repository(2), "refs/heads/two", null, 1, 0, RESULT);
+
+    List<DeliveryRecord> records = history.getRecords(repository(2), 0, 10);
+    assertEquals(1, records.size());
+    assertEquals("refs/heads/two", records.get(0).getRef());
+    assertTrue(history.getRecords(repository(3), 0, 10).isEmpty());
+  }
+
+  /**
+   * Validates that the number of repositories with a history is bounded
+   */
+  @Test
+  public void shouldBoundRepositories() {
+    DeliveryHistory history = new DeliveryHistory(10, 5);
+    for (int i = 0; i < 50; i++)
+      history.record(repository(i), "refs/heads/master", null, 1, 0, RESULT);
+
+    assertTrue(history.getRepositoryCount() <= 5);
+    assertEquals(1, history.getRecords(repository(49), 0, 10).size());
+  }
+
+  /**
+   * Validates that nothing is kept when the history is turned off
+   */
+  @Test
+  public void shouldKeepNothingWhenDisabled() {
+    DeliveryHistory history = new DeliveryHistory(0, 10);
+    history.record(repository(1), "refs/heads/master", null, 1, 0, RESULT);
+
+    assertEquals(0, history.getRepositoryCount());
+    assertTrue(history.getRecords(repository(1), 0, 10).isEmpty());
+  }
+
+  private Repository repository(int id) {
+    Repository repository = mock(Repository.class);
+    when(repository.getId()).thenReturn(id);
+    return repository;
+  }
+}
@@ -0,0 +1,177 @@
+package com.nerdwin15.stash.webhook.service.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.service.dispatch.EligibilityStage;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationExecutor;
+import com.nerdwin15.stash.webhook.service.dispatch.RetryScheduler;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilter;
+import com.nerdwin15.stash.webhook.service.outbox.NotificationOutbox;
+
+/**
+ * Test case for the {@link NotificationMetrics} class
+ */
+public class NotificationMetricsTest {
+
+  private static final String JENKINS_BASE = "http://Jenkins.example.com:8080";
+
+  private NotificationExecutor executor;
+  private EligibilityStage stage;
+  private RetryScheduler retries;
+  private NotificationOutbox outbox;
+  private NotificationMetrics metrics;
+  private MBeanServer server;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    executor = mock(NotificationExecutor.class);
+    stage = mock(EligibilityStage.class);
+    retries = mock(RetryScheduler.class);
+    outbox = mock(NotificationOutbox.class);
+    metrics = new NotificationMetrics(executor, stage, retries, outbox, false,
+        false);
+    server = MBeanServerFactory.newMBeanServer();
+  }
+
+  /**
+   * Cleanup tasks
+   */
+  @After
+  public void tearDown() {
+    metrics.destroy();
+  }
+
+  /**
+   * Validates that notifications are reported under the host of the
+   * Jenkins base URL
+   */
+  @Test
+  public void shouldReportHostOfJenkinsBase() {
+    assertEquals("jenkins.example.com:8080",
+        NotificationMetrics.hostOf(JENKINS_BASE));
+    assertEquals("jenkins.example.com",
+        NotificationMetrics.hostOf("https://jenkins.example.com/ci"));
+    assertEquals(NotificationMetrics.UNKNOWN_HOST,
+        NotificationMetrics.hostOf("not a url"));
+  }
+
+  /**
+   * Validates that notifications are counted and timed per host and outcome
+   */
+  @Test
+  public void shouldCountPerHostAndOutcome() {
+    for (int i = 1; i <= 100; i++) {
+      metrics.record(JENKINS_BASE, NotificationMetrics.Outcome.SCHEDULED,
+          TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    metrics.record(JENKINS_BASE + "/", NotificationMetrics.Outcome.REJECTED,
+        -1);
+
+    NotificationStats scheduled = stats("scheduled");
+    assertEquals("jenkins.example.com:8080", scheduled.getHost());
+    assertEquals(100, scheduled.getCount());
+    assertEquals(50.5, scheduled.getMeanMillis(), 0.001);
+    assertEquals(100, scheduled.getMaxMillis(), 0.001);
+    assertEquals(50, scheduled.get50thPercentileMillis(), 0.001);
+    assertEquals(100, scheduled.get95thPercentileMillis(), 0.001);
+    assertEquals(1, stats("rejected").getCount());
+    assertEquals(0, stats("rejected").getMeanMillis(), 0.001);
+    assertEquals(2, metrics.getNotificationStats().size());
+  }
+
+  /**
+   * Validates that the number of hosts tracked is bounded
+   */
+  @Test
+  public void shouldBoundHosts() {
+    for (int i = 0; i < NotificationMetrics.MAX_HOSTS + 10; i++) {
+      metrics.record("http://jenkins" + i, NotificationMetrics.Outcome.ERROR,
+          1000);
+    }
+
+    assertEquals(NotificationMetrics.MAX_HOSTS + 1,
+        metrics.getNotificationStats().size());
+    long others = 0;
+    for (NotificationStats stats : metrics.getNotificationStats()) {
+      if (stats.getHost().equals(NotificationMetrics.OTHER_HOST))
+        others = stats.getCount();
+    }
+    assertEquals(10, others);
+  }
+
+  /**
+   * Validates that filters of the same class share their counters
+   */
+  @Test
+  public void shouldShareCountersPerFilterClass() {
+    FilterStats stats = metrics.forFilter(mock(EligibilityFilter.class));
+
+    assertSame(stats, metrics.forFilter(mock(EligibilityFilter.class)));
+    assertEquals(1, metrics.getFilterStats().size());
+  }
+
+  /**
+   * Validates that all statistics are registered as MXBeans, including
+   * those created before and after publishing starts, and unregistered on
+   * destroy
+   * @throws Exception
+   */
+  @Test
+  public void shouldPublishMXBeans() throws Exception {
+    when(executor.getQueueDepth()).thenReturn(7);
+    when(retries.getPendingCount()).thenReturn(3);
+    when(stage.getDroppedCount()).thenReturn(2L);
+    metrics.record(JENKINS_BASE, NotificationMetrics.Outcome.TIMEOUT, 5000);
+    metrics.start(new JmxBridge(server));
+    metrics.record(JENKINS_BASE, NotificationMetrics.Outcome.NO_JOB, 5000);
+    metrics.forFilter(mock(EligibilityFilter.class)).record(false, 0);
+
+    String domain = JmxBridge.DOMAIN;
+    assertEquals(7, server.getAttribute(
+        new ObjectName(domain + ":type=Dispatch"), "QueueDepth"));
+    assertEquals(3, server.getAttribute(
+        new ObjectName(domain + ":type=Dispatch"), "PendingRetries"));
+    assertEquals(2L, server.getAttribute(new ObjectName(domain
+        + ":type=Dispatch"), "EligibilityDroppedCount"));
+    assertEquals(1L, server.getAttribute(new ObjectName(domain
+        + ":type=Notifications,host=\"jenkins.example.com:8080\","
+        + "outcome=timeout"), "Count"));
+    assertEquals(1L, server.getAttribute(new ObjectName(domain
+        + ":type=Notifications,host=\"jenkins.example.com:8080\","
+        + "outcome=no-job"), "Count"));
+    assertEquals(1, server.queryNames(new ObjectName(domain
+        + ":type=EligibilityFilter,*"), null).size());
+
+    metrics.destroy();
+    assertTrue(server.queryNames(new ObjectName(domain + ":*"), null)
+        .isEmpty());
+    assertFalse(server.isRegistered(new ObjectName(domain
+        + ":type=Dispatch")));
+  }
+
+  private NotificationStats stats(String outcome) {
+    for (NotificationStats stats : metrics.getNotificationStats()) {
+      if (stats.getOutcome().equals(outcome))
+        return stats;
+    }
+    throw new AssertionError("No statistics for " + outcome);
+  }
+}
@@ -0,0 +1,226 @@
+package com.nerdwin15.stash.webhook.service.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.nerdwin15.stash.webhook.NotificationRequest;
+
+/**
+ * Test case for the {@link NotificationOutbox} class
+ */
+public class NotificationOutboxTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Map<Integer, Repository> repositories =
+      new HashMap<Integer, Repository>();
+  private File directory;
+  private NotificationOutbox outbox;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() throws Exception {
+    directory = new File(folder.getRoot(), "outbox");
+    repositories.put(1, repository(1));
+    repositories.put(2, repository(2));
+    outbox = open();
+  }
+
+  /**
+   * Cleanup tasks
+   */
+  @After
+  public void tearDown() {
+    outbox.destroy();
+  }
+
+  /**
+   * Validates that unacknowledged notifications are replayed after a restart
+   */
+  @Test
+  public void shouldReplayPendingNotificationsAfterRestart() {
+    outbox.replay();
+    long first = outbox.append(request(1, "refs/heads/master", "sha1", "dev"));
+    long second = outbox.append(request(2, "refs/heads/feature", "sha2",
+        null));
+    outbox.acknowledge(first);
+
+    List<NotificationRequest> pending = restart().replay();
+
+    assertEquals(1, pending.size());
+    assertEquals(second, pending.get(0).getEntryId());
+    assertEquals(repositories.get(2), pending.get(0).getRepository());
+    assertEquals("refs/heads/feature", pending.get(0).getRef());
+    assertEquals("sha2", pending.get(0).getSha1());
+    assertNull(pending.get(0).getTargetBranch());
+  }
+
+  /**
+   * Validates that only the newest notification per branch is replayed
+   */
+  @Test
+  public void shouldReplayNewestNotificationPerBranch() {
+    outbox.append(request(1, "refs/heads/master", "old", null));
+    outbox.append(request(1, "refs/heads/master", "new", null));
+    assertEquals(1, outbox.getPendingCount());
+
+    List<NotificationRequest> pending = restart().replay();
+
+    assertEquals(1, pending.size());
+    assertEquals("new", pending.get(0).getSha1());
+  }
+
+  /**
+   * Validates that acknowledging a superseded notification keeps the newer
+   * one pending
+   */
+  @Test
+  public void shouldIgnoreAcknowledgementOfSupersededNotification() {
+    long old = outbox.append(request(1, "refs/heads/master", "old", null));
+    outbox.append(request(1, "refs/heads/master", "new", null));
+    outbox.acknowledge(old);
+
+    List<NotificationRequest> pending = restart().replay();
+
+    assertEquals(1, pending.size());
+    assertEquals("new", pending.get(0).getSha1());
+  }
+
+  /**
+   * Validates that replayed notifications keep their order
+   */
+  @Test
+  public void shouldReplayOldestFirst() {
+    for (int i = 0; i < 10; i++)
+      outbox.append(request(1, "refs/heads/b" + i, "sha" + i, null));
+
+    List<NotificationRequest> pending = restart().replay();
+
+    assertEquals(10, pending.size());
+    for (int i = 0; i < 10; i++)
+      assertEquals("refs/heads/b" + i, pending.get(i).getRef());
+  }
+
+  /**
+   * Validates that notifications of deleted repositories are dropped
+   */
+  @Test
+  public void shouldDropNotificationsOfDeletedRepositories() {
+    outbox.append(request(1, "refs/heads/master", "sha1", null));
+    outbox.append(request(2, "refs/heads/master", "sha2", null));
+    repositories.remove(1);
+
+    NotificationOutbox restarted = restart();
+    assertEquals(1, restarted.replay().size());
+    assertEquals(1, restarted.getPendingCount());
+    assertEquals(1, restart().replay().size());
+  }
+
+  /**
+   * Validates that acknowledged segments are deleted and long-pending
+   * notifications are moved forward, so the journal stays bounded
+   */
+  @Test
+  public void shouldCompactSegments() {
+    outbox.append(request(2, "refs/heads/stuck", "sha", null));
+    for (int i = 0; i < 20000; i++) {
+      long id = outbox.append(request(1, "refs/heads/branch-" + i,
+          "0123456789abcdef0123456789abcdef01234567", null));
+      outbox.acknowledge(id);
+    }
+
+    assertTrue(outbox.getSegmentCount() <= NotificationOutbox.MAX_SEGMENTS);
+    assertTrue(directory.list().length <= NotificationOutbox.MAX_SEGMENTS);
+    List<NotificationRequest> pending = restart().replay();
+    assertEquals(1, pending.size());
+    assertEquals("refs/heads/stuck", pending.get(0).getRef());
+  }
+
+  /**
+   * Validates that a torn record ends the replay of its segment
+   * @throws Exception
+   */
+  @Test
+  public void shouldIgnoreTornRecord() throws Exception {
+    outbox.append(request(1, "refs/heads/master", "sha1", null));
+    outbox.append(request(2, "refs/heads/master", "sha2", null));
+    outbox.destroy();
+
+    File segment = directory.listFiles()[0];
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      long last = file.length() - 1;
+      file.seek(last);
+      while (file.read() == 0) {
+        file.seek(--last);
+      }
+      file.seek(last);
+      file.write('X');
+    }
+
+    List<NotificationRequest> pending = restart().replay();
+    assertEquals(1, pending.size());
+    assertEquals("sha1", pending.get(0).getSha1());
+  }
+
+  /**
+   * Validates that nothing is written when the journal is disabled
+   */
+  @Test
+  public void shouldDoNothingWhenDisabled() {
+    outbox.destroy();
+    outbox = new NotificationOutbox(null, 0, null, null);
+
+    assertEquals(-1, outbox.append(request(1, "refs/heads/master", "sha1",
+        null)));
+    assertTrue(outbox.replay().isEmpty());
+  }
+
+  private NotificationOutbox restart() {
+    outbox.destroy();
+    outbox = open();
+    return outbox;
+  }
+
+  private NotificationOutbox open() {
+    return new NotificationOutbox(directory, 0, null, null) {
+      @Override
+      protected Repository findRepository(int repositoryId) {
+        return repositories.get(repositoryId);
+      }
+    };
+  }
+
+  private NotificationRequest request(int repositoryId, String ref,
+      String sha1, String targetBranch) {
+    return new NotificationRequest(repository(repositoryId), ref, sha1,
+        targetBranch);
+  }
+
+  private Repository repository(int id) {
+    Repository repository = repositories.get(id);
+    if (repository != null)
+      return repository;
+    repository = mock(Repository.class);
+    when(repository.getId()).thenReturn(id);
+    return repository;
+  }
+}
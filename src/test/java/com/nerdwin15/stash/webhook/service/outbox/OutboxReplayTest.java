@@ -0,0 +1,93 @@
+package com.nerdwin15.stash.webhook.service.outbox;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.nerdwin15.stash.webhook.NotificationRequest;
+import com.nerdwin15.stash.webhook.service.dispatch.NotificationCoalescer;
+
+/**
+ * Test case for the {@link OutboxReplay} class
+ */
+public class OutboxReplayTest {
+
+  private NotificationOutbox outbox;
+  private NotificationCoalescer coalescer;
+  private OutboxReplay replay;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    outbox = mock(NotificationOutbox.class);
+    coalescer = mock(NotificationCoalescer.class);
+    replay = new OutboxReplay(outbox, coalescer);
+  }
+
+  /**
+   * Cleanup tasks
+   */
+  @After
+  public void tearDown() {
+    replay.destroy();
+  }
+
+  /**
+   * Validates that the pending notifications are submitted to the coalescer
+   * from a worker thread once the plugin started
+   */
+  @Test
+  public void shouldSubmitPendingNotificationsOnStart() throws Exception {
+    Repository repository = mock(Repository.class);
+    final List<NotificationRequest> pending = Arrays.asList(
+        new NotificationRequest(repository, "master", "sha1", null),
+        new NotificationRequest(repository, "develop", "sha2", null));
+    when(outbox.replay()).thenReturn(pending);
+    final AtomicReference<Thread> submitter = new AtomicReference<Thread>();
+    final CountDownLatch submitted = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      submitter.set(Thread.currentThread());
+      submitted.countDown();
+      return null;
+    }).when(coalescer).submitAll(pending);
+
+    replay.onStart();
+
+    assertTrue(submitted.await(5, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), submitter.get());
+    verify(coalescer).submitAll(pending);
+  }
+
+  /**
+   * Validates that nothing is submitted when nothing was pending
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldNotSubmitWhenNothingPending() {
+    when(outbox.replay()).thenReturn(
+        Collections.<NotificationRequest>emptyList());
+
+    replay.replay();
+
+    verify(coalescer, never()).submitAll(anyCollection());
+  }
+}
@@ -0,0 +1,241 @@
+package com.nerdwin15.stash.webhook.service.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Test case for the {@link RateLimiter} class.
+ */
+public class RateLimiterTest {
+
+  private static final String JENKINS = "http://jenkins";
+  private static final String SCANNER = "http://scanner";
+
+  private final List<String> sent = new ArrayList<String>();
+  private long now;
+  private Ticker ticker;
+  private RateLimiter limiter;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    ticker = new Ticker() {
+      @Override
+      public long read() {
+        return now;
+      }
+    };
+    limiter = new RateLimiter(new RateLimitConfig(true, 60, 2, 60, 10),
+        ticker);
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    limiter.destroy();
+  }
+
+  /**
+   * Validate that notifications within the limits are dispatched right away
+   */
+  @Test
+  public void shouldDispatchWithinLimits() throws Exception {
+    Future<NotificationResult> future =
+        limiter.submit(JENKINS + "/", 1, "1:a", send("1:a"), () -> { });
+
+    assertEquals("1:a", future.get().getUrl());
+    assertEquals(1, limiter.findHost(JENKINS).getAvailableTokens());
+    assertEquals(9, limiter.findRepository(1).getAvailableTokens());
+    assertEquals(0, limiter.getThrottledCount());
+  }
+
+  /**
+   * Validate that notifications over the limit are parked, not dropped, and
+   * dispatched in order once tokens come back
+   */
+  @Test
+  public void shouldParkOverLimit() throws Exception {
+    limiter.submit(JENKINS, 1, "1:a", send("1:a"), () -> { });
+    limiter.submit(JENKINS, 2, "2:a", send("2:a"), () -> { });
+    Future<NotificationResult> first =
+        limiter.submit(JENKINS, 1, "1:b", send("1:b"), () -> { });
+    Future<NotificationResult> second =
+        limiter.submit(JENKINS, 3, "3:a", send("3:a"), () -> { });
+
+    assertFalse(first.isDone());
+    assertEquals(2, limiter.getParkedCount());
+    assertEquals(2, limiter.getParkedForHost(JENKINS));
+    assertEquals(1, limiter.getParkedForRepository(1));
+    assertEquals(2, limiter.getThrottledCount());
+
+    now += TimeUnit.SECONDS.toNanos(1);
+    limiter.drain();
+    assertEquals("1:b", first.get(1, TimeUnit.SECONDS).getUrl());
+    assertFalse(second.isDone());
+
+    now += TimeUnit.SECONDS.toNanos(1);
+    limiter.drain();
+    assertEquals("3:a", second.get(1, TimeUnit.SECONDS).getUrl());
+    assertEquals("[1:a, 2:a, 1:b, 3:a]", sent.toString());
+    assertEquals(0, limiter.getParkedCount());
+  }
+
+  /**
+   * Validate that fresh notifications wait behind parked ones, even once a
+   * token is available
+   */
+  @Test
+  public void shouldNotOvertakeParked() {
+    limiter.submit(JENKINS, 1, "1:a", send("1:a"), () -> { });
+    limiter.submit(JENKINS, 1, "1:b", send("1:b"), () -> { });
+    limiter.submit(JENKINS, 1, "1:c", send("1:c"), () -> { });
+
+    now += TimeUnit.SECONDS.toNanos(1);
+    limiter.submit(JENKINS, 1, "1:d", send("1:d"), () -> { });
+
+    assertEquals("[1:a, 1:b]", sent.toString());
+    assertEquals(2, limiter.getParkedCount());
+  }
+
+  /**
+   * Validate that a newer notification for the same key replaces the parked
+   * one
+   */
+  @Test
+  public void shouldCoalesceParked() throws Exception {
+    final AtomicInteger superseded = new AtomicInteger();
+    limiter.submit(JENKINS, 1, "1:a", send("1:a"), () -> { });
+    limiter.submit(JENKINS, 1, "1:b", send("1:b"), () -> { });
+    Future<NotificationResult> old = limiter.submit(JENKINS, 1, "1:c",
+        send("1:c-old"), superseded::incrementAndGet);
+    Future<NotificationResult> newer = limiter.submit(JENKINS, 1, "1:c",
+        send("1:c-new"), () -> { });
+
+    assertSame(old, newer);
+    assertEquals(1, superseded.get());
+    assertEquals(1, limiter.getCoalescedCount());
+
+    now += TimeUnit.SECONDS.toNanos(1);
+    limiter.drain();
+    assertEquals("1:c-new", old.get(1, TimeUnit.SECONDS).getUrl());
+  }
+
+  /**
+   * Validate that a repository over its limit doesn't take a token of the
+   * Jenkins instance
+   */
+  @Test
+  public void shouldLimitPerRepository() {
+    limiter = new RateLimiter(new RateLimitConfig(true, 60, 10, 60, 1),
+        ticker);
+    limiter.submit(JENKINS, 1, "1:a", send("1:a"), () -> { });
+    limiter.submit(JENKINS, 1, "1:b", send("1:b"), () -> { });
+    limiter.submit(JENKINS, 2, "2:a", send("2:a"), () -> { });
+
+    assertEquals("[1:a, 2:a]", sent.toString());
+    assertEquals(8, limiter.findHost(JENKINS).getAvailableTokens());
+  }
+
+  /**
+   * Validate that parked notifications are dispatched on the limiter's
+   * thread once tokens come back
+   */
+  @Test
+  public void shouldDrainOnSchedule() throws Exception {
+    limiter = new RateLimiter(new RateLimitConfig(true, 6000, 1, 0, 1),
+        Ticker.systemTicker());
+    limiter.submit(JENKINS, 1, "1:a", send("1:a"), () -> { });
+    Future<NotificationResult> parked =
+        limiter.submit(JENKINS, 1, "1:b", send("1:b"), () -> { });
+
+    assertEquals("1:b", parked.get(5, TimeUnit.SECONDS).getUrl());
+  }
+
+  /**
+   * Validate that nothing is limited when switched off
+   */
+  @Test
+  public void shouldNotLimitWhenDisabled() {
+    limiter = new RateLimiter(new RateLimitConfig(false, 60, 1, 60, 1),
+        ticker);
+    for (int i = 0; i < 5; i++)
+      limiter.submit(JENKINS, 1, "1:" + i, send("1:" + i), () -> { });
+
+    assertEquals(5, sent.size());
+    assertNull(limiter.findHost(JENKINS));
+  }
+
+  /**
+   * Validate that parked notifications are cancelled on shutdown
+   */
+  @Test
+  public void shouldCancelParkedOnDestroy() {
+    limiter.submit(JENKINS, 1, "1:a", send("1:a"), () -> { });
+    limiter.submit(JENKINS, 1, "1:b", send("1:b"), () -> { });
+    Future<NotificationResult> parked =
+        limiter.submit(JENKINS, 1, "1:c", send("1:c"), () -> { });
+
+    limiter.destroy();
+
+    assertTrue(parked.isCancelled());
+    assertEquals(0, limiter.getParkedCount());
+  }
+
+  /**
+   * Validate that a notification for several Jenkins instances takes a
+   * token from each, or waits without holding any
+   */
+  @Test
+  public void shouldTakeTokenFromEveryJenkins() throws Exception {
+    limiter.submit(Arrays.asList(JENKINS, SCANNER), 1, "1:a", send("1:a"),
+        () -> { });
+    limiter.submit(JENKINS, 2, "2:a", send("2:a"), () -> { });
+    Future<NotificationResult> parked = limiter.submit(
+        Arrays.asList(SCANNER, JENKINS), 3, "3:a", send("3:a"), () -> { });
+    assertEquals(1, limiter.findHost(SCANNER).getAvailableTokens());
+    limiter.submit(SCANNER, 4, "4:a", send("4:a"), () -> { });
+
+    assertFalse(parked.isDone());
+    assertEquals("[1:a, 2:a, 4:a]", sent.toString());
+    assertEquals(1, limiter.getParkedForHost(JENKINS));
+    assertEquals(1, limiter.getParkedForHost(SCANNER));
+
+    now += TimeUnit.SECONDS.toNanos(1);
+    limiter.drain();
+    assertEquals("3:a", parked.get(1, TimeUnit.SECONDS).getUrl());
+    assertEquals(0, limiter.getParkedForHost(SCANNER));
+  }
+
+  private Supplier<Future<NotificationResult>> send(final String url) {
+    return () -> {
+      synchronized (sent) {
+        sent.add(url);
+      }
+      return CompletableFuture.completedFuture(
+          new NotificationResult(true, url, null));
+    };
+  }
+}
@@ -0,0 +1,81 @@
+package com.nerdwin15.stash.webhook.service.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Test case for the {@link TokenBucket} class.
+ */
+public class TokenBucketTest {
+
+  private long now;
+  private TokenBucket bucket;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    bucket = new TokenBucket("jenkins", 60, 3, new Ticker() {
+      @Override
+      public long read() {
+        return now;
+      }
+    });
+  }
+
+  /**
+   * Validate that a full bucket allows a burst, then nothing
+   */
+  @Test
+  public void shouldAllowBurst() {
+    for (int i = 0; i < 3; i++)
+      assertTrue(bucket.tryAcquire());
+
+    assertFalse(bucket.tryAcquire());
+    assertEquals(0, bucket.getAvailableTokens());
+    assertEquals(TimeUnit.SECONDS.toNanos(1), bucket.getWaitNanos());
+  }
+
+  /**
+   * Validate that tokens come back at the configured rate, up to the burst
+   */
+  @Test
+  public void shouldRefillAtRate() {
+    while (bucket.tryAcquire()) {
+      // Empty the bucket
+    }
+
+    now += TimeUnit.MILLISECONDS.toNanos(500);
+    assertFalse(bucket.tryAcquire());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(500), bucket.getWaitNanos());
+    now += TimeUnit.MILLISECONDS.toNanos(500);
+    assertTrue(bucket.tryAcquire());
+
+    now += TimeUnit.MINUTES.toNanos(1);
+    assertEquals(3, bucket.getAvailableTokens());
+  }
+
+  /**
+   * Validate that a refunded token can be taken again
+   */
+  @Test
+  public void shouldRefundToken() {
+    while (bucket.tryAcquire()) {
+      // Empty the bucket
+    }
+
+    bucket.refund();
+
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+  }
+}